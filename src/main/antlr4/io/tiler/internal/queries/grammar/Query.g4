@@ -12,7 +12,8 @@ groupClause : GROUP fields+=ID (',' fields+=ID)* ;
 aggregateClause : AGGREGATE namedExprs+=namedExpr (',' namedExprs+=namedExpr)* ;
 pointSelectClause : POINT namedExprs+=namedExpr (',' namedExprs+=namedExpr)* ;
 pointSortClause : SORT sortExprs+=sortExpr (',' sortExprs+=sortExpr)* ;
-metricSelectClause : METRIC namedExprs+=namedExpr (',' namedExprs+=namedExpr)* ;
+// 'only' is matched as an ID so that it can still be used as a field name
+metricSelectClause : METRIC ({_input.LT(1).getText().equals("only")}? only=ID)? namedExprs+=namedExpr (',' namedExprs+=namedExpr)* ;
 metricSortClause : SORT sortExprs+=sortExpr (',' sortExprs+=sortExpr)* ;
 
 expr : ID                                                                                     # Field
@@ -4,13 +4,39 @@ import com.jetdrone.vertx.yoke.Yoke;
 import com.jetdrone.vertx.yoke.engine.StringPlaceholderEngine;
 import com.jetdrone.vertx.yoke.middleware.*;
 import io.tiler.core.json.JsonArrayIterable;
-import io.tiler.internal.RedisException;
+import io.tiler.core.time.TimePeriodParser;
+import io.tiler.internal.InstanceRegistry;
+import io.tiler.internal.PartialWriteException;
 import io.tiler.internal.SocketState;
 import io.tiler.internal.config.Config;
+import io.tiler.internal.config.CompressionCodec;
 import io.tiler.internal.config.ConfigFactory;
+import io.tiler.internal.config.IngestConfig;
+import io.tiler.internal.config.ListenerConfig;
+import io.tiler.internal.config.RetentionConfig;
+import io.tiler.internal.config.StorageBackend;
+import io.tiler.internal.config.StorageMode;
+import io.tiler.internal.ingest.AdmissionController;
+import io.tiler.internal.ingest.IngestBuffer;
+import io.tiler.internal.ingest.MetricBatcher;
+import io.tiler.internal.ingest.MetricChangeDetector;
+import io.tiler.internal.ingest.MetricStreamException;
+import io.tiler.internal.ingest.MetricStreamReader;
+import io.tiler.internal.ingest.MetricValidator;
+import io.tiler.internal.ingest.WriteAheadLog;
+import io.tiler.internal.ingest.formats.BinaryDecoder;
+import io.tiler.internal.ingest.formats.BinaryFormat;
+import io.tiler.internal.ingest.lines.LineProtocolListener;
 import io.tiler.internal.queries.*;
 import io.tiler.internal.queries.clauses.FromClause;
-import io.vertx.java.redis.RedisClient;
+import io.tiler.internal.snapshots.SnapshotManager;
+import io.tiler.internal.storage.CachingMetricStore;
+import io.tiler.internal.storage.FileMetricStore;
+import io.tiler.internal.storage.MetricRead;
+import io.tiler.internal.storage.MetricStore;
+import io.tiler.internal.storage.RedisMetricStore;
+import io.tiler.internal.storage.ShardedMetricStore;
+import io.tiler.internal.storage.codecs.CompressionStats;
 import org.simondean.vertx.async.Async;
 import org.simondean.vertx.async.AsyncResultHandlerWrapper;
 import org.simondean.vertx.async.DefaultAsyncResult;
@@ -28,26 +54,139 @@ import org.vertx.java.core.sockjs.SockJSServer;
 import org.vertx.java.core.sockjs.SockJSSocket;
 import org.vertx.java.platform.Verticle;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Clock;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 public class ServerVerticle extends Verticle {
+  private static final DateTimeFormatter SNAPSHOT_NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+  private static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+  private static final String TTL_FIELD_NAME = "ttl";
+  private static final int EXPIRED_METRIC_BATCH_SIZE = 1000;
+  private static final String INSTANCES_ADDRESS = "io.tiler.instances";
+  private static final long LOG_CLAIM_RETRY_DELAY = 100;
+  private final String instanceId = UUID.randomUUID().toString();
+  private InstanceRegistry instanceRegistry;
+  private int instanceIndex;
   private Config config;
   private org.vertx.java.core.logging.Logger logger;
   private EventBus eventBus;
-  private RedisClient redis;
+  private MetricStore metricStore;
+  private CachingMetricStore metricCache;
+  private ShardedMetricStore shardedMetricStore;
+  private final CompressionStats compressionStats = new CompressionStats();
+  private MetricNameIndex metricNameIndex;
+  private IngestBuffer ingestBuffer;
+  private MetricBatcher metricBatcher;
+  private MetricChangeDetector metricChangeDetector;
+  private AdmissionController admissionController;
+  private final MetricValidator metricValidator = new MetricValidator();
+  private long skippedNotificationCount;
+  private final ArrayList<LineProtocolListener> lineProtocolListeners = new ArrayList<>();
+  private SnapshotManager snapshotManager;
   private QueryFactory queryFactory;
+  private RollupSelector rollupSelector;
+  private boolean retentionRunning;
+  private boolean expiredMetricRemovalRunning;
   private final HashMap<SockJSSocket, SocketState> socketStates = new HashMap<>();
 
   public void start(Future<Void> startFuture) {
-    config = new ConfigFactory().load(container.config());
+    instanceRegistry = new InstanceRegistry(vertx.sharedData().getMap(INSTANCES_ADDRESS));
+    instanceIndex = instanceRegistry.register(instanceId);
+    config = new ConfigFactory().load(container.config(), instanceIndex);
     logger = container.logger();
+
+    // Every instance would open its own logs on the same files, and their writes would corrupt each other
+    if (instanceIndex > 0 && config.storage().backend() == StorageBackend.File) {
+      instanceRegistry.unregister(instanceIndex, instanceId);
+      startFuture.setFailure(new IllegalStateException("The file storage backend can only be used by a single instance"));
+      return;
+    }
+
     eventBus = vertx.eventBus();
-    redis = new RedisClient(eventBus, config.redis().address());
+    metricStore = createMetricStore();
     queryFactory = new QueryFactory();
+    rollupSelector = new RollupSelector();
 
     Async.series()
-      .task(handler -> container.deployModule("io.vertx~mod-redis~1.1.4", config.redis().toRedisModuleConfig(), 1, AsyncResultHandlerWrapper.wrap(handler)))
+      .task(handler -> metricStore.start(AsyncResultHandlerWrapper.wrap(handler)))
+      .task(handler -> {
+        // Kept up to date by the write path, and by the other instances' writes, from here on
+        metricNameIndex = new MetricNameIndex();
+        eventBus.registerHandler(INSTANCES_ADDRESS, (Message<JsonObject> message) -> handleInstanceMessage(message));
+
+        metricStore.scanMetricNames((metricNames, batchHandler) -> {
+          metricNameIndex.addAll(metricNames);
+          batchHandler.handle(DefaultAsyncResult.succeed());
+        }, result -> {
+          if (result.failed()) {
+            handler.handle(DefaultAsyncResult.fail(result));
+            return;
+          }
+
+          logger.info("Indexed " + metricNameIndex.size() + " metric names");
+          handler.handle(DefaultAsyncResult.succeed(null));
+        });
+      })
+      .task(handler -> {
+        String snapshotName = config.snapshot().restore();
+
+        // Only an empty store is restored, so a snapshot never overwrites newer metrics after an ordinary restart.  The
+        // first instance restores it, and tells the others once it is done.
+        if (snapshotName == null || instanceIndex > 0 || metricNameIndex.size() > 0) {
+          handler.handle(DefaultAsyncResult.succeed(null));
+          return;
+        }
+
+        logger.info("Restoring snapshot '" + snapshotName + "'");
+
+        restoreSnapshot(getSnapshotPath(snapshotName), result -> {
+          if (result.failed()) {
+            handler.handle(DefaultAsyncResult.fail(result));
+            return;
+          }
+
+          handler.handle(DefaultAsyncResult.succeed(null));
+        });
+      })
+      .task(handler -> {
+        IngestConfig ingestConfig = config.ingest();
+
+        if (ingestConfig.changeDetection().enabled()) {
+          metricChangeDetector = new MetricChangeDetector();
+          String hashFile = ingestConfig.changeDetection().file();
+
+          // The instances share the file, so only the first one reads and writes it
+          if (hashFile != null && instanceIndex == 0) {
+            try {
+              logger.info("Loaded hashes of " + metricChangeDetector.load(Paths.get(hashFile), metricNameIndex::contains) + " saved metrics");
+            } catch (IOException e) {
+              // Without the hashes every metric is written by its next save, which is only slower
+              metricChangeDetector.forgetAll();
+              logger.error("Failed to load the hashes of saved metrics", e);
+            }
+          }
+        }
+
+        if (ingestConfig.batchWindow() > 0) {
+          metricBatcher = new MetricBatcher(vertx, ingestConfig.batchWindow() / 1000L, ingestConfig.maxBatchSize(), this::saveAndPublishMetrics);
+        }
+
+        if (!ingestConfig.writeAheadLog()) {
+          admissionController = new AdmissionController(ingestConfig.admission());
+          handler.handle(DefaultAsyncResult.succeed(null));
+          return;
+        }
+
+        claimLog(Paths.get(ingestConfig.directory()), v -> startIngestBuffer(ingestConfig, handler));
+      })
       .task(handler -> {
         HttpServer httpServer = vertx.createHttpServer();
 
@@ -63,10 +202,23 @@ public class ServerVerticle extends Verticle {
             request.response().setContentType("text/html", "utf-8")
               .render("dashboard.shtml", next);
           })
-          .post("/api/v1/query", this::queryMetricsMiddleware);
+          .post("/api/v1/query", this::queryMetricsMiddleware)
+          .get("/api/v1/stats", this::getStatsMiddleware);
+
+        // Streamed uploads are read as they arrive, so they are routed before the body parser would buffer them
+        Router streamingRouter = new Router();
 
         if (!config.api().readOnly()) {
+          streamingRouter.post("/api/v1/metrics/stream", this::streamMetricsMiddleware);
           router.post("/api/v1/metrics", this::createMetricsMiddleware);
+          router.post("/api/v1/metrics/points", this::appendPointsMiddleware);
+          router.post("/api/v1/metrics/merge", this::mergePointsMiddleware);
+          router.post("/api/v1/snapshots", this::createSnapshotMiddleware);
+          router.post("/api/v1/snapshots/:snapshotName/restore", this::restoreSnapshotMiddleware);
+
+          if (shardedMetricStore != null) {
+            router.post("/api/v1/rebalance", this::rebalanceMiddleware);
+          }
         }
 
         // TODO: Implement metric search
@@ -78,6 +230,7 @@ public class ServerVerticle extends Verticle {
         yoke.use(new ErrorHandler(true));
         yoke.use(new Favicon());
         yoke.use("/static", new Static("static"));
+        yoke.use(streamingRouter);
         yoke.use(new BodyParser());
         yoke.use(router);
         yoke.listen(httpServer);
@@ -100,14 +253,16 @@ public class ServerVerticle extends Verticle {
 
               // TODO: Use timestamp on metrics to discard old metrics.  Where should this be done?  Client side or server side?
 
-              getMetricsForQueries(socketState.queries().values(), metrics -> {
+              Clock clock = fixedClock();
+
+              getMetricsForQueries(socketState.queries().values(), clock, metrics -> {
                 if (metrics.failed()) {
                   logger.info("Metrics could not be retrieved", metrics.cause());
                   return;
                 }
 
-                publishMetrics(metrics.result(), socket, socketState);
-                logger.info("Metrics retrieved from Redis and published");
+                publishMetrics(metrics.result(), socket, socketState, clock);
+                logger.info("Metrics retrieved and published");
               });
             }
           });
@@ -121,24 +276,88 @@ public class ServerVerticle extends Verticle {
         httpServer.listen(config.port(), AsyncResultHandlerWrapper.wrap(handler));
       })
       .task(handler -> {
-        eventBus.registerHandler("io.tiler", (Message<JsonObject> message) -> {
-          String messageType = message.body().getString("type");
+        eventBus.registerHandler("io.tiler", (Message<Object> message) -> {
+          JsonObject messageObject = getMessageObject(message);
+
+          if (messageObject == null) {
+            return;
+          }
+
+          String messageType = messageObject.getString("type");
           logger.info("Received " + messageType + " message");
-          JsonObject messageBody = message.body().getObject("body");
+          JsonObject messageBody = messageObject.getObject("body");
 
           switch (messageType) {
             case "publishMetrics": {
-              JsonArray metrics = messageBody.getArray("metrics");
+              JsonArray metrics = getMetricsFromMessageBody(message, messageBody);
 
-              saveAndPublishMetrics(metrics, result -> {
+              if (metrics == null) {
+                return;
+              }
+
+              AsyncResultHandler<Void> admittedHandler = admissionController.admit(getMessageSize(message, messageBody), result -> {
                 if (result.failed()) {
                   logger.error("Failed to save or publish metrics", result.cause());
                   return;
                 }
 
-                logger.info("Metrics saved to Redis and published");
+                logger.info("Metrics saved and published");
+              });
+
+              if (admittedHandler == null) {
+                rejectMessage(message);
+                return;
+              }
+
+              ingestMetrics(metrics, admittedHandler);
+              return;
+            }
+            case "appendPoints": {
+              JsonArray metrics = getMetricsFromMessageBody(message, messageBody);
+
+              if (metrics == null) {
+                return;
+              }
+
+              AsyncResultHandler<Void> admittedHandler = admissionController.admit(getMessageSize(message, messageBody), result -> {
+                if (result.failed()) {
+                  logger.error("Failed to append or publish points", result.cause());
+                  return;
+                }
+
+                logger.info("Points appended and published");
+              });
+
+              if (admittedHandler == null) {
+                rejectMessage(message);
+                return;
+              }
+
+              ingestPoints(metrics, admittedHandler);
+              return;
+            }
+            case "mergePoints": {
+              JsonArray metrics = getMetricsFromMessageBody(message, messageBody);
+
+              if (metrics == null) {
+                return;
+              }
+
+              AsyncResultHandler<Void> admittedHandler = admissionController.admit(getMessageSize(message, messageBody), result -> {
+                if (result.failed()) {
+                  logger.error("Failed to merge or publish points", result.cause());
+                  return;
+                }
+
+                logger.info("Points merged and published");
               });
 
+              if (admittedHandler == null) {
+                rejectMessage(message);
+                return;
+              }
+
+              ingestMergedPoints(metrics, admittedHandler);
               return;
             }
             case "getMetrics": {
@@ -174,6 +393,29 @@ public class ServerVerticle extends Verticle {
 
         handler.handle(DefaultAsyncResult.succeed(null));
       })
+      .task(handler -> {
+        RetentionConfig retentionConfig = config.storage().retention();
+
+        // Sweeping the whole store is only worth doing once, however many instances are deployed
+        if (instanceIndex > 0) {
+          handler.handle(DefaultAsyncResult.succeed(null));
+          return;
+        }
+
+        if (retentionConfig.isEnabled() && metricStore.hasBackgroundRetention()) {
+          vertx.setPeriodic(Math.max(1, retentionConfig.interval() / 1000L), timerId -> applyRetention());
+        }
+
+        // Requests can give metrics a ttl even when no expiry rules are configured
+        vertx.setPeriodic(Math.max(1, retentionConfig.interval() / 1000L), timerId -> removeExpiredMetrics());
+
+        handler.handle(DefaultAsyncResult.succeed(null));
+      })
+      .task(handler -> {
+        // Datagram ports cannot be shared, so only the first instance listens for line protocols
+        Iterator<ListenerConfig> listenerConfigs = instanceIndex == 0 ? config.listeners().iterator() : Collections.emptyIterator();
+        startLineProtocolListeners(listenerConfigs, AsyncResultHandlerWrapper.wrap(handler));
+      })
       .run(handler -> {
         if (handler.failed()) {
           container.logger().error("ServerVerticle failed to start", handler.cause());
@@ -186,412 +428,1344 @@ public class ServerVerticle extends Verticle {
       });
   }
 
-  private void createMetricsMiddleware(YokeRequest request, Handler<Object> next) {
-    Object body = request.body();
-    YokeResponse response = request.response();
+  @Override
+  public void stop() {
+    for (LineProtocolListener listener : lineProtocolListeners) {
+      listener.stop();
+    }
 
-    if (!(body instanceof JsonObject)) {
-      sendClientError(response, "Request body needs to be a JSON object");
+    instanceRegistry.unregister(instanceIndex, instanceId);
+
+    if (metricChangeDetector != null && config.ingest().changeDetection().file() != null && instanceIndex == 0) {
+      try {
+        metricChangeDetector.save(Paths.get(config.ingest().changeDetection().file()));
+      } catch (IOException e) {
+        logger.error("Failed to save the hashes of saved metrics", e);
+      }
+    }
+
+    if (ingestBuffer == null) {
       return;
     }
 
-    JsonObject jsonBody = (JsonObject) body;
+    try {
+      ingestBuffer.close();
+    } catch (IOException e) {
+      logger.error("Failed to close the write-ahead log", e);
+    }
 
-    // TODO: Move this logic into a method for validating metrics JSON
-    // TODO: Reuse the method for metrics that arrive via the ESB
-    if (!jsonBody.containsField("metrics")) {
-      sendClientError(response, "Request body needs to contain a 'metrics' field");
-      return;
+    instanceRegistry.releaseLog(Paths.get(config.ingest().directory()), instanceId);
+  }
+
+  private MetricStore createMetricStore() {
+    MetricStore store;
+
+    switch (config.storage().backend()) {
+      case File:
+        store = new FileMetricStore(container, eventBus, logger);
+        break;
+      default:
+        if (config.redis().isSharded()) {
+          shardedMetricStore = new ShardedMetricStore(container, eventBus, config, compressionStats, logger);
+          store = shardedMetricStore;
+        } else {
+          store = new RedisMetricStore(container, eventBus, config, config.redis(), compressionStats, logger);
+        }
     }
 
-    Object metrics = jsonBody.getValue("metrics");
+    // Snapshots bypass the cache, as exporting would otherwise fill it with every metric
+    snapshotManager = new SnapshotManager(vertx, store, config.snapshot().chunkSize());
 
-    if (!(metrics instanceof JsonArray)) {
-      sendClientError(response, "'metrics' field in request body must be an array");
+    if (config.storage().cache().isEnabled()) {
+      metricCache = new CachingMetricStore(store, config.storage().cache().maxPoints());
+      store = metricCache;
+    }
+
+    return store;
+  }
+
+  private void applyRetention() {
+    if (retentionRunning) {
       return;
     }
 
-    JsonArray jsonMetrics = (JsonArray) metrics;
+    retentionRunning = true;
 
-    // TODO: Validate name and points
+    metricStore.applyRetention(Clock.systemUTC(), result -> {
+      retentionRunning = false;
 
-    saveAndPublishMetrics(jsonMetrics, result -> {
       if (result.failed()) {
-        logger.info("Metrics could not be saved or published", result.cause());
+        logger.error("Failed to apply retention", result.cause());
         return;
       }
 
-      logger.info("Metrics saved to Redis and published");
-
-      // TODO: Send a different status code when not successful?
-      response.setStatusCode(204).end();
+      notifyOtherInstances("metricsRewritten", new JsonObject());
+      logger.info("Retention applied");
     });
   }
 
-  private void queryMetricsMiddleware(YokeRequest request, Handler<Object> next) {
-    Object body = request.body();
-    YokeResponse response = request.response();
-
-    if (!(body instanceof JsonObject)) {
-      sendClientError(response, "Request body needs to be a JSON object");
+  private void startLineProtocolListeners(Iterator<ListenerConfig> listenerConfigs, AsyncResultHandler<Void> handler) {
+    if (!listenerConfigs.hasNext()) {
+      handler.handle(DefaultAsyncResult.succeed());
       return;
     }
 
-    JsonObject jsonBody = (JsonObject) body;
+    IngestConfig ingestConfig = config.ingest();
 
-    if (!jsonBody.containsField("queries")) {
-      sendClientError(response, "'queries' field missing from request body");
-      return;
-    }
+    // Agents send points rather than whole metrics, so points are appended where the store can, and merged otherwise
+    LineProtocolListener listener = new LineProtocolListener(vertx, listenerConfigs.next(), ingestConfig.maxBatchSize(), ingestConfig.maxLineSize(), (metrics, writeHandler) -> {
+      if (metricStore.supportsAppend()) {
+        ingestPoints(metrics, writeHandler);
+      } else {
+        ingestMergedPoints(metrics, writeHandler);
+      }
+    }, logger);
+    lineProtocolListeners.add(listener);
 
-    Object queriesObject = jsonBody.getValue("queries");
+    listener.start(result -> {
+      if (result.failed()) {
+        handler.handle(result);
+        return;
+      }
 
-    if (!(queriesObject instanceof JsonArray)) {
-      sendClientError(response, "'queries' field should be a '" + JsonArray.class.getName() + "' but was a '" + queriesObject.getClass().getName() + "'");
+      startLineProtocolListeners(listenerConfigs, handler);
+    });
+  }
+
+  private void removeExpiredMetrics() {
+    if (expiredMetricRemovalRunning) {
       return;
     }
 
-    JsonArray queryObjects = (JsonArray) queriesObject;
-    ArrayList<Query> queries = new ArrayList<>();
+    expiredMetricRemovalRunning = true;
 
-    for (Object queryObject : queryObjects) {
-      if (!(queryObject instanceof String)) {
-        sendClientError(response, "'queries' field item should be a '" + String.class.getName() + "' but was a '" + queryObject.getClass().getName() + "'");
+    metricStore.removeExpiredMetrics(Clock.systemUTC(), EXPIRED_METRIC_BATCH_SIZE, result -> {
+      if (result.failed()) {
+        expiredMetricRemovalRunning = false;
+        logger.error("Failed to remove expired metrics", result.cause());
         return;
       }
 
-      Query query;
+      List<String> removedMetricNames = result.result();
 
-      try {
-        query = queryFactory.parseQuery((String) queryObject);
-      } catch (InvalidQueryException e) {
-        sendClientError(response, e.getMessage());
+      if (removedMetricNames.isEmpty()) {
+        expiredMetricRemovalRunning = false;
         return;
       }
 
-      queries.add(query);
-    }
+      metricNameIndex.removeAll(removedMetricNames);
 
-    getMetricsForQueries(queries, result -> {
-      if (result.failed()) {
-        sendClientError(response, "Failed to retrieve metrics. " + result.cause().getMessage());
-        return;
+      if (metricChangeDetector != null) {
+        metricChangeDetector.forget(removedMetricNames);
       }
 
-      JsonArray metrics = result.result();
-      Clock clock = Clock.systemUTC();
-
-      JsonArray results = new JsonArray();
-
-      for (Query query : queries) {
-        JsonArray transformedMetrics;
-
-        try {
-          transformedMetrics = query.applyToMetrics(clock, metrics);
-        } catch (EvaluationException | VertxException e) {
-          sendClientError(response, "Error evaluating query. " + e.getMessage());
-          return;
-        }
-
-        results.addArray(transformedMetrics);
-      }
+      notifyOtherInstances("metricsRemoved", new JsonObject()
+        .putArray("metricNames", new JsonArray(new ArrayList<Object>(removedMetricNames))));
+      logger.info("Removed " + removedMetricNames.size() + " expired metrics");
 
-      JsonObject responseBody = new JsonObject()
-        .putArray("results", results);
-      response.setStatusCode(200).end(responseBody);
+      // Carries on a batch at a time until no expired metrics are left
+      expiredMetricRemovalRunning = false;
+      vertx.runOnContext(v -> removeExpiredMetrics());
     });
   }
 
-  private SocketState createStateForSocket(JsonObject queries) {
-    SocketState socketState = new SocketState();
-
-    HashMap<String, Query> socketStateQueries = socketState.queries();
+  // Waits until no other instance has the log open.  The first instance only keeps another instance's log while it
+  // takes over its entries, which does not take long.
+  private void claimLog(Path directory, Handler<Void> handler) {
+    if (instanceRegistry.claimLog(directory, instanceId)) {
+      handler.handle(null);
+      return;
+    }
 
-    for (String key : queries.getFieldNames()) {
-      Query query = null;
+    vertx.setTimer(LOG_CLAIM_RETRY_DELAY, timerId -> claimLog(directory, handler));
+  }
 
-      try {
-        query = queryFactory.parseQuery(queries.getString(key));
-      } catch (InvalidQueryException e) {
-        logger.error("Received invalid query from socket", e);
+  private void startIngestBuffer(IngestConfig ingestConfig, AsyncResultHandler<Object> handler) {
+    WriteAheadLog writeAheadLog = new WriteAheadLog(Paths.get(ingestConfig.directory()), ingestConfig.segmentSize(), ingestConfig.fsync());
+    ingestBuffer = new IngestBuffer(writeAheadLog, ingestConfig.maxFlushSize(), ingestConfig.maxFlushAttempts(), ingestConfig.maxPendingBytes(), ingestConfig.flushInterval() / 1000L, ingestConfig.maxRetryDelay() / 1000L, Clock.systemUTC(), (entryType, metrics, writeHandler) -> {
+      if (entryType == WriteAheadLog.APPEND_ENTRY) {
+        appendAndPublishPoints(metrics, writeHandler);
+      } else if (entryType == WriteAheadLog.MERGE_ENTRY) {
+        mergeAndPublishPoints(metrics, writeHandler);
+      } else {
+        saveAndPublishMetrics(metrics, writeHandler);
       }
+    });
+    admissionController = new AdmissionController(ingestConfig.admission(), ingestBuffer);
 
-      if (query != null) {
-        socketStateQueries.put(key, query);
+    try {
+      // Replayed entries are stored by the first flush
+      logger.info("Replaying " + ingestBuffer.start() + " entries from the write-ahead log");
+
+      if (instanceIndex == 0) {
+        takeOverOrphanedLogs(ingestConfig);
       }
+    } catch (IOException e) {
+      instanceRegistry.releaseLog(Paths.get(ingestConfig.directory()), instanceId);
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
     }
-    return socketState;
-  }
 
-  private void sendClientError(YokeResponse response, String message) {
-    JsonObject body = new JsonObject()
-      .putObject("error", new JsonObject()
-        .putString("message", message));
-    response.setStatusCode(400).end(body);
+    vertx.setPeriodic(Math.max(1, ingestConfig.flushInterval() / 1000L), timerId -> flushIngestBuffer());
+    handler.handle(DefaultAsyncResult.succeed(null));
   }
 
-  private void saveAndPublishMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
-    saveMetrics(metrics, result -> {
-      if (result.failed()) {
-        handler.handle(result);
-        return;
-      }
+  // The logs of instances that are no longer deployed, after a restart with fewer instances, would otherwise never be
+  // replayed, so the first instance takes over the entries of every log that no running instance has open
+  private void takeOverOrphanedLogs(IngestConfig ingestConfig) throws IOException {
+    Path directory = Paths.get(ingestConfig.directory()).toAbsolutePath();
+    String prefix = directory.getFileName() + "-" + ConfigFactory.INSTANCE_SUFFIX;
 
-      checkForMissingMetrics(getQueriesThatMatchMetrics(metrics), metrics, missingMetricNames -> {
-        if (missingMetricNames.failed()) {
-          handler.handle(DefaultAsyncResult.fail(missingMetricNames));
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory.getParent(), prefix + "*")) {
+      for (Path path : paths) {
+        if (!Files.isDirectory(path) || !path.getFileName().toString().substring(prefix.length()).matches("\\d+") || !instanceRegistry.claimLog(path, instanceId)) {
+          continue;
         }
 
-        getMetrics(missingMetricNames.result(), missingMetrics -> {
-          if (missingMetrics.failed()) {
-            handler.handle(DefaultAsyncResult.fail(missingMetrics));
-            return;
-          }
-
-          JsonArray combinedMetrics = metrics.copy();
+        try {
+          int entryCount = ingestBuffer.takeOver(new WriteAheadLog(path, ingestConfig.segmentSize(), ingestConfig.fsync()));
 
-          for (JsonObject metric : new JsonArrayIterable<JsonObject>(missingMetrics.result())) {
-            combinedMetrics.addObject(metric);
+          if (entryCount > 0) {
+            logger.info("Took over " + entryCount + " entries from the write-ahead log in " + path);
           }
+        } finally {
+          instanceRegistry.releaseLog(path, instanceId);
+        }
+      }
+    }
+  }
 
-          publishMetrics(combinedMetrics);
-          handler.handle(DefaultAsyncResult.succeed());
-        });
-      });
+  private void flushIngestBuffer() {
+    ingestBuffer.flush(result -> {
+      if (result.failed()) {
+        // The entries stay in the log and are tried again by a later flush, unless their own metrics have made them
+        // fail too many times and they have been moved to the dead letter file
+        logger.error("Failed to flush the write-ahead log", result.cause());
+      }
     });
   }
 
-  private void saveMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
-    logger.info("Saving metrics to Redis");
-    ArrayList<Object> saddArgs = new ArrayList<>();
-    saddArgs.add(config.getMetricNamesKey());
+  private void createMetricsMiddleware(YokeRequest request, Handler<Object> next) {
+    YokeResponse response = request.response();
+    JsonArray jsonMetrics = getMetricsFromRequestBody(request);
 
-    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
-      saddArgs.add(metric.getString("name"));
+    if (jsonMetrics == null) {
+      return;
     }
 
-    saddArgs.add((Handler<Message<JsonObject>>) reply -> {
-      JsonObject body = reply.body();
-      String status = body.getString("status");
-
-      if (!"ok".equals(status)) {
-        handler.handle(DefaultAsyncResult.fail(new RedisException(body)));
+    AsyncResultHandler<Void> admittedHandler = admissionController.admit(request.contentLength(), result -> {
+      if (result.failed()) {
+        logger.info("Metrics could not be saved or published", result.cause());
+        sendServerError(response, result.cause());
         return;
       }
 
-      saveMetric(metrics, 0, handler);
+      logger.info("Metrics saved and published");
+      response.setStatusCode(204).end();
     });
 
-    redis.sadd(saddArgs.toArray());
+    if (admittedHandler == null) {
+      sendTooManyRequests(response);
+      return;
+    }
+
+    ingestMetrics(jsonMetrics, admittedHandler);
   }
 
-  private void saveMetric(JsonArray metrics, int metricIndex, AsyncResultHandler<Void> handler) {
-    if (metricIndex >= metrics.size()) {
-      handler.handle(DefaultAsyncResult.succeed());
+  private void appendPointsMiddleware(YokeRequest request, Handler<Object> next) {
+    YokeResponse response = request.response();
+
+    if (!metricStore.supportsAppend()) {
+      sendClientError(response, "Appending points requires the '" + StorageMode.Points.name().toLowerCase() + "' storage mode");
       return;
     }
 
-    JsonObject metric = metrics.get(metricIndex);
+    JsonArray jsonMetrics = getMetricsFromRequestBody(request);
 
-    String metricName = metric.getString("name");
-    logger.info("Saving metric '" + metricName + "'");
-    redis.set(config.getMetricKey(metricName), metric.toString(), (Handler<Message<JsonObject>>) reply -> {
-      JsonObject body = reply.body();
-      String status = body.getString("status");
+    if (jsonMetrics == null) {
+      return;
+    }
 
-      if (!"ok".equals(status)) {
-        handler.handle(DefaultAsyncResult.fail(new RedisException(body)));
+    AsyncResultHandler<Void> admittedHandler = admissionController.admit(request.contentLength(), result -> {
+      if (result.failed()) {
+        logger.info("Points could not be appended or published", result.cause());
+        sendServerError(response, result.cause());
         return;
       }
 
-      saveMetric(metrics, metricIndex + 1, handler);
+      logger.info("Points appended and published");
+      response.setStatusCode(204).end();
     });
-  }
 
-  private void publishMetrics(JsonArray metrics) {
-    for (Map.Entry<SockJSSocket, SocketState> socketAndSocketState : socketStates.entrySet()) {
-      SockJSSocket socket = socketAndSocketState.getKey();
-      SocketState socketState = socketAndSocketState.getValue();
-      publishMetrics(metrics, socket, socketState);
+    if (admittedHandler == null) {
+      sendTooManyRequests(response);
+      return;
     }
+
+    ingestPoints(jsonMetrics, admittedHandler);
   }
 
-  private void publishMetrics(JsonArray metrics, SockJSSocket socket, SocketState socketState) {
-    for (Map.Entry<String, Query> queryEntry : socketState.queries().entrySet()) {
-      String queryKey = queryEntry.getKey();
-      Query query = queryEntry.getValue();
+  private void mergePointsMiddleware(YokeRequest request, Handler<Object> next) {
+    YokeResponse response = request.response();
+    JsonArray jsonMetrics = getMetricsFromRequestBody(request);
 
-      JsonArray matchingMetrics = query.fromClause().applyToMetrics(metrics);
+    if (jsonMetrics == null) {
+      return;
+    }
 
-      if (matchingMetrics.size() > 0) {
-        StringBuilder logMessageBuilder = new StringBuilder()
-          .append("Query '")
-          .append(queryKey)
-          .append("' matches metrics ");
+    AsyncResultHandler<Void> admittedHandler = admissionController.admit(request.contentLength(), result -> {
+      if (result.failed()) {
+        logger.info("Points could not be merged or published", result.cause());
+        sendServerError(response, result.cause());
+        return;
+      }
 
-        String separator = "";
+      logger.info("Points merged and published");
+      response.setStatusCode(204).end();
+    });
 
-        for (JsonObject metric : new JsonArrayIterable<JsonObject>(matchingMetrics)) {
-          logMessageBuilder.append(separator);
-          logMessageBuilder.append(metric.getString("name"));
-          separator = ", ";
-        }
+    if (admittedHandler == null) {
+      sendTooManyRequests(response);
+      return;
+    }
 
-        logger.info(logMessageBuilder.toString());
+    ingestMergedPoints(jsonMetrics, admittedHandler);
+  }
+
+  private void streamMetricsMiddleware(YokeRequest request, Handler<Object> next) {
+    YokeResponse response = request.response();
+    String write = request.getParameter("write");
+    BiConsumer<JsonArray, AsyncResultHandler<Void>> ingester;
+
+    if (write == null || write.equals("save")) {
+      ingester = this::ingestMetrics;
+    } else if (write.equals("append")) {
+      if (!metricStore.supportsAppend()) {
+        sendClientError(response, "Appending points requires the '" + StorageMode.Points.name().toLowerCase() + "' storage mode");
+        return;
+      }
+
+      ingester = this::ingestPoints;
+    } else if (write.equals("merge")) {
+      ingester = this::ingestMergedPoints;
+    } else {
+      sendClientError(response, "'write' parameter must be 'save', 'append' or 'merge'");
+      return;
+    }
+
+    String ttl = request.getParameter(TTL_FIELD_NAME);
+    IngestConfig ingestConfig = config.ingest();
+
+    new MetricStreamReader(request, ingestConfig.streamBatchSize(), ingestConfig.maxLineSize(), (metrics, bytes, handler) -> {
+      String error = metricValidator.validate(metrics);
+
+      if (error == null) {
+        error = applyTtl(metrics, ttl);
+      }
+
+      if (error != null) {
+        handler.handle(DefaultAsyncResult.fail(new IllegalArgumentException(error)));
+        return;
+      }
+
+      // Each batch is admitted on its own, and waits rather than failing the upload, as the upload is paused meanwhile
+      admitStreamedBatch(metrics, bytes, ingester, handler);
+    }, result -> {
+      if (result.failed()) {
+        MetricStreamException cause = (MetricStreamException) result.cause();
+        logger.info("Streamed metrics could not be stored or published", cause);
+
+        if (cause.isClientError()) {
+          sendClientError(response, cause.getMessage());
+        } else {
+          sendServerError(response, cause);
+        }
+
+        return;
+      }
+
+      logger.info("Streamed " + result.result() + " metrics");
+      response.setStatusCode(204).end();
+    }).start();
+  }
+
+  private void admitStreamedBatch(JsonArray metrics, long bytes, BiConsumer<JsonArray, AsyncResultHandler<Void>> ingester, AsyncResultHandler<Void> handler) {
+    IngestConfig ingestConfig = config.ingest();
+
+    // With the write-ahead log turned on a batch is acknowledged as soon as it is logged, so the upload is held until
+    // the log has stored what it was given, or the whole upload would be read into memory as fast as it arrives
+    if (ingestBuffer != null && ingestBuffer.pendingMetricCount() >= ingestConfig.streamBatchSize()) {
+      vertx.setTimer(Math.max(1, ingestConfig.flushInterval() / 1000L), timerId -> admitStreamedBatch(metrics, bytes, ingester, handler));
+      return;
+    }
+
+    AsyncResultHandler<Void> admittedHandler = admissionController.admit(bytes, handler);
+
+    if (admittedHandler == null) {
+      vertx.setTimer(Math.max(1, ingestConfig.admission().retryAfter() / 1000L), timerId -> admitStreamedBatch(metrics, bytes, ingester, handler));
+      return;
+    }
+
+    ingester.accept(metrics, admittedHandler);
+  }
+
+  private JsonArray getMetricsFromRequestBody(YokeRequest request) {
+    Object body = request.body();
+    YokeResponse response = request.response();
+    BinaryFormat format = BinaryFormat.fromContentType(request.getHeader("content-type"));
+
+    // The body parser leaves bodies that are not JSON as they were received
+    if (format != null && body instanceof Buffer) {
+      try {
+        body = BinaryDecoder.create(format, (Buffer) body).decodeObject();
+      } catch (IllegalArgumentException e) {
+        sendClientError(response, e.getMessage());
+        return null;
+      }
+    }
+
+    if (!(body instanceof JsonObject)) {
+      sendClientError(response, "Request body needs to be a JSON object");
+      return null;
+    }
+
+    JsonObject jsonBody = (JsonObject) body;
+
+    if (!jsonBody.containsField("metrics")) {
+      sendClientError(response, "Request body needs to contain a 'metrics' field");
+      return null;
+    }
+
+    Object metrics = jsonBody.getValue("metrics");
+
+    if (!(metrics instanceof JsonArray)) {
+      sendClientError(response, "'metrics' field in request body must be an array");
+      return null;
+    }
+
+    String error = metricValidator.validate((JsonArray) metrics);
+
+    if (error == null) {
+      error = applyTtl((JsonArray) metrics, request.getParameter(TTL_FIELD_NAME));
+    }
+
+    if (error != null) {
+      sendClientError(response, error);
+      return null;
+    }
+
+    return (JsonArray) metrics;
+  }
+
+  // Messages have already been decoded, so they are only measured when there is a limit on bytes
+  private long getMessageSize(Message<Object> message, JsonObject messageBody) {
+    if (config.ingest().admission().maxInFlightBytes() <= 0) {
+      return 0;
+    }
+
+    // Binary messages are measured as they were sent
+    if (message.body() instanceof Buffer) {
+      return ((Buffer) message.body()).length();
+    }
+
+    return messageBody.encode().length();
+  }
+
+  // Messages are JSON objects, or the same map encoded as MessagePack or CBOR and sent as a Buffer
+  private JsonObject getMessageObject(Message<Object> message) {
+    Object body = message.body();
+
+    if (body instanceof JsonObject) {
+      return (JsonObject) body;
+    }
+
+    if (!(body instanceof Buffer)) {
+      failInvalidMessage(message, "Received an invalid message", "Message must be a JSON object or a Buffer");
+      return null;
+    }
+
+    Buffer buffer = (Buffer) body;
+
+    try {
+      return BinaryDecoder.create(BinaryFormat.detect(buffer), buffer).decodeObject();
+    } catch (IllegalArgumentException e) {
+      failInvalidMessage(message, "Received an invalid message", e.getMessage());
+      return null;
+    }
+  }
+
+  private void rejectMessage(Message<Object> message) {
+    logger.warn("Rejected a message as too many metrics are being stored");
+    message.fail(429, "Too many metrics are being stored. Try again in " + admissionController.retryAfterSeconds() + "s");
+  }
+
+  // Senders that wait for a reply are told what was wrong, as with the 400 responses to requests
+  private void failInvalidMessage(Message<Object> message, String description, String error) {
+    logger.error(description + ": " + error);
+    message.fail(400, error);
+  }
+
+  private JsonArray getMetricsFromMessageBody(Message<Object> message, JsonObject messageBody) {
+    Object metrics = messageBody == null ? null : messageBody.getValue("metrics");
+    String error = metricValidator.validate(metrics instanceof JsonArray ? (JsonArray) metrics : null);
+
+    if (error == null) {
+      error = applyTtl((JsonArray) metrics, messageBody.getString(TTL_FIELD_NAME));
+    }
+
+    if (error != null) {
+      failInvalidMessage(message, "Received invalid metrics", error);
+      return null;
+    }
+
+    return (JsonArray) metrics;
+  }
+
+  // Gives the request's ttl to the metrics that do not have their own, and checks that every ttl can be parsed, so
+  // that a bad ttl is turned away before it reaches the write-ahead log.  Returns an error message if one cannot be.
+  private String applyTtl(JsonArray metrics, String requestTtl) {
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      if (requestTtl != null && !metric.containsField(TTL_FIELD_NAME)) {
+        metric.putString(TTL_FIELD_NAME, requestTtl);
+      }
+
+      if (metric.containsField(TTL_FIELD_NAME)) {
+        Object ttl = metric.getValue(TTL_FIELD_NAME);
+
+        try {
+          if (!(ttl instanceof String) || TimePeriodParser.parseTimePeriodToMicroseconds((String) ttl) <= 0) {
+            return "'" + TTL_FIELD_NAME + "' must be a time period, such as '7d'";
+          }
+        } catch (IllegalArgumentException e) {
+          return "'" + TTL_FIELD_NAME + "' must be a time period, such as '7d'";
+        }
+      }
+    }
+
+    return null;
+  }
+
+  // Works out when each metric expires from its ttl, or from the expiry rules when it has none
+  private HashMap<String, Long> getExpiryTimes(JsonArray metrics, Clock clock) {
+    HashMap<String, Long> expiryTimes = new HashMap<>();
+    RetentionConfig retentionConfig = config.storage().retention();
+    long now = clock.millis() * 1000L;
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      String metricName = metric.getString("name");
+      String ttl = metric.getString(TTL_FIELD_NAME);
+      Long ttlMicroseconds = ttl == null ? retentionConfig.getTtl(metricName) : (Long) TimePeriodParser.parseTimePeriodToMicroseconds(ttl);
+
+      if (ttlMicroseconds != null) {
+        expiryTimes.put(metricName, now + ttlMicroseconds);
+      }
+    }
+
+    return expiryTimes;
+  }
+
+  // The ttl is not stored as a metric field.  The metrics are copied rather than changed, as a write-ahead log entry
+  // keeps its metrics until they have been stored, which can take more than one attempt.
+  private JsonArray removeTtls(JsonArray metrics) {
+    JsonArray metricsWithoutTtls = new JsonArray();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      if (metric.containsField(TTL_FIELD_NAME)) {
+        metric = metric.copy();
+        metric.removeField(TTL_FIELD_NAME);
+      }
+
+      metricsWithoutTtls.addObject(metric);
+    }
+
+    return metricsWithoutTtls;
+  }
+
+  private void setExpiryTimes(Map<String, Long> expiryTimes, AsyncResultHandler<Void> handler) {
+    if (expiryTimes.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    metricStore.setExpiryTimes(expiryTimes, handler);
+  }
+
+  private void queryMetricsMiddleware(YokeRequest request, Handler<Object> next) {
+    Object body = request.body();
+    YokeResponse response = request.response();
+
+    if (!(body instanceof JsonObject)) {
+      sendClientError(response, "Request body needs to be a JSON object");
+      return;
+    }
+
+    JsonObject jsonBody = (JsonObject) body;
+
+    if (!jsonBody.containsField("queries")) {
+      sendClientError(response, "'queries' field missing from request body");
+      return;
+    }
+
+    Object queriesObject = jsonBody.getValue("queries");
+
+    if (!(queriesObject instanceof JsonArray)) {
+      sendClientError(response, "'queries' field should be a '" + JsonArray.class.getName() + "' but was a '" + queriesObject.getClass().getName() + "'");
+      return;
+    }
+
+    JsonArray queryObjects = (JsonArray) queriesObject;
+    ArrayList<Query> queries = new ArrayList<>();
+
+    for (Object queryObject : queryObjects) {
+      if (!(queryObject instanceof String)) {
+        sendClientError(response, "'queries' field item should be a '" + String.class.getName() + "' but was a '" + queryObject.getClass().getName() + "'");
+        return;
+      }
+
+      Query query;
+
+      try {
+        query = queryFactory.parseQuery((String) queryObject);
+      } catch (InvalidQueryException e) {
+        sendClientError(response, e.getMessage());
+        return;
+      }
+
+      queries.add(query);
+    }
+
+    Clock clock = fixedClock();
+
+    getMetricsForQueries(queries, clock, result -> {
+      if (result.failed()) {
+        sendClientError(response, "Failed to retrieve metrics. " + result.cause().getMessage());
+        return;
+      }
+
+      JsonArray metrics = result.result();
+
+      JsonArray results = new JsonArray();
+
+      for (Query query : queries) {
+        JsonArray transformedMetrics;
+
+        try {
+          transformedMetrics = query.applyToMetrics(clock, metrics);
+        } catch (EvaluationException | VertxException e) {
+          sendClientError(response, "Error evaluating query. " + e.getMessage());
+          return;
+        }
+
+        results.addArray(transformedMetrics);
+      }
+
+      JsonObject responseBody = new JsonObject()
+        .putArray("results", results);
+      response.setStatusCode(200).end(responseBody);
+    });
+  }
+
+  private void rebalanceMiddleware(YokeRequest request, Handler<Object> next) {
+    YokeResponse response = request.response();
+    logger.info("Rebalancing metrics across Redis shards");
+
+    shardedMetricStore.rebalance(result -> {
+      if (metricCache != null) {
+        // Points held by the old shard have been merged into metrics that might already be cached
+        metricCache.invalidateAll();
+      }
+
+      notifyOtherInstances("metricsRewritten", new JsonObject());
+
+      if (result.failed()) {
+        logger.error("Failed to rebalance metrics", result.cause());
+        sendServerError(response, result.cause());
+        return;
+      }
+
+      logger.info("Moved " + result.result() + " metrics to their new shards");
+      response.setStatusCode(200).end(new JsonObject()
+        .putNumber("movedMetrics", result.result()));
+    });
+  }
+
+  private void createSnapshotMiddleware(YokeRequest request, Handler<Object> next) {
+    YokeResponse response = request.response();
+    String snapshotName = SNAPSHOT_NAME_FORMATTER.format(Clock.systemUTC().instant());
+    logger.info("Exporting snapshot '" + snapshotName + "'");
+
+    snapshotManager.exportSnapshot(getSnapshotPath(snapshotName), result -> {
+      if (result.failed()) {
+        logger.error("Failed to export snapshot", result.cause());
+        sendServerError(response, result.cause());
+        return;
+      }
+
+      logger.info("Exported " + result.result() + " metrics to snapshot '" + snapshotName + "'");
+      response.setStatusCode(200).end(new JsonObject()
+        .putString("name", snapshotName)
+        .putNumber("metrics", result.result()));
+    });
+  }
+
+  private void restoreSnapshotMiddleware(YokeRequest request, Handler<Object> next) {
+    YokeResponse response = request.response();
+    String snapshotName = request.getParameter("snapshotName");
+
+    // Keeps the name from reaching outside the snapshot directory
+    if (!snapshotName.matches("[A-Za-z0-9_.-]+") || snapshotName.startsWith(".")) {
+      sendClientError(response, "Invalid snapshot name");
+      return;
+    }
+
+    Path snapshotPath = getSnapshotPath(snapshotName);
+
+    if (!Files.exists(snapshotPath)) {
+      sendClientError(response, "Snapshot '" + snapshotName + "' does not exist");
+      return;
+    }
+
+    logger.info("Restoring snapshot '" + snapshotName + "'");
+
+    restoreSnapshot(snapshotPath, result -> {
+      if (result.failed()) {
+        sendServerError(response, result.cause());
+        return;
+      }
+
+      response.setStatusCode(200).end(new JsonObject()
+        .putString("name", snapshotName)
+        .putNumber("metrics", result.result()));
+    });
+  }
+
+  private void restoreSnapshot(Path snapshotPath, AsyncResultHandler<Long> handler) {
+    snapshotManager.importSnapshot(snapshotPath, result -> {
+      // Even a failed restore can have replaced some of the stored metrics
+      notifyOtherInstances("metricsRestored", new JsonObject());
+
+      if (result.failed()) {
+        forgetRestoredMetrics();
+        logger.error("Failed to restore snapshot", result.cause());
+        handler.handle(result);
+        return;
+      }
+
+      indexRestoredMetrics(indexed -> {
+        if (indexed.failed()) {
+          handler.handle(DefaultAsyncResult.fail(indexed));
+          return;
+        }
+
+        logger.info("Restored " + result.result() + " metrics");
+        handler.handle(result);
+      });
+    });
+  }
+
+  private void forgetRestoredMetrics() {
+    if (metricCache != null) {
+      // Restored metrics replace any stored ones, which might already be cached
+      metricCache.invalidateAll();
+    }
+
+    if (metricChangeDetector != null) {
+      metricChangeDetector.forgetAll();
+    }
+  }
+
+  private void indexRestoredMetrics(AsyncResultHandler<Void> handler) {
+    forgetRestoredMetrics();
+
+    // Picks up the restored metric names, however many of them were already known
+    metricStore.scanMetricNames((metricNames, batchHandler) -> {
+      metricNameIndex.addAll(metricNames);
+      batchHandler.handle(DefaultAsyncResult.succeed());
+    }, handler);
+  }
+
+  private Path getSnapshotPath(String snapshotName) {
+    return Paths.get(config.snapshot().directory(), snapshotName.endsWith(SNAPSHOT_FILE_SUFFIX) ? snapshotName : snapshotName + SNAPSHOT_FILE_SUFFIX);
+  }
+
+  private void getStatsMiddleware(YokeRequest request, Handler<Object> next) {
+    JsonObject stats = new JsonObject();
+
+    if (metricCache != null) {
+      stats.putObject("cache", metricCache.stats());
+    }
+
+    if (ingestBuffer != null) {
+      stats.putObject("ingest", ingestBuffer.stats());
+    }
+
+    stats.putObject("admission", admissionController.stats());
+    stats.putObject("subscribers", new JsonObject()
+      .putNumber("sockets", socketStates.size())
+      .putNumber("skippedNotifications", skippedNotificationCount));
+
+    if (metricBatcher != null) {
+      stats.putObject("batching", metricBatcher.stats());
+    }
+
+    if (metricChangeDetector != null) {
+      stats.putObject("changeDetection", metricChangeDetector.stats());
+    }
+
+    stats.putObject("instance", new JsonObject()
+      .putNumber("index", instanceIndex)
+      .putNumber("instances", instanceRegistry.size()));
+
+    if (!lineProtocolListeners.isEmpty()) {
+      JsonArray listenerStats = new JsonArray();
+
+      for (LineProtocolListener listener : lineProtocolListeners) {
+        listenerStats.addObject(listener.stats());
+      }
+
+      stats.putArray("listeners", listenerStats);
+    }
+
+    if (config.storage().compression().codec() != CompressionCodec.None) {
+      stats.putObject("compression", compressionStats.toJson());
+    }
+
+    request.response().setStatusCode(200).end(stats);
+  }
+
+  private SocketState createStateForSocket(JsonObject queries) {
+    SocketState socketState = new SocketState();
+
+    HashMap<String, Query> socketStateQueries = socketState.queries();
+
+    for (String key : queries.getFieldNames()) {
+      Query query = null;
+
+      try {
+        query = queryFactory.parseQuery(queries.getString(key));
+      } catch (InvalidQueryException e) {
+        logger.error("Received invalid query from socket", e);
+      }
+
+      if (query != null) {
+        socketStateQueries.put(key, query);
+      }
+    }
+    return socketState;
+  }
 
-        JsonArray transformedMetrics = null;
+  private void sendClientError(YokeResponse response, String message) {
+    JsonObject body = new JsonObject()
+      .putObject("error", new JsonObject()
+        .putString("message", message));
+    response.setStatusCode(400).end(body);
+  }
 
-        try {
-          transformedMetrics = query.applyToMetrics(Clock.systemUTC(), matchingMetrics);
-        } catch (EvaluationException e) {
-          logger.error("Invalid query expression", e);
-        }
+  private void sendTooManyRequests(YokeResponse response) {
+    JsonObject body = new JsonObject()
+      .putObject("error", new JsonObject()
+        .putString("message", "Too many metrics are being stored. Try again later"));
+    response.putHeader("Retry-After", Long.toString(admissionController.retryAfterSeconds()));
+    response.setStatusCode(429).end(body);
+  }
 
-        if (transformedMetrics != null) {
-          JsonObject payload = new JsonObject();
-          payload.putString("key", queryKey);
-          payload.putArray("metrics", transformedMetrics);
-          JsonObject newMessage = new JsonObject();
-          newMessage.putString("type", "notify");
-          newMessage.putObject("payload", payload);
+  private void sendServerError(YokeResponse response, Throwable cause) {
+    JsonObject error = new JsonObject()
+      .putString("message", cause.getMessage());
 
-          logger.info("Sending SockJS message");
+    if (cause instanceof PartialWriteException) {
+      error.putArray("failedMetricNames", new JsonArray(((PartialWriteException) cause).failedMetricNames()));
+    }
 
-          Buffer newMessageBuffer = new Buffer(newMessage.encode());
-          socket.write(newMessageBuffer);
-        }
-      } else {
-        logger.info("Query '" + queryKey + "' does not match metrics");
-      }
+    response.setStatusCode(500).end(new JsonObject()
+      .putObject("error", error));
+  }
+
+  private void ingestMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    if (ingestBuffer == null && metricBatcher != null) {
+      metricBatcher.saveMetrics(metrics, handler);
+      return;
+    }
+
+    if (ingestBuffer == null) {
+      saveAndPublishMetrics(metrics, handler);
+      return;
+    }
+
+    try {
+      ingestBuffer.saveMetrics(metrics);
+    } catch (IOException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
     }
+
+    handler.handle(DefaultAsyncResult.succeed());
   }
 
-  private void checkForMissingMetrics(Collection<Query> queries, JsonArray metrics, AsyncResultHandler<Collection<String>> handler) {
-    HashSet<String> availableMetricNames = new HashSet<>();
+  private void ingestPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    if (ingestBuffer == null) {
+      flushBatchedSaves(metrics, () -> appendAndPublishPoints(metrics, handler));
+      return;
+    }
 
-    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
-      availableMetricNames.add(metric.getString("name"));
+    if (!metricStore.supportsAppend()) {
+      // Otherwise the entry would fail every flush and hold up every entry behind it
+      handler.handle(DefaultAsyncResult.fail(new UnsupportedOperationException("Appending points requires the '" + StorageMode.Points.name().toLowerCase() + "' storage mode")));
+      return;
     }
 
-    if (!anyQueryIsPotentiallyMissingAMetric(queries, availableMetricNames)) {
-      handler.handle(DefaultAsyncResult.succeed(new ArrayList<>()));
+    try {
+      ingestBuffer.appendPoints(metrics);
+    } catch (IOException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
+    }
+
+    handler.handle(DefaultAsyncResult.succeed());
+  }
+
+  private void ingestMergedPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    if (ingestBuffer == null) {
+      flushBatchedSaves(metrics, () -> mergeAndPublishPoints(metrics, handler));
+      return;
+    }
+
+    try {
+      ingestBuffer.mergePoints(metrics);
+    } catch (IOException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
+    }
+
+    handler.handle(DefaultAsyncResult.succeed());
+  }
+
+  // Saves held by the batcher are written before points are appended or merged into the same metrics, so they are
+  // applied in the order they arrived
+  private void flushBatchedSaves(JsonArray metrics, Runnable writer) {
+    if (metricBatcher == null) {
+      writer.run();
+      return;
+    }
+
+    // A save that failed has already been reported to whoever sent it, and the points are written either way
+    metricBatcher.flush(extractMetricNames(metrics), result -> writer.run());
+  }
+
+  private void saveAndPublishMetrics(JsonArray metricsWithTtls, AsyncResultHandler<Void> handler) {
+    HashMap<String, Long> expiryTimes = getExpiryTimes(metricsWithTtls, Clock.systemUTC());
+    JsonArray allMetrics = removeTtls(metricsWithTtls);
+    metricNameIndex.addAll(extractMetricNames(allMetrics));
+
+    // Expiry times are still set for unchanged metrics, so sending the same metric again keeps it alive
+    JsonArray metrics = metricChangeDetector == null ? allMetrics : metricChangeDetector.filterChanged(allMetrics);
+
+    if (metrics.size() == 0) {
+      setExpiryTimes(expiryTimes, handler);
       return;
     }
 
-    getMetricNames(metricNames -> {
-      if (metricNames.failed()) {
-        handler.handle(metricNames);
+    metricStore.saveMetrics(metrics, result -> {
+      if (result.failed()) {
+        if (metricChangeDetector != null) {
+          // Some of them might not have been written, so their next save must not be skipped
+          metricChangeDetector.forget(extractMetricNames(metrics));
+        }
+
+        handler.handle(result);
         return;
       }
 
-      ArrayList<String> missingMetricNames = new ArrayList<>();
+      notifyOtherInstances("metricsSaved", new JsonObject()
+        .putArray("metrics", metrics));
 
-      for (String metricName : metricNames.result()) {
-        if (!availableMetricNames.contains(metricName)) {
-          if (metricNameMatchesAnyQuery(metricName, queries)) {
-            missingMetricNames.add(metricName);
-          }
+      setExpiryTimes(expiryTimes, expired -> {
+        if (expired.failed()) {
+          handler.handle(expired);
+          return;
         }
-      }
 
-      handler.handle(DefaultAsyncResult.succeed(missingMetricNames));
+        publishSavedMetrics(metrics, handler);
+      });
     });
   }
 
-  private void getMetricsForQueries(Collection<Query> queries, AsyncResultHandler<JsonArray> handler) {
-    getMetricNames(metricNames -> {
-      if (metricNames.failed()) {
-        handler.handle(DefaultAsyncResult.fail(metricNames));
+  private void appendAndPublishPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeAndPublishPoints(metrics, metricStore::appendPoints, handler);
+  }
+
+  private void mergeAndPublishPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeAndPublishPoints(metrics, metricStore::mergePoints, handler);
+  }
+
+  private void writeAndPublishPoints(JsonArray metricsWithTtls, PointWriter writer, AsyncResultHandler<Void> handler) {
+    HashMap<String, Long> expiryTimes = getExpiryTimes(metricsWithTtls, Clock.systemUTC());
+    JsonArray metrics = removeTtls(metricsWithTtls);
+    metricNameIndex.addAll(extractMetricNames(metrics));
+
+    if (metricChangeDetector != null) {
+      // The stored metrics no longer match what was last saved
+      metricChangeDetector.forget(extractMetricNames(metrics));
+    }
+
+    writer.write(metrics, result -> {
+      if (result.failed()) {
+        handler.handle(result);
         return;
       }
 
-      ArrayList<String> matchingMetricNames = new ArrayList<>();
+      setExpiryTimes(expiryTimes, expired -> {
+        if (expired.failed()) {
+          handler.handle(expired);
+          return;
+        }
+
+        List<String> metricNames = extractMetricNames(metrics);
+
+        // Only the names are sent, as each instance reads back what its own subscribers need
+        notifyOtherInstances("pointsWritten", new JsonObject()
+          .putArray("metricNames", new JsonArray(new ArrayList<Object>(metricNames))));
+        publishWrittenMetrics(metricNames, handler);
+      });
+    });
+  }
+
+  // Subscribers expect whole metrics, so the series that new points were written to are read back, but only the ones
+  // that a subscribed query matches, and only as much of them as those queries need
+  private void publishWrittenMetrics(List<String> metricNames, AsyncResultHandler<Void> handler) {
+    List<Query> queries = getQueriesThatMatchMetricNames(metricNames);
+
+    if (queries.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    ArrayList<String> matchingMetricNames = new ArrayList<>();
 
-      for (String metricName : metricNames.result()) {
-        if (metricNameMatchesAnyQuery(metricName, queries)) {
+    for (String metricName : metricNames) {
+      for (Query query : queries) {
+        if (query.fromClause().matchesMetricName(metricName)) {
           matchingMetricNames.add(metricName);
+          break;
         }
       }
+    }
+
+    metricStore.getMetrics(getMetricReads(matchingMetricNames, queries, fixedClock()), writtenMetrics -> {
+      if (writtenMetrics.failed()) {
+        handler.handle(DefaultAsyncResult.fail(writtenMetrics));
+        return;
+      }
 
-      getMetrics(matchingMetricNames, handler);
+      publishSavedMetrics(writtenMetrics.result(), handler);
     });
   }
 
-  private void getMetricNames(AsyncResultHandler<Collection<String>> handler) {
-    redis.smembers(config.getMetricNamesKey(), (Handler<Message<JsonObject>>) reply -> {
-      JsonObject body = reply.body();
-      String status = body.getString("status");
+  private void publishSavedMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    Clock clock = fixedClock();
+    List<Query> queries = getQueriesThatMatchMetrics(metrics);
 
-      if (!"ok".equals(status)) {
-        handler.handle(DefaultAsyncResult.fail(new RedisException(body)));
+    List<String> missingMetricNames = getMissingMetricNames(queries, metrics);
+
+    metricStore.getMetrics(getMetricReads(missingMetricNames, queries, clock), missingMetrics -> {
+      if (missingMetrics.failed()) {
+        handler.handle(DefaultAsyncResult.fail(missingMetrics));
         return;
       }
 
-      ArrayList<String> metricNames = new ArrayList<>();
+      JsonArray combinedMetrics = metrics.copy();
 
-      for (String redisValue : new JsonArrayIterable<String>(body.getArray("value"))) {
-        metricNames.add(redisValue);
+      for (JsonObject metric : new JsonArrayIterable<JsonObject>(missingMetrics.result())) {
+        combinedMetrics.addObject(metric);
       }
 
-      handler.handle(DefaultAsyncResult.succeed(metricNames));
+      publishMetrics(combinedMetrics, clock);
+      handler.handle(DefaultAsyncResult.succeed());
     });
   }
 
-  private void getMetrics(Collection<String> metricNames, AsyncResultHandler<JsonArray> handler) {
-    if (metricNames.size() == 0) {
-      handler.handle(DefaultAsyncResult.succeed(new JsonArray()));
+  // Tells the other instances deployed alongside this one about metrics this one has written, so they can bring their
+  // own index, cache and hashes up to date and notify their own subscribers
+  private void notifyOtherInstances(String type, JsonObject body) {
+    if (instanceRegistry.size() < 2) {
       return;
     }
 
-    ArrayList<Object> mgetArgs = new ArrayList<>();
+    eventBus.publish(INSTANCES_ADDRESS, body
+      .putString("type", type)
+      .putString("instanceId", instanceId));
+  }
+
+  private void handleInstanceMessage(Message<JsonObject> message) {
+    JsonObject body = message.body();
 
-    for (String metricName : metricNames) {
-      mgetArgs.add(config.getMetricKey(metricName));
+    if (instanceId.equals(body.getString("instanceId"))) {
+      return;
     }
 
-    mgetArgs.add((Handler<Message<JsonObject>>) reply -> {
-      JsonObject body = reply.body();
-      String status = body.getString("status");
+    String messageType = body.getString("type");
+
+    switch (messageType) {
+      case "metricsSaved": {
+        JsonArray metrics = body.getArray("metrics");
+        List<String> metricNames = extractMetricNames(metrics);
+        metricNameIndex.addAll(metricNames);
+
+        if (metricCache != null) {
+          metricCache.invalidate(metricNames);
+        }
+
+        if (metricChangeDetector != null) {
+          metricChangeDetector.remember(metrics);
+        }
+
+        publishSavedMetrics(metrics, result -> {
+          if (result.failed()) {
+            logger.error("Failed to publish metrics written by another instance", result.cause());
+          }
+        });
+        return;
+      }
+      case "pointsWritten": {
+        List<String> metricNames = new ArrayList<>();
+
+        for (Object metricName : body.getArray("metricNames")) {
+          metricNames.add((String) metricName);
+        }
+
+        metricNameIndex.addAll(metricNames);
 
-      if (!"ok".equals(status)) {
-        RedisException e = new RedisException(body);
-        handler.handle(DefaultAsyncResult.fail(e));
+        if (metricCache != null) {
+          metricCache.invalidate(metricNames);
+        }
+
+        if (metricChangeDetector != null) {
+          metricChangeDetector.forget(metricNames);
+        }
+
+        publishWrittenMetrics(metricNames, result -> {
+          if (result.failed()) {
+            logger.error("Failed to publish points written by another instance", result.cause());
+          }
+        });
         return;
       }
+      case "metricsRemoved": {
+        ArrayList<String> metricNames = new ArrayList<>();
+
+        for (String metricName : new JsonArrayIterable<String>(body.getArray("metricNames"))) {
+          metricNames.add(metricName);
+        }
 
-      JsonArray metrics = new JsonArray();
+        metricNameIndex.removeAll(metricNames);
 
-      for (String redisValue : new JsonArrayIterable<String>(body.getArray("value"))) {
-        if (redisValue != null) {
-          metrics.addObject(new JsonObject(redisValue));
+        if (metricCache != null) {
+          metricCache.invalidate(metricNames);
+        }
+
+        if (metricChangeDetector != null) {
+          metricChangeDetector.forget(metricNames);
+        }
+
+        return;
+      }
+      case "metricsRestored": {
+        indexRestoredMetrics(result -> {
+          if (result.failed()) {
+            logger.error("Failed to index metrics restored by another instance", result.cause());
+          }
+        });
+        return;
+      }
+      case "metricsRewritten": {
+        if (metricCache != null) {
+          metricCache.invalidateAll();
         }
+
+        return;
       }
+      default: {
+        logger.error("Unrecognised instance message type '" + messageType + "'");
+      }
+    }
+  }
 
-      handler.handle(DefaultAsyncResult.succeed(metrics));
-    });
+  private List<String> extractMetricNames(JsonArray metrics) {
+    ArrayList<String> metricNames = new ArrayList<>();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      metricNames.add(metric.getString("name"));
+    }
+
+    return metricNames;
+  }
+
+  private void publishMetrics(JsonArray metrics, Clock clock) {
+    for (Map.Entry<SockJSSocket, SocketState> socketAndSocketState : socketStates.entrySet()) {
+      SockJSSocket socket = socketAndSocketState.getKey();
+      SocketState socketState = socketAndSocketState.getValue();
+
+      // A subscriber that cannot keep up misses notifications rather than having them pile up in memory
+      if (socket.writeQueueFull()) {
+        skippedNotificationCount++;
+        logger.warn("Skipped notifying a subscriber that is not keeping up");
+        continue;
+      }
+
+      publishMetrics(metrics, socket, socketState, clock);
+    }
+  }
+
+  private void publishMetrics(JsonArray metrics, SockJSSocket socket, SocketState socketState, Clock clock) {
+    for (Map.Entry<String, Query> queryEntry : socketState.queries().entrySet()) {
+      String queryKey = queryEntry.getKey();
+      Query query = queryEntry.getValue();
+
+      JsonArray matchingMetrics = query.fromClause().applyToMetrics(metrics);
+
+      if (matchingMetrics.size() > 0) {
+        StringBuilder logMessageBuilder = new StringBuilder()
+          .append("Query '")
+          .append(queryKey)
+          .append("' matches metrics ");
+
+        String separator = "";
+
+        for (JsonObject metric : new JsonArrayIterable<JsonObject>(matchingMetrics)) {
+          logMessageBuilder.append(separator);
+          logMessageBuilder.append(metric.getString("name"));
+          separator = ", ";
+        }
+
+        logger.info(logMessageBuilder.toString());
+
+        JsonArray transformedMetrics = null;
+
+        try {
+          transformedMetrics = query.applyToMetrics(clock, matchingMetrics);
+        } catch (EvaluationException e) {
+          logger.error("Invalid query expression", e);
+        }
+
+        if (transformedMetrics != null) {
+          JsonObject payload = new JsonObject();
+          payload.putString("key", queryKey);
+          payload.putArray("metrics", transformedMetrics);
+          JsonObject newMessage = new JsonObject();
+          newMessage.putString("type", "notify");
+          newMessage.putObject("payload", payload);
+
+          logger.info("Sending SockJS message");
+
+          Buffer newMessageBuffer = new Buffer(newMessage.encode());
+          socket.write(newMessageBuffer);
+        }
+      } else {
+        logger.info("Query '" + queryKey + "' does not match metrics");
+      }
+    }
+  }
+
+  private List<String> getMissingMetricNames(Collection<Query> queries, JsonArray metrics) {
+    HashSet<String> availableMetricNames = new HashSet<>();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      availableMetricNames.add(metric.getString("name"));
+    }
+
+    ArrayList<String> missingMetricNames = new ArrayList<>();
+
+    if (!anyQueryIsPotentiallyMissingAMetric(queries, availableMetricNames)) {
+      return missingMetricNames;
+    }
 
-    redis.mget(mgetArgs.toArray());
+    for (String metricName : metricNameIndex.findMatches(queries)) {
+      if (!availableMetricNames.contains(metricName)) {
+        missingMetricNames.add(metricName);
+      }
+    }
+
+    return missingMetricNames;
+  }
+
+  private void getMetricsForQueries(Collection<Query> queries, Clock clock, AsyncResultHandler<JsonArray> handler) {
+    metricStore.getMetrics(getMetricReads(metricNameIndex.findMatches(queries), queries, clock), handler);
   }
 
-  private boolean metricNameMatchesAnyQuery(String metricName, Collection<Query> queries) {
+  private LinkedHashMap<String, MetricRead> getMetricReads(Collection<String> metricNames, Collection<Query> queries, Clock clock) {
+    List<Long> rollupResolutions = metricStore.rollupResolutions();
+    HashMap<Query, TimeRange> queryTimeRanges = new HashMap<>();
+    HashMap<Query, List<Long>> queryRollupResolutions = new HashMap<>();
+
     for (Query query : queries) {
-      if (query.fromClause().matchesMetricName(metricName)) {
-        return true;
+      queryTimeRanges.put(query, query.timeRange(clock));
+      queryRollupResolutions.put(query, rollupSelector.eligibleResolutions(query, rollupResolutions));
+    }
+
+    // A metric only needs the points that at least one of the queries matching it could use, and can only be read
+    // from a rollup that every one of those queries can use
+    LinkedHashMap<String, MetricRead> metricReads = new LinkedHashMap<>();
+
+    for (String metricName : metricNames) {
+      TimeRange metricTimeRange = null;
+      ArrayList<Long> metricRollupResolutions = null;
+      boolean pointsReferenced = false;
+
+      for (Query query : queries) {
+        if (query.fromClause().matchesMetricName(metricName)) {
+          pointsReferenced |= query.referencesPoints();
+          TimeRange queryTimeRange = queryTimeRanges.get(query);
+          metricTimeRange = metricTimeRange == null ? queryTimeRange : metricTimeRange.span(queryTimeRange);
+
+          if (metricRollupResolutions == null) {
+            metricRollupResolutions = new ArrayList<>(queryRollupResolutions.get(query));
+          } else {
+            metricRollupResolutions.retainAll(queryRollupResolutions.get(query));
+          }
+        }
+      }
+
+      if (metricTimeRange == null) {
+        metricReads.put(metricName, MetricRead.unbounded());
+      } else if (!pointsReferenced) {
+        metricReads.put(metricName, MetricRead.withoutPoints());
+      } else {
+        Long rollupResolution = metricRollupResolutions.isEmpty() ? null : Collections.max(metricRollupResolutions);
+        metricReads.put(metricName, new MetricRead(metricTimeRange, rollupResolution));
       }
     }
 
-    return false;
+    return metricReads;
+  }
+
+  private Clock fixedClock() {
+    // Queries are evaluated against the same instant that was used to work out which points to read
+    return Clock.fixed(Clock.systemUTC().instant(), ZoneOffset.UTC);
+  }
+
+  private void getMetrics(Collection<String> metricNames, AsyncResultHandler<JsonArray> handler) {
+    LinkedHashMap<String, MetricRead> metricReads = new LinkedHashMap<>();
+
+    for (String metricName : metricNames) {
+      metricReads.put(metricName, MetricRead.unbounded());
+    }
+
+    metricStore.getMetrics(metricReads, handler);
   }
 
   private List<Query> getQueriesThatMatchMetrics(JsonArray metrics) {
+    return getQueriesThatMatchMetricNames(extractMetricNames(metrics));
+  }
+
+  private List<Query> getQueriesThatMatchMetricNames(Collection<String> metricNames) {
     ArrayList<Query> matchingQueries = new ArrayList<>();
 
     for (SocketState socketState : socketStates.values()) {
       for (Query query : socketState.queries().values()) {
         FromClause fromClause = query.fromClause();
 
-        for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
-          if (fromClause.matchesMetricName(metric.getString("name"))) {
+        for (String metricName : metricNames) {
+          if (fromClause.matchesMetricName(metricName)) {
             matchingQueries.add(query);
             break;
           }
@@ -611,4 +1785,8 @@ public class ServerVerticle extends Verticle {
 
     return false;
   }
+
+  private interface PointWriter {
+    void write(JsonArray metrics, AsyncResultHandler<Void> handler);
+  }
 }
@@ -0,0 +1,49 @@
+package io.tiler.internal;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentMap;
+
+// Gives each instance of the server deployed in the same Vert.x the lowest index that no other running instance has, and
+// keeps track of which instance has each write-ahead log open.  The map is shared between the instances, which run on
+// different event loops, so every change to it is a single atomic operation.
+public class InstanceRegistry {
+  private static final String KEY_PREFIX = "instance.";
+  private static final String LOG_KEY_PREFIX = "log.";
+  private final ConcurrentMap<String, String> instances;
+
+  public InstanceRegistry(ConcurrentMap<String, String> instances) {
+    this.instances = instances;
+  }
+
+  public int register(String instanceId) {
+    int instanceIndex = 0;
+
+    while (instances.putIfAbsent(KEY_PREFIX + instanceIndex, instanceId) != null) {
+      instanceIndex++;
+    }
+
+    return instanceIndex;
+  }
+
+  // Frees the index for the next instance that starts
+  public void unregister(int instanceIndex, String instanceId) {
+    instances.remove(KEY_PREFIX + instanceIndex, instanceId);
+  }
+
+  // Returns whether the instance now has the log, which no other instance has open
+  public boolean claimLog(Path directory, String instanceId) {
+    return instances.putIfAbsent(getLogKey(directory), instanceId) == null;
+  }
+
+  public void releaseLog(Path directory, String instanceId) {
+    instances.remove(getLogKey(directory), instanceId);
+  }
+
+  public int size() {
+    return (int) instances.keySet().stream().filter(key -> key.startsWith(KEY_PREFIX)).count();
+  }
+
+  private static String getLogKey(Path directory) {
+    return LOG_KEY_PREFIX + directory.toAbsolutePath().normalize();
+  }
+}
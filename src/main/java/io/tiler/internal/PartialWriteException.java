@@ -0,0 +1,17 @@
+package io.tiler.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+public class PartialWriteException extends Exception {
+  private final List<String> failedMetricNames;
+
+  public PartialWriteException(List<String> failedMetricNames, int metricCount, Throwable cause) {
+    super("Failed to save " + failedMetricNames.size() + " of " + metricCount + " metrics. " + cause.getMessage(), cause);
+    this.failedMetricNames = Collections.unmodifiableList(failedMetricNames);
+  }
+
+  public List<String> failedMetricNames() {
+    return failedMetricNames;
+  }
+}
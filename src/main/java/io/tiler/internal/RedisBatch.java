@@ -0,0 +1,64 @@
+package io.tiler.internal;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+public class RedisBatch {
+  private final Handler<RedisBatch> completionHandler;
+  private final LinkedHashSet<String> failedMetricNames = new LinkedHashSet<>();
+  private int pendingReplyCount;
+  private RedisException firstFailure;
+
+  public RedisBatch(Handler<RedisBatch> completionHandler) {
+    this.completionHandler = completionHandler;
+  }
+
+  public Handler<Message<JsonObject>> replyHandler(List<String> metricNames) {
+    return replyHandler(metricNames, null);
+  }
+
+  public Handler<Message<JsonObject>> replyHandler(List<String> metricNames, Handler<JsonObject> bodyHandler) {
+    Handler<JsonObject> replyBodyHandler = replyBodyHandler(metricNames, bodyHandler);
+    return reply -> replyBodyHandler.handle(reply.body());
+  }
+
+  // For replies that are worked out from several commands, rather than coming straight from the Redis module
+  public Handler<JsonObject> replyBodyHandler(List<String> metricNames, Handler<JsonObject> bodyHandler) {
+    pendingReplyCount++;
+
+    return body -> {
+      if (!"ok".equals(body.getString("status"))) {
+        failedMetricNames.addAll(metricNames);
+
+        if (firstFailure == null) {
+          firstFailure = new RedisException(body);
+        }
+      } else if (bodyHandler != null) {
+        bodyHandler.handle(body);
+      }
+
+      pendingReplyCount--;
+
+      if (pendingReplyCount == 0) {
+        completionHandler.handle(this);
+      }
+    };
+  }
+
+  public boolean failed() {
+    return firstFailure != null;
+  }
+
+  public RedisException firstFailure() {
+    return firstFailure;
+  }
+
+  public List<String> failedMetricNames() {
+    return new ArrayList<>(failedMetricNames);
+  }
+}
@@ -2,9 +2,24 @@ package io.tiler.internal;
 
 import org.vertx.java.core.json.JsonObject;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class RedisException extends Exception {
+  // Error codes Redis replies with while it cannot take writes, rather than because of the command it was sent
+  private static final Set<String> UNAVAILABLE_ERROR_CODES = new HashSet<>(Arrays.asList(
+    "LOADING", "BUSY", "MASTERDOWN", "READONLY", "MISCONF", "OOM", "NOREPLICAS", "CLUSTERDOWN", "TRYAGAIN"));
+  private final String errorCode;
+
   public RedisException(JsonObject redisReply) {
     super(createMessage(redisReply));
+    errorCode = getErrorCode(redisReply.getString("message"));
+  }
+
+  // Whether Redis answered and turned the command down, so sending the same command again would fail again
+  public boolean isCommandError() {
+    return errorCode != null && !UNAVAILABLE_ERROR_CODES.contains(errorCode);
   }
 
   private static String createMessage(JsonObject redisReply) {
@@ -15,4 +30,16 @@ public class RedisException extends Exception {
     }
     return message;
   }
+
+  // Errors from Redis itself start with an upper case code, such as WRONGTYPE, while the module's own errors about
+  // the connection do not
+  private static String getErrorCode(String message) {
+    if (message == null) {
+      return null;
+    }
+
+    int end = message.indexOf(' ');
+    String code = end == -1 ? message : message.substring(0, end);
+    return !code.isEmpty() && code.chars().allMatch(c -> c >= 'A' && c <= 'Z') ? code : null;
+  }
 }
@@ -0,0 +1,47 @@
+package io.tiler.internal.config;
+
+import io.tiler.core.time.TimePeriodParser;
+
+public class AdmissionConfig {
+  private final int maxInFlightBatches;
+  private final long maxInFlightBytes;
+  private final long retryAfter;
+
+  public AdmissionConfig(Integer maxInFlightBatches, Long maxInFlightBytes, String retryAfter) {
+    // Incoming metrics are never turned away unless a limit is set
+    if (maxInFlightBatches == null) {
+      maxInFlightBatches = 0;
+    }
+
+    if (maxInFlightBytes == null) {
+      maxInFlightBytes = 0L;
+    }
+
+    if (retryAfter == null) {
+      retryAfter = "1s";
+    }
+
+    this.maxInFlightBatches = maxInFlightBatches;
+    this.maxInFlightBytes = maxInFlightBytes;
+    this.retryAfter = TimePeriodParser.parseTimePeriodToMicroseconds(retryAfter);
+  }
+
+  public AdmissionConfig() {
+    this(null, null, null);
+  }
+
+  // Maximum number of requests and messages being stored at once, or 0 for no limit
+  public int maxInFlightBatches() {
+    return maxInFlightBatches;
+  }
+
+  // Maximum total size in bytes of the requests and messages being stored at once, or 0 for no limit
+  public long maxInFlightBytes() {
+    return maxInFlightBytes;
+  }
+
+  // Time in microseconds that rejected clients are asked to wait before trying again
+  public long retryAfter() {
+    return retryAfter;
+  }
+}
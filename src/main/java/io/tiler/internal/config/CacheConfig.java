@@ -0,0 +1,27 @@
+package io.tiler.internal.config;
+
+public class CacheConfig {
+  private final int maxPoints;
+
+  public CacheConfig(Integer maxPoints) {
+    if (maxPoints == null) {
+      // The cache is off unless it is given room for some points
+      maxPoints = 0;
+    }
+
+    this.maxPoints = maxPoints;
+  }
+
+  public CacheConfig() {
+    this(null);
+  }
+
+  public boolean isEnabled() {
+    return maxPoints > 0;
+  }
+
+  // Maximum number of points, across all cached metrics, to keep in memory
+  public int maxPoints() {
+    return maxPoints;
+  }
+}
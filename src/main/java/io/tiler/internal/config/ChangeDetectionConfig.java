@@ -0,0 +1,30 @@
+package io.tiler.internal.config;
+
+public class ChangeDetectionConfig {
+  private final boolean enabled;
+  private final String file;
+
+  public ChangeDetectionConfig(Boolean enabled, String file) {
+    if (enabled == null) {
+      enabled = false;
+    }
+
+    this.enabled = enabled;
+    this.file = file;
+  }
+
+  public ChangeDetectionConfig() {
+    this(null, null);
+  }
+
+  // Whether saved metrics that are the same as the last save of the metric are left out of storage writes and
+  // notifications
+  public boolean enabled() {
+    return enabled;
+  }
+
+  // File the hashes of saved metrics are kept in between restarts, or null if they are only kept in memory
+  public String file() {
+    return file;
+  }
+}
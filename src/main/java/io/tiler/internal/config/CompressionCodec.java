@@ -0,0 +1,16 @@
+package io.tiler.internal.config;
+
+public enum CompressionCodec {
+  None,
+  Deflate;
+
+  public static CompressionCodec parse(String value) {
+    for (CompressionCodec codec : values()) {
+      if (codec.name().equalsIgnoreCase(value)) {
+        return codec;
+      }
+    }
+
+    throw new IllegalArgumentException("Unrecognised compression codec '" + value + "'");
+  }
+}
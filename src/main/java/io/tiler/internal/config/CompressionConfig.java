@@ -0,0 +1,43 @@
+package io.tiler.internal.config;
+
+public class CompressionConfig {
+  private final CompressionCodec codec;
+  private final int threshold;
+  private final int level;
+
+  public CompressionConfig(String codec, Integer threshold, Integer level) {
+    if (codec == null) {
+      codec = CompressionCodec.None.name();
+    }
+
+    if (threshold == null) {
+      threshold = 4096;
+    }
+
+    if (level == null) {
+      level = 6;
+    }
+
+    this.codec = CompressionCodec.parse(codec);
+    this.threshold = threshold;
+    this.level = level;
+  }
+
+  public CompressionConfig() {
+    this(null, null, null);
+  }
+
+  public CompressionCodec codec() {
+    return codec;
+  }
+
+  // Size in bytes below which documents are stored uncompressed
+  public int threshold() {
+    return threshold;
+  }
+
+  // Deflate compression level, from 1 for the fastest to 9 for the smallest
+  public int level() {
+    return level;
+  }
+}
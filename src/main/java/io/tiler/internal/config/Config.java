@@ -1,20 +1,39 @@
 package io.tiler.internal.config;
 
+import java.util.Collections;
+import java.util.List;
+
 public class Config {
   private static final String METRIC_NAMES_REDIS_KEY = "metricNames";
+  private static final String METRIC_EXPIRY_TIMES_REDIS_KEY = "metricExpiryTimes";
   private static final String METRIC_REDIS_KEY_PREFIX = "metrics:";
+  private static final String METRIC_HEADER_REDIS_KEY_PREFIX = "metricHeaders:";
+  private static final String METRIC_POINTS_REDIS_KEY_PREFIX = "metricPoints:";
+  private static final String METRIC_ROLLUP_REDIS_KEY_PREFIX = "metricRollups:";
   private final int port;
   private final ApiConfig apiConfig;
   private final RedisConfig redisConfig;
+  private final StorageConfig storageConfig;
+  private final IngestConfig ingestConfig;
+  private final SnapshotConfig snapshotConfig;
+  private final List<ListenerConfig> listenerConfigs;
 
-  public Config(Integer port, ApiConfig apiConfig, RedisConfig redisConfig) {
+  public Config(Integer port, ApiConfig apiConfig, RedisConfig redisConfig, StorageConfig storageConfig, IngestConfig ingestConfig, SnapshotConfig snapshotConfig, List<ListenerConfig> listenerConfigs) {
     if (port == null) {
       port = 8080;
     }
 
+    if (listenerConfigs == null) {
+      listenerConfigs = Collections.emptyList();
+    }
+
     this.port = port;
     this.apiConfig = apiConfig;
     this.redisConfig = redisConfig;
+    this.storageConfig = storageConfig;
+    this.ingestConfig = ingestConfig;
+    this.snapshotConfig = snapshotConfig;
+    this.listenerConfigs = listenerConfigs;
   }
 
   public int port() {
@@ -29,11 +48,43 @@ public class Config {
     return redisConfig;
   }
 
+  public StorageConfig storage() {
+    return storageConfig;
+  }
+
+  public IngestConfig ingest() {
+    return ingestConfig;
+  }
+
+  public SnapshotConfig snapshot() {
+    return snapshotConfig;
+  }
+
+  public List<ListenerConfig> listeners() {
+    return listenerConfigs;
+  }
+
   public String getMetricNamesKey() {
     return redisConfig.keyPrefix() + METRIC_NAMES_REDIS_KEY;
   }
 
+  public String getMetricExpiryTimesKey() {
+    return redisConfig.keyPrefix() + METRIC_EXPIRY_TIMES_REDIS_KEY;
+  }
+
   public String getMetricKey(String metricName) {
     return redisConfig.keyPrefix() + METRIC_REDIS_KEY_PREFIX + metricName;
   }
+
+  public String getMetricHeaderKey(String metricName) {
+    return redisConfig.keyPrefix() + METRIC_HEADER_REDIS_KEY_PREFIX + metricName;
+  }
+
+  public String getMetricPointsKey(String metricName) {
+    return redisConfig.keyPrefix() + METRIC_POINTS_REDIS_KEY_PREFIX + metricName;
+  }
+
+  public String getMetricRollupKey(String metricName, long resolution) {
+    return redisConfig.keyPrefix() + METRIC_ROLLUP_REDIS_KEY_PREFIX + resolution + ":" + metricName;
+  }
 }
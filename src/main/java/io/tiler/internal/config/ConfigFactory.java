@@ -1,13 +1,32 @@
 package io.tiler.internal.config;
 
+import io.tiler.core.json.JsonArrayIterable;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ConfigFactory {
+  // Added with the instance's index to the addresses and directory of every instance after the first
+  public static final String INSTANCE_SUFFIX = "instance";
+
   public Config load(JsonObject config) {
+    return load(config, 0);
+  }
+
+  // Instances of the server deployed side by side share the config, but each needs its own connections to Redis, so
+  // commands sent in a transaction stay together, and its own write-ahead log.  The first instance uses the configured
+  // addresses and directory as they are.
+  public Config load(JsonObject config, int instanceIndex) {
     return new Config(
       config.getInteger("port"),
       getApiConfig(config),
-      getRedisConfig(config));
+      getRedisConfig(config, instanceIndex),
+      getStorageConfig(config),
+      getIngestConfig(config, instanceIndex),
+      getSnapshotConfig(config),
+      getListenerConfigs(config));
   }
 
   private ApiConfig getApiConfig(JsonObject config) {
@@ -21,14 +40,36 @@ public class ConfigFactory {
       api.getBoolean("readOnly"));
   }
 
-  private RedisConfig getRedisConfig(JsonObject config) {
+  private RedisConfig getRedisConfig(JsonObject config, int instanceIndex) {
     JsonObject redis = config.getObject("redis");
 
     if (redis == null) {
-      return new RedisConfig();
+      redis = new JsonObject();
     }
 
     return new RedisConfig(
+      getInstanceName(redis.getString("address", RedisConfig.DEFAULT_ADDRESS), ".", instanceIndex),
+      redis.getString("host"),
+      redis.getInteger("port"),
+      redis.getString("encoding"),
+      redis.getBoolean("binary"),
+      redis.getString("auth"),
+      redis.getInteger("select"),
+      redis.getString("keyPrefix"),
+      redis.getInteger("writeBatchSize"),
+      redis.getInteger("readBatchSize"),
+      redis.getInteger("scanCount"),
+      getRedisShardConfigs(redis, instanceIndex));
+  }
+
+  private List<RedisConfig> getRedisShardConfigs(JsonObject redis, int instanceIndex) {
+    JsonArray shards = redis.getArray("shards");
+
+    if (shards == null) {
+      return null;
+    }
+
+    RedisConfig defaults = new RedisConfig(
       redis.getString("address"),
       redis.getString("host"),
       redis.getInteger("port"),
@@ -36,6 +77,227 @@ public class ConfigFactory {
       redis.getBoolean("binary"),
       redis.getString("auth"),
       redis.getInteger("select"),
-      redis.getString("keyPrefix"));
+      redis.getString("keyPrefix"),
+      redis.getInteger("writeBatchSize"),
+      redis.getInteger("readBatchSize"),
+      redis.getInteger("scanCount"),
+      null);
+    ArrayList<RedisConfig> shardConfigs = new ArrayList<>();
+    int shardIndex = 0;
+
+    // Anything a shard does not set is taken from the top level Redis config
+    for (JsonObject shard : new JsonArrayIterable<JsonObject>(shards)) {
+      shardConfigs.add(new RedisConfig(
+        getInstanceName(shard.getString("address", defaults.address() + "." + shardIndex), ".", instanceIndex),
+        shard.getString("host", defaults.host()),
+        shard.getInteger("port", defaults.port()),
+        defaults.encoding(),
+        defaults.binary(),
+        shard.getString("auth", defaults.auth()),
+        shard.containsField("select") ? shard.getInteger("select") : defaults.select(),
+        defaults.keyPrefix(),
+        defaults.writeBatchSize(),
+        defaults.readBatchSize(),
+        defaults.scanCount(),
+        null));
+      shardIndex++;
+    }
+
+    return shardConfigs;
+  }
+
+  private IngestConfig getIngestConfig(JsonObject config, int instanceIndex) {
+    JsonObject ingest = config.getObject("ingest");
+
+    if (ingest == null) {
+      ingest = new JsonObject();
+    }
+
+    return new IngestConfig(
+      ingest.getBoolean("writeAheadLog"),
+      getInstanceName(ingest.getString("directory", IngestConfig.DEFAULT_DIRECTORY), "-", instanceIndex),
+      ingest.getString("fsync"),
+      ingest.getString("flushInterval"),
+      ingest.getInteger("maxFlushSize"),
+      ingest.getInteger("maxFlushAttempts"),
+      ingest.getString("maxRetryDelay"),
+      ingest.getLong("maxPendingBytes"),
+      ingest.getInteger("segmentSize"),
+      ingest.getInteger("streamBatchSize"),
+      ingest.getInteger("maxLineSize"),
+      ingest.getString("batchWindow"),
+      ingest.getInteger("maxBatchSize"),
+      getAdmissionConfig(ingest),
+      getChangeDetectionConfig(ingest));
+  }
+
+  private String getInstanceName(String name, String separator, int instanceIndex) {
+    return instanceIndex == 0 ? name : name + separator + INSTANCE_SUFFIX + instanceIndex;
+  }
+
+  private AdmissionConfig getAdmissionConfig(JsonObject ingest) {
+    JsonObject admission = ingest.getObject("admission");
+
+    if (admission == null) {
+      return new AdmissionConfig();
+    }
+
+    return new AdmissionConfig(
+      admission.getInteger("maxInFlightBatches"),
+      admission.getLong("maxInFlightBytes"),
+      admission.getString("retryAfter"));
+  }
+
+  private ChangeDetectionConfig getChangeDetectionConfig(JsonObject ingest) {
+    JsonObject changeDetection = ingest.getObject("changeDetection");
+
+    if (changeDetection == null) {
+      return new ChangeDetectionConfig();
+    }
+
+    return new ChangeDetectionConfig(
+      changeDetection.getBoolean("enabled"),
+      changeDetection.getString("file"));
+  }
+
+  private SnapshotConfig getSnapshotConfig(JsonObject config) {
+    JsonObject snapshot = config.getObject("snapshot");
+
+    if (snapshot == null) {
+      return new SnapshotConfig();
+    }
+
+    return new SnapshotConfig(
+      snapshot.getString("directory"),
+      snapshot.getString("restore"),
+      snapshot.getInteger("chunkSize"));
+  }
+
+  private StorageConfig getStorageConfig(JsonObject config) {
+    JsonObject storage = config.getObject("storage");
+
+    if (storage == null) {
+      return new StorageConfig();
+    }
+
+    return new StorageConfig(
+      storage.getString("backend"),
+      storage.getString("mode"),
+      storage.getString("encoding"),
+      getRetentionConfig(storage),
+      getFileStorageConfig(storage),
+      getCacheConfig(storage),
+      getCompressionConfig(storage),
+      storage.getString("mergeKey"));
+  }
+
+  private CompressionConfig getCompressionConfig(JsonObject storage) {
+    JsonObject compression = storage.getObject("compression");
+
+    if (compression == null) {
+      return new CompressionConfig();
+    }
+
+    return new CompressionConfig(
+      compression.getString("codec"),
+      compression.getInteger("threshold"),
+      compression.getInteger("level"));
+  }
+
+  private CacheConfig getCacheConfig(JsonObject storage) {
+    JsonObject cache = storage.getObject("cache");
+
+    if (cache == null) {
+      return new CacheConfig();
+    }
+
+    return new CacheConfig(
+      cache.getInteger("maxPoints"));
+  }
+
+  private FileStorageConfig getFileStorageConfig(JsonObject storage) {
+    JsonObject file = storage.getObject("file");
+
+    if (file == null) {
+      return new FileStorageConfig();
+    }
+
+    return new FileStorageConfig(
+      file.getString("directory"),
+      file.getInteger("segmentSize"),
+      file.getInteger("maxOpenFiles"));
+  }
+
+  private RetentionConfig getRetentionConfig(JsonObject storage) {
+    JsonObject retention = storage.getObject("retention");
+
+    if (retention == null) {
+      return new RetentionConfig();
+    }
+
+    return new RetentionConfig(
+      retention.getString("maxAge"),
+      retention.getInteger("maxCount"),
+      retention.getString("interval"),
+      getRollupConfigs(retention),
+      getExpiryConfigs(retention));
+  }
+
+  private List<ExpiryConfig> getExpiryConfigs(JsonObject retention) {
+    JsonArray expiry = retention.getArray("expiry");
+
+    if (expiry == null) {
+      return null;
+    }
+
+    ArrayList<ExpiryConfig> expiryConfigs = new ArrayList<>();
+
+    for (JsonObject rule : new JsonArrayIterable<JsonObject>(expiry)) {
+      expiryConfigs.add(new ExpiryConfig(
+        rule.getString("pattern"),
+        rule.getString("ttl")));
+    }
+
+    return expiryConfigs;
+  }
+
+  private List<RollupConfig> getRollupConfigs(JsonObject retention) {
+    JsonArray rollups = retention.getArray("rollups");
+
+    if (rollups == null) {
+      return null;
+    }
+
+    ArrayList<RollupConfig> rollupConfigs = new ArrayList<>();
+
+    for (JsonObject rollup : new JsonArrayIterable<JsonObject>(rollups)) {
+      rollupConfigs.add(new RollupConfig(
+        rollup.getString("resolution"),
+        rollup.getString("maxAge")));
+    }
+
+    return rollupConfigs;
+  }
+
+  private List<ListenerConfig> getListenerConfigs(JsonObject config) {
+    JsonArray listeners = config.getArray("listeners");
+
+    if (listeners == null) {
+      return null;
+    }
+
+    ArrayList<ListenerConfig> listenerConfigs = new ArrayList<>();
+
+    for (JsonObject listener : new JsonArrayIterable<JsonObject>(listeners)) {
+      listenerConfigs.add(new ListenerConfig(
+        listener.getString("protocol"),
+        listener.getBoolean("udp"),
+        listener.getString("host"),
+        listener.getInteger("port"),
+        listener.getString("flushInterval"),
+        listener.getInteger("maxPendingPoints")));
+    }
+
+    return listenerConfigs;
   }
 }
@@ -0,0 +1,29 @@
+package io.tiler.internal.config;
+
+import io.tiler.core.time.TimePeriodParser;
+
+import java.util.regex.Pattern;
+
+public class ExpiryConfig {
+  private final Pattern pattern;
+  private final long ttl;
+
+  public ExpiryConfig(String pattern, String ttl) {
+    if (pattern == null || ttl == null) {
+      throw new IllegalArgumentException("Expiry rules need a pattern and a ttl");
+    }
+
+    this.pattern = Pattern.compile(pattern);
+    this.ttl = TimePeriodParser.parseTimePeriodToMicroseconds(ttl);
+  }
+
+  // Found anywhere in the metric name, like a query's from clause regex
+  public Pattern pattern() {
+    return pattern;
+  }
+
+  // Time in microseconds after its last write that a metric is removed
+  public long ttl() {
+    return ttl;
+  }
+}
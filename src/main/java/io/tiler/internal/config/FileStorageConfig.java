@@ -0,0 +1,47 @@
+package io.tiler.internal.config;
+
+public class FileStorageConfig {
+  private final String directory;
+  private final int segmentSize;
+  private final int maxOpenFiles;
+
+  public FileStorageConfig(String directory, Integer segmentSize, Integer maxOpenFiles) {
+    if (directory == null) {
+      directory = "data";
+    }
+
+    if (segmentSize == null) {
+      segmentSize = 4 * 1024 * 1024;
+    }
+
+    if (maxOpenFiles == null) {
+      maxOpenFiles = 256;
+    }
+
+    if (maxOpenFiles < 1) {
+      throw new IllegalArgumentException("maxOpenFiles must be at least 1");
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxOpenFiles = maxOpenFiles;
+  }
+
+  public FileStorageConfig() {
+    this(null, null, null);
+  }
+
+  public String directory() {
+    return directory;
+  }
+
+  // Size in bytes after which a metric's log moves on to a new segment file
+  public int segmentSize() {
+    return segmentSize;
+  }
+
+  // Number of segment files kept open at once, across every metric
+  public int maxOpenFiles() {
+    return maxOpenFiles;
+  }
+}
@@ -0,0 +1,20 @@
+package io.tiler.internal.config;
+
+public enum FsyncPolicy {
+  // Every entry is forced to disk before it is acknowledged
+  Always,
+  // Entries are forced to disk each time the buffer is flushed
+  Interval,
+  // Entries are left for the operating system to write out
+  Never;
+
+  public static FsyncPolicy parse(String value) {
+    for (FsyncPolicy policy : values()) {
+      if (policy.name().equalsIgnoreCase(value)) {
+        return policy;
+      }
+    }
+
+    throw new IllegalArgumentException("Unrecognised fsync policy '" + value + "'");
+  }
+}
@@ -0,0 +1,175 @@
+package io.tiler.internal.config;
+
+import io.tiler.core.time.TimePeriodParser;
+
+public class IngestConfig {
+  public static final String DEFAULT_DIRECTORY = "wal";
+  private final boolean writeAheadLog;
+  private final String directory;
+  private final FsyncPolicy fsync;
+  private final long flushInterval;
+  private final int maxFlushSize;
+  private final int maxFlushAttempts;
+  private final long maxRetryDelay;
+  private final long maxPendingBytes;
+  private final int segmentSize;
+  private final int streamBatchSize;
+  private final int maxLineSize;
+  private final long batchWindow;
+  private final int maxBatchSize;
+  private final AdmissionConfig admissionConfig;
+  private final ChangeDetectionConfig changeDetectionConfig;
+
+  public IngestConfig(Boolean writeAheadLog, String directory, String fsync, String flushInterval, Integer maxFlushSize, Integer maxFlushAttempts, String maxRetryDelay, Long maxPendingBytes, Integer segmentSize, Integer streamBatchSize, Integer maxLineSize, String batchWindow, Integer maxBatchSize, AdmissionConfig admissionConfig, ChangeDetectionConfig changeDetectionConfig) {
+    if (writeAheadLog == null) {
+      writeAheadLog = false;
+    }
+
+    if (directory == null) {
+      directory = DEFAULT_DIRECTORY;
+    }
+
+    if (fsync == null) {
+      fsync = FsyncPolicy.Interval.name();
+    }
+
+    if (flushInterval == null) {
+      flushInterval = "1s";
+    }
+
+    if (maxFlushSize == null) {
+      maxFlushSize = 5000;
+    }
+
+    if (maxFlushAttempts == null) {
+      maxFlushAttempts = 10;
+    }
+
+    if (maxRetryDelay == null) {
+      maxRetryDelay = "1m";
+    }
+
+    if (maxPendingBytes == null) {
+      maxPendingBytes = 256L * 1024 * 1024;
+    }
+
+    if (segmentSize == null) {
+      segmentSize = 16 * 1024 * 1024;
+    }
+
+    if (streamBatchSize == null) {
+      streamBatchSize = 1000;
+    }
+
+    if (maxLineSize == null) {
+      maxLineSize = 1024 * 1024;
+    }
+
+    if (maxBatchSize == null) {
+      maxBatchSize = 5000;
+    }
+
+    if (admissionConfig == null) {
+      admissionConfig = new AdmissionConfig();
+    }
+
+    if (changeDetectionConfig == null) {
+      changeDetectionConfig = new ChangeDetectionConfig();
+    }
+
+    this.writeAheadLog = writeAheadLog;
+    this.directory = directory;
+    this.fsync = FsyncPolicy.parse(fsync);
+    this.flushInterval = TimePeriodParser.parseTimePeriodToMicroseconds(flushInterval);
+    this.maxFlushSize = maxFlushSize;
+    this.maxFlushAttempts = maxFlushAttempts;
+    this.maxRetryDelay = TimePeriodParser.parseTimePeriodToMicroseconds(maxRetryDelay);
+    this.maxPendingBytes = maxPendingBytes;
+    this.segmentSize = segmentSize;
+    this.streamBatchSize = streamBatchSize;
+    this.maxLineSize = maxLineSize;
+    // Saves are written as they arrive unless a window is configured
+    this.batchWindow = batchWindow == null ? 0 : TimePeriodParser.parseTimePeriodToMicroseconds(batchWindow);
+    this.maxBatchSize = maxBatchSize;
+    this.admissionConfig = admissionConfig;
+    this.changeDetectionConfig = changeDetectionConfig;
+  }
+
+  public IngestConfig() {
+    this(null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+  }
+
+  // Whether incoming metrics are acknowledged once they are in the write-ahead log, rather than once they are stored
+  public boolean writeAheadLog() {
+    return writeAheadLog;
+  }
+
+  public String directory() {
+    return directory;
+  }
+
+  public FsyncPolicy fsync() {
+    return fsync;
+  }
+
+  // Time between flushes of the write-ahead log to storage in microseconds
+  public long flushInterval() {
+    return flushInterval;
+  }
+
+  // Maximum number of metrics written to storage by each write
+  public int maxFlushSize() {
+    return maxFlushSize;
+  }
+
+  // Number of times a logged entry whose own metrics make it fail is tried before it is moved to the dead letter file,
+  // or 0 to keep trying.  Entries are never given up on because storage is unavailable.
+  public int maxFlushAttempts() {
+    return maxFlushAttempts;
+  }
+
+  // Longest time in microseconds between attempts at storing logged metrics while storage is unavailable, as the time
+  // between attempts starts at the flush interval and doubles after each one that fails
+  public long maxRetryDelay() {
+    return maxRetryDelay;
+  }
+
+  // Size in bytes of the logged metrics waiting to be stored after which incoming metrics are turned away, or 0 for
+  // no limit
+  public long maxPendingBytes() {
+    return maxPendingBytes;
+  }
+
+  // Size in bytes after which the write-ahead log moves on to a new file
+  public int segmentSize() {
+    return segmentSize;
+  }
+
+  // Number of metrics from a streamed upload that are written to storage at a time
+  public int streamBatchSize() {
+    return streamBatchSize;
+  }
+
+  // Size in bytes of the longest metric a streamed upload can contain
+  public int maxLineSize() {
+    return maxLineSize;
+  }
+
+  // Time in microseconds that saved metrics are held for so they can be written together, or 0 if they are not held
+  public long batchWindow() {
+    return batchWindow;
+  }
+
+  // Number of distinct metrics that are written straight away rather than waiting for the end of the window
+  public int maxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public AdmissionConfig admission() {
+    return admissionConfig;
+  }
+
+  public ChangeDetectionConfig changeDetection() {
+    return changeDetectionConfig;
+  }
+}
@@ -0,0 +1,18 @@
+package io.tiler.internal.config;
+
+public enum LineProtocol {
+  // metric.path[;tag=value...] value timestamp-in-seconds
+  Graphite,
+  // measurement[,tag=value...] field=value[,field=value...] [timestamp-in-nanoseconds]
+  Influx;
+
+  public static LineProtocol parse(String value) {
+    for (LineProtocol protocol : values()) {
+      if (protocol.name().equalsIgnoreCase(value)) {
+        return protocol;
+      }
+    }
+
+    throw new IllegalArgumentException("Unrecognised line protocol '" + value + "'");
+  }
+}
@@ -0,0 +1,78 @@
+package io.tiler.internal.config;
+
+import io.tiler.core.time.TimePeriodParser;
+
+public class ListenerConfig {
+  private final LineProtocol protocol;
+  private final boolean udp;
+  private final String host;
+  private final int port;
+  private final long flushInterval;
+  private final int maxPendingPoints;
+
+  public ListenerConfig(String protocol, Boolean udp, String host, Integer port, String flushInterval, Integer maxPendingPoints) {
+    if (protocol == null) {
+      protocol = LineProtocol.Graphite.name();
+    }
+
+    if (udp == null) {
+      udp = false;
+    }
+
+    if (host == null) {
+      host = "0.0.0.0";
+    }
+
+    this.protocol = LineProtocol.parse(protocol);
+
+    if (port == null) {
+      // The ports the protocols' own servers listen on
+      port = this.protocol == LineProtocol.Influx ? 8089 : 2003;
+    }
+
+    if (flushInterval == null) {
+      flushInterval = "1s";
+    }
+
+    if (maxPendingPoints == null) {
+      maxPendingPoints = 100000;
+    }
+
+    this.udp = udp;
+    this.host = host;
+    this.port = port;
+    this.flushInterval = TimePeriodParser.parseTimePeriodToMicroseconds(flushInterval);
+    this.maxPendingPoints = maxPendingPoints;
+  }
+
+  public ListenerConfig() {
+    this(null, null, null, null, null, null);
+  }
+
+  public LineProtocol protocol() {
+    return protocol;
+  }
+
+  // Whether the listener receives datagrams rather than accepting connections
+  public boolean udp() {
+    return udp;
+  }
+
+  public String host() {
+    return host;
+  }
+
+  public int port() {
+    return port;
+  }
+
+  // Longest time in microseconds that received points wait before they are stored
+  public long flushInterval() {
+    return flushInterval;
+  }
+
+  // Number of received points waiting to be stored after which further datagrams are dropped
+  public int maxPendingPoints() {
+    return maxPendingPoints;
+  }
+}
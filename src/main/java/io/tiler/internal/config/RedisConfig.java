@@ -2,7 +2,11 @@ package io.tiler.internal.config;
 
 import org.vertx.java.core.json.JsonObject;
 
+import java.util.Collections;
+import java.util.List;
+
 public class RedisConfig {
+  public static final String DEFAULT_ADDRESS = "io.tiler.redis";
   private final String address;
   private final String host;
   private final Integer port;
@@ -11,14 +15,18 @@ public class RedisConfig {
   private final String auth;
   private final Integer select;
   private final String keyPrefix;
+  private final int writeBatchSize;
+  private final int readBatchSize;
+  private final int scanCount;
+  private final List<RedisConfig> shards;
 
   public RedisConfig() {
-    this(null, null, null, null, null, null, null, null);
+    this(null, null, null, null, null, null, null, null, null, null, null, null);
   }
 
-  public RedisConfig(String address, String host, Integer port, String encoding, Boolean binary, String auth, Integer select, String keyPrefix) {
+  public RedisConfig(String address, String host, Integer port, String encoding, Boolean binary, String auth, Integer select, String keyPrefix, Integer writeBatchSize, Integer readBatchSize, Integer scanCount, List<RedisConfig> shards) {
     if (address == null) {
-      address = "io.tiler.redis";
+      address = DEFAULT_ADDRESS;
     }
 
     if (host == null) {
@@ -37,6 +45,30 @@ public class RedisConfig {
       keyPrefix = "io.tiler:";
     }
 
+    if (writeBatchSize == null) {
+      // Number of metrics written by each MSET command
+      writeBatchSize = 500;
+    }
+
+    if (readBatchSize == null) {
+      // Number of metrics read by each MGET command
+      readBatchSize = 500;
+    }
+
+    if (scanCount == null) {
+      // Number of metric names asked for by each SSCAN command
+      scanCount = 1000;
+    }
+
+    // Batches are worked through in steps of these sizes, so a size of zero would never finish
+    checkPositive("writeBatchSize", writeBatchSize);
+    checkPositive("readBatchSize", readBatchSize);
+    checkPositive("scanCount", scanCount);
+
+    if (shards == null) {
+      shards = Collections.emptyList();
+    }
+
     this.address = address;
     this.host = host;
     this.port = port;
@@ -45,6 +77,16 @@ public class RedisConfig {
     this.auth = auth;
     this.select = select;
     this.keyPrefix = keyPrefix;
+    this.writeBatchSize = writeBatchSize;
+    this.readBatchSize = readBatchSize;
+    this.scanCount = scanCount;
+    this.shards = Collections.unmodifiableList(shards);
+  }
+
+  private static void checkPositive(String name, int value) {
+    if (value <= 0) {
+      throw new IllegalArgumentException("Redis " + name + " must be greater than zero");
+    }
   }
 
   public JsonObject toRedisModuleConfig() {
@@ -89,4 +131,30 @@ public class RedisConfig {
   public String keyPrefix() {
     return keyPrefix;
   }
+
+  public int writeBatchSize() {
+    return writeBatchSize;
+  }
+
+  public int readBatchSize() {
+    return readBatchSize;
+  }
+
+  public int scanCount() {
+    return scanCount;
+  }
+
+  public boolean isSharded() {
+    return !shards.isEmpty();
+  }
+
+  // The Redis instances that metrics are spread across, if there is more than one
+  public List<RedisConfig> shards() {
+    return shards;
+  }
+
+  // Identifies the instance on the hash ring, so it does not depend on the order the shards are listed in
+  public String shardName() {
+    return host + ":" + port + (select == null ? "" : "/" + select);
+  }
 }
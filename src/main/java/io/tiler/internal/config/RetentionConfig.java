@@ -0,0 +1,88 @@
+package io.tiler.internal.config;
+
+import io.tiler.core.time.TimePeriodParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class RetentionConfig {
+  private final Long maxAge;
+  private final Integer maxCount;
+  private final long interval;
+  private final List<RollupConfig> rollups;
+  private final List<ExpiryConfig> expiry;
+
+  public RetentionConfig(String maxAge, Integer maxCount, String interval, List<RollupConfig> rollups, List<ExpiryConfig> expiry) {
+    if (interval == null) {
+      interval = "1m";
+    }
+
+    if (rollups == null) {
+      rollups = new ArrayList<>();
+    }
+
+    if (expiry == null) {
+      expiry = new ArrayList<>();
+    }
+
+    ArrayList<RollupConfig> sortedRollups = new ArrayList<>(rollups);
+    sortedRollups.sort(Comparator.comparingLong(RollupConfig::resolution));
+
+    this.maxAge = maxAge == null ? null : TimePeriodParser.parseTimePeriodToMicroseconds(maxAge);
+    this.maxCount = maxCount;
+    this.interval = TimePeriodParser.parseTimePeriodToMicroseconds(interval);
+    this.rollups = Collections.unmodifiableList(sortedRollups);
+    this.expiry = Collections.unmodifiableList(new ArrayList<>(expiry));
+  }
+
+  public RetentionConfig() {
+    this(null, null, null, null, null);
+  }
+
+  public boolean hasMaxAge() {
+    return maxAge != null;
+  }
+
+  // Maximum age of raw points in microseconds
+  public Long maxAge() {
+    return maxAge;
+  }
+
+  public boolean hasMaxCount() {
+    return maxCount != null;
+  }
+
+  public Integer maxCount() {
+    return maxCount;
+  }
+
+  // Time between runs of the background retention task in microseconds
+  public long interval() {
+    return interval;
+  }
+
+  public List<RollupConfig> rollups() {
+    return rollups;
+  }
+
+  public List<ExpiryConfig> expiry() {
+    return expiry;
+  }
+
+  // The ttl of the first expiry rule that matches the metric name, or null if the metric does not expire
+  public Long getTtl(String metricName) {
+    for (ExpiryConfig expiryConfig : expiry) {
+      if (expiryConfig.pattern().matcher(metricName).find()) {
+        return expiryConfig.ttl();
+      }
+    }
+
+    return null;
+  }
+
+  public boolean isEnabled() {
+    return hasMaxAge() || hasMaxCount() || !rollups.isEmpty();
+  }
+}
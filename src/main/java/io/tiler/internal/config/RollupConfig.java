@@ -0,0 +1,29 @@
+package io.tiler.internal.config;
+
+import io.tiler.core.time.TimePeriodParser;
+
+public class RollupConfig {
+  private final long resolution;
+  private final Long maxAge;
+
+  public RollupConfig(String resolution, String maxAge) {
+    if (resolution == null) {
+      throw new IllegalArgumentException("Rollups need a resolution");
+    }
+
+    this.resolution = TimePeriodParser.parseTimePeriodToMicroseconds(resolution);
+    this.maxAge = maxAge == null ? null : TimePeriodParser.parseTimePeriodToMicroseconds(maxAge);
+  }
+
+  public long resolution() {
+    return resolution;
+  }
+
+  public boolean hasMaxAge() {
+    return maxAge != null;
+  }
+
+  public Long maxAge() {
+    return maxAge;
+  }
+}
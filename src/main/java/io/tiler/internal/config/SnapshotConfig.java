@@ -0,0 +1,39 @@
+package io.tiler.internal.config;
+
+public class SnapshotConfig {
+  private final String directory;
+  private final String restore;
+  private final int chunkSize;
+
+  public SnapshotConfig(String directory, String restore, Integer chunkSize) {
+    if (directory == null) {
+      directory = "snapshots";
+    }
+
+    if (chunkSize == null) {
+      chunkSize = 1000;
+    }
+
+    this.directory = directory;
+    this.restore = restore;
+    this.chunkSize = chunkSize;
+  }
+
+  public SnapshotConfig() {
+    this(null, null, null);
+  }
+
+  public String directory() {
+    return directory;
+  }
+
+  // Name of a snapshot in the directory to import at startup, when the store holds no metrics yet, or null for none
+  public String restore() {
+    return restore;
+  }
+
+  // Number of metrics read and written together while exporting
+  public int chunkSize() {
+    return chunkSize;
+  }
+}
@@ -0,0 +1,18 @@
+package io.tiler.internal.config;
+
+public enum StorageBackend {
+  // Metrics are stored in Redis via the mod-redis module
+  Redis,
+  // Metrics are stored in memory-mapped segment files on the local disk
+  File;
+
+  public static StorageBackend parse(String value) {
+    for (StorageBackend backend : values()) {
+      if (backend.name().equalsIgnoreCase(value)) {
+        return backend;
+      }
+    }
+
+    throw new IllegalArgumentException("Unrecognised storage backend '" + value + "'");
+  }
+}
@@ -0,0 +1,92 @@
+package io.tiler.internal.config;
+
+public class StorageConfig {
+  private final StorageBackend backend;
+  private final StorageMode mode;
+  private final StorageEncoding encoding;
+  private final RetentionConfig retentionConfig;
+  private final FileStorageConfig fileStorageConfig;
+  private final CacheConfig cacheConfig;
+  private final CompressionConfig compressionConfig;
+  private final String mergeKey;
+
+  public StorageConfig(String backend, String mode, String encoding, RetentionConfig retentionConfig, FileStorageConfig fileStorageConfig, CacheConfig cacheConfig, CompressionConfig compressionConfig, String mergeKey) {
+    if (backend == null) {
+      backend = StorageBackend.Redis.name();
+    }
+
+    if (mode == null) {
+      mode = StorageMode.Document.name();
+    }
+
+    if (encoding == null) {
+      encoding = StorageEncoding.Json.name();
+    }
+
+    if (retentionConfig == null) {
+      retentionConfig = new RetentionConfig();
+    }
+
+    if (fileStorageConfig == null) {
+      fileStorageConfig = new FileStorageConfig();
+    }
+
+    if (cacheConfig == null) {
+      cacheConfig = new CacheConfig();
+    }
+
+    if (compressionConfig == null) {
+      compressionConfig = new CompressionConfig();
+    }
+
+    if (mergeKey == null) {
+      mergeKey = "time";
+    }
+
+    this.backend = StorageBackend.parse(backend);
+    this.mode = StorageMode.parse(mode);
+    this.encoding = StorageEncoding.parse(encoding);
+    this.retentionConfig = retentionConfig;
+    this.fileStorageConfig = fileStorageConfig;
+    this.cacheConfig = cacheConfig;
+    this.compressionConfig = compressionConfig;
+    this.mergeKey = mergeKey;
+  }
+
+  public StorageConfig() {
+    this(null, null, null, null, null, null, null, null);
+  }
+
+  public StorageBackend backend() {
+    return backend;
+  }
+
+  public StorageMode mode() {
+    return mode;
+  }
+
+  public StorageEncoding encoding() {
+    return encoding;
+  }
+
+  public RetentionConfig retention() {
+    return retentionConfig;
+  }
+
+  public FileStorageConfig file() {
+    return fileStorageConfig;
+  }
+
+  public CacheConfig cache() {
+    return cacheConfig;
+  }
+
+  public CompressionConfig compression() {
+    return compressionConfig;
+  }
+
+  // Point field that merged points are matched on
+  public String mergeKey() {
+    return mergeKey;
+  }
+}
@@ -0,0 +1,18 @@
+package io.tiler.internal.config;
+
+public enum StorageEncoding {
+  // Metric documents are stored as JSON text
+  Json,
+  // Numeric points are stored as delta-of-delta timestamps and XOR compressed values
+  Gorilla;
+
+  public static StorageEncoding parse(String value) {
+    for (StorageEncoding encoding : values()) {
+      if (encoding.name().equalsIgnoreCase(value)) {
+        return encoding;
+      }
+    }
+
+    throw new IllegalArgumentException("Unrecognised storage encoding '" + value + "'");
+  }
+}
@@ -0,0 +1,18 @@
+package io.tiler.internal.config;
+
+public enum StorageMode {
+  // Each metric, including all of its points, is stored as one JSON document
+  Document,
+  // Metric fields are stored as a header document and points are appended to a sorted set scored by time
+  Points;
+
+  public static StorageMode parse(String value) {
+    for (StorageMode mode : values()) {
+      if (mode.name().equalsIgnoreCase(value)) {
+        return mode;
+      }
+    }
+
+    throw new IllegalArgumentException("Unrecognised storage mode '" + value + "'");
+  }
+}
@@ -0,0 +1,83 @@
+package io.tiler.internal.ingest;
+
+import io.tiler.internal.config.AdmissionConfig;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonObject;
+
+// Bounds the incoming metrics that are being stored at once, so a burst of collectors is turned away with a request
+// to retry rather than piling up callbacks until the server runs out of memory.  A batch is always admitted when
+// nothing else is in flight, so a single batch larger than the limits can still be stored.  With the write-ahead log
+// turned on, a batch is acknowledged as soon as it is logged, so the entries the log has yet to store count as in
+// flight too, and batches are turned away altogether while the log's backlog is full.
+public class AdmissionController {
+  private final AdmissionConfig config;
+  private final IngestBuffer ingestBuffer;
+  private int inFlightBatches;
+  private long inFlightBytes;
+  private int peakInFlightBatches;
+  private long peakInFlightBytes;
+  private long admittedCount;
+  private long rejectedCount;
+
+  public AdmissionController(AdmissionConfig config, IngestBuffer ingestBuffer) {
+    this.config = config;
+    this.ingestBuffer = ingestBuffer;
+  }
+
+  public AdmissionController(AdmissionConfig config) {
+    this(config, null);
+  }
+
+  // Returns a handler that releases the batch's place and then calls the given handler, or null if the batch is
+  // rejected
+  public AsyncResultHandler<Void> admit(long bytes, AsyncResultHandler<Void> handler) {
+    if ((getInFlightBatches() > 0 && isFull(bytes)) || (ingestBuffer != null && ingestBuffer.isFull())) {
+      rejectedCount++;
+      return null;
+    }
+
+    long admittedBytes = Math.max(0, bytes);
+    inFlightBatches++;
+    inFlightBytes += admittedBytes;
+    peakInFlightBatches = Math.max(peakInFlightBatches, inFlightBatches);
+    peakInFlightBytes = Math.max(peakInFlightBytes, inFlightBytes);
+    admittedCount++;
+
+    return result -> {
+      inFlightBatches--;
+      inFlightBytes -= admittedBytes;
+      handler.handle(result);
+    };
+  }
+
+  // Whole seconds, as used by the Retry-After header
+  public long retryAfterSeconds() {
+    return Math.max(1, (config.retryAfter() + 999999L) / 1000000L);
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .putNumber("inFlightBatches", inFlightBatches)
+      .putNumber("inFlightBytes", inFlightBytes)
+      .putNumber("peakInFlightBatches", peakInFlightBatches)
+      .putNumber("peakInFlightBytes", peakInFlightBytes)
+      .putNumber("admitted", admittedCount)
+      .putNumber("rejected", rejectedCount);
+  }
+
+  private boolean isFull(long bytes) {
+    if (config.maxInFlightBatches() > 0 && getInFlightBatches() >= config.maxInFlightBatches()) {
+      return true;
+    }
+
+    return config.maxInFlightBytes() > 0 && getInFlightBytes() + bytes > config.maxInFlightBytes();
+  }
+
+  private int getInFlightBatches() {
+    return ingestBuffer == null ? inFlightBatches : inFlightBatches + ingestBuffer.pendingEntryCount();
+  }
+
+  private long getInFlightBytes() {
+    return ingestBuffer == null ? inFlightBytes : inFlightBytes + ingestBuffer.pendingBytes();
+  }
+}
@@ -0,0 +1,81 @@
+package io.tiler.internal.ingest;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+// Counts values in buckets whose upper bounds double, which is enough to see the shape of batch sizes and latencies
+// without keeping every value
+public class Histogram {
+  private final long[] upperBounds;
+  private final long[] counts;
+  private long count;
+  private long sum;
+  private long max;
+
+  public Histogram(int bucketCount) {
+    upperBounds = new long[bucketCount];
+    counts = new long[bucketCount + 1];
+
+    for (int bucketIndex = 0; bucketIndex < bucketCount; bucketIndex++) {
+      upperBounds[bucketIndex] = 1L << bucketIndex;
+    }
+  }
+
+  public void record(long value) {
+    int bucketIndex = 0;
+
+    while (bucketIndex < upperBounds.length && value > upperBounds[bucketIndex]) {
+      bucketIndex++;
+    }
+
+    counts[bucketIndex]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  public long count() {
+    return count;
+  }
+
+  // The upper bound of the bucket the percentile falls in, or the largest value for the last bucket
+  public long percentile(double percentile) {
+    long rank = (long) Math.ceil(count * percentile / 100.0);
+    long seenCount = 0;
+
+    for (int bucketIndex = 0; bucketIndex < upperBounds.length; bucketIndex++) {
+      seenCount += counts[bucketIndex];
+
+      if (seenCount >= rank && seenCount > 0) {
+        return Math.min(upperBounds[bucketIndex], max);
+      }
+    }
+
+    return max;
+  }
+
+  public JsonObject toJson() {
+    JsonArray buckets = new JsonArray();
+
+    for (int bucketIndex = 0; bucketIndex < counts.length; bucketIndex++) {
+      if (counts[bucketIndex] > 0) {
+        JsonObject bucket = new JsonObject();
+
+        // The last bucket has no upper bound
+        if (bucketIndex < upperBounds.length) {
+          bucket.putNumber("le", upperBounds[bucketIndex]);
+        }
+
+        buckets.addObject(bucket.putNumber("count", counts[bucketIndex]));
+      }
+    }
+
+    return new JsonObject()
+      .putNumber("count", count)
+      .putNumber("mean", count == 0 ? 0.0 : (double) sum / count)
+      .putNumber("max", max)
+      .putNumber("p50", percentile(50))
+      .putNumber("p99", percentile(99))
+      .putArray("buckets", buckets);
+  }
+}
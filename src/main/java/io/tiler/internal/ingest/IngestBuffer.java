@@ -0,0 +1,325 @@
+package io.tiler.internal.ingest;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.PartialWriteException;
+import io.tiler.internal.RedisException;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+// Acknowledges incoming metrics once they are in the write-ahead log and stores them later, in batches, so slow or
+// unavailable storage does not hold up or lose the metrics being sent in.  Entries are stored in the order they
+// arrived, and are only removed from the log once they have been stored, or once their own metrics have made storing
+// them fail too many times and they have been moved to the dead letter file.  While storage is unavailable the entries
+// are kept and tried again less and less often.
+public class IngestBuffer {
+  private final WriteAheadLog log;
+  private final int maxFlushSize;
+  private final int maxFlushAttempts;
+  private final long maxPendingBytes;
+  private final long retryDelay;
+  private final long maxRetryDelay;
+  private final Clock clock;
+  private final MetricWriter writer;
+  private final ArrayDeque<WriteAheadLog.Entry> pendingEntries = new ArrayDeque<>();
+  private int pendingMetricCount;
+  private long pendingBytes;
+  // Failed attempts at storing the oldest pending entry that were down to its own metrics
+  private int failedAttemptCount;
+  private boolean isolatingOldestEntry;
+  // Writes in a row that failed because storage was unavailable, and the time in milliseconds before which no more
+  // are tried
+  private int unavailableCount;
+  private long nextAttemptTime;
+  private boolean flushing;
+  private long flushCount;
+  private long flushFailureCount;
+  private long deadLetterCount;
+
+  // Delays are in milliseconds
+  public IngestBuffer(WriteAheadLog log, int maxFlushSize, int maxFlushAttempts, long maxPendingBytes, long retryDelay, long maxRetryDelay, Clock clock, MetricWriter writer) {
+    this.log = log;
+    this.maxFlushSize = maxFlushSize;
+    this.maxFlushAttempts = maxFlushAttempts;
+    this.maxPendingBytes = maxPendingBytes;
+    this.retryDelay = retryDelay;
+    this.maxRetryDelay = maxRetryDelay;
+    this.clock = clock;
+    this.writer = writer;
+  }
+
+  // Returns the number of entries replayed from the log
+  public int start() throws IOException {
+    for (WriteAheadLog.Entry entry : log.open()) {
+      addPendingEntry(entry);
+    }
+
+    return pendingEntries.size();
+  }
+
+  // Moves the entries of another instance's log, which no running instance has open, into this log and returns how
+  // many there were.  They are only deleted from the other log once they are safely in this one, so a crash part way
+  // through means they are stored twice rather than lost.
+  public int takeOver(WriteAheadLog otherLog) throws IOException {
+    List<WriteAheadLog.Entry> entries = otherLog.open();
+
+    try {
+      for (WriteAheadLog.Entry entry : entries) {
+        addPendingEntry(log.append(entry.type(), otherLog.read(entry)));
+      }
+
+      log.sync();
+      otherLog.release(null);
+    } finally {
+      otherLog.close();
+    }
+
+    return entries.size();
+  }
+
+  public void saveMetrics(JsonArray metrics) throws IOException {
+    addPendingEntry(log.append(WriteAheadLog.SAVE_ENTRY, metrics));
+  }
+
+  public void appendPoints(JsonArray metrics) throws IOException {
+    addPendingEntry(log.append(WriteAheadLog.APPEND_ENTRY, metrics));
+  }
+
+  public void mergePoints(JsonArray metrics) throws IOException {
+    addPendingEntry(log.append(WriteAheadLog.MERGE_ENTRY, metrics));
+  }
+
+  // Whether the entries waiting to be stored have reached the limit, so incoming metrics should be turned away until
+  // storage catches up
+  public boolean isFull() {
+    return maxPendingBytes > 0 && pendingBytes >= maxPendingBytes;
+  }
+
+  public int pendingEntryCount() {
+    return pendingEntries.size();
+  }
+
+  public int pendingMetricCount() {
+    return pendingMetricCount;
+  }
+
+  public long pendingBytes() {
+    return pendingBytes;
+  }
+
+  // Stores every pending entry, stopping at the first write that fails so the entries after it stay in order
+  public void flush(AsyncResultHandler<Void> handler) {
+    if (flushing || clock.millis() < nextAttemptTime) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    try {
+      log.sync();
+    } catch (IOException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
+    }
+
+    flushing = true;
+
+    flushNextBatch(result -> {
+      flushing = false;
+      handler.handle(result);
+    });
+  }
+
+  public void close() throws IOException {
+    log.close();
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .putNumber("pendingEntries", pendingEntries.size())
+      .putNumber("pendingMetrics", pendingMetricCount)
+      .putNumber("pendingBytes", pendingBytes)
+      .putNumber("flushes", flushCount)
+      .putNumber("flushFailures", flushFailureCount)
+      .putNumber("deadLetters", deadLetterCount);
+  }
+
+  private void flushNextBatch(AsyncResultHandler<Void> handler) {
+    if (pendingEntries.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    // Neighbouring entries of the same type are combined, so bursts of small requests become a few large writes
+    Iterator<WriteAheadLog.Entry> entries = pendingEntries.iterator();
+    WriteAheadLog.Entry firstEntry = entries.next();
+    int metricCount = firstEntry.metricCount();
+    int entryCount = 1;
+
+    // Once a write has failed the oldest entry is tried on its own, so one bad entry cannot hold back the others
+    while (!isolatingOldestEntry && entries.hasNext()) {
+      WriteAheadLog.Entry entry = entries.next();
+
+      if (entry.type() != firstEntry.type() || metricCount + entry.metricCount() > maxFlushSize) {
+        break;
+      }
+
+      metricCount += entry.metricCount();
+      entryCount++;
+    }
+
+    int flushedEntryCount = entryCount;
+    JsonArray metrics;
+    HashSet<String> firstEntryMetricNames;
+
+    try {
+      metrics = readMetrics(entryCount);
+      firstEntryMetricNames = extractMetricNames(metrics, firstEntry.metricCount());
+    } catch (IOException | DecodeException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
+    }
+
+    writer.write(firstEntry.type(), metrics, result -> {
+      if (result.failed()) {
+        flushFailureCount++;
+        isolatingOldestEntry = true;
+
+        if (!isCausedByMetrics(result.cause())) {
+          // Storage could not be reached, which is no reason to give up on any entry, so the entries are kept until
+          // it is back
+          unavailableCount++;
+          nextAttemptTime = clock.millis() + getRetryDelay();
+          handler.handle(result);
+          return;
+        }
+
+        unavailableCount = 0;
+        nextAttemptTime = 0;
+
+        if (isFailureOf(result.cause(), firstEntryMetricNames, flushedEntryCount)) {
+          failedAttemptCount++;
+        }
+
+        if (maxFlushAttempts > 0 && failedAttemptCount >= maxFlushAttempts) {
+          try {
+            // Gives up on the entry and carries on with the ones after it on the next flush
+            log.deadLetter(firstEntry);
+            deadLetterCount++;
+            removePendingEntries(1);
+          } catch (IOException e) {
+            handler.handle(DefaultAsyncResult.fail(e));
+            return;
+          }
+        }
+
+        handler.handle(result);
+        return;
+      }
+
+      flushCount++;
+      unavailableCount = 0;
+      nextAttemptTime = 0;
+
+      try {
+        removePendingEntries(flushedEntryCount);
+      } catch (IOException e) {
+        handler.handle(DefaultAsyncResult.fail(e));
+        return;
+      }
+
+      flushNextBatch(handler);
+    });
+  }
+
+  private void addPendingEntry(WriteAheadLog.Entry entry) {
+    pendingEntries.addLast(entry);
+    pendingMetricCount += entry.metricCount();
+    pendingBytes += entry.size();
+  }
+
+  // Reads the metrics of the oldest pending entries back from the log
+  private JsonArray readMetrics(int entryCount) throws IOException {
+    JsonArray metrics = new JsonArray();
+    Iterator<WriteAheadLog.Entry> entries = pendingEntries.iterator();
+
+    for (int entryIndex = 0; entryIndex < entryCount; entryIndex++) {
+      for (JsonObject metric : new JsonArrayIterable<JsonObject>(log.read(entries.next()))) {
+        metrics.addObject(metric);
+      }
+    }
+
+    return metrics;
+  }
+
+  private static HashSet<String> extractMetricNames(JsonArray metrics, int metricCount) {
+    HashSet<String> metricNames = new HashSet<>();
+
+    for (int metricIndex = 0; metricIndex < metricCount; metricIndex++) {
+      JsonObject metric = metrics.get(metricIndex);
+      metricNames.add(metric.getString("name"));
+    }
+
+    return metricNames;
+  }
+
+  private void removePendingEntries(int entryCount) throws IOException {
+    for (int entryIndex = 0; entryIndex < entryCount; entryIndex++) {
+      WriteAheadLog.Entry entry = pendingEntries.removeFirst();
+      pendingMetricCount -= entry.metricCount();
+      pendingBytes -= entry.size();
+    }
+
+    failedAttemptCount = 0;
+    isolatingOldestEntry = false;
+    log.release(pendingEntries.peekFirst());
+  }
+
+  // Doubles the delay for each write in a row that found storage unavailable
+  private long getRetryDelay() {
+    long delay = retryDelay;
+
+    for (int attempt = 1; attempt < unavailableCount && delay < maxRetryDelay; attempt++) {
+      delay *= 2;
+    }
+
+    return Math.min(delay, maxRetryDelay);
+  }
+
+  // Whether the write failed because of the metrics it was given, rather than because storage was unavailable
+  private static boolean isCausedByMetrics(Throwable cause) {
+    if (cause instanceof PartialWriteException) {
+      return cause.getCause() instanceof RedisException && ((RedisException) cause.getCause()).isCommandError();
+    }
+
+    return cause instanceof IllegalArgumentException || cause instanceof DecodeException;
+  }
+
+  // Whether a failure caused by the metrics was down to the given entry.  A write that was turned down as a whole can
+  // only be put down to an entry that was written on its own.
+  private static boolean isFailureOf(Throwable cause, HashSet<String> entryMetricNames, int writtenEntryCount) {
+    if (!(cause instanceof PartialWriteException)) {
+      return writtenEntryCount == 1;
+    }
+
+    for (String failedMetricName : ((PartialWriteException) cause).failedMetricNames()) {
+      if (entryMetricNames.contains(failedMetricName)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  public interface MetricWriter {
+    void write(byte entryType, JsonArray metrics, AsyncResultHandler<Void> handler);
+  }
+}
@@ -0,0 +1,176 @@
+package io.tiler.internal.ingest;
+
+import io.tiler.core.json.JsonArrayIterable;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+// Holds saved metrics for a short window and writes everything saved in the window together, so a burst of requests
+// costs one storage write and one pass over the subscribers.  A save replaces the whole metric, so only the latest
+// save of each metric in the window needs to be written.  Points appended or merged into a metric have to wait for the
+// metric's held saves to be written first, which flush arranges.
+public class MetricBatcher {
+  private static final int HISTOGRAM_BUCKET_COUNT = 20;
+  private final Vertx vertx;
+  private final long windowMillis;
+  private final int maxBatchSize;
+  private final MetricWriter writer;
+  private LinkedHashMap<String, JsonObject> pendingMetrics = new LinkedHashMap<>();
+  private ArrayList<PendingRequest> pendingRequests = new ArrayList<>();
+  private ArrayList<PendingRequest> writingRequests;
+  private Set<String> writingMetricNames = Collections.emptySet();
+  private Long timerId;
+  private boolean writing;
+  private boolean flushRequested;
+  private long requestCount;
+  private long metricCount;
+  private long replacedMetricCount;
+  private long batchFailureCount;
+  private final Histogram batchSizes = new Histogram(HISTOGRAM_BUCKET_COUNT);
+  private final Histogram requestsPerBatch = new Histogram(HISTOGRAM_BUCKET_COUNT);
+  private final Histogram latencyMillis = new Histogram(HISTOGRAM_BUCKET_COUNT);
+
+  public MetricBatcher(Vertx vertx, long windowMillis, int maxBatchSize, MetricWriter writer) {
+    this.vertx = vertx;
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.writer = writer;
+  }
+
+  // The handler is called once the batch the metrics ended up in has been written
+  public void saveMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    requestCount++;
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      metricCount++;
+
+      if (pendingMetrics.put(metric.getString("name"), metric) != null) {
+        replacedMetricCount++;
+      }
+    }
+
+    pendingRequests.add(new PendingRequest(handler, System.nanoTime()));
+    scheduleBatch();
+  }
+
+  // The handler is called once every save made so far of the given metrics has been written, which is straight away if
+  // none of them are being held
+  public void flush(Collection<String> metricNames, AsyncResultHandler<Void> handler) {
+    if (containsAny(pendingMetrics.keySet(), metricNames)) {
+      pendingRequests.add(new PendingRequest(handler, System.nanoTime()));
+      flushRequested = true;
+      writeBatch();
+    } else if (containsAny(writingMetricNames, metricNames)) {
+      writingRequests.add(new PendingRequest(handler, System.nanoTime()));
+    } else {
+      handler.handle(DefaultAsyncResult.succeed());
+    }
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .putNumber("pendingMetrics", pendingMetrics.size())
+      .putNumber("requests", requestCount)
+      .putNumber("metrics", metricCount)
+      .putNumber("replacedMetrics", replacedMetricCount)
+      .putNumber("batchFailures", batchFailureCount)
+      .putObject("batchSize", batchSizes.toJson())
+      .putObject("requestsPerBatch", requestsPerBatch.toJson())
+      .putObject("latencyMillis", latencyMillis.toJson());
+  }
+
+  private void writeBatch() {
+    if (timerId != null) {
+      vertx.cancelTimer(timerId);
+      timerId = null;
+    }
+
+    // Batches are written one at a time, so an older save of a metric can never be written after a newer one
+    if (writing || pendingMetrics.isEmpty()) {
+      return;
+    }
+
+    JsonArray metrics = new JsonArray();
+
+    for (JsonObject metric : pendingMetrics.values()) {
+      metrics.addObject(metric);
+    }
+
+    ArrayList<PendingRequest> requests = pendingRequests;
+    writingMetricNames = pendingMetrics.keySet();
+    writingRequests = requests;
+    pendingMetrics = new LinkedHashMap<>();
+    pendingRequests = new ArrayList<>();
+    batchSizes.record(metrics.size());
+    requestsPerBatch.record(requests.size());
+    writing = true;
+    flushRequested = false;
+
+    writer.write(metrics, result -> {
+      writing = false;
+      writingMetricNames = Collections.emptySet();
+      writingRequests = null;
+      completeRequests(requests, result);
+
+      // Metrics saved while the batch was being written wait for the next window, unless there are enough of them
+      scheduleBatch();
+    });
+  }
+
+  private void scheduleBatch() {
+    if (flushRequested || pendingMetrics.size() >= maxBatchSize) {
+      writeBatch();
+    } else if (!pendingMetrics.isEmpty() && timerId == null) {
+      timerId = vertx.setTimer(Math.max(1, windowMillis), id -> {
+        timerId = null;
+        writeBatch();
+      });
+    }
+  }
+
+  private void completeRequests(ArrayList<PendingRequest> requests, AsyncResult<Void> result) {
+    if (result.failed()) {
+      batchFailureCount++;
+    }
+
+    long now = System.nanoTime();
+
+    for (PendingRequest request : requests) {
+      latencyMillis.record((now - request.startNanos) / 1000000L);
+      request.handler.handle(result);
+    }
+  }
+
+  private static boolean containsAny(Set<String> metricNames, Collection<String> otherMetricNames) {
+    for (String metricName : otherMetricNames) {
+      if (metricNames.contains(metricName)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static class PendingRequest {
+    private final AsyncResultHandler<Void> handler;
+    private final long startNanos;
+
+    private PendingRequest(AsyncResultHandler<Void> handler, long startNanos) {
+      this.handler = handler;
+      this.startNanos = startNanos;
+    }
+  }
+
+  public interface MetricWriter {
+    void write(JsonArray metrics, AsyncResultHandler<Void> handler);
+  }
+}
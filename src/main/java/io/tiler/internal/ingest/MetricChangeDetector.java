@@ -0,0 +1,177 @@
+package io.tiler.internal.ingest;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// Remembers a hash of the last saved content of each metric, so a save that would write exactly what is already
+// stored can be left out of the storage write and of the notifications to subscribers.  Metrics are hashed by walking
+// their fields, which is much cheaper than the write and the query matching it saves.
+public class MetricChangeDetector {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  private final HashMap<String, Long> hashes = new HashMap<>();
+  private long checkedMetricCount;
+  private long suppressedWriteCount;
+
+  // Returns the metrics that differ from the last save of the same metric.  Their hashes are remembered straight
+  // away, so saves that are in flight at the same time agree on which content was written last, and the caller
+  // forgets them again if the write fails.
+  public JsonArray filterChanged(JsonArray metrics) {
+    JsonArray changedMetrics = new JsonArray();
+
+    for (int metricIndex = 0; metricIndex < metrics.size(); metricIndex++) {
+      JsonObject metric = metrics.get(metricIndex);
+      long hash = hash(metric);
+      Long previousHash = hashes.put(metric.getString("name"), hash);
+      checkedMetricCount++;
+
+      if (previousHash != null && previousHash == hash) {
+        suppressedWriteCount++;
+      } else {
+        changedMetrics.addObject(metric);
+      }
+    }
+
+    return changedMetrics;
+  }
+
+  // Records metrics that were saved some other way, such as by another instance, so that saving them again here is
+  // left out too
+  public void remember(JsonArray metrics) {
+    for (int metricIndex = 0; metricIndex < metrics.size(); metricIndex++) {
+      JsonObject metric = metrics.get(metricIndex);
+      hashes.put(metric.getString("name"), hash(metric));
+    }
+  }
+
+  // Called when metrics are written some other way, so the next save of them is always written
+  public void forget(Collection<String> metricNames) {
+    for (String metricName : metricNames) {
+      hashes.remove(metricName);
+    }
+  }
+
+  public void forgetAll() {
+    hashes.clear();
+  }
+
+  public int size() {
+    return hashes.size();
+  }
+
+  // Returns the number of hashes loaded.  Hashes of metrics that are not stored any more are left out, so metrics
+  // that went missing while the server was stopped are written again by their next save.
+  public int load(Path path, Predicate<String> isStored) throws IOException {
+    if (!Files.exists(path)) {
+      return 0;
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        int separatorIndex = line.indexOf(' ');
+
+        if (separatorIndex < 0) {
+          continue;
+        }
+
+        String metricName = line.substring(separatorIndex + 1);
+
+        if (isStored.test(metricName)) {
+          hashes.put(metricName, Long.parseUnsignedLong(line.substring(0, separatorIndex), 16));
+        }
+      }
+    }
+
+    return hashes.size();
+  }
+
+  // Writes to a temporary file first, so a crash part way through leaves the previous file in place
+  public void save(Path path) throws IOException {
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try (BufferedWriter writer = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Long> metricNameAndHash : hashes.entrySet()) {
+        String metricName = metricNameAndHash.getKey();
+
+        // Such a metric cannot be read back from its line, so its next save is simply written
+        if (metricName.indexOf('\n') >= 0 || metricName.indexOf('\r') >= 0) {
+          continue;
+        }
+
+        writer.write(Long.toHexString(metricNameAndHash.getValue()));
+        writer.write(' ');
+        writer.write(metricName);
+        writer.newLine();
+      }
+    }
+
+    Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .putNumber("trackedMetrics", hashes.size())
+      .putNumber("checkedMetrics", checkedMetricCount)
+      .putNumber("suppressedWrites", suppressedWriteCount);
+  }
+
+  static long hash(JsonObject metric) {
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    putObject(hasher, metric);
+    return hasher.hash().asLong();
+  }
+
+  // Each value is preceded by a tag for its type, so values of different types or structures never hash the same
+  private static void putValue(Hasher hasher, Object value) {
+    if (value == null) {
+      hasher.putByte((byte) 0);
+    } else if (value instanceof JsonObject) {
+      putObject(hasher, (JsonObject) value);
+    } else if (value instanceof JsonArray) {
+      JsonArray array = (JsonArray) value;
+      hasher.putByte((byte) 1).putInt(array.size());
+
+      for (int index = 0; index < array.size(); index++) {
+        putValue(hasher, array.get(index));
+      }
+    } else if (value instanceof String) {
+      String string = (String) value;
+      hasher.putByte((byte) 2).putInt(string.length()).putUnencodedChars(string);
+    } else if (value instanceof Boolean) {
+      hasher.putByte((byte) 3).putBoolean((Boolean) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      hasher.putByte((byte) 4).putDouble(((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      hasher.putByte((byte) 5).putLong(((Number) value).longValue());
+    } else {
+      String string = value.toString();
+      hasher.putByte((byte) 6).putInt(string.length()).putUnencodedChars(string);
+    }
+  }
+
+  // Fields are hashed in the order they arrived in, which is the same from one save to the next for a given sender
+  private static void putObject(Hasher hasher, JsonObject object) {
+    hasher.putByte((byte) 7).putInt(object.size());
+
+    for (String fieldName : object.getFieldNames()) {
+      hasher.putInt(fieldName.length()).putUnencodedChars(fieldName);
+      putValue(hasher, object.getValue(fieldName));
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package io.tiler.internal.ingest;
+
+public class MetricStreamException extends Exception {
+  private final long writtenMetricCount;
+
+  public MetricStreamException(long writtenMetricCount, Throwable cause) {
+    super(cause.getMessage() + ". " + writtenMetricCount + " metrics were written before the stream stopped", cause);
+    this.writtenMetricCount = writtenMetricCount;
+  }
+
+  // Metrics from earlier batches stay written, so a client can carry on from where the stream stopped
+  public long writtenMetricCount() {
+    return writtenMetricCount;
+  }
+
+  public boolean isClientError() {
+    return getCause() instanceof IllegalArgumentException;
+  }
+}
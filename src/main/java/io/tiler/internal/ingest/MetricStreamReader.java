@@ -0,0 +1,212 @@
+package io.tiler.internal.ingest;
+
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.streams.ReadStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+// Reads newline-delimited metric objects from a stream as they arrive and writes them in batches.  The stream is
+// paused while batches are written, so only the chunk being read and the batches made from it are held in memory,
+// however large the upload is.
+public class MetricStreamReader {
+  private static final byte NEWLINE = '\n';
+  private final ReadStream<?> stream;
+  private final int batchSize;
+  private final int maxLineSize;
+  private final BatchWriter writer;
+  private final AsyncResultHandler<Long> handler;
+  private final ArrayDeque<Batch> pendingBatches = new ArrayDeque<>();
+  private Buffer partialLine = new Buffer();
+  private Batch batch = new Batch();
+  private long lineNumber;
+  private long writtenMetricCount;
+  private boolean writing;
+  private boolean ended;
+  private boolean finished;
+
+  public MetricStreamReader(ReadStream<?> stream, int batchSize, int maxLineSize, BatchWriter writer, AsyncResultHandler<Long> handler) {
+    this.stream = stream;
+    this.batchSize = batchSize;
+    this.maxLineSize = maxLineSize;
+    this.writer = writer;
+    this.handler = handler;
+  }
+
+  // Calls the handler with the number of metrics written once the stream has ended and every batch has been written
+  public void start() {
+    stream.dataHandler(this::readChunk);
+    stream.endHandler(v -> readEnd());
+    stream.exceptionHandler(this::fail);
+  }
+
+  private void readChunk(Buffer chunk) {
+    if (finished) {
+      return;
+    }
+
+    int lineStart = 0;
+
+    for (int index = 0; index < chunk.length(); index++) {
+      // Multi-byte UTF-8 characters never contain a newline byte, so lines can be split before they are decoded
+      if (chunk.getByte(index) == NEWLINE) {
+        if (partialLine.length() + index - lineStart > maxLineSize) {
+          failLineTooLong(lineNumber + 1);
+          return;
+        }
+
+        String line;
+        int lineSize = partialLine.length() + index - lineStart;
+
+        if (partialLine.length() == 0) {
+          line = chunk.getString(lineStart, index, StandardCharsets.UTF_8.name());
+        } else {
+          partialLine.appendBuffer(chunk.getBuffer(lineStart, index));
+          line = partialLine.toString(StandardCharsets.UTF_8.name());
+          partialLine = new Buffer();
+        }
+
+        if (!readLine(line, lineSize)) {
+          return;
+        }
+
+        lineStart = index + 1;
+      }
+    }
+
+    if (partialLine.length() + chunk.length() - lineStart > maxLineSize) {
+      failLineTooLong(lineNumber + 1);
+      return;
+    }
+
+    if (lineStart < chunk.length()) {
+      partialLine.appendBuffer(chunk.getBuffer(lineStart, chunk.length()));
+    }
+
+    if (!pendingBatches.isEmpty()) {
+      stream.pause();
+      writeNextBatch();
+    }
+  }
+
+  private void readEnd() {
+    if (finished) {
+      return;
+    }
+
+    ended = true;
+
+    if (partialLine.length() > 0 && !readLine(partialLine.toString(StandardCharsets.UTF_8.name()), partialLine.length())) {
+      return;
+    }
+
+    if (batch.metrics.size() > 0) {
+      pendingBatches.add(batch);
+      batch = new Batch();
+    }
+
+    writeNextBatch();
+  }
+
+  private boolean readLine(String line, int lineSize) {
+    lineNumber++;
+    line = line.trim();
+
+    if (line.isEmpty()) {
+      return true;
+    }
+
+    JsonObject metric = null;
+
+    try {
+      // Other JSON values would decode to a null map rather than fail
+      if (line.charAt(0) == '{') {
+        metric = new JsonObject(line);
+      }
+    } catch (DecodeException e) {
+      // Reported below
+    }
+
+    if (metric == null) {
+      fail(new IllegalArgumentException("Line " + lineNumber + " is not a JSON object"));
+      return false;
+    }
+
+    batch.metrics.addObject(metric);
+    batch.bytes += lineSize;
+
+    if (batch.metrics.size() >= batchSize) {
+      pendingBatches.add(batch);
+      batch = new Batch();
+    }
+
+    return true;
+  }
+
+  private void writeNextBatch() {
+    if (writing || finished) {
+      return;
+    }
+
+    Batch nextBatch = pendingBatches.poll();
+
+    if (nextBatch == null) {
+      if (ended) {
+        finished = true;
+        handler.handle(DefaultAsyncResult.succeed(writtenMetricCount));
+      } else {
+        stream.resume();
+      }
+
+      return;
+    }
+
+    writing = true;
+
+    writer.write(nextBatch.metrics, nextBatch.bytes, result -> {
+      writing = false;
+
+      if (result.failed()) {
+        fail(result.cause());
+        return;
+      }
+
+      writtenMetricCount += nextBatch.metrics.size();
+      writeNextBatch();
+    });
+  }
+
+  private void failLineTooLong(long tooLongLineNumber) {
+    fail(new IllegalArgumentException("Line " + tooLongLineNumber + " is longer than " + maxLineSize + " bytes"));
+  }
+
+  private void fail(Throwable cause) {
+    if (finished) {
+      return;
+    }
+
+    finished = true;
+    pendingBatches.clear();
+    partialLine = new Buffer();
+    batch = new Batch();
+    handler.handle(DefaultAsyncResult.fail(new MetricStreamException(writtenMetricCount, cause)));
+
+    // The rest of the stream is read and thrown away, so the client is not left waiting to send it
+    stream.resume();
+  }
+
+  private static class Batch {
+    private final JsonArray metrics = new JsonArray();
+    // Size in bytes of the lines the metrics were read from
+    private long bytes;
+  }
+
+  public interface BatchWriter {
+    void write(JsonArray metrics, long bytes, AsyncResultHandler<Void> handler);
+  }
+}
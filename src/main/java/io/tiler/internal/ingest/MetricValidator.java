@@ -0,0 +1,204 @@
+package io.tiler.internal.ingest;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+// Checks incoming metrics in a single pass over their fields, and while it is there turns every number into a Long
+// or a Double and every time into a Long, so storage, queries and subscribers can rely on the types they get.  Field
+// values are read from the metrics' own maps and replaced in place, so valid metrics are never copied.
+public class MetricValidator {
+  private static final String NAME_FIELD_NAME = "name";
+  private static final String POINTS_FIELD_NAME = "points";
+  private static final String TIME_FIELD_NAME = "time";
+  private static final BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+  private static final BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+  // Returns a message describing the first problem found, or null if the metrics are valid
+  public String validate(JsonArray metrics) {
+    if (metrics == null) {
+      return "'metrics' must be an array";
+    }
+
+    for (int metricIndex = 0; metricIndex < metrics.size(); metricIndex++) {
+      Object metric = metrics.get(metricIndex);
+
+      if (!(metric instanceof JsonObject)) {
+        return "metrics[" + metricIndex + "] must be an object";
+      }
+
+      String error = validateMetric((JsonObject) metric, metricIndex);
+
+      if (error != null) {
+        return error;
+      }
+    }
+
+    return null;
+  }
+
+  private String validateMetric(JsonObject metric, int metricIndex) {
+    Object name = metric.getValue(NAME_FIELD_NAME);
+
+    if (!(name instanceof String) || !isValidName((String) name)) {
+      return "metrics[" + metricIndex + "].name must be a non-empty string without control characters";
+    }
+
+    Object points = metric.getValue(POINTS_FIELD_NAME);
+
+    if (!(points instanceof JsonArray)) {
+      return "metrics[" + metricIndex + "].points must be an array";
+    }
+
+    for (String fieldName : metric.getFieldNames()) {
+      if (fieldName.equals(NAME_FIELD_NAME) || fieldName.equals(POINTS_FIELD_NAME)) {
+        continue;
+      }
+
+      if (!normaliseField(metric, fieldName)) {
+        return "metrics[" + metricIndex + "]." + fieldName + " must be a string, number, boolean or null";
+      }
+    }
+
+    JsonArray pointsArray = (JsonArray) points;
+
+    for (int pointIndex = 0; pointIndex < pointsArray.size(); pointIndex++) {
+      Object point = pointsArray.get(pointIndex);
+
+      if (!(point instanceof JsonObject)) {
+        return "metrics[" + metricIndex + "].points[" + pointIndex + "] must be an object";
+      }
+
+      String error = validatePoint((JsonObject) point, metricIndex, pointIndex);
+
+      if (error != null) {
+        return error;
+      }
+    }
+
+    return null;
+  }
+
+  private String validatePoint(JsonObject point, int metricIndex, int pointIndex) {
+    boolean hasTime = false;
+
+    for (String fieldName : point.getFieldNames()) {
+      if (fieldName.equals(TIME_FIELD_NAME)) {
+        if (!normaliseTime(point)) {
+          return "metrics[" + metricIndex + "].points[" + pointIndex + "].time must be a whole number of microseconds";
+        }
+
+        hasTime = true;
+      } else if (!normaliseField(point, fieldName)) {
+        return "metrics[" + metricIndex + "].points[" + pointIndex + "]." + fieldName + " must be a string, number, boolean or null";
+      }
+    }
+
+    if (!hasTime) {
+      return "metrics[" + metricIndex + "].points[" + pointIndex + "].time is missing";
+    }
+
+    return null;
+  }
+
+  private static boolean isValidName(String name) {
+    if (name.isEmpty()) {
+      return false;
+    }
+
+    for (int index = 0; index < name.length(); index++) {
+      if (name.charAt(index) < ' ') {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Values that are already a Long, a Double, a string, a boolean or null are left as they are
+  private static boolean normaliseField(JsonObject object, String fieldName) {
+    Object value = object.getValue(fieldName);
+
+    if (value == null || value instanceof String || value instanceof Boolean || value instanceof Long || value instanceof Double) {
+      return true;
+    }
+
+    if (!(value instanceof Number)) {
+      return false;
+    }
+
+    Number number = normaliseNumber((Number) value);
+
+    if (number == null) {
+      return false;
+    }
+
+    object.putNumber(fieldName, number);
+    return true;
+  }
+
+  private static boolean normaliseTime(JsonObject point) {
+    Object time = point.getValue(TIME_FIELD_NAME);
+
+    if (time instanceof Long) {
+      return true;
+    }
+
+    if (!(time instanceof Number)) {
+      return false;
+    }
+
+    Number number = normaliseNumber((Number) time);
+
+    if (number instanceof Double) {
+      double doubleTime = number.doubleValue();
+
+      // Times sent as floating point numbers are fine as long as they are whole
+      if (doubleTime != Math.rint(doubleTime) || Math.abs(doubleTime) > Long.MAX_VALUE) {
+        return false;
+      }
+
+      number = (long) doubleTime;
+    }
+
+    if (number == null) {
+      return false;
+    }
+
+    point.putNumber(TIME_FIELD_NAME, number);
+    return true;
+  }
+
+  // Returns null for numbers that are not finite
+  private static Number normaliseNumber(Number number) {
+    if (number instanceof Integer || number instanceof Short || number instanceof Byte) {
+      return number.longValue();
+    }
+
+    if (number instanceof BigInteger) {
+      BigInteger bigInteger = (BigInteger) number;
+
+      if (bigInteger.compareTo(MIN_LONG) >= 0 && bigInteger.compareTo(MAX_LONG) <= 0) {
+        return bigInteger.longValue();
+      }
+    }
+
+    if (number instanceof BigDecimal) {
+      BigDecimal bigDecimal = (BigDecimal) number;
+
+      if (bigDecimal.scale() <= 0 && bigDecimal.abs().compareTo(new BigDecimal(MAX_LONG)) <= 0) {
+        return bigDecimal.longValue();
+      }
+    }
+
+    double doubleValue = number.doubleValue();
+
+    if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+      return null;
+    }
+
+    return doubleValue;
+  }
+}
@@ -0,0 +1,313 @@
+package io.tiler.internal.ingest;
+
+import io.tiler.internal.config.FsyncPolicy;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Incoming metrics, written to numbered segment files in the order they arrived.  Each entry is a length, a checksum,
+// a type and the metrics as a JSON array.  Segments are only deleted once every entry in them has been stored.  Entries
+// that could not be stored at all are moved to a dead letter file, one JSON object per line.  Entries only point at
+// their metrics in the segment, which are read back when they are stored, so the metrics waiting to be stored are not
+// held in memory.
+public class WriteAheadLog {
+  public static final byte SAVE_ENTRY = 1;
+  public static final byte APPEND_ENTRY = 2;
+  public static final byte MERGE_ENTRY = 3;
+  public static final String DEAD_LETTER_FILE_NAME = "dead-letters.json";
+  private static final String SEGMENT_FILE_SUFFIX = ".wal";
+  private static final int LENGTH_AND_CHECKSUM_SIZE = 4 + 4;
+  private final Path directory;
+  private final int segmentSize;
+  private final FsyncPolicy fsyncPolicy;
+  private final ArrayList<Long> segmentNumbers = new ArrayList<>();
+  private FileChannel activeSegment;
+  private FileChannel readSegment;
+  private long readSegmentNumber;
+  private long activeSegmentNumber;
+  private long activeSegmentSize;
+  private boolean unsynced;
+
+  public WriteAheadLog(Path directory, int segmentSize, FsyncPolicy fsyncPolicy) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.fsyncPolicy = fsyncPolicy;
+  }
+
+  // Returns the entries left over from before the last stop, which have to be stored again
+  public List<Entry> open() throws IOException {
+    Files.createDirectories(directory);
+    ArrayList<Path> segmentPaths = new ArrayList<>();
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + SEGMENT_FILE_SUFFIX)) {
+      for (Path path : paths) {
+        segmentPaths.add(path);
+      }
+    }
+
+    segmentPaths.sort(Comparator.comparingLong(WriteAheadLog::getSegmentNumber));
+    ArrayList<Entry> entries = new ArrayList<>();
+
+    for (Path segmentPath : segmentPaths) {
+      long segmentNumber = getSegmentNumber(segmentPath);
+      segmentNumbers.add(segmentNumber);
+      readEntries(segmentNumber, segmentPath, entries);
+      activeSegmentNumber = segmentNumber + 1;
+    }
+
+    // Entries are never added to a segment written before the stop, as it might end with a partly written entry
+    return entries;
+  }
+
+  public Entry append(byte type, JsonArray metrics) throws IOException {
+    byte[] payload = metrics.encode().getBytes(StandardCharsets.UTF_8);
+    int entrySize = LENGTH_AND_CHECKSUM_SIZE + 1 + payload.length;
+
+    if (activeSegment != null && activeSegmentSize > 0 && activeSegmentSize + entrySize > segmentSize) {
+      closeActiveSegment();
+      activeSegmentNumber++;
+    }
+
+    if (activeSegment == null) {
+      openActiveSegment();
+    }
+
+    long payloadOffset = activeSegmentSize + LENGTH_AND_CHECKSUM_SIZE + 1;
+    ByteBuffer buffer = ByteBuffer.allocate(entrySize);
+    buffer.putInt(1 + payload.length);
+    buffer.putInt(getChecksum(type, payload));
+    buffer.put(type);
+    buffer.put(payload);
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      activeSegment.write(buffer);
+    }
+
+    activeSegmentSize += entrySize;
+    unsynced = true;
+
+    if (fsyncPolicy == FsyncPolicy.Always) {
+      sync();
+    }
+
+    return new Entry(activeSegmentNumber, payloadOffset, type, metrics.size(), payload.length);
+  }
+
+  // Reads an entry's metrics back from its segment
+  public JsonArray read(Entry entry) throws IOException {
+    if (readSegment == null || readSegmentNumber != entry.segmentNumber) {
+      closeReadSegment();
+      readSegment = FileChannel.open(getSegmentPath(entry.segmentNumber), StandardOpenOption.READ);
+      readSegmentNumber = entry.segmentNumber;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(entry.size);
+
+    while (buffer.hasRemaining()) {
+      if (readSegment.read(buffer, entry.payloadOffset + buffer.position()) == -1) {
+        throw new EOFException("Segment " + entry.segmentNumber + " ends before the entry at " + entry.payloadOffset);
+      }
+    }
+
+    return new JsonArray(new String(buffer.array(), StandardCharsets.UTF_8));
+  }
+
+  // Keeps a copy of an entry that is being given up on, so it can be looked at and sent again by hand
+  public void deadLetter(Entry entry) throws IOException {
+    JsonObject deadLetter = new JsonObject()
+      .putString("type", getEntryTypeName(entry.type))
+      .putArray("metrics", read(entry));
+    byte[] line = (deadLetter.encode() + "\n").getBytes(StandardCharsets.UTF_8);
+
+    try (FileChannel deadLetterFile = FileChannel.open(directory.resolve(DEAD_LETTER_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      ByteBuffer buffer = ByteBuffer.wrap(line);
+
+      while (buffer.hasRemaining()) {
+        deadLetterFile.write(buffer);
+      }
+
+      if (fsyncPolicy != FsyncPolicy.Never) {
+        // The entry is about to be released from the log, so this is the only copy left
+        deadLetterFile.force(false);
+      }
+    }
+  }
+
+  // Forces entries written since the last sync to disk, unless the operating system has been left to do it
+  public void sync() throws IOException {
+    if (activeSegment != null && unsynced && fsyncPolicy != FsyncPolicy.Never) {
+      activeSegment.force(false);
+    }
+
+    unsynced = false;
+  }
+
+  // Deletes the segments that only hold entries before the oldest entry that still has to be stored, which is null if
+  // every entry has been stored
+  public void release(Entry oldestPendingEntry) throws IOException {
+    long firstRetainedSegmentNumber = oldestPendingEntry == null ? Long.MAX_VALUE : oldestPendingEntry.segmentNumber;
+
+    if (oldestPendingEntry == null && activeSegment != null) {
+      closeActiveSegment();
+      activeSegmentNumber++;
+    }
+
+    while (!segmentNumbers.isEmpty() && segmentNumbers.get(0) < firstRetainedSegmentNumber && !isActive(segmentNumbers.get(0))) {
+      long segmentNumber = segmentNumbers.remove(0);
+
+      if (readSegment != null && readSegmentNumber == segmentNumber) {
+        closeReadSegment();
+      }
+
+      Files.deleteIfExists(getSegmentPath(segmentNumber));
+    }
+  }
+
+  public void close() throws IOException {
+    closeReadSegment();
+
+    if (activeSegment != null) {
+      closeActiveSegment();
+    }
+  }
+
+  private void openActiveSegment() throws IOException {
+    activeSegment = FileChannel.open(getSegmentPath(activeSegmentNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    activeSegmentSize = 0;
+    segmentNumbers.add(activeSegmentNumber);
+
+    if (fsyncPolicy != FsyncPolicy.Never) {
+      // The new file's directory entry has to be on disk too, or the whole file can go missing after a crash
+      syncDirectory();
+    }
+  }
+
+  private void closeActiveSegment() throws IOException {
+    sync();
+    activeSegment.close();
+    activeSegment = null;
+  }
+
+  private void closeReadSegment() throws IOException {
+    if (readSegment != null) {
+      readSegment.close();
+      readSegment = null;
+    }
+  }
+
+  private boolean isActive(long segmentNumber) {
+    return activeSegment != null && segmentNumber == activeSegmentNumber;
+  }
+
+  private void syncDirectory() {
+    try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      directoryChannel.force(true);
+    } catch (IOException e) {
+      // Not every platform can open a directory, and there is nothing more that can be done on those that cannot
+    }
+  }
+
+  // Reads through the segment an entry at a time, so only the entry being checked is held in memory
+  private void readEntries(long segmentNumber, Path segmentPath, List<Entry> entries) throws IOException {
+    long segmentSize = Files.size(segmentPath);
+    long offset = 0;
+
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath)))) {
+      while (segmentSize - offset >= LENGTH_AND_CHECKSUM_SIZE + 1) {
+        int length = input.readInt();
+        int checksum = input.readInt();
+
+        if (length < 1 || length > segmentSize - offset - LENGTH_AND_CHECKSUM_SIZE) {
+          break;
+        }
+
+        byte type = input.readByte();
+        byte[] payload = new byte[length - 1];
+        input.readFully(payload);
+
+        if (checksum != getChecksum(type, payload)) {
+          // The rest of the segment was being written when the process stopped
+          break;
+        }
+
+        // The metrics are only decoded to count them, and are read again when they are stored
+        int metricCount = new JsonArray(new String(payload, StandardCharsets.UTF_8)).size();
+        entries.add(new Entry(segmentNumber, offset + LENGTH_AND_CHECKSUM_SIZE + 1, type, metricCount, payload.length));
+        offset += LENGTH_AND_CHECKSUM_SIZE + length;
+      }
+    }
+  }
+
+  private Path getSegmentPath(long segmentNumber) {
+    return directory.resolve(String.format("%016d", segmentNumber) + SEGMENT_FILE_SUFFIX);
+  }
+
+  private static String getEntryTypeName(byte type) {
+    switch (type) {
+      case APPEND_ENTRY:
+        return "append";
+      case MERGE_ENTRY:
+        return "merge";
+      default:
+        return "save";
+    }
+  }
+
+  private static int getChecksum(byte type, byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  private static long getSegmentNumber(Path path) {
+    String fileName = path.getFileName().toString();
+    return Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+  }
+
+  public static class Entry {
+    private final long segmentNumber;
+    // Position of the encoded metrics in the segment
+    private final long payloadOffset;
+    private final byte type;
+    private final int metricCount;
+    private final int size;
+
+    private Entry(long segmentNumber, long payloadOffset, byte type, int metricCount, int size) {
+      this.segmentNumber = segmentNumber;
+      this.payloadOffset = payloadOffset;
+      this.type = type;
+      this.metricCount = metricCount;
+      this.size = size;
+    }
+
+    public byte type() {
+      return type;
+    }
+
+    public int metricCount() {
+      return metricCount;
+    }
+
+    // Size in bytes of the encoded metrics
+    public int size() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package io.tiler.internal.ingest.formats;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Decodes a binary document straight into the maps and lists that JsonObject and JsonArray wrap, so metrics sent in
+// a binary format are never turned into JSON text or parsed as such.  Integers become Longs and floating point
+// numbers become Doubles, as they would after validation.  Anything that has no JSON equivalent, such as raw bytes,
+// is rejected.
+public abstract class BinaryDecoder {
+  private static final int MAX_DEPTH = 64;
+  private static final int ASCII_FAST_PATH_LENGTH = 32;
+  private static final int STRING_CACHE_SIZE = 256;
+  private final byte[] bytes;
+  private final String[] stringCache = new String[STRING_CACHE_SIZE];
+  private int position;
+
+  // Reading from an array is much cheaper than going through the buffer's bounds checks for every byte
+  protected BinaryDecoder(Buffer buffer) {
+    bytes = buffer.getBytes();
+  }
+
+  public static BinaryDecoder create(BinaryFormat format, Buffer buffer) {
+    if (format == BinaryFormat.Cbor) {
+      return new CborDecoder(buffer);
+    }
+
+    return new MessagePackDecoder(buffer);
+  }
+
+  // Throws an IllegalArgumentException if the buffer does not hold exactly one map
+  public JsonObject decodeObject() {
+    Object value = readValue(0);
+
+    if (!(value instanceof Map)) {
+      throw new IllegalArgumentException(formatName() + " document must be a map");
+    }
+
+    if (position != bytes.length) {
+      throw new IllegalArgumentException(formatName() + " document has " + (bytes.length - position) + " bytes after its end");
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> map = (Map<String, Object>) value;
+    return new JsonObject(map);
+  }
+
+  protected abstract String formatName();
+
+  protected abstract Object readValue(int depth);
+
+  protected void checkDepth(int depth) {
+    if (depth > MAX_DEPTH) {
+      throw invalid("nested more than " + MAX_DEPTH + " levels deep");
+    }
+  }
+
+  protected IllegalArgumentException invalid(String message) {
+    return new IllegalArgumentException(formatName() + " document is invalid at byte " + position + ": " + message);
+  }
+
+  protected int peekUnsignedByte() {
+    require(1);
+    return bytes[position] & 0xff;
+  }
+
+  protected int readUnsignedByte() {
+    require(1);
+    return bytes[position++] & 0xff;
+  }
+
+  protected int readUnsignedShort() {
+    require(2);
+    int value = ((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff);
+    position += 2;
+    return value;
+  }
+
+  protected long readUnsignedInt() {
+    return readInt() & 0xffffffffL;
+  }
+
+  protected long readLong() {
+    return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+  }
+
+  protected float readFloat() {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  protected double readDouble() {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  // Every point repeats the same few field names, and often the same tag values, so short strings are looked up in a
+  // small cache by their bytes rather than a new string being made for each one
+  protected String readString(long length) {
+    int start = position;
+    int stringLength = checkLength(length, 1);
+
+    if (stringLength > ASCII_FAST_PATH_LENGTH) {
+      return decodeString(length);
+    }
+
+    int hash = 0;
+
+    for (int index = start; index < start + stringLength; index++) {
+      hash = 31 * hash + bytes[index];
+    }
+
+    int cacheIndex = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+    String cachedString = stringCache[cacheIndex];
+
+    if (cachedString != null && matches(cachedString, start, stringLength)) {
+      position = start + stringLength;
+      return cachedString;
+    }
+
+    String string = decodeString(length);
+    stringCache[cacheIndex] = string;
+    return string;
+  }
+
+  // Short ASCII strings, such as field names, are by far the most common, so they skip the UTF-8 decoder
+  private String decodeString(long length) {
+    int start = position;
+    int end = start + checkLength(length, 1);
+    position = end;
+
+    if (end - start <= ASCII_FAST_PATH_LENGTH) {
+      char[] chars = new char[end - start];
+
+      for (int index = start; index < end; index++) {
+        byte value = bytes[index];
+
+        if (value < 0) {
+          return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        chars[index - start] = (char) value;
+      }
+
+      return new String(chars);
+    }
+
+    return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  protected byte[] readBytes(long length) {
+    int start = position;
+    position += checkLength(length, 1);
+    return Arrays.copyOfRange(bytes, start, position);
+  }
+
+  // Every element takes at least one byte, so a length that could not fit in the rest of the buffer is turned away
+  // before anything is allocated for it
+  protected int checkLength(long length, int minimumElementSize) {
+    if (length < 0 || length > (bytes.length - position) / minimumElementSize) {
+      throw invalid("a length of " + length + " runs past the end of the document");
+    }
+
+    return (int) length;
+  }
+
+  protected List<Object> newList(int size) {
+    return new ArrayList<>(size);
+  }
+
+  protected Map<String, Object> newMap(int size) {
+    return new LinkedHashMap<>((int) (size / 0.75f) + 1);
+  }
+
+  protected void putField(Map<String, Object> map, Object key, Object value) {
+    if (!(key instanceof String)) {
+      throw invalid("map keys must be strings");
+    }
+
+    map.put((String) key, value);
+  }
+
+  // Only ASCII strings can match, as the cached strings are compared a byte to a char
+  private boolean matches(String string, int start, int length) {
+    if (string.length() != length) {
+      return false;
+    }
+
+    for (int index = 0; index < length; index++) {
+      byte value = bytes[start + index];
+
+      if (value < 0 || string.charAt(index) != value) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private int readInt() {
+    require(4);
+    int value = ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16) | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+    position += 4;
+    return value;
+  }
+
+  private void require(int byteCount) {
+    if (bytes.length - position < byteCount) {
+      throw invalid("the document ends too soon");
+    }
+  }
+}
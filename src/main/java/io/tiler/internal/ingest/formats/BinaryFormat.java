@@ -0,0 +1,56 @@
+package io.tiler.internal.ingest.formats;
+
+import org.vertx.java.core.buffer.Buffer;
+
+public enum BinaryFormat {
+  MessagePack("application/msgpack", "application/x-msgpack"),
+  Cbor("application/cbor");
+
+  private final String[] contentTypes;
+
+  BinaryFormat(String... contentTypes) {
+    this.contentTypes = contentTypes;
+  }
+
+  // Returns null for content types that are not binary, such as JSON
+  public static BinaryFormat fromContentType(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+
+    // Parameters such as the charset do not matter
+    int parametersIndex = contentType.indexOf(';');
+    String mediaType = (parametersIndex < 0 ? contentType : contentType.substring(0, parametersIndex)).trim();
+
+    for (BinaryFormat format : values()) {
+      for (String formatContentType : format.contentTypes) {
+        if (formatContentType.equalsIgnoreCase(mediaType)) {
+          return format;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  // Event bus messages have no content type, but they are always maps, and the first byte of a map tells the two
+  // formats apart.  A MessagePack map starts with 0x80 to 0x8f, 0xde or 0xdf, and a CBOR map with 0xa0 to 0xbf or
+  // with a tag.
+  public static BinaryFormat detect(Buffer buffer) {
+    if (buffer.length() == 0) {
+      throw new IllegalArgumentException("The message is empty");
+    }
+
+    int firstByte = buffer.getByte(0) & 0xff;
+
+    if ((firstByte >= 0x80 && firstByte <= 0x8f) || firstByte == 0xde || firstByte == 0xdf) {
+      return MessagePack;
+    }
+
+    if ((firstByte >= 0xa0 && firstByte <= 0xbf) || (firstByte >= 0xc0 && firstByte <= 0xdb)) {
+      return Cbor;
+    }
+
+    throw new IllegalArgumentException("The message is neither a MessagePack nor a CBOR map");
+  }
+}
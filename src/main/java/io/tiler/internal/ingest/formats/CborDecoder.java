@@ -0,0 +1,206 @@
+package io.tiler.internal.ingest.formats;
+
+import org.vertx.java.core.buffer.Buffer;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+public class CborDecoder extends BinaryDecoder {
+  private static final int UNSIGNED_INTEGER = 0;
+  private static final int NEGATIVE_INTEGER = 1;
+  private static final int BYTE_STRING = 2;
+  private static final int TEXT_STRING = 3;
+  private static final int ARRAY = 4;
+  private static final int MAP = 5;
+  private static final int TAG = 6;
+  private static final int SIMPLE_OR_FLOAT = 7;
+  private static final int INDEFINITE_LENGTH = 31;
+  private static final int BREAK = 0xff;
+  private static final long POSITIVE_BIGNUM_TAG = 2;
+  private static final long NEGATIVE_BIGNUM_TAG = 3;
+
+  public CborDecoder(Buffer buffer) {
+    super(buffer);
+  }
+
+  @Override
+  protected String formatName() {
+    return "CBOR";
+  }
+
+  @Override
+  protected Object readValue(int depth) {
+    checkDepth(depth);
+    int initialByte = readUnsignedByte();
+    int majorType = initialByte >>> 5;
+    int additionalInfo = initialByte & 0x1f;
+
+    switch (majorType) {
+      case UNSIGNED_INTEGER: {
+        long value = readArgument(additionalInfo);
+        return value >= 0 ? value : new BigInteger(Long.toUnsignedString(value));
+      }
+      case NEGATIVE_INTEGER: {
+        long value = readArgument(additionalInfo);
+        return value >= 0 ? -1 - value : BigInteger.ONE.negate().subtract(new BigInteger(Long.toUnsignedString(value)));
+      }
+      case BYTE_STRING:
+        throw invalid("byte strings have no JSON equivalent");
+      case TEXT_STRING:
+        return readText(additionalInfo);
+      case ARRAY:
+        return readList(additionalInfo, depth);
+      case MAP:
+        return readMap(additionalInfo, depth);
+      case TAG:
+        return readTagged(readArgument(additionalInfo), depth);
+      default:
+        return readSimpleOrFloat(additionalInfo);
+    }
+  }
+
+  // The count, length or value that follows the initial byte
+  private long readArgument(int additionalInfo) {
+    if (additionalInfo < 24) {
+      return additionalInfo;
+    }
+
+    switch (additionalInfo) {
+      case 24:
+        return readUnsignedByte();
+      case 25:
+        return readUnsignedShort();
+      case 26:
+        return readUnsignedInt();
+      case 27:
+        return readLong();
+      default:
+        throw invalid("additional information " + additionalInfo + " is not allowed here");
+    }
+  }
+
+  private String readText(int additionalInfo) {
+    if (additionalInfo != INDEFINITE_LENGTH) {
+      return readString(readArgument(additionalInfo));
+    }
+
+    // Indefinite length text is a series of definite length chunks
+    StringBuilder text = new StringBuilder();
+
+    while (peekUnsignedByte() != BREAK) {
+      int chunkInitialByte = readUnsignedByte();
+
+      if (chunkInitialByte >>> 5 != TEXT_STRING || (chunkInitialByte & 0x1f) == INDEFINITE_LENGTH) {
+        throw invalid("chunks of text must be definite length text");
+      }
+
+      text.append(readString(readArgument(chunkInitialByte & 0x1f)));
+    }
+
+    readUnsignedByte();
+    return text.toString();
+  }
+
+  private List<Object> readList(int additionalInfo, int depth) {
+    if (additionalInfo == INDEFINITE_LENGTH) {
+      List<Object> list = newList(16);
+
+      while (peekUnsignedByte() != BREAK) {
+        list.add(readValue(depth + 1));
+      }
+
+      readUnsignedByte();
+      return list;
+    }
+
+    int size = checkLength(readArgument(additionalInfo), 1);
+    List<Object> list = newList(size);
+
+    for (int index = 0; index < size; index++) {
+      list.add(readValue(depth + 1));
+    }
+
+    return list;
+  }
+
+  private Map<String, Object> readMap(int additionalInfo, int depth) {
+    if (additionalInfo == INDEFINITE_LENGTH) {
+      Map<String, Object> map = newMap(16);
+
+      while (peekUnsignedByte() != BREAK) {
+        Object key = readValue(depth + 1);
+        putField(map, key, readValue(depth + 1));
+      }
+
+      readUnsignedByte();
+      return map;
+    }
+
+    int size = checkLength(readArgument(additionalInfo), 2);
+    Map<String, Object> map = newMap(size);
+
+    for (int index = 0; index < size; index++) {
+      Object key = readValue(depth + 1);
+      putField(map, key, readValue(depth + 1));
+    }
+
+    return map;
+  }
+
+  // Bignums become BigIntegers, for validation to turn into Longs or Doubles, and other tags, such as the one for
+  // epoch times, only describe the value they wrap, so the value is used as it is
+  private Object readTagged(long tag, int depth) {
+    if (tag != POSITIVE_BIGNUM_TAG && tag != NEGATIVE_BIGNUM_TAG) {
+      return readValue(depth + 1);
+    }
+
+    int initialByte = readUnsignedByte();
+
+    if (initialByte >>> 5 != BYTE_STRING || (initialByte & 0x1f) == INDEFINITE_LENGTH) {
+      throw invalid("bignums must be definite length byte strings");
+    }
+
+    BigInteger value = new BigInteger(1, readBytes(readArgument(initialByte & 0x1f)));
+    return tag == POSITIVE_BIGNUM_TAG ? value : BigInteger.ONE.negate().subtract(value);
+  }
+
+  private Object readSimpleOrFloat(int additionalInfo) {
+    switch (additionalInfo) {
+      case 20:
+        return false;
+      case 21:
+        return true;
+      case 22:
+      case 23:
+        // Both null and undefined
+        return null;
+      case 25:
+        return readHalfFloat(readUnsignedShort());
+      case 26:
+        return (double) readFloat();
+      case 27:
+        return readDouble();
+      case INDEFINITE_LENGTH:
+        throw invalid("break outside of an indefinite length item");
+      default:
+        throw invalid("simple value " + additionalInfo + " has no JSON equivalent");
+    }
+  }
+
+  private static double readHalfFloat(int bits) {
+    int exponent = (bits >>> 10) & 0x1f;
+    int mantissa = bits & 0x3ff;
+    double value;
+
+    if (exponent == 0) {
+      value = mantissa * Math.pow(2, -24);
+    } else if (exponent == 0x1f) {
+      value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+    } else {
+      value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+    }
+
+    return (bits & 0x8000) == 0 ? value : -value;
+  }
+}
@@ -0,0 +1,117 @@
+package io.tiler.internal.ingest.formats;
+
+import org.vertx.java.core.buffer.Buffer;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+public class MessagePackDecoder extends BinaryDecoder {
+  public MessagePackDecoder(Buffer buffer) {
+    super(buffer);
+  }
+
+  @Override
+  protected String formatName() {
+    return "MessagePack";
+  }
+
+  @Override
+  protected Object readValue(int depth) {
+    checkDepth(depth);
+    int type = readUnsignedByte();
+
+    if (type <= 0x7f) {
+      return (long) type;
+    }
+
+    if (type >= 0xe0) {
+      return (long) (byte) type;
+    }
+
+    if (type <= 0x8f) {
+      return readMap(type & 0x0f, depth);
+    }
+
+    if (type <= 0x9f) {
+      return readList(type & 0x0f, depth);
+    }
+
+    if (type <= 0xbf) {
+      return readString(type & 0x1f);
+    }
+
+    switch (type) {
+      case 0xc0:
+        return null;
+      case 0xc2:
+        return false;
+      case 0xc3:
+        return true;
+      case 0xca:
+        return (double) readFloat();
+      case 0xcb:
+        return readDouble();
+      case 0xcc:
+        return (long) readUnsignedByte();
+      case 0xcd:
+        return (long) readUnsignedShort();
+      case 0xce:
+        return readUnsignedInt();
+      case 0xcf: {
+        long value = readLong();
+
+        // Left as a BigInteger for validation to turn into a Double, like any other integer too big for a Long
+        return value >= 0 ? value : new BigInteger(Long.toUnsignedString(value));
+      }
+      case 0xd0:
+        return (long) (byte) readUnsignedByte();
+      case 0xd1:
+        return (long) (short) readUnsignedShort();
+      case 0xd2:
+        return (long) (int) readUnsignedInt();
+      case 0xd3:
+        return readLong();
+      case 0xd9:
+        return readString(readUnsignedByte());
+      case 0xda:
+        return readString(readUnsignedShort());
+      case 0xdb:
+        return readString(readUnsignedInt());
+      case 0xdc:
+        return readList(readUnsignedShort(), depth);
+      case 0xdd:
+        return readList(readUnsignedInt(), depth);
+      case 0xde:
+        return readMap(readUnsignedShort(), depth);
+      case 0xdf:
+        return readMap(readUnsignedInt(), depth);
+      default:
+        // Raw bytes and extension types
+        throw invalid("type 0x" + Integer.toHexString(type) + " has no JSON equivalent");
+    }
+  }
+
+  private List<Object> readList(long length, int depth) {
+    int size = checkLength(length, 1);
+    List<Object> list = newList(size);
+
+    for (int index = 0; index < size; index++) {
+      list.add(readValue(depth + 1));
+    }
+
+    return list;
+  }
+
+  private Map<String, Object> readMap(long length, int depth) {
+    int size = checkLength(length, 2);
+    Map<String, Object> map = newMap(size);
+
+    for (int index = 0; index < size; index++) {
+      Object key = readValue(depth + 1);
+      putField(map, key, readValue(depth + 1));
+    }
+
+    return map;
+  }
+}
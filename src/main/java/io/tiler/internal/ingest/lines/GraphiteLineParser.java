@@ -0,0 +1,64 @@
+package io.tiler.internal.ingest.lines;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+// Graphite plaintext, where tags follow the path separated by semicolons and become fields of the point
+public class GraphiteLineParser extends LineParser {
+  private static final byte SEMICOLON = ';';
+
+  @Override
+  public boolean parseLine(Buffer buffer, int start, int end, long nowMicroseconds, PointConsumer consumer) {
+    int pathEnd = scanUntil(buffer, start, end, SPACE, SEMICOLON);
+
+    if (pathEnd == start || pathEnd == end) {
+      return false;
+    }
+
+    JsonObject point = new JsonObject();
+    int index = pathEnd;
+
+    while (buffer.getByte(index) == SEMICOLON) {
+      int tagStart = index + 1;
+      int tagEnd = scanUntil(buffer, tagStart, end, SPACE, SEMICOLON);
+      int equalsIndex = scanUntil(buffer, tagStart, tagEnd, EQUALS, EQUALS);
+
+      if (equalsIndex == tagStart || equalsIndex >= tagEnd - 1 || tagEnd == end) {
+        return false;
+      }
+
+      point.putString(getString(buffer, tagStart, equalsIndex), getString(buffer, equalsIndex + 1, tagEnd));
+      index = tagEnd;
+    }
+
+    int valueStart = skipSpaces(buffer, index, end);
+    int valueEnd = scanUntil(buffer, valueStart, end, SPACE, SPACE);
+    Number value = parseNumber(buffer, valueStart, valueEnd);
+
+    if (value == null) {
+      return false;
+    }
+
+    int timeStart = skipSpaces(buffer, valueEnd, end);
+    long time = nowMicroseconds;
+
+    if (timeStart < end) {
+      int timeEnd = scanUntil(buffer, timeStart, end, SPACE, SPACE);
+      Number seconds = parseNumber(buffer, timeStart, timeEnd);
+
+      if (seconds == null || skipSpaces(buffer, timeEnd, end) != end) {
+        return false;
+      }
+
+      // Clients send -1 to mean now
+      if (seconds.doubleValue() >= 0) {
+        time = seconds instanceof Long ? seconds.longValue() * 1000000L : (long) (seconds.doubleValue() * 1000000.0);
+      }
+    }
+
+    point.putNumber("time", time);
+    point.putNumber("value", value);
+    consumer.accept(getString(buffer, start, pathEnd), point);
+    return true;
+  }
+}
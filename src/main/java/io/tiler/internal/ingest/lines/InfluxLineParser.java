@@ -0,0 +1,147 @@
+package io.tiler.internal.ingest.lines;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+
+// Influx line protocol.  Each field becomes a point of the metric named after the measurement and the field, or just
+// the measurement for a field named 'value', and tags become fields of the points.
+public class InfluxLineParser extends LineParser {
+  private static final byte QUOTE = '"';
+  private static final String VALUE_FIELD_NAME = "value";
+
+  @Override
+  public boolean parseLine(Buffer buffer, int start, int end, long nowMicroseconds, PointConsumer consumer) {
+    int measurementEnd = scanUntil(buffer, start, end, COMMA, SPACE);
+
+    if (measurementEnd == start || measurementEnd == end) {
+      return false;
+    }
+
+    String measurement = getString(buffer, start, measurementEnd);
+    JsonObject tags = new JsonObject();
+    int index = measurementEnd;
+
+    while (buffer.getByte(index) == COMMA) {
+      int tagStart = index + 1;
+      int tagEnd = scanUntil(buffer, tagStart, end, COMMA, SPACE);
+      int equalsIndex = scanUntil(buffer, tagStart, tagEnd, EQUALS, EQUALS);
+
+      if (equalsIndex == tagStart || equalsIndex >= tagEnd - 1 || tagEnd == end) {
+        return false;
+      }
+
+      tags.putString(getString(buffer, tagStart, equalsIndex), getString(buffer, equalsIndex + 1, tagEnd));
+      index = tagEnd;
+    }
+
+    index = skipSpaces(buffer, index, end);
+    ArrayList<String> fieldNames = new ArrayList<>();
+    ArrayList<Object> fieldValues = new ArrayList<>();
+
+    while (true) {
+      int equalsIndex = scanUntil(buffer, index, end, EQUALS, SPACE);
+
+      if (equalsIndex == index || equalsIndex >= end - 1 || buffer.getByte(equalsIndex) != EQUALS) {
+        return false;
+      }
+
+      int valueStart = equalsIndex + 1;
+      int valueEnd = buffer.getByte(valueStart) == QUOTE ? scanString(buffer, valueStart, end) : scanUntil(buffer, valueStart, end, COMMA, SPACE);
+      Object value = valueEnd < 0 ? null : parseFieldValue(buffer, valueStart, valueEnd);
+
+      if (value == null || (valueEnd < end && buffer.getByte(valueEnd) != COMMA && buffer.getByte(valueEnd) != SPACE)) {
+        return false;
+      }
+
+      fieldNames.add(getString(buffer, index, equalsIndex));
+      fieldValues.add(value);
+      index = valueEnd;
+
+      if (index == end || buffer.getByte(index) != COMMA) {
+        break;
+      }
+
+      index++;
+    }
+
+    int timeStart = skipSpaces(buffer, index, end);
+    long time = nowMicroseconds;
+
+    if (timeStart < end) {
+      Long nanoseconds = parseLong(buffer, timeStart, end);
+
+      if (nanoseconds == null) {
+        return false;
+      }
+
+      time = nanoseconds / 1000L;
+    }
+
+    for (int fieldIndex = 0; fieldIndex < fieldNames.size(); fieldIndex++) {
+      String fieldName = fieldNames.get(fieldIndex);
+      JsonObject point = tags.copy()
+        .putNumber("time", time)
+        .putValue("value", fieldValues.get(fieldIndex));
+      consumer.accept(fieldName.equals(VALUE_FIELD_NAME) ? measurement : measurement + "." + fieldName, point);
+    }
+
+    return true;
+  }
+
+  // Index just after the closing quote of the string starting at index, or -1 if it is not closed
+  private static int scanString(Buffer buffer, int index, int end) {
+    index++;
+
+    while (index < end) {
+      byte value = buffer.getByte(index);
+
+      if (value == BACKSLASH) {
+        index += 2;
+        continue;
+      }
+
+      if (value == QUOTE) {
+        return index + 1;
+      }
+
+      index++;
+    }
+
+    return -1;
+  }
+
+  private static Object parseFieldValue(Buffer buffer, int start, int end) {
+    if (start >= end) {
+      return null;
+    }
+
+    byte first = buffer.getByte(start);
+    byte last = buffer.getByte(end - 1);
+
+    if (first == QUOTE) {
+      return end - start >= 2 && last == QUOTE ? getString(buffer, start + 1, end - 1) : null;
+    }
+
+    if (last == 'i' || last == 'u') {
+      return parseLong(buffer, start, end - 1);
+    }
+
+    if (first == 't' || first == 'T' || first == 'f' || first == 'F') {
+      String value = buffer.getString(start, end, "US-ASCII").toLowerCase();
+
+      if (value.equals("t") || value.equals("true")) {
+        return true;
+      }
+
+      if (value.equals("f") || value.equals("false")) {
+        return false;
+      }
+
+      return null;
+    }
+
+    return parseNumber(buffer, start, end);
+  }
+}
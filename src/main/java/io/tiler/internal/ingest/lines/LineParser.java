@@ -0,0 +1,141 @@
+package io.tiler.internal.ingest.lines;
+
+import io.tiler.internal.config.LineProtocol;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+
+// Parses one line of a line protocol straight from the received buffer.  Only names, tags and string values are
+// turned into strings, and numbers are read from the bytes where they are simple enough.
+public abstract class LineParser {
+  protected static final byte SPACE = ' ';
+  protected static final byte COMMA = ',';
+  protected static final byte EQUALS = '=';
+  protected static final byte BACKSLASH = '\\';
+
+  public static LineParser create(LineProtocol protocol) {
+    if (protocol == LineProtocol.Influx) {
+      return new InfluxLineParser();
+    }
+
+    return new GraphiteLineParser();
+  }
+
+  // Passes each point on the line to the consumer and returns false if the line could not be parsed, in which case
+  // none of its points are passed on.  Lines without a timestamp are given the current time.
+  public abstract boolean parseLine(Buffer buffer, int start, int end, long nowMicroseconds, PointConsumer consumer);
+
+  // Index of the first unescaped byte that is one of the stop bytes, or end if there is none
+  protected static int scanUntil(Buffer buffer, int index, int end, byte stop1, byte stop2) {
+    while (index < end) {
+      byte value = buffer.getByte(index);
+
+      if (value == BACKSLASH && index + 1 < end) {
+        index += 2;
+        continue;
+      }
+
+      if (value == stop1 || value == stop2) {
+        return index;
+      }
+
+      index++;
+    }
+
+    return end;
+  }
+
+  protected static int skipSpaces(Buffer buffer, int index, int end) {
+    while (index < end && buffer.getByte(index) == SPACE) {
+      index++;
+    }
+
+    return index;
+  }
+
+  protected static String getString(Buffer buffer, int start, int end) {
+    boolean escaped = false;
+
+    for (int index = start; index < end; index++) {
+      if (buffer.getByte(index) == BACKSLASH) {
+        escaped = true;
+        break;
+      }
+    }
+
+    if (!escaped) {
+      return buffer.getString(start, end, StandardCharsets.UTF_8.name());
+    }
+
+    Buffer unescaped = new Buffer(end - start);
+
+    for (int index = start; index < end; index++) {
+      byte value = buffer.getByte(index);
+
+      if (value == BACKSLASH && index + 1 < end) {
+        index++;
+        value = buffer.getByte(index);
+      }
+
+      unescaped.appendByte(value);
+    }
+
+    return unescaped.toString(StandardCharsets.UTF_8.name());
+  }
+
+  // Returns null if the bytes are not an integer
+  protected static Long parseLong(Buffer buffer, int start, int end) {
+    if (start >= end) {
+      return null;
+    }
+
+    boolean negative = buffer.getByte(start) == '-';
+    int index = negative ? start + 1 : start;
+
+    if (index >= end) {
+      return null;
+    }
+
+    long value = 0;
+
+    for (; index < end; index++) {
+      byte digit = buffer.getByte(index);
+
+      if (digit < '0' || digit > '9' || value > (Long.MAX_VALUE - (digit - '0')) / 10) {
+        return null;
+      }
+
+      value = value * 10 + (digit - '0');
+    }
+
+    return negative ? -value : value;
+  }
+
+  // Returns null if the bytes are not a finite number
+  protected static Number parseNumber(Buffer buffer, int start, int end) {
+    Long longValue = parseLong(buffer, start, end);
+
+    if (longValue != null) {
+      return longValue;
+    }
+
+    double doubleValue;
+
+    try {
+      doubleValue = Double.parseDouble(buffer.getString(start, end, StandardCharsets.US_ASCII.name()));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+      return null;
+    }
+
+    return doubleValue;
+  }
+
+  public interface PointConsumer {
+    void accept(String metricName, JsonObject point);
+  }
+}
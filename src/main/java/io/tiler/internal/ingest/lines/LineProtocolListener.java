@@ -0,0 +1,251 @@
+package io.tiler.internal.ingest.lines;
+
+import io.tiler.internal.config.ListenerConfig;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.datagram.DatagramSocket;
+import org.vertx.java.core.datagram.InternetProtocolFamily;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.net.NetServer;
+import org.vertx.java.core.net.NetSocket;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+// Receives points in a line protocol over TCP or UDP and stores them in batches.  Points for the same metric are
+// gathered into one metric until the batch is full or the flush interval passes.  Connections are paused while a
+// full batch waits for the previous one to be stored, but datagrams cannot be held back so they keep being gathered,
+// until too many points are waiting and the points in further datagrams are dropped.
+public class LineProtocolListener {
+  private static final byte NEWLINE = '\n';
+  private static final byte CARRIAGE_RETURN = '\r';
+  private static final byte COMMENT = '#';
+  private final Vertx vertx;
+  private final ListenerConfig config;
+  private final int maxBatchSize;
+  private final int maxLineSize;
+  private final PointWriter writer;
+  private final Logger logger;
+  private final LineParser parser;
+  private final ArrayList<NetSocket> pausedSockets = new ArrayList<>();
+  private LinkedHashMap<String, JsonObject> pendingMetrics = new LinkedHashMap<>();
+  private int pendingPointCount;
+  private boolean writing;
+  private NetServer netServer;
+  private DatagramSocket datagramSocket;
+  private long lineCount;
+  private long pointCount;
+  private long invalidLineCount;
+  private long droppedPointCount;
+  private long flushCount;
+  private long flushFailureCount;
+
+  public LineProtocolListener(Vertx vertx, ListenerConfig config, int maxBatchSize, int maxLineSize, PointWriter writer, Logger logger) {
+    this.vertx = vertx;
+    this.config = config;
+    this.maxBatchSize = maxBatchSize;
+    this.maxLineSize = maxLineSize;
+    this.writer = writer;
+    this.logger = logger;
+    parser = LineParser.create(config.protocol());
+  }
+
+  public void start(AsyncResultHandler<Void> handler) {
+    vertx.setPeriodic(Math.max(1, config.flushInterval() / 1000L), timerId -> flush());
+
+    if (config.udp()) {
+      datagramSocket = vertx.createDatagramSocket(InternetProtocolFamily.IPv4);
+      datagramSocket.dataHandler(packet -> receive(null, packet.data(), true));
+      datagramSocket.listen(config.host(), config.port(), result -> handleListen(result.failed() ? result.cause() : null, handler));
+      return;
+    }
+
+    netServer = vertx.createNetServer();
+    netServer.connectHandler(this::handleConnection);
+    netServer.listen(config.port(), config.host(), result -> handleListen(result.failed() ? result.cause() : null, handler));
+  }
+
+  public void stop() {
+    if (netServer != null) {
+      netServer.close();
+    }
+
+    if (datagramSocket != null) {
+      datagramSocket.close();
+    }
+  }
+
+  // Parses every complete line in the data, following on from the partial line left over by the previous data, and
+  // returns the partial line at the end of this data.  The last data from a sender has no partial line.
+  public Buffer receive(Buffer partialLine, Buffer data, boolean lastData) {
+    long nowMicroseconds = System.currentTimeMillis() * 1000L;
+    int lineStart = 0;
+
+    for (int index = 0; index < data.length(); index++) {
+      if (data.getByte(index) == NEWLINE) {
+        if (partialLine == null || partialLine.length() == 0) {
+          receiveLine(data, lineStart, index, nowMicroseconds);
+        } else {
+          partialLine.appendBuffer(data.getBuffer(lineStart, index));
+          receiveLine(partialLine, 0, partialLine.length(), nowMicroseconds);
+          partialLine = null;
+        }
+
+        lineStart = index + 1;
+      }
+    }
+
+    if (lineStart < data.length()) {
+      if (partialLine == null) {
+        partialLine = new Buffer();
+      }
+
+      partialLine.appendBuffer(data.getBuffer(lineStart, data.length()));
+    }
+
+    if (partialLine != null && (lastData || partialLine.length() > maxLineSize)) {
+      if (partialLine.length() > maxLineSize) {
+        invalidLineCount++;
+      } else {
+        receiveLine(partialLine, 0, partialLine.length(), nowMicroseconds);
+      }
+
+      partialLine = null;
+    }
+
+    if (pendingPointCount >= maxBatchSize) {
+      flush();
+    }
+
+    return partialLine;
+  }
+
+  // Stores the points gathered so far, unless the previous batch is still being stored
+  public void flush() {
+    if (writing || pendingMetrics.isEmpty()) {
+      return;
+    }
+
+    JsonArray metrics = new JsonArray();
+
+    for (JsonObject metric : pendingMetrics.values()) {
+      metrics.addObject(metric);
+    }
+
+    pendingMetrics = new LinkedHashMap<>();
+    pendingPointCount = 0;
+    writing = true;
+
+    writer.write(metrics, result -> {
+      writing = false;
+
+      if (result.failed()) {
+        // Points from agents are sent once, so there is nobody to pass the failure back to
+        flushFailureCount++;
+        logger.error("Failed to store " + metrics.size() + " metrics received from the " + config.protocol().name().toLowerCase() + " listener", result.cause());
+      } else {
+        flushCount++;
+      }
+
+      for (NetSocket socket : pausedSockets) {
+        socket.resume();
+      }
+
+      pausedSockets.clear();
+
+      if (pendingPointCount >= maxBatchSize) {
+        flush();
+      }
+    });
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .putString("protocol", config.protocol().name().toLowerCase())
+      .putNumber("port", config.port())
+      .putNumber("lines", lineCount)
+      .putNumber("points", pointCount)
+      .putNumber("invalidLines", invalidLineCount)
+      .putNumber("droppedPoints", droppedPointCount)
+      .putNumber("pendingPoints", pendingPointCount)
+      .putNumber("flushes", flushCount)
+      .putNumber("flushFailures", flushFailureCount);
+  }
+
+  private void handleListen(Throwable cause, AsyncResultHandler<Void> handler) {
+    String address = config.host() + ":" + config.port();
+
+    if (cause != null) {
+      handler.handle(DefaultAsyncResult.fail(new RuntimeException("Failed to listen for " + config.protocol().name().toLowerCase() + " lines on " + address, cause)));
+      return;
+    }
+
+    logger.info("Listening for " + config.protocol().name().toLowerCase() + " lines on " + address + (config.udp() ? " (UDP)" : ""));
+    handler.handle(DefaultAsyncResult.succeed());
+  }
+
+  private void handleConnection(NetSocket socket) {
+    Buffer[] partialLine = new Buffer[1];
+
+    socket.dataHandler(data -> {
+      partialLine[0] = receive(partialLine[0], data, false);
+
+      if (writing && pendingPointCount >= maxBatchSize) {
+        socket.pause();
+        pausedSockets.add(socket);
+      }
+    });
+
+    socket.endHandler(v -> {
+      if (partialLine[0] != null) {
+        receive(partialLine[0], new Buffer(), true);
+      }
+    });
+
+    socket.closeHandler(v -> pausedSockets.remove(socket));
+  }
+
+  private void receiveLine(Buffer buffer, int start, int end, long nowMicroseconds) {
+    if (end > start && buffer.getByte(end - 1) == CARRIAGE_RETURN) {
+      end--;
+    }
+
+    if (end == start || buffer.getByte(start) == COMMENT) {
+      return;
+    }
+
+    lineCount++;
+
+    if (end - start > maxLineSize || !parser.parseLine(buffer, start, end, nowMicroseconds, this::addPoint)) {
+      invalidLineCount++;
+    }
+  }
+
+  private void addPoint(String metricName, JsonObject point) {
+    if (config.udp() && pendingPointCount >= config.maxPendingPoints()) {
+      droppedPointCount++;
+      return;
+    }
+
+    JsonObject metric = pendingMetrics.get(metricName);
+
+    if (metric == null) {
+      metric = new JsonObject()
+        .putString("name", metricName)
+        .putArray("points", new JsonArray());
+      pendingMetrics.put(metricName, metric);
+    }
+
+    metric.getArray("points").addObject(point);
+    pendingPointCount++;
+    pointCount++;
+  }
+
+  public interface PointWriter {
+    void write(JsonArray metrics, AsyncResultHandler<Void> handler);
+  }
+}
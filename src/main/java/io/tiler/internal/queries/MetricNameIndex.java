@@ -0,0 +1,171 @@
+package io.tiler.internal.queries;
+
+import io.tiler.internal.queries.clauses.MetricExpression;
+import io.tiler.internal.queries.clauses.RegexMetricExpression;
+import io.tiler.internal.queries.clauses.SimpleMetricExpression;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Finds the metric names that from clauses match without running every pattern against every name.  Simple metric
+// expressions are looked up directly, and patterns anchored with a literal prefix, such as /^jenkins\.build\./, only
+// run against the names that start with that prefix.
+public class MetricNameIndex {
+  private static final int PREFIX_BREAKING_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.COMMENTS | Pattern.LITERAL;
+  private static final String METACHARACTERS = ".[]{}()*+?|^$";
+  private static final String OPTIONAL_QUANTIFIERS = "*?{";
+  private final HashSet<String> names = new HashSet<>();
+  private final TreeSet<String> sortedNames = new TreeSet<>();
+
+  public MetricNameIndex(Collection<String> names) {
+    addAll(names);
+  }
+
+  public MetricNameIndex() {
+    this(Collections.emptyList());
+  }
+
+  public void add(String name) {
+    if (names.add(name)) {
+      sortedNames.add(name);
+    }
+  }
+
+  public void addAll(Collection<String> names) {
+    for (String name : names) {
+      add(name);
+    }
+  }
+
+  public void removeAll(Collection<String> names) {
+    for (String name : names) {
+      if (this.names.remove(name)) {
+        sortedNames.remove(name);
+      }
+    }
+  }
+
+  public boolean contains(String name) {
+    return names.contains(name);
+  }
+
+  public int size() {
+    return names.size();
+  }
+
+  public List<String> findMatches(Collection<Query> queries) {
+    LinkedHashSet<String> matches = new LinkedHashSet<>();
+
+    for (Query query : queries) {
+      for (MetricExpression metricExpression : query.fromClause().metricExpressions()) {
+        addMatches(metricExpression, matches);
+      }
+    }
+
+    return new ArrayList<>(matches);
+  }
+
+  private void addMatches(MetricExpression metricExpression, Set<String> matches) {
+    if (metricExpression instanceof SimpleMetricExpression) {
+      String metricName = ((SimpleMetricExpression) metricExpression).metricName();
+
+      if (names.contains(metricName)) {
+        matches.add(metricName);
+      }
+
+      return;
+    }
+
+    Pattern pattern = ((RegexMetricExpression) metricExpression).pattern();
+    String prefix = getLiteralPrefix(pattern);
+
+    for (String name : sortedNames.tailSet(prefix)) {
+      if (!name.startsWith(prefix)) {
+        break;
+      }
+
+      if (!matches.contains(name) && pattern.matcher(name).find()) {
+        matches.add(name);
+      }
+    }
+  }
+
+  // Returns the literal text that every name matching the pattern starts with, which is empty if the pattern is not
+  // anchored to the start of the name
+  public static String getLiteralPrefix(Pattern pattern) {
+    String regex = pattern.pattern();
+
+    if ((pattern.flags() & PREFIX_BREAKING_FLAGS) != 0 || !regex.startsWith("^") || regex.contains("\\Q") || hasTopLevelAlternation(regex)) {
+      return "";
+    }
+
+    StringBuilder prefix = new StringBuilder();
+    int index = 1;
+
+    while (index < regex.length()) {
+      char c = regex.charAt(index);
+      String literal;
+
+      if (c == '\\') {
+        if (index + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(index + 1))) {
+          // Character classes like \d, back references and other escapes that are not a single literal character
+          break;
+        }
+
+        literal = regex.substring(index + 1, index + 2);
+      } else if (METACHARACTERS.indexOf(c) >= 0) {
+        break;
+      } else {
+        literal = regex.substring(index, index + Character.charCount(regex.codePointAt(index)));
+      }
+
+      int nextIndex = index + (c == '\\' ? 2 : literal.length());
+
+      if (nextIndex < regex.length() && OPTIONAL_QUANTIFIERS.indexOf(regex.charAt(nextIndex)) >= 0) {
+        // The character might not appear at all
+        break;
+      }
+
+      prefix.append(literal);
+      index = nextIndex;
+    }
+
+    return prefix.toString();
+  }
+
+  private static boolean hasTopLevelAlternation(String regex) {
+    int groupDepth = 0;
+    int characterClassDepth = 0;
+
+    for (int index = 0; index < regex.length(); index++) {
+      char c = regex.charAt(index);
+
+      if (c == '\\') {
+        index++;
+      } else if (c == '[') {
+        characterClassDepth++;
+
+        // A closing bracket straight after the opening one is part of the class
+        if (index + 1 < regex.length() && regex.charAt(index + 1) == '^') {
+          index++;
+        }
+
+        if (index + 1 < regex.length() && regex.charAt(index + 1) == ']') {
+          index++;
+        }
+      } else if (characterClassDepth > 0) {
+        if (c == ']') {
+          characterClassDepth--;
+        }
+      } else if (c == '(') {
+        groupDepth++;
+      } else if (c == ')') {
+        groupDepth--;
+      } else if (c == '|' && groupDepth == 0) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,94 @@
+package io.tiler.internal.queries;
+
+import io.tiler.internal.queries.clauses.BaseSortClause;
+import io.tiler.internal.queries.clauses.SortExpression;
+import io.tiler.internal.queries.clauses.metrics.MetricClauses;
+import io.tiler.internal.queries.expressions.BinaryOperation;
+import io.tiler.internal.queries.expressions.Expression;
+import io.tiler.internal.queries.expressions.UnaryOperation;
+import io.tiler.internal.queries.expressions.constants.ConstantExpression;
+import io.tiler.internal.queries.expressions.fields.FieldExpression;
+import io.tiler.internal.queries.expressions.functions.ConcatFunction;
+import io.tiler.internal.queries.expressions.functions.NowFunction;
+import io.tiler.internal.queries.expressions.functions.ReplaceFunction;
+import io.tiler.internal.queries.expressions.functions.SubstringFunction;
+
+// Works out whether a query's result depends on the metrics' points.  Only 'metric only' queries, with no clauses that
+// work on the points before the metrics are selected, can do without them.  Expressions that are not understood here
+// are assumed to use the points.
+public class PointReferenceDetector {
+  private static final String POINTS_FIELD_NAME = "points";
+
+  public boolean referencesPoints(Query query) {
+    if (query.hasWhereClause() || query.hasGroupClause() || query.hasAggregateClause()) {
+      return true;
+    }
+
+    MetricClauses metricClauses = query.metricClauses();
+
+    // Any other metric select clause returns the points alongside the selected fields
+    if (!metricClauses.hasSelectClause() || !metricClauses.selectClause().withoutPoints()) {
+      return true;
+    }
+
+    for (Expression expression : metricClauses.selectClause().namedExpressions().values()) {
+      if (referencesPoints(expression)) {
+        return true;
+      }
+    }
+
+    return metricClauses.hasSortClause() && referencesPoints(metricClauses.sortClause());
+  }
+
+  private boolean referencesPoints(BaseSortClause sortClause) {
+    for (SortExpression sortExpression : sortClause.sortExpressions()) {
+      if (referencesPoints(sortExpression.expression())) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private boolean referencesPoints(Expression expression) {
+    if (expression instanceof FieldExpression) {
+      String fieldName = ((FieldExpression) expression).fieldName();
+      return fieldName.equals(POINTS_FIELD_NAME) || fieldName.startsWith(POINTS_FIELD_NAME + ".");
+    }
+
+    if (expression instanceof ConstantExpression || expression instanceof NowFunction) {
+      return false;
+    }
+
+    if (expression instanceof BinaryOperation) {
+      BinaryOperation operation = (BinaryOperation) expression;
+      return referencesPoints(operation.operand1()) || referencesPoints(operation.operand2());
+    }
+
+    if (expression instanceof UnaryOperation) {
+      return referencesPoints(((UnaryOperation) expression).operand());
+    }
+
+    if (expression instanceof ConcatFunction) {
+      for (Expression parameter : ((ConcatFunction) expression).parameters()) {
+        if (referencesPoints(parameter)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    if (expression instanceof ReplaceFunction) {
+      ReplaceFunction function = (ReplaceFunction) expression;
+      return referencesPoints(function.value()) || referencesPoints(function.regex()) || referencesPoints(function.replacement());
+    }
+
+    if (expression instanceof SubstringFunction) {
+      SubstringFunction function = (SubstringFunction) expression;
+      return referencesPoints(function.value()) || referencesPoints(function.beginIndex()) || referencesPoints(function.endIndex());
+    }
+
+    return true;
+  }
+}
@@ -1,22 +1,34 @@
 package io.tiler.internal.queries;
 
+import io.tiler.core.json.JsonArrayIterable;
 import io.tiler.internal.queries.clauses.AggregateClause;
 import io.tiler.internal.queries.clauses.FromClause;
 import io.tiler.internal.queries.clauses.GroupClause;
 import io.tiler.internal.queries.clauses.WhereClause;
 import io.tiler.internal.queries.clauses.metrics.MetricClauses;
 import io.tiler.internal.queries.clauses.points.PointClauses;
+import io.tiler.internal.queries.clauses.points.SelectClause;
+import io.tiler.internal.storage.MetricPoints;
 import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
 
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 
 public class Query {
+  private static final TimeRangeExtractor timeRangeExtractor = new TimeRangeExtractor();
+  private static final PointReferenceDetector pointReferenceDetector = new PointReferenceDetector();
+  private static final RollupSelector rollupSelector = new RollupSelector();
   private final FromClause fromClause;
   private final WhereClause whereClause;
   private final GroupClause groupClause;
   private final AggregateClause aggregateClause;
   private final PointClauses pointClauses;
   private final MetricClauses metricClauses;
+  private final boolean referencesPoints;
+  private final SelectClause rollupSelectClause;
 
   public Query(FromClause fromClause, WhereClause whereClause, GroupClause groupClause, AggregateClause aggregateClause, PointClauses pointClauses, MetricClauses metricClauses) {
     this.fromClause = fromClause;
@@ -25,6 +37,8 @@ public class Query {
     this.aggregateClause = aggregateClause;
     this.pointClauses = pointClauses;
     this.metricClauses = metricClauses;
+    referencesPoints = pointReferenceDetector.referencesPoints(this);
+    rollupSelectClause = rollupSelector.createRollupSelectClause(this);
   }
 
   public FromClause fromClause() {
@@ -65,32 +79,162 @@ public class Query {
     return aggregateClause != null;
   }
 
+  // Queries that do not reference points return their metrics without any, so the points need not be read
+  public boolean referencesPoints() {
+    return referencesPoints;
+  }
+
+  public TimeRange timeRange(Clock clock) {
+    if (!hasWhereClause()) {
+      return TimeRange.unbounded();
+    }
+
+    return timeRangeExtractor.extract(clock, whereClause.expression());
+  }
+
+  // Every point is streamed through the where, group, aggregate and point select clauses in a single pass, and only
+  // the final points of each metric are collected.  None of the clauses change the fields they read, so the results
+  // share field values and points with the given metrics rather than copying them, and the given metrics are left as
+  // they were.
   public JsonArray applyToMetrics(Clock clock, JsonArray metrics) throws EvaluationException {
-    JsonArray transformedMetrics = copyMetrics(metrics);
+    JsonArray transformedMetrics = hasGroupClause() ? applyToGroups(clock, metrics) : applyToEachMetric(clock, metrics);
+    return metricClauses.applyToMetrics(clock, transformedMetrics);
+  }
+
+  private JsonArray applyToEachMetric(Clock clock, JsonArray metrics) throws EvaluationException {
+    JsonArray transformedMetrics = new JsonArray();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      if (!metricMatches(metric)) {
+        continue;
+      }
+
+      PointCollector pointCollector = new PointCollector(clock, getPointSelectClause(metric));
+
+      // Queries that do not reference points return their metrics without any, however many points the metrics have
+      if (referencesPoints) {
+        for (JsonObject point : getPoints(metric)) {
+          if (pointMatches(clock, point)) {
+            pointCollector.addPoint(point);
+          }
+        }
+      }
 
-    if (hasFromClause()) {
-      transformedMetrics = fromClause.applyToMetrics(transformedMetrics);
+      transformedMetrics.addObject(MetricPoints.createMetricHeader(metric).putArray("points", pointCollector.getPoints()));
     }
 
-    if (hasWhereClause()) {
-      whereClause.applyToMetrics(clock, transformedMetrics);
+    return transformedMetrics;
+  }
+
+  private JsonArray applyToGroups(Clock clock, JsonArray metrics) throws EvaluationException {
+    HashMap<ArrayList<Object>, Group> groups = new HashMap<>();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      if (!metricMatches(metric)) {
+        continue;
+      }
+
+      for (JsonObject point : getPoints(metric)) {
+        if (!pointMatches(clock, point)) {
+          continue;
+        }
+
+        ArrayList<Object> groupKey = groupClause.getGroupKey(point);
+        Group group = groups.get(groupKey);
+
+        if (group == null) {
+          group = new Group(groupClause.createGroupMetric(point), new PointCollector(clock, pointClauses.selectClause()));
+          groups.put(groupKey, group);
+        }
+
+        group.pointCollector.addPoint(point);
+      }
     }
 
-    if (hasGroupClause()) {
-      transformedMetrics = groupClause.applyToMetrics(transformedMetrics);
+    JsonArray transformedMetrics = new JsonArray();
+
+    for (Group group : groups.values()) {
+      transformedMetrics.addObject(group.metric.putArray("points", group.pointCollector.getPoints()));
     }
 
-    if (hasAggregateClause()) {
-      aggregateClause.applyToMetrics(clock, transformedMetrics);
+    return transformedMetrics;
+  }
+
+  // Points read from a rollup hold the mean, min, max and count of each bucket's values rather than the values
+  // themselves, so the functions of those values are worked out from them instead
+  private SelectClause getPointSelectClause(JsonObject metric) {
+    if (rollupSelectClause != null && metric.containsField(MetricPoints.ROLLUP_RESOLUTION_FIELD)) {
+      return rollupSelectClause;
     }
 
-    pointClauses.applyToMetrics(clock, transformedMetrics);
-    transformedMetrics = metricClauses.applyToMetrics(clock, transformedMetrics);
+    return pointClauses.selectClause();
+  }
 
-    return transformedMetrics;
+  private boolean metricMatches(JsonObject metric) {
+    return !hasFromClause() || fromClause.matchesMetricName(metric.getString("name"));
   }
 
-  private JsonArray copyMetrics(JsonArray metrics) {
-    return metrics.copy();
+  private boolean pointMatches(Clock clock, JsonObject point) throws EvaluationException {
+    return !hasWhereClause() || whereClause.matches(clock, point);
+  }
+
+  private static Iterable<JsonObject> getPoints(JsonObject metric) {
+    JsonArray points = metric.getArray("points");
+    return points == null ? Collections.emptyList() : new JsonArrayIterable<>(points);
+  }
+
+  // Takes the points of one resulting metric as they are read, aggregating or selecting each one straight away, so the
+  // only points kept are the ones that are returned
+  private class PointCollector {
+    private final Clock clock;
+    private final SelectClause selectClause;
+    private final AggregateClause.Aggregation aggregation;
+    private final JsonArray points = new JsonArray();
+
+    public PointCollector(Clock clock, SelectClause selectClause) {
+      this.clock = clock;
+      this.selectClause = selectClause;
+      aggregation = hasAggregateClause() ? aggregateClause.createAggregation(clock) : null;
+    }
+
+    public void addPoint(JsonObject point) throws EvaluationException {
+      if (aggregation != null) {
+        aggregation.addPoint(point);
+      } else {
+        addSelectedPoint(point);
+      }
+    }
+
+    public JsonArray getPoints() throws EvaluationException {
+      if (aggregation != null) {
+        for (JsonObject aggregatePoint : aggregation.getPoints()) {
+          addSelectedPoint(aggregatePoint);
+        }
+      }
+
+      if (pointClauses.hasSortClause()) {
+        return pointClauses.sortClause().applyToItems(clock, points);
+      }
+
+      return points;
+    }
+
+    private void addSelectedPoint(JsonObject point) throws EvaluationException {
+      if (selectClause != null) {
+        point = selectClause.applyToPoint(clock, point);
+      }
+
+      points.addObject(point);
+    }
+  }
+
+  private static class Group {
+    private final JsonObject metric;
+    private final PointCollector pointCollector;
+
+    public Group(JsonObject metric, PointCollector pointCollector) {
+      this.metric = metric;
+      this.pointCollector = pointCollector;
+    }
   }
 }
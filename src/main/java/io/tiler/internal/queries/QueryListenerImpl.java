@@ -259,6 +259,7 @@ public class QueryListenerImpl implements QueryListener {
   @Override
   public void exitMetricSelectClause(QueryParser.MetricSelectClauseContext ctx) {
     MetricSelectClauseBuilder builder = new MetricSelectClauseBuilder();
+    builder.withoutPoints(ctx.only != null);
 
     for (QueryParser.NamedExprContext namedExpr : ctx.namedExprs) {
       NamedExpression namedExpression = namedExpressions.get(namedExpr);
@@ -445,6 +446,15 @@ public class QueryListenerImpl implements QueryListener {
           createQueryContext(ctx),
           expressions.get(ctx.expr().get(0)));
         break;
+      case "count":
+        if (!validParameterCount(ctx, 1)) {
+          return;
+        }
+
+        function = new CountFunction(
+          createQueryContext(ctx),
+          expressions.get(ctx.expr().get(0)));
+        break;
       case "first":
         if (!validParameterCount(ctx, 1)) {
           return;
@@ -0,0 +1,186 @@
+package io.tiler.internal.queries;
+
+import io.tiler.internal.queries.clauses.points.SelectClause;
+import io.tiler.internal.queries.expressions.BinaryOperation;
+import io.tiler.internal.queries.expressions.Expression;
+import io.tiler.internal.queries.expressions.UnaryOperation;
+import io.tiler.internal.queries.expressions.aggregations.IntervalFunction;
+import io.tiler.internal.queries.expressions.arithmetic.ArithmeticOperation;
+import io.tiler.internal.queries.expressions.comparisons.ComparisonOperation;
+import io.tiler.internal.queries.expressions.constants.ConstantExpression;
+import io.tiler.internal.queries.expressions.fields.FieldExpression;
+import io.tiler.internal.queries.expressions.functions.CountFunction;
+import io.tiler.internal.queries.expressions.functions.ListFunction;
+import io.tiler.internal.queries.expressions.functions.MaxFunction;
+import io.tiler.internal.queries.expressions.functions.MeanFunction;
+import io.tiler.internal.queries.expressions.functions.MinFunction;
+import io.tiler.internal.queries.expressions.functions.NowFunction;
+import io.tiler.internal.queries.expressions.logical.LogicalBinaryOperation;
+import io.tiler.internal.queries.expressions.logical.LogicalUnaryOperation;
+import io.tiler.internal.queries.expressions.rollups.RollupCountFunction;
+import io.tiler.internal.queries.expressions.rollups.RollupMeanFunction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Works out which rollup resolutions a query can be answered from.  A rollup point holds the mean of the bucket's
+// values as its value, along with their min, max and count, so only queries that bucket points by time with
+// interval(), look at no other point fields before aggregating and select nothing but the buckets and the mean, min,
+// max or count of their values can use one.
+public class RollupSelector {
+  private static final String TIME_FIELD_NAME = "time";
+  private static final String VALUE_FIELD_NAME = "value";
+  private static final String MIN_FIELD_NAME = "min";
+  private static final String MAX_FIELD_NAME = "max";
+  private static final String COUNT_FIELD_NAME = "count";
+
+  public List<Long> eligibleResolutions(Query query, List<Long> resolutions) {
+    ArrayList<Long> eligibleResolutions = new ArrayList<>();
+
+    if (resolutions.isEmpty() || query.hasGroupClause() || !query.hasAggregateClause()) {
+      return eligibleResolutions;
+    }
+
+    if (query.hasWhereClause() && !onlyReferencesTime(query.whereClause().expression())) {
+      return eligibleResolutions;
+    }
+
+    Map<String, Expression> aggregateExpressions = query.aggregateClause().namedExpressions();
+
+    if (aggregateExpressions.size() != 1) {
+      return eligibleResolutions;
+    }
+
+    Expression aggregateExpression = aggregateExpressions.values().iterator().next();
+
+    if (!(aggregateExpression instanceof IntervalFunction)) {
+      return eligibleResolutions;
+    }
+
+    IntervalFunction interval = (IntervalFunction) aggregateExpression;
+    Long offset = getLongConstant(interval.offset());
+    Long size = getLongConstant(interval.size());
+
+    if (!isTimeField(interval.value()) || offset == null || size == null || size <= 0) {
+      return eligibleResolutions;
+    }
+
+    if (createRollupSelectClause(query) == null) {
+      return eligibleResolutions;
+    }
+
+    for (long resolution : resolutions) {
+      // Every rollup bucket has to fall entirely inside one of the query's buckets
+      if (size % resolution == 0 && Math.floorMod(offset, resolution) == 0) {
+        eligibleResolutions.add(resolution);
+      }
+    }
+
+    return eligibleResolutions;
+  }
+
+  // Returns the query's point select clause with its functions swapped for ones that work from the fields of rollup
+  // points, or null if the query selects anything that those fields cannot give the right answer for.  Without a
+  // point select clause the aggregated points would hold lists of the buckets' means.
+  public SelectClause createRollupSelectClause(Query query) {
+    if (!query.hasAggregateClause() || !query.pointClauses().hasSelectClause()) {
+      return null;
+    }
+
+    Set<String> aggregateFieldNames = query.aggregateClause().namedExpressions().keySet();
+    LinkedHashMap<String, Expression> rollupExpressions = new LinkedHashMap<>();
+
+    for (Map.Entry<String, Expression> namedExpression : query.pointClauses().selectClause().namedExpressions().entrySet()) {
+      Expression rollupExpression = createRollupExpression(namedExpression.getValue(), aggregateFieldNames);
+
+      if (rollupExpression == null) {
+        return null;
+      }
+
+      rollupExpressions.put(namedExpression.getKey(), rollupExpression);
+    }
+
+    return new SelectClause(rollupExpressions);
+  }
+
+  private Expression createRollupExpression(Expression expression, Set<String> aggregateFieldNames) {
+    if (expression instanceof FieldExpression) {
+      return aggregateFieldNames.contains(((FieldExpression) expression).fieldName()) ? expression : null;
+    }
+
+    if (expression instanceof ConstantExpression) {
+      return expression;
+    }
+
+    if (!(expression instanceof ListFunction) || !isValueField(((ListFunction<?>) expression).list())) {
+      return null;
+    }
+
+    QueryContext queryContext = expression.queryContext();
+
+    if (expression instanceof MinFunction) {
+      return new MinFunction(queryContext, new FieldExpression(queryContext, MIN_FIELD_NAME));
+    }
+
+    if (expression instanceof MaxFunction) {
+      return new MaxFunction(queryContext, new FieldExpression(queryContext, MAX_FIELD_NAME));
+    }
+
+    if (expression instanceof MeanFunction) {
+      return new RollupMeanFunction(queryContext, new FieldExpression(queryContext, VALUE_FIELD_NAME), new FieldExpression(queryContext, COUNT_FIELD_NAME));
+    }
+
+    if (expression instanceof CountFunction) {
+      return new RollupCountFunction(queryContext, new FieldExpression(queryContext, COUNT_FIELD_NAME));
+    }
+
+    // Sums, and the first and last values, are not kept by the rollups
+    return null;
+  }
+
+  private boolean onlyReferencesTime(Expression expression) {
+    if (expression instanceof FieldExpression) {
+      return isTimeField(expression);
+    }
+
+    if (expression instanceof ConstantExpression || expression instanceof NowFunction) {
+      return true;
+    }
+
+    if (expression instanceof LogicalBinaryOperation || expression instanceof ComparisonOperation || expression instanceof ArithmeticOperation) {
+      BinaryOperation operation = (BinaryOperation) expression;
+      return onlyReferencesTime(operation.operand1()) && onlyReferencesTime(operation.operand2());
+    }
+
+    if (expression instanceof LogicalUnaryOperation) {
+      return onlyReferencesTime(((UnaryOperation) expression).operand());
+    }
+
+    return false;
+  }
+
+  private boolean isTimeField(Expression expression) {
+    return expression instanceof FieldExpression && TIME_FIELD_NAME.equals(((FieldExpression) expression).fieldName());
+  }
+
+  private boolean isValueField(Expression expression) {
+    return expression instanceof FieldExpression && VALUE_FIELD_NAME.equals(((FieldExpression) expression).fieldName());
+  }
+
+  private Long getLongConstant(Expression expression) {
+    if (!(expression instanceof ConstantExpression)) {
+      return null;
+    }
+
+    Object value = ((ConstantExpression<?>) expression).value();
+
+    if (!(value instanceof Long) && !(value instanceof Integer)) {
+      return null;
+    }
+
+    return ((Number) value).longValue();
+  }
+}
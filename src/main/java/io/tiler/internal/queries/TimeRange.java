@@ -0,0 +1,96 @@
+package io.tiler.internal.queries;
+
+public class TimeRange {
+  private static final TimeRange UNBOUNDED = new TimeRange(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+  private final double from;
+  private final double to;
+
+  public TimeRange(double from, double to) {
+    this.from = from;
+    this.to = to;
+  }
+
+  public static TimeRange unbounded() {
+    return UNBOUNDED;
+  }
+
+  public static TimeRange from(double from) {
+    return new TimeRange(from, Double.POSITIVE_INFINITY);
+  }
+
+  public static TimeRange to(double to) {
+    return new TimeRange(Double.NEGATIVE_INFINITY, to);
+  }
+
+  public double from() {
+    return from;
+  }
+
+  public double to() {
+    return to;
+  }
+
+  public boolean isUnbounded() {
+    return from == Double.NEGATIVE_INFINITY && to == Double.POSITIVE_INFINITY;
+  }
+
+  public boolean contains(double time) {
+    return time >= from && time <= to;
+  }
+
+  public TimeRange intersect(TimeRange other) {
+    return new TimeRange(Math.max(from, other.from), Math.min(to, other.to));
+  }
+
+  public TimeRange span(TimeRange other) {
+    return new TimeRange(Math.min(from, other.from), Math.max(to, other.to));
+  }
+
+  public String redisFrom() {
+    return toRedisScore(from);
+  }
+
+  public String redisTo() {
+    return toRedisScore(to);
+  }
+
+  private static String toRedisScore(double value) {
+    if (value == Double.NEGATIVE_INFINITY) {
+      return "-inf";
+    }
+
+    if (value == Double.POSITIVE_INFINITY) {
+      return "+inf";
+    }
+
+    if (value == Math.rint(value) && Math.abs(value) < (double) (1L << 53)) {
+      return Long.toString((long) value);
+    }
+
+    return Double.toString(value);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+
+    if (!(o instanceof TimeRange)) {
+      return false;
+    }
+
+    TimeRange other = (TimeRange) o;
+    return Double.compare(from, other.from) == 0 && Double.compare(to, other.to) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Double.hashCode(from) + Double.hashCode(to);
+  }
+
+  @Override
+  public String toString() {
+    return "[" + redisFrom() + ", " + redisTo() + "]";
+  }
+}
@@ -0,0 +1,110 @@
+package io.tiler.internal.queries;
+
+import io.tiler.internal.queries.expressions.Expression;
+import io.tiler.internal.queries.expressions.arithmetic.ArithmeticOperation;
+import io.tiler.internal.queries.expressions.comparisons.*;
+import io.tiler.internal.queries.expressions.constants.ConstantExpression;
+import io.tiler.internal.queries.expressions.fields.FieldExpression;
+import io.tiler.internal.queries.expressions.functions.NowFunction;
+import io.tiler.internal.queries.expressions.logical.AndOperation;
+import io.tiler.internal.queries.expressions.logical.OrOperation;
+import org.vertx.java.core.json.JsonObject;
+
+import java.time.Clock;
+
+// Works out the range of point times that a where clause expression can possibly match, so that points outside it
+// never need to be read from storage.  The range is conservative; the where clause is still applied to every point
+// that is read.
+public class TimeRangeExtractor {
+  private static final String TIME_FIELD_NAME = "time";
+
+  public TimeRange extract(Clock clock, Expression expression) {
+    if (expression instanceof AndOperation) {
+      AndOperation operation = (AndOperation) expression;
+      return extract(clock, operation.operand1()).intersect(extract(clock, operation.operand2()));
+    }
+
+    if (expression instanceof OrOperation) {
+      OrOperation operation = (OrOperation) expression;
+      return extract(clock, operation.operand1()).span(extract(clock, operation.operand2()));
+    }
+
+    if (expression instanceof ComparisonOperation) {
+      return extractFromComparison(clock, (ComparisonOperation) expression);
+    }
+
+    return TimeRange.unbounded();
+  }
+
+  private TimeRange extractFromComparison(Clock clock, ComparisonOperation operation) {
+    Double bound;
+    boolean timeIsOperand1;
+
+    if (isTimeField(operation.operand1())) {
+      bound = evaluateConstant(clock, operation.operand2());
+      timeIsOperand1 = true;
+    } else if (isTimeField(operation.operand2())) {
+      bound = evaluateConstant(clock, operation.operand1());
+      timeIsOperand1 = false;
+    } else {
+      return TimeRange.unbounded();
+    }
+
+    if (bound == null) {
+      return TimeRange.unbounded();
+    }
+
+    if (operation instanceof EqualsOperation) {
+      return new TimeRange(bound, bound);
+    }
+
+    boolean isLowerBound;
+
+    if (operation instanceof GreaterThanOperation || operation instanceof GreaterThanOrEqualsOperation) {
+      isLowerBound = timeIsOperand1;
+    } else if (operation instanceof LessThanOperation || operation instanceof LessThanOrEqualsOperation) {
+      isLowerBound = !timeIsOperand1;
+    } else {
+      return TimeRange.unbounded();
+    }
+
+    return isLowerBound ? TimeRange.from(bound) : TimeRange.to(bound);
+  }
+
+  private boolean isTimeField(Expression expression) {
+    return expression instanceof FieldExpression && TIME_FIELD_NAME.equals(((FieldExpression) expression).fieldName());
+  }
+
+  private Double evaluateConstant(Clock clock, Expression expression) {
+    if (!isConstant(expression)) {
+      return null;
+    }
+
+    Object value;
+
+    try {
+      value = expression.evaluate(new EvaluationContext(clock, new JsonObject()));
+    } catch (EvaluationException e) {
+      return null;
+    }
+
+    if (!(value instanceof Number)) {
+      return null;
+    }
+
+    return ((Number) value).doubleValue();
+  }
+
+  private boolean isConstant(Expression expression) {
+    if (expression instanceof ConstantExpression || expression instanceof NowFunction) {
+      return true;
+    }
+
+    if (expression instanceof ArithmeticOperation) {
+      ArithmeticOperation operation = (ArithmeticOperation) expression;
+      return isConstant(operation.operand1()) && isConstant(operation.operand2());
+    }
+
+    return false;
+  }
+}
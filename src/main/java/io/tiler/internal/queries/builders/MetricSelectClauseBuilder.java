@@ -7,12 +7,17 @@ import java.util.HashMap;
 
 public class MetricSelectClauseBuilder {
   HashMap<String, Expression> namedExpressions = new HashMap<>();
+  boolean withoutPoints;
 
   public void namedExpression(String name, Expression expression) {
     namedExpressions.put(name, expression);
   }
 
+  public void withoutPoints(boolean withoutPoints) {
+    this.withoutPoints = withoutPoints;
+  }
+
   public SelectClause build() {
-    return new SelectClause(namedExpressions);
+    return new SelectClause(namedExpressions, withoutPoints);
   }
 }
@@ -1,11 +1,8 @@
 package io.tiler.internal.queries.clauses;
 
-import io.tiler.core.json.JsonArrayIterable;
-import io.tiler.core.json.JsonArrayUtils;
 import io.tiler.internal.queries.EvaluationContext;
 import io.tiler.internal.queries.EvaluationException;
 import io.tiler.internal.queries.expressions.Expression;
-import io.tiler.internal.queries.expressions.aggregations.AggregateExpression;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
@@ -23,25 +20,22 @@ public class AggregateClause {
     return namedExpressions;
   }
 
-  public void applyToMetrics(Clock clock, JsonArray metrics) throws EvaluationException {
-    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
-      JsonArray transformedPoints = applyToPoints(clock, metric.getArray("points"));
-      metric.putArray("points", transformedPoints);
-    }
+  public Aggregation createAggregation(Clock clock) {
+    return new Aggregation(clock);
   }
 
-  private JsonArray applyToPoints(Clock clock, JsonArray points) throws EvaluationException {
-    // TODO: Maybe combine this method with the equivalent for the group clause
-    HashMap<ArrayList<Object>, JsonObject> aggregatePoints = new HashMap<>();
-    HashSet<String> aggregateFieldNames = new HashSet<>();
+  // Takes points one at a time, so they can be aggregated as they are read rather than collected first
+  public class Aggregation {
+    private final Clock clock;
+    private final HashMap<ArrayList<Object>, AggregatePoint> aggregatePoints = new HashMap<>();
 
-    for (Map.Entry<String, Expression> aggregateClauseEntry : namedExpressions.entrySet()) {
-      aggregateFieldNames.add(aggregateClauseEntry.getKey());
+    private Aggregation(Clock clock) {
+      this.clock = clock;
     }
 
-    for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+    public void addPoint(JsonObject point) throws EvaluationException {
       EvaluationContext context = new EvaluationContext(clock, point);
-      ArrayList<Object> aggregateKey = new ArrayList<>();
+      ArrayList<Object> aggregateKey = new ArrayList<>(namedExpressions.size() * 2);
 
       for (Map.Entry<String, Expression> aggregateClauseEntry : namedExpressions.entrySet()) {
         String fieldName = aggregateClauseEntry.getKey();
@@ -52,32 +46,52 @@ public class AggregateClause {
         aggregateKey.add(aggregateValue);
       }
 
-      JsonObject aggregatePoint = aggregatePoints.get(aggregateKey);
+      AggregatePoint aggregatePoint = aggregatePoints.get(aggregateKey);
 
       if (aggregatePoint == null) {
-        aggregatePoint = new JsonObject();
+        aggregatePoint = new AggregatePoint(aggregateKey);
+        aggregatePoints.put(aggregateKey, aggregatePoint);
+      }
 
-        for (int index = 0, count = aggregateKey.size(); index < count; index += 2) {
-          aggregatePoint.putValue((String) aggregateKey.get(index), aggregateKey.get(index + 1));
+      for (String pointFieldName : point.getFieldNames()) {
+        if (!namedExpressions.containsKey(pointFieldName)) {
+          aggregatePoint.addValue(pointFieldName, point.getValue(pointFieldName));
         }
+      }
+    }
 
-        aggregatePoints.put(aggregateKey, aggregatePoint);
+    public ArrayList<JsonObject> getPoints() {
+      ArrayList<JsonObject> points = new ArrayList<>(aggregatePoints.size());
+
+      for (AggregatePoint aggregatePoint : aggregatePoints.values()) {
+        points.add(aggregatePoint.fields);
       }
 
-      for (String pointFieldName : point.getFieldNames()) {
-        if (!aggregateFieldNames.contains(pointFieldName)) {
-          JsonArray aggregatePointFieldValue = aggregatePoint.getArray(pointFieldName);
+      return points;
+    }
+  }
 
-          if (aggregatePointFieldValue == null) {
-            aggregatePointFieldValue = new JsonArray();
-            aggregatePoint.putArray(pointFieldName, aggregatePointFieldValue);
-          }
+  private static class AggregatePoint {
+    private final JsonObject fields = new JsonObject();
+    // Looking the arrays up in the point itself would wrap them in a new JsonArray for every value added
+    private final HashMap<String, JsonArray> valueArrays = new HashMap<>();
 
-          aggregatePointFieldValue.add(point.getValue(pointFieldName));
-        }
+    public AggregatePoint(ArrayList<Object> aggregateKey) {
+      for (int index = 0, count = aggregateKey.size(); index < count; index += 2) {
+        fields.putValue((String) aggregateKey.get(index), aggregateKey.get(index + 1));
       }
     }
 
-    return JsonArrayUtils.convertToJsonArray(aggregatePoints.values());
+    public void addValue(String fieldName, Object value) {
+      JsonArray values = valueArrays.get(fieldName);
+
+      if (values == null) {
+        values = new JsonArray();
+        fields.putArray(fieldName, values);
+        valueArrays.put(fieldName, values);
+      }
+
+      values.add(value);
+    }
   }
 }
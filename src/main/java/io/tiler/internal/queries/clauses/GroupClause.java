@@ -1,14 +1,10 @@
 package io.tiler.internal.queries.clauses;
 
-import io.tiler.core.json.JsonArrayIterable;
-import io.tiler.core.json.JsonArrayUtils;
 import io.tiler.internal.queries.expressions.fields.FieldExpression;
-import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 public class GroupClause {
@@ -22,54 +18,28 @@ public class GroupClause {
     return fieldExpressions;
   }
 
-  public JsonArray applyToMetrics(JsonArray metrics) {
-    JsonArray groups = applyToPoints(metrics);
-    JsonArray transformedMetrics = new JsonArray();
+  // Points with the same values for every group field share a key
+  public ArrayList<Object> getGroupKey(JsonObject point) {
+    ArrayList<Object> groupKey = new ArrayList<>(fieldExpressions.size() * 2);
 
-    for (JsonObject group : new JsonArrayIterable<JsonObject>(groups)) {
-      transformedMetrics.addObject(new JsonObject()
-        .mergeIn(group)
-        .putArray("points", group.getArray("points")));
+    for (FieldExpression fieldExpression : fieldExpressions) {
+      String fieldName = fieldExpression.fieldName();
+      groupKey.add(fieldName);
+      groupKey.add(point.getValue(fieldName));
     }
 
-    return transformedMetrics;
+    return groupKey;
   }
 
-  private JsonArray applyToPoints(JsonArray metrics) {
-    HashMap<ArrayList<Object>, JsonObject> groups = new HashMap<>();
+  // The metric that a group becomes has the group fields of its first point, and its points are added later
+  public JsonObject createGroupMetric(JsonObject point) {
+    JsonObject groupMetric = new JsonObject();
 
-    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
-      for (JsonObject point : new JsonArrayIterable<JsonObject>(metric.getArray("points"))) {
-        ArrayList<Object> groupKey = new ArrayList<>();
-
-        for (FieldExpression fieldExpression : fieldExpressions) {
-          String fieldName = fieldExpression.fieldName();
-          groupKey.add(fieldName);
-          groupKey.add(point.getValue(fieldName));
-        }
-
-        JsonObject group = groups.get(groupKey);
-        JsonArray groupPoints;
-
-        if (group == null) {
-          groupPoints = new JsonArray();
-          group = new JsonObject();
-
-          for (FieldExpression fieldExpression : fieldExpressions) {
-            String fieldName = fieldExpression.fieldName();
-            group.putValue(fieldName, point.getValue(fieldName));
-          }
-
-          group.putArray("points", groupPoints);
-          groups.put(groupKey, group);
-        } else {
-          groupPoints = group.getArray("points");
-        }
-
-        groupPoints.addObject(point);
-      }
+    for (FieldExpression fieldExpression : fieldExpressions) {
+      String fieldName = fieldExpression.fieldName();
+      groupMetric.putValue(fieldName, point.getValue(fieldName));
     }
 
-    return JsonArrayUtils.convertToJsonArray(groups.values());
+    return groupMetric;
   }
 }
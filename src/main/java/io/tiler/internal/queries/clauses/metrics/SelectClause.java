@@ -11,8 +11,20 @@ import java.time.Clock;
 import java.util.Map;
 
 public class SelectClause extends BaseSelectClause {
-  public SelectClause(Map<String, Expression> namedExpressions) {
+  private final boolean withoutPoints;
+
+  public SelectClause(Map<String, Expression> namedExpressions, boolean withoutPoints) {
     super(namedExpressions);
+    this.withoutPoints = withoutPoints;
+  }
+
+  public SelectClause(Map<String, Expression> namedExpressions) {
+    this(namedExpressions, false);
+  }
+
+  // Set by 'metric only', which returns the metrics with an empty list of points
+  public boolean withoutPoints() {
+    return withoutPoints;
   }
 
   public JsonArray applyToMetrics(Clock clock, JsonArray metrics) throws EvaluationException {
@@ -20,7 +32,7 @@ public class SelectClause extends BaseSelectClause {
 
     for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
       JsonObject transformedMetric = applyToItem(clock, metric);
-      transformedMetric.putArray("points", metric.getArray("points"));
+      transformedMetric.putArray("points", withoutPoints ? new JsonArray() : metric.getArray("points"));
 
       transformedMetrics.addObject(transformedMetric);
     }
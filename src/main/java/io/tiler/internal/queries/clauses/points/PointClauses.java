@@ -1,10 +1,5 @@
 package io.tiler.internal.queries.clauses.points;
 
-import io.tiler.internal.queries.EvaluationException;
-import org.vertx.java.core.json.JsonArray;
-
-import java.time.Clock;
-
 public class PointClauses {
   private final SelectClause selectClause;
   private final SortClause sortClause;
@@ -30,13 +25,4 @@ public class PointClauses {
     return sortClause;
   }
 
-  public void applyToMetrics(Clock clock, JsonArray metrics) throws EvaluationException {
-    if (hasSelectClause()) {
-      selectClause.applyToMetrics(clock, metrics);
-    }
-
-    if (hasSortClause()) {
-      sortClause.applyToMetrics(clock, metrics);
-    }
-  }
 }
@@ -1,10 +1,8 @@
 package io.tiler.internal.queries.clauses.points;
 
-import io.tiler.core.json.JsonArrayIterable;
 import io.tiler.internal.queries.EvaluationException;
 import io.tiler.internal.queries.clauses.BaseSelectClause;
 import io.tiler.internal.queries.expressions.Expression;
-import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 import java.time.Clock;
@@ -15,20 +13,7 @@ public class SelectClause extends BaseSelectClause {
     super(namedExpressions);
   }
 
-  public void applyToMetrics(Clock clock, JsonArray metrics) throws EvaluationException {
-    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
-      applyToPoints(clock, metric);
-    }
-  }
-
-  private void applyToPoints(Clock clock, JsonObject metric) throws EvaluationException {
-    JsonArray transformedPoints = new JsonArray();
-
-    for (JsonObject point : new JsonArrayIterable<JsonObject>(metric.getArray("points"))) {
-      JsonObject transformedPoint = applyToItem(clock, point);
-      transformedPoints.addObject(transformedPoint);
-    }
-
-    metric.putArray("points", transformedPoints);
+  public JsonObject applyToPoint(Clock clock, JsonObject point) throws EvaluationException {
+    return applyToItem(clock, point);
   }
 }
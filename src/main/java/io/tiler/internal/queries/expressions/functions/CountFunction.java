@@ -0,0 +1,24 @@
+package io.tiler.internal.queries.expressions.functions;
+
+import io.tiler.internal.queries.QueryContext;
+import io.tiler.internal.queries.expressions.Expression;
+import org.vertx.java.core.json.JsonArray;
+
+public class CountFunction extends ListFunction<Object> {
+  public CountFunction(QueryContext queryContext, Expression list) {
+    super(queryContext, list, Object.class);
+  }
+
+  @Override
+  public Object applyToList(JsonArray list) {
+    long count = 0;
+
+    for (Object item : list) {
+      if (item != null) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+}
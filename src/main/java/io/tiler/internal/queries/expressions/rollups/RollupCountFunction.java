@@ -0,0 +1,27 @@
+package io.tiler.internal.queries.expressions.rollups;
+
+import io.tiler.internal.queries.EvaluationContext;
+import io.tiler.internal.queries.EvaluationException;
+import io.tiler.internal.queries.QueryContext;
+import io.tiler.internal.queries.expressions.Expression;
+
+// The number of rolled up values, which is the sum of the buckets' counts
+public class RollupCountFunction extends RollupFunction {
+  private final Expression counts;
+
+  public RollupCountFunction(QueryContext queryContext, Expression counts) {
+    super(queryContext);
+    this.counts = counts;
+  }
+
+  @Override
+  public Object evaluate(EvaluationContext context) throws EvaluationException {
+    long count = 0;
+
+    for (Object pointCount : evaluateNumbers(counts, context)) {
+      count += ((Number) pointCount).longValue();
+    }
+
+    return count;
+  }
+}
@@ -0,0 +1,35 @@
+package io.tiler.internal.queries.expressions.rollups;
+
+import io.tiler.internal.queries.EvaluationContext;
+import io.tiler.internal.queries.EvaluationException;
+import io.tiler.internal.queries.QueryContext;
+import io.tiler.internal.queries.expressions.Expression;
+import io.tiler.internal.queries.expressions.functions.Function;
+import org.vertx.java.core.json.JsonArray;
+
+// Stands in for a function of the values of points that have been rolled up, working from the fields that each
+// rollup point keeps.  These are never parsed, queries that can be answered from rollups have their functions
+// swapped for them.
+public abstract class RollupFunction extends Function {
+  public RollupFunction(QueryContext queryContext) {
+    super(queryContext);
+  }
+
+  protected JsonArray evaluateNumbers(Expression list, EvaluationContext context) throws EvaluationException {
+    Object value = list.evaluate(context);
+
+    if (!(value instanceof JsonArray)) {
+      throw new EvaluationException(queryContext(), "list must evaluate to a JsonArray");
+    }
+
+    JsonArray numbers = (JsonArray) value;
+
+    for (Object item : numbers) {
+      if (!(item instanceof Number)) {
+        throw new EvaluationException(queryContext(), "Each item in list must be a '" + Number.class.getName() + "'");
+      }
+    }
+
+    return numbers;
+  }
+}
@@ -0,0 +1,40 @@
+package io.tiler.internal.queries.expressions.rollups;
+
+import io.tiler.internal.queries.EvaluationContext;
+import io.tiler.internal.queries.EvaluationException;
+import io.tiler.internal.queries.QueryContext;
+import io.tiler.internal.queries.expressions.Expression;
+import org.vertx.java.core.json.JsonArray;
+
+// The mean of the rolled up values, with each bucket's mean weighted by the number of values in the bucket
+public class RollupMeanFunction extends RollupFunction {
+  private final Expression means;
+  private final Expression counts;
+
+  public RollupMeanFunction(QueryContext queryContext, Expression means, Expression counts) {
+    super(queryContext);
+    this.means = means;
+    this.counts = counts;
+  }
+
+  @Override
+  public Object evaluate(EvaluationContext context) throws EvaluationException {
+    JsonArray meanValues = evaluateNumbers(means, context);
+    JsonArray countValues = evaluateNumbers(counts, context);
+
+    if (meanValues.size() != countValues.size()) {
+      throw new EvaluationException(queryContext(), "Every rolled up point must have a count");
+    }
+
+    double sum = 0;
+    double count = 0;
+
+    for (int index = 0; index < meanValues.size(); index++) {
+      double pointCount = ((Number) countValues.get(index)).doubleValue();
+      sum += ((Number) meanValues.get(index)).doubleValue() * pointCount;
+      count += pointCount;
+    }
+
+    return sum / count;
+  }
+}
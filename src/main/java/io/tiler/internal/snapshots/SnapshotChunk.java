@@ -0,0 +1,60 @@
+package io.tiler.internal.snapshots;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// A chunk of metrics along with their rollup points, by metric name and then resolution, and their expiry times
+public class SnapshotChunk {
+  private final JsonArray metrics;
+  private final JsonObject rollupPoints;
+  private final Map<String, Long> expiryTimes;
+
+  public SnapshotChunk(JsonArray metrics, JsonObject rollupPoints, Map<String, Long> expiryTimes) {
+    this.metrics = metrics;
+    this.rollupPoints = rollupPoints;
+    this.expiryTimes = expiryTimes;
+  }
+
+  public SnapshotChunk(JsonArray metrics) {
+    this(metrics, new JsonObject(), new HashMap<>());
+  }
+
+  public static SnapshotChunk fromJson(JsonObject json) {
+    HashMap<String, Long> expiryTimes = new HashMap<>();
+    JsonObject expiryTimesJson = json.getObject("expiryTimes");
+
+    for (String metricName : expiryTimesJson.getFieldNames()) {
+      expiryTimes.put(metricName, expiryTimesJson.getLong(metricName));
+    }
+
+    return new SnapshotChunk(json.getArray("metrics"), json.getObject("rollupPoints"), expiryTimes);
+  }
+
+  public JsonArray metrics() {
+    return metrics;
+  }
+
+  public JsonObject rollupPoints() {
+    return rollupPoints;
+  }
+
+  public Map<String, Long> expiryTimes() {
+    return expiryTimes;
+  }
+
+  public JsonObject toJson() {
+    JsonObject expiryTimesJson = new JsonObject();
+
+    for (Map.Entry<String, Long> expiryTime : expiryTimes.entrySet()) {
+      expiryTimesJson.putNumber(expiryTime.getKey(), expiryTime.getValue());
+    }
+
+    return new JsonObject()
+      .putArray("metrics", metrics)
+      .putObject("rollupPoints", rollupPoints)
+      .putObject("expiryTimes", expiryTimesJson);
+  }
+}
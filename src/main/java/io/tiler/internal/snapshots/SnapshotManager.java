@@ -0,0 +1,176 @@
+package io.tiler.internal.snapshots;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.storage.MetricRead;
+import io.tiler.internal.storage.MetricStore;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Copies every metric, with all of its raw points, its rollup points and its expiry time, between a metric store and a
+// snapshot file.  Metrics are read and written a chunk at a time, so a snapshot never has to fit in memory.
+public class SnapshotManager {
+  private final Vertx vertx;
+  private final MetricStore store;
+  private final int chunkSize;
+
+  public SnapshotManager(Vertx vertx, MetricStore store, int chunkSize) {
+    this.vertx = vertx;
+    this.store = store;
+    this.chunkSize = chunkSize;
+  }
+
+  // Hands back the number of metrics exported
+  public void exportSnapshot(Path path, AsyncResultHandler<Long> handler) {
+    SnapshotWriter writer;
+
+    try {
+      writer = SnapshotWriter.create(path);
+    } catch (IOException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
+    }
+
+    store.scanMetricNames((metricNames, batchHandler) -> exportChunks(writer, metricNames, 0, batchHandler), result -> {
+      try {
+        if (result.succeeded()) {
+          writer.commit();
+        }
+
+        writer.close();
+      } catch (IOException e) {
+        handler.handle(DefaultAsyncResult.fail(e));
+        return;
+      }
+
+      if (result.failed()) {
+        handler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(writer.metricCount()));
+    });
+  }
+
+  // Hands back the number of metrics imported.  Metrics in the snapshot replace any stored metrics with the same name.
+  public void importSnapshot(Path path, AsyncResultHandler<Long> handler) {
+    SnapshotReader reader;
+
+    try {
+      reader = SnapshotReader.open(path);
+    } catch (IOException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
+    }
+
+    importChunks(reader, 0, result -> {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        // Everything has been read by now
+      }
+
+      handler.handle(result);
+    });
+  }
+
+  private void exportChunks(SnapshotWriter writer, List<String> metricNames, int chunkStart, AsyncResultHandler<Void> handler) {
+    if (chunkStart >= metricNames.size()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    LinkedHashMap<String, MetricRead> metricReads = new LinkedHashMap<>();
+
+    for (String metricName : metricNames.subList(chunkStart, Math.min(chunkStart + chunkSize, metricNames.size()))) {
+      metricReads.put(metricName, MetricRead.unbounded());
+    }
+
+    store.getMetrics(metricReads, result -> {
+      if (result.failed()) {
+        handler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      JsonArray metrics = result.result();
+      ArrayList<String> foundMetricNames = new ArrayList<>();
+
+      for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+        foundMetricNames.add(metric.getString("name"));
+      }
+
+      store.getRollupPoints(foundMetricNames, rollupPoints -> {
+        if (rollupPoints.failed()) {
+          handler.handle(DefaultAsyncResult.fail(rollupPoints));
+          return;
+        }
+
+        store.getExpiryTimes(foundMetricNames, expiryTimes -> {
+          if (expiryTimes.failed()) {
+            handler.handle(DefaultAsyncResult.fail(expiryTimes));
+            return;
+          }
+
+          try {
+            writer.writeChunk(new SnapshotChunk(metrics, rollupPoints.result(), expiryTimes.result()));
+          } catch (IOException e) {
+            handler.handle(DefaultAsyncResult.fail(e));
+            return;
+          }
+
+          // Stores that reply straight away would otherwise grow the stack by a few calls for every chunk
+          vertx.runOnContext(v -> exportChunks(writer, metricNames, chunkStart + chunkSize, handler));
+        });
+      });
+    });
+  }
+
+  private void importChunks(SnapshotReader reader, long importedMetricCount, AsyncResultHandler<Long> handler) {
+    SnapshotChunk chunk;
+
+    try {
+      chunk = reader.readChunk();
+    } catch (IOException e) {
+      handler.handle(DefaultAsyncResult.fail(e));
+      return;
+    }
+
+    if (chunk == null) {
+      handler.handle(DefaultAsyncResult.succeed(importedMetricCount));
+      return;
+    }
+
+    // The store pipelines the writes for each chunk.  Saving a metric removes its rollups, so they are only written
+    // once the metrics have been.
+    store.saveMetrics(chunk.metrics(), result -> {
+      if (result.failed()) {
+        handler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      store.saveRollupPoints(chunk.rollupPoints(), rollupResult -> {
+        if (rollupResult.failed()) {
+          handler.handle(DefaultAsyncResult.fail(rollupResult));
+          return;
+        }
+
+        store.setExpiryTimes(chunk.expiryTimes(), expiryResult -> {
+          if (expiryResult.failed()) {
+            handler.handle(DefaultAsyncResult.fail(expiryResult));
+            return;
+          }
+
+          vertx.runOnContext(v -> importChunks(reader, importedMetricCount + chunk.metrics().size(), handler));
+        });
+      });
+    });
+  }
+}
@@ -0,0 +1,114 @@
+package io.tiler.internal.snapshots;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// A snapshot is a header followed by chunks of metrics.  Each chunk is its Deflate compressed JSON, behind its
+// compressed length, its number of metrics and a checksum of the uncompressed JSON.  The JSON of a version 1 chunk is
+// just the array of its metrics, and version 2 added the metrics' rollup points and expiry times.
+public class SnapshotReader implements AutoCloseable {
+  static final byte[] MAGIC = "TILERSNP".getBytes(StandardCharsets.US_ASCII);
+  static final int VERSION = 2;
+  private static final int METRICS_ONLY_VERSION = 1;
+  private final DataInputStream stream;
+  private final int version;
+  private final Inflater inflater = new Inflater();
+  private final byte[] buffer = new byte[65536];
+
+  private SnapshotReader(DataInputStream stream, int version) {
+    this.stream = stream;
+    this.version = version;
+  }
+
+  public static SnapshotReader open(Path path) throws IOException {
+    DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile()), 65536));
+    byte[] magic = new byte[MAGIC.length];
+    int version;
+
+    try {
+      stream.readFully(magic);
+
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("'" + path + "' is not a snapshot");
+      }
+
+      version = stream.readInt();
+
+      if (version != VERSION && version != METRICS_ONLY_VERSION) {
+        throw new IOException("Snapshot '" + path + "' has unsupported version " + version);
+      }
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+
+    return new SnapshotReader(stream, version);
+  }
+
+  // Returns null once every chunk has been read
+  public SnapshotChunk readChunk() throws IOException {
+    int compressedLength;
+
+    try {
+      compressedLength = stream.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+
+    int metricCount = stream.readInt();
+    int checksum = stream.readInt();
+    byte[] compressedBytes = new byte[compressedLength];
+    stream.readFully(compressedBytes);
+
+    ByteArrayOutputStream uncompressedBytes = new ByteArrayOutputStream(compressedLength * 8);
+    inflater.reset();
+    inflater.setInput(compressedBytes);
+
+    try {
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+
+        if (length == 0 && inflater.needsInput()) {
+          throw new IOException("Snapshot chunk is truncated");
+        }
+
+        uncompressedBytes.write(buffer, 0, length);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Snapshot chunk is corrupt", e);
+    }
+
+    byte[] bytes = uncompressedBytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Snapshot chunk failed its checksum");
+    }
+
+    String json = new String(bytes, StandardCharsets.UTF_8);
+    SnapshotChunk chunk = version == METRICS_ONLY_VERSION
+      ? new SnapshotChunk(new JsonArray(json))
+      : SnapshotChunk.fromJson(new JsonObject(json));
+
+    if (chunk.metrics().size() != metricCount) {
+      throw new IOException("Snapshot chunk has " + chunk.metrics().size() + " metrics but should have " + metricCount);
+    }
+
+    return chunk;
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    stream.close();
+  }
+}
@@ -0,0 +1,92 @@
+package io.tiler.internal.snapshots;
+
+import org.vertx.java.core.json.JsonArray;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes a snapshot to a temporary file that only replaces the snapshot file once it is complete
+public class SnapshotWriter implements AutoCloseable {
+  private final Path path;
+  private final Path temporaryPath;
+  private final FileOutputStream fileStream;
+  private final DataOutputStream stream;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final byte[] buffer = new byte[65536];
+  private long metricCount;
+  private boolean committed;
+
+  private SnapshotWriter(Path path, Path temporaryPath) throws IOException {
+    this.path = path;
+    this.temporaryPath = temporaryPath;
+    fileStream = new FileOutputStream(temporaryPath.toFile());
+    stream = new DataOutputStream(new BufferedOutputStream(fileStream, buffer.length));
+  }
+
+  public static SnapshotWriter create(Path path) throws IOException {
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    SnapshotWriter writer = new SnapshotWriter(path, path.resolveSibling(path.getFileName() + ".tmp"));
+    writer.stream.write(SnapshotReader.MAGIC);
+    writer.stream.writeInt(SnapshotReader.VERSION);
+    return writer;
+  }
+
+  public long metricCount() {
+    return metricCount;
+  }
+
+  public void writeChunk(SnapshotChunk chunk) throws IOException {
+    JsonArray metrics = chunk.metrics();
+
+    if (metrics.size() == 0) {
+      return;
+    }
+
+    byte[] bytes = chunk.toJson().encode().getBytes(StandardCharsets.UTF_8);
+    deflater.reset();
+    deflater.setInput(bytes);
+    deflater.finish();
+    ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(bytes.length / 8);
+
+    while (!deflater.finished()) {
+      compressedBytes.write(buffer, 0, deflater.deflate(buffer));
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    stream.writeInt(compressedBytes.size());
+    stream.writeInt(metrics.size());
+    stream.writeInt((int) crc.getValue());
+    compressedBytes.writeTo(stream);
+    metricCount += metrics.size();
+  }
+
+  public void commit() throws IOException {
+    stream.flush();
+    fileStream.getFD().sync();
+    stream.close();
+    Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    committed = true;
+  }
+
+  // Abandons the snapshot if it was not committed
+  @Override
+  public void close() throws IOException {
+    if (committed) {
+      return;
+    }
+
+    stream.close();
+    Files.deleteIfExists(temporaryPath);
+  }
+}
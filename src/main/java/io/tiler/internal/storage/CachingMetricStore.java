@@ -0,0 +1,282 @@
+package io.tiler.internal.storage;
+
+import io.tiler.core.json.JsonArrayIterable;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.time.Clock;
+import java.util.*;
+
+// Keeps recently read metrics, with all of their points, in memory so repeated reads of the same metrics do not go to
+// the underlying store.  Metrics are evicted least recently used first once the cache holds more than maxPoints
+// points.
+public class CachingMetricStore implements MetricStore {
+  private final MetricStore store;
+  private final int maxPoints;
+  private final LinkedHashMap<String, JsonObject> metrics = new LinkedHashMap<>(16, 0.75f, true);
+  // Metrics that were found to have more than maxPoints points, and so are read the way the caller asked for them
+  private final HashSet<String> tooLargeMetricNames = new HashSet<>();
+  private int pointCount;
+  private long writeCount;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  public CachingMetricStore(MetricStore store, int maxPoints) {
+    this.store = store;
+    this.maxPoints = maxPoints;
+  }
+
+  @Override
+  public void start(AsyncResultHandler<Void> handler) {
+    store.start(handler);
+  }
+
+  @Override
+  public void saveMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    write(metrics);
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      // Unlike appended and merged points, a save can make a metric smaller
+      tooLargeMetricNames.remove(metric.getString("name"));
+    }
+
+    store.saveMetrics(metrics, handler);
+  }
+
+  @Override
+  public boolean supportsAppend() {
+    return store.supportsAppend();
+  }
+
+  @Override
+  public void appendPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    write(metrics);
+    store.appendPoints(metrics, handler);
+  }
+
+  @Override
+  public void mergePoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    write(metrics);
+    store.mergePoints(metrics, handler);
+  }
+
+  @Override
+  public void scanMetricNames(MetricNameBatchHandler batchHandler, AsyncResultHandler<Void> handler) {
+    store.scanMetricNames(batchHandler, handler);
+  }
+
+  @Override
+  public void getMetrics(Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler) {
+    // Cached metrics are replaced rather than changed, so these stay valid even if a write evicts them mid-read
+    HashMap<String, JsonObject> foundMetrics = new HashMap<>();
+    LinkedHashMap<String, MetricRead> storeReads = new LinkedHashMap<>();
+
+    for (Map.Entry<String, MetricRead> metricRead : metricReads.entrySet()) {
+      String metricName = metricRead.getKey();
+      JsonObject metric;
+
+      if (metricRead.getValue().hasRollupResolution()) {
+        // Only raw points are cached
+        storeReads.put(metricName, metricRead.getValue());
+      } else if ((metric = metrics.get(metricName)) != null) {
+        hitCount++;
+        foundMetrics.put(metricName, metric);
+      } else if (!metricRead.getValue().includesPoints() || tooLargeMetricNames.contains(metricName)) {
+        // Reading every point just to cache the metric would undo the point of leaving them out, or of only reading
+        // the time range asked for when the metric could not be cached anyway
+        missCount++;
+        storeReads.put(metricName, metricRead.getValue());
+      } else {
+        missCount++;
+        storeReads.put(metricName, MetricRead.unbounded());
+      }
+    }
+
+    if (storeReads.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed(copyMetrics(metricReads, foundMetrics)));
+      return;
+    }
+
+    long writeCountBeforeRead = writeCount;
+
+    store.getMetrics(storeReads, result -> {
+      if (result.failed()) {
+        handler.handle(result);
+        return;
+      }
+
+      for (JsonObject metric : new JsonArrayIterable<JsonObject>(result.result())) {
+        String metricName = metric.getString("name");
+        foundMetrics.put(metricName, metric);
+
+        // A write that happened while the read was in flight may have made the metric stale already
+        MetricRead storeRead = storeReads.get(metricName);
+
+        if (writeCount == writeCountBeforeRead && !storeRead.hasRollupResolution() && storeRead.includesPoints() && storeRead.timeRange().isUnbounded()) {
+          put(metricName, metric);
+        }
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(copyMetrics(metricReads, foundMetrics)));
+    });
+  }
+
+  @Override
+  public List<Long> rollupResolutions() {
+    return store.rollupResolutions();
+  }
+
+  @Override
+  public void getRollupPoints(List<String> metricNames, AsyncResultHandler<JsonObject> handler) {
+    store.getRollupPoints(metricNames, handler);
+  }
+
+  @Override
+  public void saveRollupPoints(JsonObject rollupPoints, AsyncResultHandler<Void> handler) {
+    // Only raw points are cached
+    store.saveRollupPoints(rollupPoints, handler);
+  }
+
+  @Override
+  public boolean hasBackgroundRetention() {
+    return store.hasBackgroundRetention();
+  }
+
+  @Override
+  public void applyRetention(Clock clock, AsyncResultHandler<Void> handler) {
+    store.applyRetention(clock, result -> {
+      // Retention can remove points from any metric
+      invalidateAll();
+      handler.handle(result);
+    });
+  }
+
+  @Override
+  public void setExpiryTimes(Map<String, Long> expiryTimes, AsyncResultHandler<Void> handler) {
+    store.setExpiryTimes(expiryTimes, handler);
+  }
+
+  @Override
+  public void getExpiryTimes(List<String> metricNames, AsyncResultHandler<Map<String, Long>> handler) {
+    store.getExpiryTimes(metricNames, handler);
+  }
+
+  @Override
+  public void removeExpiredMetrics(Clock clock, int maxCount, AsyncResultHandler<List<String>> handler) {
+    store.removeExpiredMetrics(clock, maxCount, result -> {
+      if (result.succeeded()) {
+        writeCount++;
+
+        for (String metricName : result.result()) {
+          remove(metricName);
+          tooLargeMetricNames.remove(metricName);
+        }
+      }
+
+      handler.handle(result);
+    });
+  }
+
+  // For metrics written by something other than this store
+  public void invalidate(Collection<String> metricNames) {
+    writeCount++;
+
+    for (String metricName : metricNames) {
+      remove(metricName);
+    }
+  }
+
+  public void invalidateAll() {
+    writeCount++;
+    metrics.clear();
+    tooLargeMetricNames.clear();
+    pointCount = 0;
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .putNumber("metrics", metrics.size())
+      .putNumber("points", pointCount)
+      .putNumber("maxPoints", maxPoints)
+      .putNumber("hits", hitCount)
+      .putNumber("misses", missCount)
+      .putNumber("evictions", evictionCount)
+      .putNumber("tooLargeMetrics", tooLargeMetricNames.size());
+  }
+
+  private void write(JsonArray metrics) {
+    writeCount++;
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      // Stores can reorder, deduplicate or trim points as they write them, so the next read repopulates the entry
+      // rather than the written metric being cached as is
+      remove(metric.getString("name"));
+    }
+  }
+
+  private JsonArray copyMetrics(Map<String, MetricRead> metricReads, Map<String, JsonObject> foundMetrics) {
+    JsonArray result = new JsonArray();
+
+    for (Map.Entry<String, MetricRead> metricRead : metricReads.entrySet()) {
+      JsonObject metric = foundMetrics.get(metricRead.getKey());
+      MetricRead read = metricRead.getValue();
+
+      if (metric == null) {
+        continue;
+      }
+
+      // Callers are free to change the metrics they are given, so they never get the cached objects themselves
+      JsonObject metricCopy = MetricPoints.createMetricHeader(metric).copy();
+      JsonArray points = metric.getArray("points");
+
+      if (!read.includesPoints()) {
+        metricCopy.putArray("points", new JsonArray());
+      } else if (points != null) {
+        metricCopy.putArray("points", read.timeRange().isUnbounded() || read.hasRollupResolution()
+          ? points.copy()
+          : MetricPoints.filterPoints(points, read.timeRange()).copy());
+      }
+
+      result.addObject(metricCopy);
+    }
+
+    return result;
+  }
+
+  private void put(String metricName, JsonObject metric) {
+    remove(metricName);
+    int metricPointCount = getPointCount(metric);
+
+    if (metricPointCount > maxPoints) {
+      tooLargeMetricNames.add(metricName);
+      return;
+    }
+
+    metrics.put(metricName, metric);
+    pointCount += metricPointCount;
+    Iterator<JsonObject> leastRecentlyUsed = metrics.values().iterator();
+
+    while (pointCount > maxPoints) {
+      pointCount -= getPointCount(leastRecentlyUsed.next());
+      leastRecentlyUsed.remove();
+      evictionCount++;
+    }
+  }
+
+  private void remove(String metricName) {
+    JsonObject metric = metrics.remove(metricName);
+
+    if (metric != null) {
+      pointCount -= getPointCount(metric);
+    }
+  }
+
+  private int getPointCount(JsonObject metric) {
+    JsonArray points = metric.getArray("points");
+    // Metrics without points still take up some room
+    return 1 + (points == null ? 0 : points.size());
+  }
+}
@@ -0,0 +1,186 @@
+package io.tiler.internal.storage;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.PartialWriteException;
+import io.tiler.internal.storage.segments.SegmentStoreVerticle;
+import org.simondean.vertx.async.AsyncResultHandlerWrapper;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.*;
+import java.util.function.Function;
+
+// Keeps each metric in its own append-only log of segment files, so reads and writes never leave the process.  The
+// files are read and written by a worker verticle, as every file operation blocks, and this sends it requests over the
+// event bus in the same way the Redis store sends commands to the Redis module.
+public class FileMetricStore implements MetricStore {
+  public static final String ADDRESS = "io.tiler.file-storage";
+  private final Container container;
+  private final EventBus eventBus;
+  private final Logger logger;
+
+  public FileMetricStore(Container container, EventBus eventBus, Logger logger) {
+    this.container = container;
+    this.eventBus = eventBus;
+    this.logger = logger;
+  }
+
+  @Override
+  public void start(AsyncResultHandler<Void> handler) {
+    // The worker loads the config itself, as only JSON can be passed to it
+    container.deployWorkerVerticle(SegmentStoreVerticle.class.getName(), container.config(), 1, false, AsyncResultHandlerWrapper.wrap(handler));
+  }
+
+  @Override
+  public void saveMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeMetrics("saveMetrics", metrics, handler);
+  }
+
+  @Override
+  public boolean supportsAppend() {
+    return true;
+  }
+
+  @Override
+  public void appendPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeMetrics("appendPoints", metrics, handler);
+  }
+
+  @Override
+  public void mergePoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeMetrics("mergePoints", metrics, handler);
+  }
+
+  @Override
+  public void scanMetricNames(MetricNameBatchHandler batchHandler, AsyncResultHandler<Void> handler) {
+    send(createRequest("getMetricNames"), reply -> toStrings(reply.getArray("value")), result -> {
+      if (result.failed()) {
+        handler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      // The names are held in memory by the worker already, so they are handed over in one batch
+      batchHandler.handle(result.result(), handler);
+    });
+  }
+
+  @Override
+  public void getMetrics(Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler) {
+    JsonArray jsonMetricReads = new JsonArray();
+
+    for (Map.Entry<String, MetricRead> metricRead : metricReads.entrySet()) {
+      jsonMetricReads.addObject(metricRead.getValue().toJson().putString("name", metricRead.getKey()));
+    }
+
+    send(createRequest("getMetrics").putArray("metricReads", jsonMetricReads), reply -> reply.getArray("value"), handler);
+  }
+
+  @Override
+  public List<Long> rollupResolutions() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public boolean hasBackgroundRetention() {
+    return true;
+  }
+
+  @Override
+  public void applyRetention(Clock clock, AsyncResultHandler<Void> handler) {
+    send(createRequest("applyRetention").putNumber("now", clock.millis()), reply -> null, handler);
+  }
+
+  @Override
+  public void setExpiryTimes(Map<String, Long> expiryTimes, AsyncResultHandler<Void> handler) {
+    JsonObject jsonExpiryTimes = new JsonObject();
+
+    for (Map.Entry<String, Long> expiryTime : expiryTimes.entrySet()) {
+      jsonExpiryTimes.putNumber(expiryTime.getKey(), expiryTime.getValue());
+    }
+
+    send(createRequest("setExpiryTimes").putObject("expiryTimes", jsonExpiryTimes), expiryTimes.size(), reply -> null, handler);
+  }
+
+  @Override
+  public void getExpiryTimes(List<String> metricNames, AsyncResultHandler<Map<String, Long>> handler) {
+    JsonObject request = createRequest("getExpiryTimes").putArray("metricNames", new JsonArray(new ArrayList<Object>(metricNames)));
+
+    send(request, reply -> {
+      JsonObject value = reply.getObject("value");
+      HashMap<String, Long> expiryTimes = new HashMap<>();
+
+      for (String metricName : value.getFieldNames()) {
+        expiryTimes.put(metricName, value.getLong(metricName));
+      }
+
+      return expiryTimes;
+    }, handler);
+  }
+
+  @Override
+  public void removeExpiredMetrics(Clock clock, int maxCount, AsyncResultHandler<List<String>> handler) {
+    JsonObject request = createRequest("removeExpiredMetrics")
+      .putNumber("now", clock.millis())
+      .putNumber("maxCount", maxCount);
+
+    send(request, reply -> toStrings(reply.getArray("value")), handler);
+  }
+
+  private void writeMetrics(String action, JsonArray metrics, AsyncResultHandler<Void> handler) {
+    this.<Void>send(createRequest(action).putArray("metrics", metrics), metrics.size(), reply -> null, result -> {
+      if (result.failed()) {
+        logger.error("Failed to save metrics", result.cause());
+      }
+
+      handler.handle(result);
+    });
+  }
+
+  private static JsonObject createRequest(String action) {
+    return new JsonObject().putString("action", action);
+  }
+
+  private <T> void send(JsonObject request, Function<JsonObject, T> valueReader, AsyncResultHandler<T> handler) {
+    send(request, 0, valueReader, handler);
+  }
+
+  // A failed write names the metrics that were not written, out of the given number of metrics
+  private <T> void send(JsonObject request, int metricCount, Function<JsonObject, T> valueReader, AsyncResultHandler<T> handler) {
+    eventBus.send(ADDRESS, request, (Handler<Message<JsonObject>>) message -> {
+      JsonObject reply = message.body();
+
+      if (!"ok".equals(reply.getString("status"))) {
+        // The worker failed to read or write the files
+        Exception cause = new IOException(reply.getString("message"));
+
+        if (reply.containsField("failedMetricNames")) {
+          cause = new PartialWriteException(toStrings(reply.getArray("failedMetricNames")), metricCount, cause);
+        }
+
+        handler.handle(DefaultAsyncResult.fail(cause));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(valueReader.apply(reply)));
+    });
+  }
+
+  private static List<String> toStrings(JsonArray json) {
+    ArrayList<String> strings = new ArrayList<>();
+
+    for (String string : new JsonArrayIterable<String>(json)) {
+      strings.add(string);
+    }
+
+    return strings;
+  }
+}
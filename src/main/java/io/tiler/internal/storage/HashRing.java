@@ -0,0 +1,40 @@
+package io.tiler.internal.storage;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Assigns keys to nodes by consistent hashing.  Each node is placed at many points around the ring, and a key belongs
+// to the node at the first point at or after the key's hash, so adding a node only moves the keys it takes over.
+public class HashRing<T> {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+  private final int pointsPerNode;
+  private final TreeMap<Integer, T> points = new TreeMap<>();
+
+  public HashRing(int pointsPerNode) {
+    this.pointsPerNode = pointsPerNode;
+  }
+
+  // The name, rather than the order nodes are added in, decides where the node is placed
+  public void add(String nodeName, T node) {
+    for (int pointIndex = 0; pointIndex < pointsPerNode; pointIndex++) {
+      points.put(hash(nodeName + "#" + pointIndex), node);
+    }
+  }
+
+  public T get(String key) {
+    if (points.isEmpty()) {
+      throw new IllegalStateException("The hash ring has no nodes");
+    }
+
+    Map.Entry<Integer, T> point = points.ceilingEntry(hash(key));
+    return point == null ? points.firstEntry().getValue() : point.getValue();
+  }
+
+  private static int hash(String value) {
+    return HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8).asInt();
+  }
+}
@@ -0,0 +1,10 @@
+package io.tiler.internal.storage;
+
+import org.vertx.java.core.AsyncResultHandler;
+
+import java.util.List;
+
+public interface MetricNameBatchHandler {
+  // The next batch is not fetched until the handler is called
+  void handle(List<String> metricNames, AsyncResultHandler<Void> handler);
+}
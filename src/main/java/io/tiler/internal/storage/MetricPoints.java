@@ -0,0 +1,148 @@
+package io.tiler.internal.storage;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.queries.TimeRange;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+public final class MetricPoints {
+  // Set, to the rollup's resolution, on metrics whose points were read from a rollup
+  public static final String ROLLUP_RESOLUTION_FIELD = "rollupResolution";
+
+  private MetricPoints() {
+  }
+
+  // Copies every field of a metric except its points
+  public static JsonObject createMetricHeader(JsonObject metric) {
+    JsonObject header = new JsonObject();
+
+    for (String fieldName : metric.getFieldNames()) {
+      if (!"points".equals(fieldName)) {
+        header.putValue(fieldName, metric.getValue(fieldName));
+      }
+    }
+
+    return header;
+  }
+
+  // Points are ordered by time, and points without a numeric time sort as if their time was zero
+  public static double getPointScore(JsonObject point) {
+    Object time = point.getValue("time");
+
+    if (time instanceof Number) {
+      return ((Number) time).doubleValue();
+    }
+
+    return 0;
+  }
+
+  public static JsonArray filterPoints(JsonArray points, TimeRange timeRange) {
+    JsonArray pointsInRange = new JsonArray();
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+      Object time = point.getValue("time");
+
+      // Points without a numeric time are left for the where clause to deal with
+      if (!(time instanceof Number) || timeRange.contains(((Number) time).doubleValue())) {
+        pointsInRange.addObject(point);
+      }
+    }
+
+    return pointsInRange;
+  }
+
+  // Replaces the points that have the same key as an incoming point, where they are, and adds the rest of the incoming
+  // points after them.  Incoming points without the key field are always added.
+  public static JsonArray mergePoints(JsonArray points, JsonArray incomingPoints, String keyField) {
+    LinkedHashMap<Object, JsonObject> incomingPointsByKey = new LinkedHashMap<>();
+    JsonArray unkeyedPoints = new JsonArray();
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(incomingPoints)) {
+      Object key = getPointKey(point, keyField);
+
+      if (key == null) {
+        unkeyedPoints.addObject(point);
+      } else {
+        // The last point sent with a key wins
+        incomingPointsByKey.remove(key);
+        incomingPointsByKey.put(key, point);
+      }
+    }
+
+    JsonArray mergedPoints = new JsonArray();
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+      Object key = getPointKey(point, keyField);
+      JsonObject incomingPoint = key == null ? null : incomingPointsByKey.remove(key);
+      mergedPoints.addObject(incomingPoint == null ? point : incomingPoint);
+    }
+
+    for (JsonObject point : incomingPointsByKey.values()) {
+      mergedPoints.addObject(point);
+    }
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(unkeyedPoints)) {
+      mergedPoints.addObject(point);
+    }
+
+    return mergedPoints;
+  }
+
+  // Hands back the points whose key is not held by any of the other points, along with the points without the key field
+  public static JsonArray pointsNotIn(JsonArray points, JsonArray otherPoints, String keyField) {
+    HashSet<Object> otherKeys = new HashSet<>();
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(otherPoints)) {
+      Object key = getPointKey(point, keyField);
+
+      if (key != null) {
+        otherKeys.add(key);
+      }
+    }
+
+    JsonArray remainingPoints = new JsonArray();
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+      Object key = getPointKey(point, keyField);
+
+      if (key == null || !otherKeys.contains(key)) {
+        remainingPoints.addObject(point);
+      }
+    }
+
+    return remainingPoints;
+  }
+
+  // Fields sent with the incoming metric replace the stored ones, and fields that were not sent are kept
+  public static JsonObject mergeMetric(JsonObject metric, JsonObject incomingMetric, String keyField) {
+    JsonObject mergedMetric = createMetricHeader(metric);
+
+    for (String fieldName : incomingMetric.getFieldNames()) {
+      if (!"points".equals(fieldName)) {
+        mergedMetric.putValue(fieldName, incomingMetric.getValue(fieldName));
+      }
+    }
+
+    JsonArray points = metric.getArray("points");
+    JsonArray incomingPoints = incomingMetric.getArray("points");
+    mergedMetric.putArray("points", mergePoints(
+      points == null ? new JsonArray() : points,
+      incomingPoints == null ? new JsonArray() : incomingPoints,
+      keyField));
+    return mergedMetric;
+  }
+
+  // Numbers are compared by value, so a time sent as 1 matches a time stored as 1.0
+  private static Object getPointKey(JsonObject point, String keyField) {
+    Object key = point.getValue(keyField);
+
+    if (key instanceof Number) {
+      return ((Number) key).doubleValue();
+    }
+
+    return key;
+  }
+}
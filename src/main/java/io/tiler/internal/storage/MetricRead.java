@@ -0,0 +1,75 @@
+package io.tiler.internal.storage;
+
+import io.tiler.internal.queries.TimeRange;
+import org.vertx.java.core.json.JsonObject;
+
+public class MetricRead {
+  private static final MetricRead UNBOUNDED = new MetricRead(TimeRange.unbounded(), null);
+  private static final MetricRead WITHOUT_POINTS = new MetricRead(TimeRange.unbounded(), null, false);
+  private final TimeRange timeRange;
+  private final Long rollupResolution;
+  private final boolean includesPoints;
+
+  public MetricRead(TimeRange timeRange, Long rollupResolution, boolean includesPoints) {
+    this.timeRange = timeRange;
+    this.rollupResolution = rollupResolution;
+    this.includesPoints = includesPoints;
+  }
+
+  public MetricRead(TimeRange timeRange, Long rollupResolution) {
+    this(timeRange, rollupResolution, true);
+  }
+
+  public static MetricRead unbounded() {
+    return UNBOUNDED;
+  }
+
+  // Reads only the metric fields, and gives the metric an empty list of points
+  public static MetricRead withoutPoints() {
+    return WITHOUT_POINTS;
+  }
+
+  public static MetricRead fromJson(JsonObject json) {
+    Number from = json.getNumber("from");
+    Number to = json.getNumber("to");
+    TimeRange timeRange = new TimeRange(
+      from == null ? Double.NEGATIVE_INFINITY : from.doubleValue(),
+      to == null ? Double.POSITIVE_INFINITY : to.doubleValue());
+    return new MetricRead(timeRange, json.getLong("rollupResolution"), json.getBoolean("includesPoints", true));
+  }
+
+  public boolean includesPoints() {
+    return includesPoints;
+  }
+
+  public TimeRange timeRange() {
+    return timeRange;
+  }
+
+  public boolean hasRollupResolution() {
+    return rollupResolution != null;
+  }
+
+  public Long rollupResolution() {
+    return rollupResolution;
+  }
+
+  // Open ends of the time range are left out, as JSON cannot hold infinities
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject().putBoolean("includesPoints", includesPoints);
+
+    if (timeRange.from() != Double.NEGATIVE_INFINITY) {
+      json.putNumber("from", timeRange.from());
+    }
+
+    if (timeRange.to() != Double.POSITIVE_INFINITY) {
+      json.putNumber("to", timeRange.to());
+    }
+
+    if (rollupResolution != null) {
+      json.putNumber("rollupResolution", rollupResolution);
+    }
+
+    return json;
+  }
+}
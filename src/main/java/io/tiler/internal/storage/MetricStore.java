@@ -0,0 +1,81 @@
+package io.tiler.internal.storage;
+
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+public interface MetricStore {
+  void start(AsyncResultHandler<Void> handler);
+
+  // Replaces each metric, including all of its points
+  void saveMetrics(JsonArray metrics, AsyncResultHandler<Void> handler);
+
+  boolean supportsAppend();
+
+  // Adds points to each metric, creating the metric if it does not exist yet
+  void appendPoints(JsonArray metrics, AsyncResultHandler<Void> handler);
+
+  // Adds points to each metric, replacing stored points that have the same merge key, and creates the metric if it
+  // does not exist yet.  Other metric fields that are sent replace the stored ones.
+  void mergePoints(JsonArray metrics, AsyncResultHandler<Void> handler);
+
+  // Hands the metric names over a batch at a time, so the whole set of names never has to be read in one go.  A name
+  // can be handed over more than once if metrics are saved while the names are being scanned.
+  void scanMetricNames(MetricNameBatchHandler batchHandler, AsyncResultHandler<Void> handler);
+
+  default void getMetricNames(AsyncResultHandler<Collection<String>> handler) {
+    ArrayList<String> metricNames = new ArrayList<>();
+
+    scanMetricNames((batchMetricNames, batchHandler) -> {
+      metricNames.addAll(batchMetricNames);
+      batchHandler.handle(DefaultAsyncResult.succeed());
+    }, result -> {
+      if (result.failed()) {
+        handler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(metricNames));
+    });
+  }
+
+  // Metrics that do not exist are left out of the result
+  void getMetrics(Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler);
+
+  // Resolutions, in microseconds, of the rollups that reads can be served from
+  List<Long> rollupResolutions();
+
+  // Hands back every rollup point of the metrics, keyed by metric name and then by resolution, leaving out metrics
+  // and resolutions that have none
+  default void getRollupPoints(List<String> metricNames, AsyncResultHandler<JsonObject> handler) {
+    handler.handle(DefaultAsyncResult.succeed(new JsonObject()));
+  }
+
+  // Replaces the rollup points of each metric, keyed as getRollupPoints hands them back.  Resolutions that are not
+  // rolled up by this store are skipped.
+  default void saveRollupPoints(JsonObject rollupPoints, AsyncResultHandler<Void> handler) {
+    handler.handle(DefaultAsyncResult.succeed());
+  }
+
+  // Whether retention has to be applied periodically, rather than only when metrics are saved
+  boolean hasBackgroundRetention();
+
+  void applyRetention(Clock clock, AsyncResultHandler<Void> handler);
+
+  // Sets the time, in microseconds, at which each metric is removed unless this is called for it again first
+  void setExpiryTimes(Map<String, Long> expiryTimes, AsyncResultHandler<Void> handler);
+
+  // Hands back the expiry times of the metrics that have one
+  void getExpiryTimes(List<String> metricNames, AsyncResultHandler<Map<String, Long>> handler);
+
+  // Removes up to the given number of metrics whose expiry time has passed, along with their names, and hands back
+  // the names of the metrics removed
+  void removeExpiredMetrics(Clock clock, int maxCount, AsyncResultHandler<List<String>> handler);
+}
@@ -0,0 +1,901 @@
+package io.tiler.internal.storage;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.PartialWriteException;
+import io.tiler.internal.RedisBatch;
+import io.tiler.internal.RedisException;
+import io.tiler.internal.config.Config;
+import io.tiler.internal.config.RedisConfig;
+import io.tiler.internal.config.RetentionConfig;
+import io.tiler.internal.config.StorageMode;
+import io.tiler.internal.queries.TimeRange;
+import io.tiler.internal.storage.codecs.CompressionStats;
+import io.tiler.internal.storage.codecs.MetricDocumentCodec;
+import io.vertx.java.redis.RedisClient;
+import org.simondean.vertx.async.AsyncResultHandlerWrapper;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.time.Clock;
+import java.util.*;
+import java.util.function.Function;
+
+public class RedisMetricStore implements MetricStore {
+  // Replaces the points with the same merge key as each new point and then adds the new point.  When the merge key is
+  // time only the points with the same score are looked at, otherwise every point of the metric is.
+  private static final String UPSERT_POINTS_SCRIPT =
+    "local keyField = ARGV[1] " +
+    "local byTime = ARGV[2] == '1' " +
+    "local storedPoints = nil " +
+    "for i = 3, #ARGV, 2 do " +
+    "  local key = cjson.decode(ARGV[i + 1])[keyField] " +
+    "  if key ~= nil then " +
+    "    local candidates " +
+    "    if byTime then " +
+    "      candidates = redis.call('ZRANGEBYSCORE', KEYS[1], ARGV[i], ARGV[i]) " +
+    "    else " +
+    "      if storedPoints == nil then storedPoints = redis.call('ZRANGE', KEYS[1], 0, -1) end " +
+    "      candidates = storedPoints " +
+    "    end " +
+    "    for _, candidate in ipairs(candidates) do " +
+    "      if cjson.decode(candidate)[keyField] == key then redis.call('ZREM', KEYS[1], candidate) end " +
+    "    end " +
+    "  end " +
+    "  redis.call('ZADD', KEYS[1], ARGV[i], ARGV[i + 1]) " +
+    "end " +
+    "return 1";
+  // Only sets the new value if the stored value has not changed since it was read, where an empty string means the
+  // key did not exist
+  private static final String COMPARE_AND_SET_SCRIPT =
+    "local current = redis.call('GET', KEYS[1]) " +
+    "if (current == false and ARGV[1] == '') or current == ARGV[1] then " +
+    "  redis.call('SET', KEYS[1], ARGV[2]) " +
+    "  redis.call('SET', KEYS[2], ARGV[3]) " +
+    "  return 1 " +
+    "end " +
+    "return 0";
+  // Removes the metrics whose expiry time has passed.  The metrics' keys are built from the key prefixes passed in, as
+  // the names are only known once the script runs, and doing it all in the script means a metric written just after
+  // it has been found to be expired is not then removed.
+  private static final String REMOVE_EXPIRED_METRICS_SCRIPT =
+    "local names = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) " +
+    "for _, name in ipairs(names) do " +
+    "  redis.call('ZREM', KEYS[1], name) " +
+    "  redis.call('SREM', KEYS[2], name) " +
+    "  for i = 3, #ARGV do redis.call('DEL', ARGV[i] .. name) end " +
+    "end " +
+    "return names";
+  private static final int MAX_MERGE_ATTEMPTS = 5;
+  private final Container container;
+  private final Config config;
+  private final RedisConfig redisConfig;
+  private final Logger logger;
+  private final RedisClient redis;
+  private final RetentionManager retentionManager;
+  private final MetricDocumentCodec documentCodec;
+
+  public RedisMetricStore(Container container, EventBus eventBus, Config config, RedisConfig redisConfig, CompressionStats compressionStats, Logger logger) {
+    this.container = container;
+    this.config = config;
+    this.redisConfig = redisConfig;
+    this.logger = logger;
+    redis = new RedisClient(eventBus, redisConfig.address());
+    retentionManager = new RetentionManager(redis, config, logger);
+    documentCodec = new MetricDocumentCodec(config.storage().encoding(), config.storage().compression(), compressionStats);
+  }
+
+  @Override
+  public void start(AsyncResultHandler<Void> handler) {
+    container.deployModule("io.vertx~mod-redis~1.1.4", redisConfig.toRedisModuleConfig(), 1, AsyncResultHandlerWrapper.wrap(handler));
+  }
+
+  @Override
+  public void saveMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    if (metrics.size() == 0) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    logger.info("Saving " + metrics.size() + " metrics to Redis at " + redisConfig.shardName());
+    RedisBatch batch = createWriteBatch(metrics, handler);
+
+    // None of the commands wait for the reply to the previous one, so the Redis module pipelines them all down its
+    // connection and the whole save costs roughly one round trip
+    addMetricNames(metrics, batch);
+
+    if (config.storage().mode() == StorageMode.Points) {
+      for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+        replaceMetricHeaderAndPoints(metric, batch);
+      }
+    } else {
+      setMetricDocuments(metrics, batch);
+    }
+  }
+
+  @Override
+  public boolean supportsAppend() {
+    return config.storage().mode() == StorageMode.Points;
+  }
+
+  @Override
+  public void appendPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    if (!supportsAppend()) {
+      handler.handle(DefaultAsyncResult.fail(new UnsupportedOperationException("Appending points requires the '" + StorageMode.Points.name().toLowerCase() + "' storage mode")));
+      return;
+    }
+
+    if (metrics.size() == 0) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    logger.info("Appending points to " + metrics.size() + " metrics in Redis at " + redisConfig.shardName());
+    RedisBatch batch = createWriteBatch(metrics, rollUpAgainHandler(metrics, handler));
+    addMetricNames(metrics, batch);
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      setMetricHeader(metric, batch);
+      addPoints(metric, batch);
+    }
+  }
+
+  @Override
+  public void mergePoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    if (metrics.size() == 0) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    logger.info("Merging points into " + metrics.size() + " metrics in Redis at " + redisConfig.shardName());
+
+    boolean pointsMode = config.storage().mode() == StorageMode.Points;
+    RedisBatch batch = createWriteBatch(metrics, pointsMode ? rollUpAgainHandler(metrics, handler) : handler);
+    addMetricNames(metrics, batch);
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      if (pointsMode) {
+        setMetricHeader(metric, batch);
+        upsertPoints(metric, batch);
+      } else {
+        mergeMetricDocument(metric, MAX_MERGE_ATTEMPTS, batch.replyBodyHandler(Collections.singletonList(metric.getString("name")), null));
+      }
+    }
+  }
+
+  @Override
+  public void scanMetricNames(MetricNameBatchHandler batchHandler, AsyncResultHandler<Void> handler) {
+    scanMetricNames("0", batchHandler, handler);
+  }
+
+  @Override
+  public void getMetrics(Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler) {
+    if (metricReads.size() == 0) {
+      handler.handle(DefaultAsyncResult.succeed(new JsonArray()));
+      return;
+    }
+
+    if (config.storage().mode() == StorageMode.Points) {
+      getPointMetrics(metricReads, handler);
+      return;
+    }
+
+    getDocumentMetrics(metricReads, handler);
+  }
+
+  @Override
+  public List<Long> rollupResolutions() {
+    return config.storage().mode() == StorageMode.Points
+      ? retentionManager.rollupResolutions()
+      : Collections.emptyList();
+  }
+
+  @Override
+  public void getRollupPoints(List<String> metricNames, AsyncResultHandler<JsonObject> handler) {
+    JsonObject rollupPoints = new JsonObject();
+    List<Long> rollupResolutions = rollupResolutions();
+
+    if (metricNames.isEmpty() || rollupResolutions.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed(rollupPoints));
+      return;
+    }
+
+    RedisBatch batch = new RedisBatch(completedBatch -> {
+      if (completedBatch.failed()) {
+        handler.handle(DefaultAsyncResult.fail(completedBatch.firstFailure()));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(rollupPoints));
+    });
+
+    for (String metricName : metricNames) {
+      for (long rollupResolution : rollupResolutions) {
+        redis.zrange(config.getMetricRollupKey(metricName, rollupResolution), 0, -1, batch.replyHandler(Collections.singletonList(metricName), body -> {
+          JsonArray points = parsePoints(body.getArray("value"));
+
+          if (points.size() == 0) {
+            return;
+          }
+
+          JsonObject metricRollupPoints = rollupPoints.getObject(metricName);
+
+          if (metricRollupPoints == null) {
+            metricRollupPoints = new JsonObject();
+            rollupPoints.putObject(metricName, metricRollupPoints);
+          }
+
+          metricRollupPoints.putArray(Long.toString(rollupResolution), points);
+        }));
+      }
+    }
+  }
+
+  @Override
+  public void saveRollupPoints(JsonObject rollupPoints, AsyncResultHandler<Void> handler) {
+    List<Long> rollupResolutions = rollupResolutions();
+
+    if (rollupPoints.size() == 0 || rollupResolutions.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    RedisBatch batch = new RedisBatch(completedBatch -> {
+      if (completedBatch.failed()) {
+        handler.handle(DefaultAsyncResult.fail(new PartialWriteException(completedBatch.failedMetricNames(), rollupPoints.size(), completedBatch.firstFailure())));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed());
+    });
+
+    for (String metricName : rollupPoints.getFieldNames()) {
+      JsonObject metricRollupPoints = rollupPoints.getObject(metricName);
+      List<String> metricNames = Collections.singletonList(metricName);
+
+      // The transaction stops readers from seeing the metric between its old rollups going and the new ones arriving
+      redis.multi(batch.replyHandler(metricNames));
+
+      for (long rollupResolution : rollupResolutions) {
+        String rollupKey = config.getMetricRollupKey(metricName, rollupResolution);
+        redis.del(rollupKey, batch.replyHandler(metricNames));
+        addPoints(rollupKey, metricRollupPoints.getArray(Long.toString(rollupResolution)), metricNames, batch);
+      }
+
+      redis.exec(batch.replyHandler(metricNames));
+    }
+  }
+
+  @Override
+  public boolean hasBackgroundRetention() {
+    // Documents are trimmed whenever they are saved
+    return config.storage().mode() == StorageMode.Points;
+  }
+
+  @Override
+  public void applyRetention(Clock clock, AsyncResultHandler<Void> handler) {
+    // Each batch of names is finished with before the next is scanned, so retention never holds every name at once
+    scanMetricNames((metricNames, batchHandler) -> retentionManager.run(metricNames, clock, batchHandler), handler);
+  }
+
+  private void scanMetricNames(String cursor, MetricNameBatchHandler batchHandler, AsyncResultHandler<Void> handler) {
+    // Unlike SMEMBERS, each SSCAN only walks a small part of the set, so a large number of metrics never blocks Redis
+    // while it replies with every name
+    redis.sscan(config.getMetricNamesKey(), cursor, "COUNT", redisConfig.scanCount(), (Handler<Message<JsonObject>>) reply -> {
+      JsonObject body = reply.body();
+      String status = body.getString("status");
+
+      if (!"ok".equals(status)) {
+        handler.handle(DefaultAsyncResult.fail(new RedisException(body)));
+        return;
+      }
+
+      JsonArray value = body.getArray("value");
+      Object nextCursor = value.get(0);
+      ArrayList<String> metricNames = new ArrayList<>();
+
+      for (String redisValue : new JsonArrayIterable<String>(value.get(1))) {
+        metricNames.add(redisValue);
+      }
+
+      batchHandler.handle(metricNames, batchResult -> {
+        if (batchResult.failed()) {
+          handler.handle(batchResult);
+          return;
+        }
+
+        // The scan is finished when Redis hands back the cursor it started from
+        if ("0".equals(nextCursor.toString())) {
+          handler.handle(DefaultAsyncResult.succeed());
+          return;
+        }
+
+        scanMetricNames(nextCursor.toString(), batchHandler, handler);
+      });
+    });
+  }
+
+  private void getValues(List<String> metricNames, Function<String, String> getKey, String[] values, RedisBatch batch) {
+    int readBatchSize = redisConfig.readBatchSize();
+
+    // Splitting the read into several MGET commands stops one large read from holding up Redis for everyone else.  The
+    // commands are still pipelined, so the read costs roughly one round trip.
+    for (int batchStart = 0; batchStart < metricNames.size(); batchStart += readBatchSize) {
+      int batchEnd = Math.min(batchStart + readBatchSize, metricNames.size());
+      int firstValueIndex = batchStart;
+      List<String> batchMetricNames = metricNames.subList(batchStart, batchEnd);
+      ArrayList<Object> mgetArgs = new ArrayList<>();
+
+      for (String metricName : batchMetricNames) {
+        mgetArgs.add(getKey.apply(metricName));
+      }
+
+      mgetArgs.add(batch.replyHandler(batchMetricNames, body -> {
+        int valueIndex = firstValueIndex;
+
+        for (String redisValue : new JsonArrayIterable<String>(body.getArray("value"))) {
+          values[valueIndex++] = redisValue;
+        }
+      }));
+
+      redis.mget(mgetArgs.toArray());
+    }
+  }
+
+  @Override
+  public void setExpiryTimes(Map<String, Long> expiryTimes, AsyncResultHandler<Void> handler) {
+    if (expiryTimes.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    RedisBatch batch = new RedisBatch(completedBatch -> {
+      if (completedBatch.failed()) {
+        handler.handle(DefaultAsyncResult.fail(new PartialWriteException(completedBatch.failedMetricNames(), expiryTimes.size(), completedBatch.firstFailure())));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed());
+    });
+
+    ArrayList<String> metricNames = new ArrayList<>(expiryTimes.keySet());
+    int writeBatchSize = redisConfig.writeBatchSize();
+
+    // The expiry times are kept in a sorted set so the expired metrics can be found without looking at every metric
+    for (int batchStart = 0; batchStart < metricNames.size(); batchStart += writeBatchSize) {
+      List<String> batchMetricNames = metricNames.subList(batchStart, Math.min(batchStart + writeBatchSize, metricNames.size()));
+      ArrayList<Object> zaddArgs = new ArrayList<>();
+      zaddArgs.add(config.getMetricExpiryTimesKey());
+
+      for (String metricName : batchMetricNames) {
+        zaddArgs.add(expiryTimes.get(metricName));
+        zaddArgs.add(metricName);
+      }
+
+      zaddArgs.add(batch.replyHandler(batchMetricNames));
+      redis.zadd(zaddArgs.toArray());
+    }
+  }
+
+  @Override
+  public void removeExpiredMetrics(Clock clock, int maxCount, AsyncResultHandler<List<String>> handler) {
+    ArrayList<Object> evalArgs = new ArrayList<>();
+    evalArgs.add(REMOVE_EXPIRED_METRICS_SCRIPT);
+    evalArgs.add(2);
+    evalArgs.add(config.getMetricExpiryTimesKey());
+    evalArgs.add(config.getMetricNamesKey());
+    evalArgs.add(clock.millis() * 1000L);
+    evalArgs.add(maxCount);
+    evalArgs.add(config.getMetricKey(""));
+    evalArgs.add(config.getMetricHeaderKey(""));
+    evalArgs.add(config.getMetricPointsKey(""));
+
+    for (long rollupResolution : retentionManager.rollupResolutions()) {
+      evalArgs.add(config.getMetricRollupKey("", rollupResolution));
+    }
+
+    evalArgs.add((Handler<Message<JsonObject>>) reply -> {
+      JsonObject body = reply.body();
+
+      if (!"ok".equals(body.getString("status"))) {
+        handler.handle(DefaultAsyncResult.fail(new RedisException(body)));
+        return;
+      }
+
+      ArrayList<String> metricNames = new ArrayList<>();
+
+      for (String metricName : new JsonArrayIterable<String>(body.getArray("value"))) {
+        metricNames.add(metricName);
+      }
+
+      if (!metricNames.isEmpty()) {
+        logger.info("Removed " + metricNames.size() + " expired metrics from Redis at " + redisConfig.shardName());
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(metricNames));
+    });
+
+    redis.eval(evalArgs.toArray());
+  }
+
+  @Override
+  public void getExpiryTimes(List<String> metricNames, AsyncResultHandler<Map<String, Long>> handler) {
+    HashMap<String, Long> expiryTimes = new HashMap<>();
+
+    if (metricNames.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed(expiryTimes));
+      return;
+    }
+
+    RedisBatch batch = new RedisBatch(completedBatch -> {
+      if (completedBatch.failed()) {
+        handler.handle(DefaultAsyncResult.fail(completedBatch.firstFailure()));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(expiryTimes));
+    });
+
+    for (String metricName : metricNames) {
+      redis.zscore(config.getMetricExpiryTimesKey(), metricName, batch.replyHandler(Collections.singletonList(metricName), body -> {
+        Object score = body.getValue("value");
+
+        if (score != null) {
+          // Scores come back as strings
+          expiryTimes.put(metricName, (long) Double.parseDouble(score.toString()));
+        }
+      }));
+    }
+  }
+
+  // Removes the metrics, including their points and rollups, and their names
+  public void deleteMetrics(List<String> metricNames, AsyncResultHandler<Void> handler) {
+    if (metricNames.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    RedisBatch batch = new RedisBatch(completedBatch -> {
+      if (completedBatch.failed()) {
+        handler.handle(DefaultAsyncResult.fail(completedBatch.firstFailure()));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed());
+    });
+
+    ArrayList<Object> sremArgs = new ArrayList<>();
+    sremArgs.add(config.getMetricNamesKey());
+    sremArgs.addAll(metricNames);
+    sremArgs.add(batch.replyHandler(metricNames));
+    redis.srem(sremArgs.toArray());
+
+    ArrayList<Object> zremArgs = new ArrayList<>();
+    zremArgs.add(config.getMetricExpiryTimesKey());
+    zremArgs.addAll(metricNames);
+    zremArgs.add(batch.replyHandler(metricNames));
+    redis.zrem(zremArgs.toArray());
+
+    for (String metricName : metricNames) {
+      ArrayList<Object> delArgs = new ArrayList<>();
+      delArgs.add(config.getMetricKey(metricName));
+      delArgs.add(config.getMetricHeaderKey(metricName));
+      delArgs.add(config.getMetricPointsKey(metricName));
+
+      for (long rollupResolution : retentionManager.rollupResolutions()) {
+        delArgs.add(config.getMetricRollupKey(metricName, rollupResolution));
+      }
+
+      delArgs.add(batch.replyHandler(Collections.singletonList(metricName)));
+      redis.del(delArgs.toArray());
+    }
+  }
+
+  // Points written into buckets that are already rolled up change what those buckets should hold.  The points are
+  // stored whether or not that works, so a failure is only logged, and the write is not tried again.
+  private AsyncResultHandler<Void> rollUpAgainHandler(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    if (retentionManager.rollupResolutions().isEmpty()) {
+      return handler;
+    }
+
+    return result -> {
+      if (result.failed()) {
+        handler.handle(result);
+        return;
+      }
+
+      retentionManager.rollUpAgain(metrics, Clock.systemUTC(), rolledUp -> {
+        if (rolledUp.failed()) {
+          logger.error("Failed to roll up points written into buckets that had already been rolled up", rolledUp.cause());
+        }
+
+        handler.handle(DefaultAsyncResult.succeed());
+      });
+    };
+  }
+
+  private RedisBatch createWriteBatch(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    return new RedisBatch(batch -> {
+      if (batch.failed()) {
+        PartialWriteException e = new PartialWriteException(batch.failedMetricNames(), metrics.size(), batch.firstFailure());
+        logger.error("Failed to save metrics " + e.failedMetricNames(), e);
+        handler.handle(DefaultAsyncResult.fail(e));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed());
+    });
+  }
+
+  private void addMetricNames(JsonArray metrics, RedisBatch batch) {
+    ArrayList<String> metricNames = new ArrayList<>();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      metricNames.add(metric.getString("name"));
+    }
+
+    ArrayList<Object> saddArgs = new ArrayList<>();
+    saddArgs.add(config.getMetricNamesKey());
+    saddArgs.addAll(metricNames);
+    saddArgs.add(batch.replyHandler(metricNames));
+    redis.sadd(saddArgs.toArray());
+  }
+
+  private void setMetricDocuments(JsonArray metrics, RedisBatch batch) {
+    int writeBatchSize = redisConfig.writeBatchSize();
+    RetentionConfig retentionConfig = config.storage().retention();
+    Clock clock = Clock.systemUTC();
+
+    for (int batchStart = 0; batchStart < metrics.size(); batchStart += writeBatchSize) {
+      int batchEnd = Math.min(batchStart + writeBatchSize, metrics.size());
+      ArrayList<String> batchMetricNames = new ArrayList<>();
+      ArrayList<Object> msetArgs = new ArrayList<>();
+
+      for (int metricIndex = batchStart; metricIndex < batchEnd; metricIndex++) {
+        JsonObject metric = metrics.get(metricIndex);
+        String metricName = metric.getString("name");
+
+        if (retentionConfig.hasMaxAge() || retentionConfig.hasMaxCount()) {
+          // Documents are rewritten whole on every save, so this is the cheapest place to drop old points
+          retentionManager.trimPoints(metric, clock);
+        }
+
+        batchMetricNames.add(metricName);
+        msetArgs.add(config.getMetricKey(metricName));
+        msetArgs.add(documentCodec.encode(metric));
+        // Kept beside the document so metrics can be read without their points
+        msetArgs.add(config.getMetricHeaderKey(metricName));
+        msetArgs.add(MetricPoints.createMetricHeader(metric).encode());
+      }
+
+      msetArgs.add(batch.replyHandler(batchMetricNames));
+      redis.mset(msetArgs.toArray());
+    }
+  }
+
+  private void setMetricHeader(JsonObject metric, RedisBatch batch) {
+    String metricName = metric.getString("name");
+    List<String> metricNames = Collections.singletonList(metricName);
+    JsonObject header = MetricPoints.createMetricHeader(metric);
+
+    if (header.size() > 1) {
+      redis.set(config.getMetricHeaderKey(metricName), header.encode(), batch.replyHandler(metricNames));
+    } else {
+      // Only the name was given, so leave any existing metric fields alone
+      redis.setnx(config.getMetricHeaderKey(metricName), header.encode(), batch.replyHandler(metricNames));
+    }
+  }
+
+  private void upsertPoints(JsonObject metric, RedisBatch batch) {
+    String metricName = metric.getString("name");
+    JsonArray points = metric.getArray("points");
+
+    if (points == null || points.size() == 0) {
+      return;
+    }
+
+    String mergeKey = config.storage().mergeKey();
+    // Points sent more than once in the same metric would otherwise all be kept by the script
+    points = MetricPoints.mergePoints(new JsonArray(), points, mergeKey);
+    List<String> metricNames = Collections.singletonList(metricName);
+    int writeBatchSize = redisConfig.writeBatchSize();
+
+    for (int batchStart = 0; batchStart < points.size(); batchStart += writeBatchSize) {
+      int batchEnd = Math.min(batchStart + writeBatchSize, points.size());
+      ArrayList<Object> evalArgs = new ArrayList<>();
+      evalArgs.add(UPSERT_POINTS_SCRIPT);
+      evalArgs.add(1);
+      evalArgs.add(config.getMetricPointsKey(metricName));
+      evalArgs.add(mergeKey);
+      evalArgs.add("time".equals(mergeKey) ? "1" : "0");
+
+      for (int pointIndex = batchStart; pointIndex < batchEnd; pointIndex++) {
+        JsonObject point = points.get(pointIndex);
+        evalArgs.add(MetricPoints.getPointScore(point));
+        evalArgs.add(point.encode());
+      }
+
+      evalArgs.add(batch.replyHandler(metricNames));
+      redis.eval(evalArgs.toArray());
+    }
+  }
+
+  // Documents are merged here rather than in a script, since Lua's JSON library would round the microsecond times
+  // when writing the document back.  The compare and set keeps the merge from losing a write made after the read.
+  private void mergeMetricDocument(JsonObject metric, int attemptsLeft, Handler<JsonObject> replyHandler) {
+    String metricName = metric.getString("name");
+    String metricKey = config.getMetricKey(metricName);
+
+    redis.get(metricKey, (Handler<Message<JsonObject>>) getReply -> {
+      if (!"ok".equals(getReply.body().getString("status"))) {
+        replyHandler.handle(getReply.body());
+        return;
+      }
+
+      String storedValue = getReply.body().getString("value");
+      JsonObject mergedMetric = storedValue == null
+        ? MetricPoints.mergeMetric(new JsonObject(), metric, config.storage().mergeKey())
+        : MetricPoints.mergeMetric(documentCodec.decode(storedValue), metric, config.storage().mergeKey());
+      RetentionConfig retentionConfig = config.storage().retention();
+
+      if (retentionConfig.hasMaxAge() || retentionConfig.hasMaxCount()) {
+        retentionManager.trimPoints(mergedMetric, Clock.systemUTC());
+      }
+
+      redis.eval(COMPARE_AND_SET_SCRIPT, 2, metricKey, config.getMetricHeaderKey(metricName), storedValue == null ? "" : storedValue,
+        documentCodec.encode(mergedMetric), MetricPoints.createMetricHeader(mergedMetric).encode(), (Handler<Message<JsonObject>>) setReply -> {
+        JsonObject body = setReply.body();
+
+        if (!"ok".equals(body.getString("status")) || body.getInteger("value") == 1) {
+          replyHandler.handle(body);
+          return;
+        }
+
+        if (attemptsLeft <= 1) {
+          replyHandler.handle(new JsonObject()
+            .putString("status", "error")
+            .putString("message", "The metric kept changing while points were being merged into it"));
+          return;
+        }
+
+        mergeMetricDocument(metric, attemptsLeft - 1, replyHandler);
+      });
+    });
+  }
+
+  private void replaceMetricHeaderAndPoints(JsonObject metric, RedisBatch batch) {
+    String metricName = metric.getString("name");
+    List<String> metricNames = Collections.singletonList(metricName);
+
+    // The transaction stops readers from seeing the metric between the old points being removed and the new ones
+    // being added.  The rollups of the old points go too, so that the new points are rolled up from the start.
+    redis.multi(batch.replyHandler(metricNames));
+    ArrayList<Object> delArgs = new ArrayList<>();
+    delArgs.add(config.getMetricPointsKey(metricName));
+
+    for (long rollupResolution : retentionManager.rollupResolutions()) {
+      delArgs.add(config.getMetricRollupKey(metricName, rollupResolution));
+    }
+
+    delArgs.add(batch.replyHandler(metricNames));
+    redis.del(delArgs.toArray());
+    redis.set(config.getMetricHeaderKey(metricName), MetricPoints.createMetricHeader(metric).encode(), batch.replyHandler(metricNames));
+    addPoints(metric, batch);
+    redis.exec(batch.replyHandler(metricNames));
+  }
+
+  private void addPoints(JsonObject metric, RedisBatch batch) {
+    String metricName = metric.getString("name");
+    addPoints(config.getMetricPointsKey(metricName), metric.getArray("points"), Collections.singletonList(metricName), batch);
+  }
+
+  private void addPoints(String key, JsonArray points, List<String> metricNames, RedisBatch batch) {
+    if (points == null || points.size() == 0) {
+      return;
+    }
+
+    int writeBatchSize = redisConfig.writeBatchSize();
+
+    for (int batchStart = 0; batchStart < points.size(); batchStart += writeBatchSize) {
+      int batchEnd = Math.min(batchStart + writeBatchSize, points.size());
+      ArrayList<Object> zaddArgs = new ArrayList<>();
+      zaddArgs.add(key);
+
+      for (int pointIndex = batchStart; pointIndex < batchEnd; pointIndex++) {
+        JsonObject point = points.get(pointIndex);
+        zaddArgs.add(MetricPoints.getPointScore(point));
+        zaddArgs.add(point.encode());
+      }
+
+      zaddArgs.add(batch.replyHandler(metricNames));
+      redis.zadd(zaddArgs.toArray());
+    }
+  }
+
+  private void getDocumentMetrics(Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler) {
+    // Metrics read without their points only need their header, which is far smaller than the document
+    ArrayList<String> documentMetricNames = new ArrayList<>();
+    ArrayList<String> headerMetricNames = new ArrayList<>();
+
+    for (Map.Entry<String, MetricRead> metricRead : metricReads.entrySet()) {
+      (metricRead.getValue().includesPoints() ? documentMetricNames : headerMetricNames).add(metricRead.getKey());
+    }
+
+    String[] documents = new String[documentMetricNames.size()];
+    String[] headers = new String[headerMetricNames.size()];
+
+    RedisBatch batch = new RedisBatch(completedBatch -> {
+      if (completedBatch.failed()) {
+        handler.handle(DefaultAsyncResult.fail(completedBatch.firstFailure()));
+        return;
+      }
+
+      HashMap<String, JsonObject> foundMetrics = new HashMap<>();
+
+      for (int metricIndex = 0; metricIndex < documents.length; metricIndex++) {
+        if (documents[metricIndex] != null) {
+          String metricName = documentMetricNames.get(metricIndex);
+          JsonObject metric = documentCodec.decode(documents[metricIndex]);
+          filterPoints(metric, metricReads.get(metricName).timeRange());
+          foundMetrics.put(metricName, metric);
+        }
+      }
+
+      LinkedHashMap<String, MetricRead> headerlessMetricReads = new LinkedHashMap<>();
+
+      for (int metricIndex = 0; metricIndex < headers.length; metricIndex++) {
+        String metricName = headerMetricNames.get(metricIndex);
+
+        if (headers[metricIndex] != null) {
+          foundMetrics.put(metricName, new JsonObject(headers[metricIndex]).putArray("points", new JsonArray()));
+        } else {
+          headerlessMetricReads.put(metricName, MetricRead.unbounded());
+        }
+      }
+
+      if (headerlessMetricReads.isEmpty()) {
+        handler.handle(DefaultAsyncResult.succeed(orderMetrics(metricReads.keySet(), foundMetrics)));
+        return;
+      }
+
+      // Documents saved before headers were stored alongside them have to be read whole
+      getDocumentMetrics(headerlessMetricReads, headerlessMetrics -> {
+        if (headerlessMetrics.failed()) {
+          handler.handle(headerlessMetrics);
+          return;
+        }
+
+        for (JsonObject metric : new JsonArrayIterable<JsonObject>(headerlessMetrics.result())) {
+          foundMetrics.put(metric.getString("name"), MetricPoints.createMetricHeader(metric).putArray("points", new JsonArray()));
+        }
+
+        handler.handle(DefaultAsyncResult.succeed(orderMetrics(metricReads.keySet(), foundMetrics)));
+      });
+    });
+
+    getValues(documentMetricNames, config::getMetricKey, documents, batch);
+    getValues(headerMetricNames, config::getMetricHeaderKey, headers, batch);
+  }
+
+  private JsonArray orderMetrics(Collection<String> metricNames, Map<String, JsonObject> foundMetrics) {
+    JsonArray metrics = new JsonArray();
+
+    for (String metricName : metricNames) {
+      JsonObject metric = foundMetrics.get(metricName);
+
+      if (metric != null) {
+        metrics.addObject(metric);
+      }
+    }
+
+    return metrics;
+  }
+
+  private void filterPoints(JsonObject metric, TimeRange timeRange) {
+    JsonArray points = metric.getArray("points");
+
+    if (timeRange == null || timeRange.isUnbounded() || points == null) {
+      return;
+    }
+
+    metric.putArray("points", MetricPoints.filterPoints(points, timeRange));
+  }
+
+  private void getPointMetrics(Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler) {
+    ArrayList<String> metricNames = new ArrayList<>(metricReads.keySet());
+    String[] headers = new String[metricNames.size()];
+    JsonArray[] points = new JsonArray[metricNames.size()];
+    Long[] rollupResolutions = new Long[metricNames.size()];
+
+    RedisBatch batch = new RedisBatch(completedBatch -> {
+      if (completedBatch.failed()) {
+        handler.handle(DefaultAsyncResult.fail(completedBatch.firstFailure()));
+        return;
+      }
+
+      JsonArray metrics = new JsonArray();
+
+      for (int metricIndex = 0; metricIndex < headers.length; metricIndex++) {
+        if (headers[metricIndex] != null) {
+          JsonObject metric = new JsonObject(headers[metricIndex]);
+          metric.putArray("points", points[metricIndex]);
+
+          if (rollupResolutions[metricIndex] != null) {
+            metric.putNumber(MetricPoints.ROLLUP_RESOLUTION_FIELD, rollupResolutions[metricIndex]);
+          }
+
+          metrics.addObject(metric);
+        }
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(metrics));
+    });
+
+    getValues(metricNames, config::getMetricHeaderKey, headers, batch);
+
+    for (int metricIndex = 0; metricIndex < metricNames.size(); metricIndex++) {
+      String metricName = metricNames.get(metricIndex);
+      int pointsIndex = metricIndex;
+      MetricRead metricRead = metricReads.get(metricName);
+      List<String> pointMetricNames = Collections.singletonList(metricName);
+      TimeRange timeRange = metricRead.timeRange();
+
+      if (!metricRead.includesPoints()) {
+        points[pointsIndex] = new JsonArray();
+        continue;
+      }
+
+      if (!metricRead.hasRollupResolution()) {
+        redis.zrangebyscore(config.getMetricPointsKey(metricName), timeRange.redisFrom(), timeRange.redisTo(), batch.replyHandler(pointMetricNames, body -> {
+          points[pointsIndex] = parsePoints(body.getArray("value"));
+        }));
+        continue;
+      }
+
+      long rollupResolution = metricRead.rollupResolution();
+      rollupResolutions[pointsIndex] = rollupResolution;
+
+      redis.zrangebyscore(config.getMetricRollupKey(metricName, rollupResolution), timeRange.redisFrom(), timeRange.redisTo(), batch.replyHandler(pointMetricNames, rollupBody -> {
+        JsonArray metricPoints = parsePoints(rollupBody.getArray("value"));
+        points[pointsIndex] = metricPoints;
+
+        // Raw points newer than the last rolled up bucket have not been rolled up yet
+        double rawFrom = timeRange.from();
+
+        if (metricPoints.size() > 0) {
+          JsonObject lastRollupPoint = metricPoints.get(metricPoints.size() - 1);
+          rawFrom = Math.max(rawFrom, lastRollupPoint.getLong("time") + rollupResolution);
+        }
+
+        TimeRange rawTimeRange = new TimeRange(rawFrom, timeRange.to());
+
+        redis.zrangebyscore(config.getMetricPointsKey(metricName), rawTimeRange.redisFrom(), rawTimeRange.redisTo(), batch.replyHandler(pointMetricNames, rawBody -> {
+          for (JsonObject point : new JsonArrayIterable<JsonObject>(parsePoints(rawBody.getArray("value")))) {
+            // Each raw point is given the fields of a rollup point of its own, so queries can treat them all alike
+            Object value = point.getValue("value");
+            metricPoints.addObject(point
+              .putValue("min", value)
+              .putValue("max", value)
+              .putNumber("count", 1));
+          }
+        }));
+      }));
+    }
+  }
+
+  private JsonArray parsePoints(JsonArray redisValues) {
+    JsonArray points = new JsonArray();
+
+    for (String redisValue : new JsonArrayIterable<String>(redisValues)) {
+      points.addObject(new JsonObject(redisValue));
+    }
+
+    return points;
+  }
+}
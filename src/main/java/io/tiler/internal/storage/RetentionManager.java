@@ -0,0 +1,360 @@
+package io.tiler.internal.storage;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.RedisBatch;
+import io.tiler.internal.RedisException;
+import io.tiler.internal.config.Config;
+import io.tiler.internal.config.RetentionConfig;
+import io.tiler.internal.config.RollupConfig;
+import io.vertx.java.redis.RedisClient;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.time.Clock;
+import java.util.*;
+
+public class RetentionManager {
+  private final RedisClient redis;
+  private final Config config;
+  private final RetentionConfig retentionConfig;
+  private final Logger logger;
+
+  public RetentionManager(RedisClient redis, Config config, Logger logger) {
+    this.redis = redis;
+    this.config = config;
+    this.retentionConfig = config.storage().retention();
+    this.logger = logger;
+  }
+
+  public List<Long> rollupResolutions() {
+    ArrayList<Long> resolutions = new ArrayList<>();
+
+    for (RollupConfig rollup : retentionConfig.rollups()) {
+      resolutions.add(rollup.resolution());
+    }
+
+    return resolutions;
+  }
+
+  // Trims the points of a metric that is about to be written as a whole document.  Documents are written in the
+  // order the collector sent the points, so the last points are assumed to be the newest.
+  public void trimPoints(JsonObject metric, Clock clock) {
+    JsonArray points = metric.getArray("points");
+
+    if (points == null) {
+      return;
+    }
+
+    if (retentionConfig.hasMaxAge()) {
+      long minTime = currentTime(clock) - retentionConfig.maxAge();
+      JsonArray retainedPoints = new JsonArray();
+
+      for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+        Object time = point.getValue("time");
+
+        if (!(time instanceof Number) || ((Number) time).longValue() >= minTime) {
+          retainedPoints.addObject(point);
+        }
+      }
+
+      points = retainedPoints;
+    }
+
+    if (retentionConfig.hasMaxCount() && points.size() > retentionConfig.maxCount()) {
+      JsonArray retainedPoints = new JsonArray();
+
+      for (int pointIndex = points.size() - retentionConfig.maxCount(); pointIndex < points.size(); pointIndex++) {
+        retainedPoints.addObject(points.get(pointIndex));
+      }
+
+      points = retainedPoints;
+    }
+
+    metric.putArray("points", points);
+  }
+
+  // Each run only rolls up the buckets after the last one it rolled up, so points appended or merged into earlier
+  // buckets would never reach the rollups.  Those buckets are rolled up again from the raw points, apart from ones
+  // that retention may already have removed raw points from, as they can no longer be rolled up correctly.
+  public void rollUpAgain(JsonArray metrics, Clock clock, AsyncResultHandler<Void> handler) {
+    rollUpMetricAgain(metrics, 0, 0, currentTime(clock), handler);
+  }
+
+  private void rollUpMetricAgain(JsonArray metrics, int metricIndex, int rollupIndex, long now, AsyncResultHandler<Void> handler) {
+    List<RollupConfig> rollups = retentionConfig.rollups();
+
+    if (rollupIndex >= rollups.size()) {
+      metricIndex++;
+      rollupIndex = 0;
+    }
+
+    if (metricIndex >= metrics.size() || rollups.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    JsonObject metric = metrics.get(metricIndex);
+    String metricName = metric.getString("name");
+    JsonArray points = metric.getArray("points");
+    long resolution = rollups.get(rollupIndex).resolution();
+    String rollupKey = config.getMetricRollupKey(metricName, resolution);
+    List<String> metricNames = Collections.singletonList(metricName);
+    int nextMetricIndex = metricIndex;
+    int nextRollupIndex = rollupIndex + 1;
+    AsyncResultHandler<Void> nextHandler = result -> {
+      if (result.failed()) {
+        handler.handle(result);
+        return;
+      }
+
+      rollUpMetricAgain(metrics, nextMetricIndex, nextRollupIndex, now, handler);
+    };
+
+    if (points == null || points.size() == 0) {
+      nextHandler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    Long[] lastBucketTime = new Long[1];
+    Double[] oldestPointTime = new Double[1];
+
+    RedisBatch boundsBatch = new RedisBatch(completedBoundsBatch -> {
+      if (completedBoundsBatch.failed()) {
+        nextHandler.handle(DefaultAsyncResult.fail(completedBoundsBatch.firstFailure()));
+        return;
+      }
+
+      TreeSet<Long> bucketTimes = new TreeSet<>();
+      long minBucketTime = retentionConfig.hasMaxAge() ? now - retentionConfig.maxAge() : Long.MIN_VALUE;
+
+      for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+        Object time = point.getValue("time");
+
+        if (!(time instanceof Number) || lastBucketTime[0] == null || oldestPointTime[0] == null) {
+          continue;
+        }
+
+        long bucketTime = Math.floorDiv(((Number) time).longValue(), resolution) * resolution;
+
+        if (bucketTime <= lastBucketTime[0] && bucketTime >= oldestPointTime[0] && bucketTime >= minBucketTime) {
+          bucketTimes.add(bucketTime);
+        }
+      }
+
+      rollUpBucketsAgain(metricName, rollupKey, resolution, bucketTimes, nextHandler);
+    });
+
+    redis.zrange(rollupKey, -1, -1, boundsBatch.replyHandler(metricNames, body -> {
+      for (String redisValue : new JsonArrayIterable<String>(body.getArray("value"))) {
+        lastBucketTime[0] = new JsonObject(redisValue).getLong("time");
+      }
+    }));
+    redis.zrange(config.getMetricPointsKey(metricName), 0, 0, boundsBatch.replyHandler(metricNames, body -> {
+      for (String redisValue : new JsonArrayIterable<String>(body.getArray("value"))) {
+        oldestPointTime[0] = MetricPoints.getPointScore(new JsonObject(redisValue));
+      }
+    }));
+  }
+
+  private void rollUpBucketsAgain(String metricName, String rollupKey, long resolution, Collection<Long> bucketTimes, AsyncResultHandler<Void> handler) {
+    if (bucketTimes.isEmpty()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    List<String> metricNames = Collections.singletonList(metricName);
+    RedisBatch batch = new RedisBatch(completedBatch -> handler.handle(completedBatch.failed()
+      ? DefaultAsyncResult.fail(completedBatch.firstFailure())
+      : DefaultAsyncResult.succeed()));
+
+    for (long bucketTime : bucketTimes) {
+      redis.zrangebyscore(config.getMetricPointsKey(metricName), bucketTime, "(" + (bucketTime + resolution), batch.replyHandler(metricNames, body -> {
+        // The transaction stops readers from seeing a gap where the bucket was
+        redis.multi(batch.replyHandler(metricNames));
+        redis.zremrangebyscore(rollupKey, bucketTime, bucketTime, batch.replyHandler(metricNames));
+
+        for (JsonObject rollupPoint : createRollupPoints(body.getArray("value"), resolution)) {
+          redis.zadd(rollupKey, rollupPoint.getLong("time"), rollupPoint.encode(), batch.replyHandler(metricNames));
+        }
+
+        redis.exec(batch.replyHandler(metricNames));
+      }));
+    }
+  }
+
+  public void run(List<String> metricNames, Clock clock, AsyncResultHandler<Void> handler) {
+    applyToMetric(metricNames, 0, currentTime(clock), handler);
+  }
+
+  private void applyToMetric(List<String> metricNames, int metricIndex, long now, AsyncResultHandler<Void> handler) {
+    if (metricIndex >= metricNames.size()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    String metricName = metricNames.get(metricIndex);
+
+    // Metrics are processed one at a time so that the background work never floods Redis
+    rollUp(metricName, 0, now, rollUpResult -> {
+      if (rollUpResult.failed()) {
+        logger.error("Failed to roll up points for metric '" + metricName + "'", rollUpResult.cause());
+      }
+
+      trim(metricName, now, trimResult -> {
+        if (trimResult.failed()) {
+          logger.error("Failed to trim points for metric '" + metricName + "'", trimResult.cause());
+        }
+
+        applyToMetric(metricNames, metricIndex + 1, now, handler);
+      });
+    });
+  }
+
+  private void rollUp(String metricName, int rollupIndex, long now, AsyncResultHandler<Void> handler) {
+    List<RollupConfig> rollups = retentionConfig.rollups();
+
+    if (rollupIndex >= rollups.size()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    RollupConfig rollup = rollups.get(rollupIndex);
+    long resolution = rollup.resolution();
+    String rollupKey = config.getMetricRollupKey(metricName, resolution);
+    AsyncResultHandler<Void> nextRollupHandler = result -> {
+      if (result.failed()) {
+        handler.handle(result);
+        return;
+      }
+
+      rollUp(metricName, rollupIndex + 1, now, handler);
+    };
+
+    redis.zrange(rollupKey, -1, -1, (Handler<Message<JsonObject>>) lastRollupReply -> {
+      JsonObject lastRollupBody = lastRollupReply.body();
+
+      if (!"ok".equals(lastRollupBody.getString("status"))) {
+        handler.handle(DefaultAsyncResult.fail(new RedisException(lastRollupBody)));
+        return;
+      }
+
+      // Only whole buckets are rolled up, starting after the last bucket that was rolled up by an earlier run
+      String from = "-inf";
+
+      for (String redisValue : new JsonArrayIterable<String>(lastRollupBody.getArray("value"))) {
+        from = Long.toString(new JsonObject(redisValue).getLong("time") + resolution);
+      }
+
+      long to = Math.floorDiv(now, resolution) * resolution;
+
+      redis.zrangebyscore(config.getMetricPointsKey(metricName), from, "(" + to, (Handler<Message<JsonObject>>) pointsReply -> {
+        JsonObject pointsBody = pointsReply.body();
+
+        if (!"ok".equals(pointsBody.getString("status"))) {
+          handler.handle(DefaultAsyncResult.fail(new RedisException(pointsBody)));
+          return;
+        }
+
+        List<String> metricNames = Collections.singletonList(metricName);
+        RedisBatch batch = new RedisBatch(completedBatch -> nextRollupHandler.handle(completedBatch.failed()
+          ? DefaultAsyncResult.fail(completedBatch.firstFailure())
+          : DefaultAsyncResult.succeed()));
+        ArrayList<Object> zaddArgs = new ArrayList<>();
+        zaddArgs.add(rollupKey);
+
+        for (JsonObject rollupPoint : createRollupPoints(pointsBody.getArray("value"), resolution)) {
+          zaddArgs.add(rollupPoint.getLong("time"));
+          zaddArgs.add(rollupPoint.encode());
+        }
+
+        if (zaddArgs.size() == 1 && !rollup.hasMaxAge()) {
+          nextRollupHandler.handle(DefaultAsyncResult.succeed());
+          return;
+        }
+
+        if (zaddArgs.size() > 1) {
+          zaddArgs.add(batch.replyHandler(metricNames));
+          redis.zadd(zaddArgs.toArray());
+        }
+
+        if (rollup.hasMaxAge()) {
+          redis.zremrangebyscore(rollupKey, "-inf", "(" + (now - rollup.maxAge()), batch.replyHandler(metricNames));
+        }
+      });
+    });
+  }
+
+  private Collection<JsonObject> createRollupPoints(JsonArray redisValues, long resolution) {
+    TreeMap<Long, double[]> buckets = new TreeMap<>();
+
+    for (String redisValue : new JsonArrayIterable<String>(redisValues)) {
+      JsonObject point = new JsonObject(redisValue);
+      Object time = point.getValue("time");
+      Object value = point.getValue("value");
+
+      if (!(time instanceof Number) || !(value instanceof Number)) {
+        continue;
+      }
+
+      long bucketTime = Math.floorDiv(((Number) time).longValue(), resolution) * resolution;
+      double pointValue = ((Number) value).doubleValue();
+      double[] bucket = buckets.get(bucketTime);
+
+      if (bucket == null) {
+        // Sum, min, max and count
+        bucket = new double[] { 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0 };
+        buckets.put(bucketTime, bucket);
+      }
+
+      bucket[0] += pointValue;
+      bucket[1] = Math.min(bucket[1], pointValue);
+      bucket[2] = Math.max(bucket[2], pointValue);
+      bucket[3]++;
+    }
+
+    ArrayList<JsonObject> rollupPoints = new ArrayList<>();
+
+    for (Map.Entry<Long, double[]> bucket : buckets.entrySet()) {
+      double[] values = bucket.getValue();
+      rollupPoints.add(new JsonObject()
+        .putNumber("time", bucket.getKey())
+        .putNumber("value", values[0] / values[3])
+        .putNumber("min", values[1])
+        .putNumber("max", values[2])
+        .putNumber("count", (long) values[3]));
+    }
+
+    return rollupPoints;
+  }
+
+  private void trim(String metricName, long now, AsyncResultHandler<Void> handler) {
+    if (!retentionConfig.hasMaxAge() && !retentionConfig.hasMaxCount()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    List<String> metricNames = Collections.singletonList(metricName);
+    String pointsKey = config.getMetricPointsKey(metricName);
+    RedisBatch batch = new RedisBatch(completedBatch -> handler.handle(completedBatch.failed()
+      ? DefaultAsyncResult.fail(completedBatch.firstFailure())
+      : DefaultAsyncResult.succeed()));
+
+    if (retentionConfig.hasMaxAge()) {
+      redis.zremrangebyscore(pointsKey, "-inf", "(" + (now - retentionConfig.maxAge()), batch.replyHandler(metricNames));
+    }
+
+    if (retentionConfig.hasMaxCount()) {
+      redis.zremrangebyrank(pointsKey, 0, -(retentionConfig.maxCount() + 1), batch.replyHandler(metricNames));
+    }
+  }
+
+  private long currentTime(Clock clock) {
+    // Point times are in microseconds, matching the now() query function
+    return clock.millis() * 1000L;
+  }
+}
@@ -0,0 +1,528 @@
+package io.tiler.internal.storage;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.PartialWriteException;
+import io.tiler.internal.config.Config;
+import io.tiler.internal.config.RedisConfig;
+import io.tiler.internal.storage.codecs.CompressionStats;
+import org.simondean.vertx.async.DefaultAsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.time.Clock;
+import java.util.*;
+
+// Spreads metrics across several Redis instances by consistent hashing of the metric name.  Each instance holds the
+// names of its own metrics, and reads and writes that cover several instances are sent to all of them at once.
+public class ShardedMetricStore implements MetricStore {
+  private static final int RING_POINTS_PER_SHARD = 160;
+  private final Logger logger;
+  private final String mergeKey;
+  private final ArrayList<RedisMetricStore> shards = new ArrayList<>();
+  private final HashRing<RedisMetricStore> ring = new HashRing<>(RING_POINTS_PER_SHARD);
+
+  public ShardedMetricStore(Container container, EventBus eventBus, Config config, CompressionStats compressionStats, Logger logger) {
+    this.logger = logger;
+    this.mergeKey = config.storage().mergeKey();
+
+    for (RedisConfig shardConfig : config.redis().shards()) {
+      RedisMetricStore shard = new RedisMetricStore(container, eventBus, config, shardConfig, compressionStats, logger);
+      shards.add(shard);
+      ring.add(shardConfig.shardName(), shard);
+    }
+  }
+
+  @Override
+  public void start(AsyncResultHandler<Void> handler) {
+    runOnShards(shards, RedisMetricStore::start, failures -> handleFirstFailure(failures, handler));
+  }
+
+  @Override
+  public void saveMetrics(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeToShards(metrics, RedisMetricStore::saveMetrics, handler);
+  }
+
+  @Override
+  public boolean supportsAppend() {
+    return shards.get(0).supportsAppend();
+  }
+
+  @Override
+  public void appendPoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeToShards(metrics, RedisMetricStore::appendPoints, handler);
+  }
+
+  @Override
+  public void mergePoints(JsonArray metrics, AsyncResultHandler<Void> handler) {
+    writeToShards(metrics, RedisMetricStore::mergePoints, handler);
+  }
+
+  @Override
+  public void scanMetricNames(MetricNameBatchHandler batchHandler, AsyncResultHandler<Void> handler) {
+    scanShardMetricNames(0, batchHandler, handler);
+  }
+
+  @Override
+  public void getMetrics(Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler) {
+    HashMap<RedisMetricStore, LinkedHashMap<String, MetricRead>> shardMetricReads = new HashMap<>();
+
+    for (Map.Entry<String, MetricRead> metricRead : metricReads.entrySet()) {
+      shardMetricReads.computeIfAbsent(ring.get(metricRead.getKey()), shard -> new LinkedHashMap<>())
+        .put(metricRead.getKey(), metricRead.getValue());
+    }
+
+    HashMap<String, JsonObject> foundMetrics = new HashMap<>();
+
+    runOnShards(shardMetricReads.keySet(), (shard, shardHandler) -> shard.getMetrics(shardMetricReads.get(shard), result -> {
+      if (result.failed()) {
+        shardHandler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      for (JsonObject metric : new JsonArrayIterable<JsonObject>(result.result())) {
+        foundMetrics.put(metric.getString("name"), metric);
+      }
+
+      shardHandler.handle(DefaultAsyncResult.succeed());
+    }), failures -> {
+      if (!failures.isEmpty()) {
+        handler.handle(DefaultAsyncResult.fail(failures.get(0)));
+        return;
+      }
+
+      // Metrics are returned in the order they were asked for, whichever shard they came from
+      JsonArray metrics = new JsonArray();
+
+      for (String metricName : metricReads.keySet()) {
+        JsonObject metric = foundMetrics.get(metricName);
+
+        if (metric != null) {
+          metrics.addObject(metric);
+        }
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(metrics));
+    });
+  }
+
+  @Override
+  public List<Long> rollupResolutions() {
+    return shards.get(0).rollupResolutions();
+  }
+
+  @Override
+  public void getRollupPoints(List<String> metricNames, AsyncResultHandler<JsonObject> handler) {
+    HashMap<RedisMetricStore, List<String>> shardMetricNames = groupByShard(metricNames);
+    JsonObject rollupPoints = new JsonObject();
+
+    runOnShards(shardMetricNames.keySet(), (shard, shardHandler) -> shard.getRollupPoints(shardMetricNames.get(shard), result -> {
+      if (result.failed()) {
+        shardHandler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      rollupPoints.mergeIn(result.result());
+      shardHandler.handle(DefaultAsyncResult.succeed());
+    }), failures -> {
+      if (!failures.isEmpty()) {
+        handler.handle(DefaultAsyncResult.fail(failures.get(0)));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(rollupPoints));
+    });
+  }
+
+  @Override
+  public void saveRollupPoints(JsonObject rollupPoints, AsyncResultHandler<Void> handler) {
+    HashMap<RedisMetricStore, JsonObject> shardRollupPoints = new HashMap<>();
+
+    for (String metricName : rollupPoints.getFieldNames()) {
+      shardRollupPoints.computeIfAbsent(ring.get(metricName), shard -> new JsonObject())
+        .putObject(metricName, rollupPoints.getObject(metricName));
+    }
+
+    runOnShards(shardRollupPoints.keySet(), (shard, shardHandler) -> shard.saveRollupPoints(shardRollupPoints.get(shard), shardHandler),
+      failures -> handleFirstFailure(failures, handler));
+  }
+
+  @Override
+  public boolean hasBackgroundRetention() {
+    return shards.get(0).hasBackgroundRetention();
+  }
+
+  @Override
+  public void applyRetention(Clock clock, AsyncResultHandler<Void> handler) {
+    runOnShards(shards, (shard, shardHandler) -> shard.applyRetention(clock, shardHandler), failures -> handleFirstFailure(failures, handler));
+  }
+
+  @Override
+  public void setExpiryTimes(Map<String, Long> expiryTimes, AsyncResultHandler<Void> handler) {
+    HashMap<RedisMetricStore, HashMap<String, Long>> shardExpiryTimes = new HashMap<>();
+
+    for (Map.Entry<String, Long> expiryTime : expiryTimes.entrySet()) {
+      shardExpiryTimes.computeIfAbsent(ring.get(expiryTime.getKey()), shard -> new HashMap<>())
+        .put(expiryTime.getKey(), expiryTime.getValue());
+    }
+
+    runOnShards(shardExpiryTimes.keySet(), (shard, shardHandler) -> shard.setExpiryTimes(shardExpiryTimes.get(shard), shardHandler),
+      failures -> handleFirstFailure(failures, handler));
+  }
+
+  @Override
+  public void getExpiryTimes(List<String> metricNames, AsyncResultHandler<Map<String, Long>> handler) {
+    HashMap<RedisMetricStore, List<String>> shardMetricNames = groupByShard(metricNames);
+    HashMap<String, Long> expiryTimes = new HashMap<>();
+
+    runOnShards(shardMetricNames.keySet(), (shard, shardHandler) -> shard.getExpiryTimes(shardMetricNames.get(shard), result -> {
+      if (result.failed()) {
+        shardHandler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      expiryTimes.putAll(result.result());
+      shardHandler.handle(DefaultAsyncResult.succeed());
+    }), failures -> {
+      if (!failures.isEmpty()) {
+        handler.handle(DefaultAsyncResult.fail(failures.get(0)));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(expiryTimes));
+    });
+  }
+
+  @Override
+  public void removeExpiredMetrics(Clock clock, int maxCount, AsyncResultHandler<List<String>> handler) {
+    ArrayList<String> removedMetricNames = new ArrayList<>();
+
+    runOnShards(shards, (shard, shardHandler) -> shard.removeExpiredMetrics(clock, maxCount, result -> {
+      if (result.failed()) {
+        shardHandler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      removedMetricNames.addAll(result.result());
+      shardHandler.handle(DefaultAsyncResult.succeed());
+    }), failures -> {
+      if (!failures.isEmpty()) {
+        handler.handle(DefaultAsyncResult.fail(failures.get(0)));
+        return;
+      }
+
+      handler.handle(DefaultAsyncResult.succeed(removedMetricNames));
+    });
+  }
+
+  // Moves metrics that are held by a shard other than the one their name now hashes to, such as after a shard has
+  // been added, and hands back the number of metrics moved
+  public void rebalance(AsyncResultHandler<Integer> handler) {
+    rebalanceShard(0, new int[1], handler);
+  }
+
+  private void rebalanceShard(int shardIndex, int[] movedMetricCount, AsyncResultHandler<Integer> handler) {
+    if (shardIndex >= shards.size()) {
+      handler.handle(DefaultAsyncResult.succeed(movedMetricCount[0]));
+      return;
+    }
+
+    RedisMetricStore shard = shards.get(shardIndex);
+
+    shard.scanMetricNames((metricNames, batchHandler) -> {
+      LinkedHashMap<String, MetricRead> misplacedMetricReads = new LinkedHashMap<>();
+
+      for (String metricName : metricNames) {
+        if (ring.get(metricName) != shard) {
+          misplacedMetricReads.put(metricName, MetricRead.unbounded());
+        }
+      }
+
+      if (misplacedMetricReads.isEmpty()) {
+        batchHandler.handle(DefaultAsyncResult.succeed());
+        return;
+      }
+
+      moveMetrics(shard, misplacedMetricReads, result -> {
+        if (result.succeeded()) {
+          movedMetricCount[0] += misplacedMetricReads.size();
+        }
+
+        batchHandler.handle(result);
+      });
+    }, result -> {
+      if (result.failed()) {
+        handler.handle(DefaultAsyncResult.fail(result));
+        return;
+      }
+
+      logger.info("Rebalanced shard " + shardIndex);
+      rebalanceShard(shardIndex + 1, movedMetricCount, handler);
+    });
+  }
+
+  private void moveMetrics(RedisMetricStore fromShard, Map<String, MetricRead> metricReads, AsyncResultHandler<Void> handler) {
+    fromShard.getMetrics(metricReads, oldMetrics -> {
+      if (oldMetrics.failed()) {
+        handler.handle(DefaultAsyncResult.fail(oldMetrics));
+        return;
+      }
+
+      // Metrics written since the shard was added are already on the new shard and are newer than the old copies
+      getMetrics(metricReads, newMetrics -> {
+        if (newMetrics.failed()) {
+          handler.handle(DefaultAsyncResult.fail(newMetrics));
+          return;
+        }
+
+        HashMap<String, JsonObject> newMetricsByName = new HashMap<>();
+
+        for (JsonObject metric : new JsonArrayIterable<JsonObject>(newMetrics.result())) {
+          newMetricsByName.put(metric.getString("name"), metric);
+        }
+
+        JsonArray metricsToSave = new JsonArray();
+        JsonArray olderPoints = new JsonArray();
+
+        for (JsonObject metric : new JsonArrayIterable<JsonObject>(oldMetrics.result())) {
+          JsonObject newMetric = newMetricsByName.get(metric.getString("name"));
+
+          if (newMetric == null) {
+            metricsToSave.addObject(metric);
+            continue;
+          }
+
+          // The older points are added alongside the newer ones, but the newer metric fields, and the newer points
+          // where both copies have a point with the same merge key, are kept
+          JsonArray points = MetricPoints.pointsNotIn(metric.getArray("points"), newMetric.getArray("points"), mergeKey);
+
+          if (points.size() > 0) {
+            olderPoints.addObject(new JsonObject()
+              .putString("name", metric.getString("name"))
+              .putArray("points", points));
+          }
+        }
+
+        saveMetrics(metricsToSave, saved -> {
+          if (saved.failed()) {
+            handler.handle(saved);
+            return;
+          }
+
+          AsyncResultHandler<Void> olderPointsHandler = added -> {
+            if (added.failed()) {
+              handler.handle(added);
+              return;
+            }
+
+            List<String> metricNames = new ArrayList<>(metricReads.keySet());
+
+            moveRollupPoints(fromShard, metricNames, rollupsMoved -> {
+              if (rollupsMoved.failed()) {
+                handler.handle(rollupsMoved);
+                return;
+              }
+
+              moveExpiryTimes(fromShard, metricNames, moved -> {
+                if (moved.failed()) {
+                  handler.handle(moved);
+                  return;
+                }
+
+                // Only removed once they are safely on their new shard
+                fromShard.deleteMetrics(metricNames, handler);
+              });
+            });
+          };
+
+          if (supportsAppend()) {
+            appendPoints(olderPoints, olderPointsHandler);
+          } else {
+            mergePoints(olderPoints, olderPointsHandler);
+          }
+        });
+      });
+    });
+  }
+
+  // Retention only rolls up buckets after the last one a shard has rolled up, and removes raw points older than the
+  // rollups keep, so the rollups have to move with the metrics for their history to survive
+  private void moveRollupPoints(RedisMetricStore fromShard, List<String> metricNames, AsyncResultHandler<Void> handler) {
+    fromShard.getRollupPoints(metricNames, oldRollupPoints -> {
+      if (oldRollupPoints.failed()) {
+        handler.handle(DefaultAsyncResult.fail(oldRollupPoints));
+        return;
+      }
+
+      if (oldRollupPoints.result().size() == 0) {
+        handler.handle(DefaultAsyncResult.succeed());
+        return;
+      }
+
+      getRollupPoints(new ArrayList<>(oldRollupPoints.result().getFieldNames()), newRollupPoints -> {
+        if (newRollupPoints.failed()) {
+          handler.handle(DefaultAsyncResult.fail(newRollupPoints));
+          return;
+        }
+
+        saveRollupPoints(combineRollupPoints(oldRollupPoints.result(), newRollupPoints.result()), handler);
+      });
+    });
+  }
+
+  // Buckets that the new shard has already rolled up were rolled up from its newer points, so they win over the old
+  private static JsonObject combineRollupPoints(JsonObject oldRollupPoints, JsonObject newRollupPoints) {
+    JsonObject combinedRollupPoints = new JsonObject();
+
+    for (String metricName : oldRollupPoints.getFieldNames()) {
+      JsonObject oldMetricRollupPoints = oldRollupPoints.getObject(metricName);
+      JsonObject newMetricRollupPoints = newRollupPoints.getObject(metricName);
+
+      if (newMetricRollupPoints == null) {
+        combinedRollupPoints.putObject(metricName, oldMetricRollupPoints);
+        continue;
+      }
+
+      JsonObject metricRollupPoints = new JsonObject();
+      TreeSet<String> resolutions = new TreeSet<>(oldMetricRollupPoints.getFieldNames());
+      resolutions.addAll(newMetricRollupPoints.getFieldNames());
+
+      for (String resolution : resolutions) {
+        TreeMap<Double, JsonObject> pointsByTime = new TreeMap<>();
+        putPointsByTime(pointsByTime, oldMetricRollupPoints.getArray(resolution));
+        putPointsByTime(pointsByTime, newMetricRollupPoints.getArray(resolution));
+        JsonArray points = new JsonArray();
+
+        for (JsonObject point : pointsByTime.values()) {
+          points.addObject(point);
+        }
+
+        metricRollupPoints.putArray(resolution, points);
+      }
+
+      combinedRollupPoints.putObject(metricName, metricRollupPoints);
+    }
+
+    return combinedRollupPoints;
+  }
+
+  private static void putPointsByTime(TreeMap<Double, JsonObject> pointsByTime, JsonArray points) {
+    if (points == null) {
+      return;
+    }
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+      pointsByTime.put(MetricPoints.getPointScore(point), point);
+    }
+  }
+
+  private void moveExpiryTimes(RedisMetricStore fromShard, List<String> metricNames, AsyncResultHandler<Void> handler) {
+    fromShard.getExpiryTimes(metricNames, expiryTimes -> {
+      if (expiryTimes.failed()) {
+        handler.handle(DefaultAsyncResult.fail(expiryTimes));
+        return;
+      }
+
+      setExpiryTimes(expiryTimes.result(), handler);
+    });
+  }
+
+  private void scanShardMetricNames(int shardIndex, MetricNameBatchHandler batchHandler, AsyncResultHandler<Void> handler) {
+    if (shardIndex >= shards.size()) {
+      handler.handle(DefaultAsyncResult.succeed());
+      return;
+    }
+
+    shards.get(shardIndex).scanMetricNames(batchHandler, result -> {
+      if (result.failed()) {
+        handler.handle(result);
+        return;
+      }
+
+      scanShardMetricNames(shardIndex + 1, batchHandler, handler);
+    });
+  }
+
+  private HashMap<RedisMetricStore, List<String>> groupByShard(List<String> metricNames) {
+    HashMap<RedisMetricStore, List<String>> shardMetricNames = new HashMap<>();
+
+    for (String metricName : metricNames) {
+      shardMetricNames.computeIfAbsent(ring.get(metricName), shard -> new ArrayList<>()).add(metricName);
+    }
+
+    return shardMetricNames;
+  }
+
+  private void writeToShards(JsonArray metrics, ShardWriter writer, AsyncResultHandler<Void> handler) {
+    HashMap<RedisMetricStore, JsonArray> shardMetrics = new HashMap<>();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      shardMetrics.computeIfAbsent(ring.get(metric.getString("name")), shard -> new JsonArray()).addObject(metric);
+    }
+
+    runOnShards(shardMetrics.keySet(), (shard, shardHandler) -> writer.write(shard, shardMetrics.get(shard), shardHandler), failures -> {
+      if (failures.isEmpty()) {
+        handler.handle(DefaultAsyncResult.succeed());
+        return;
+      }
+
+      // Each shard reports its own failed metrics, so they are combined into one failure for the whole write
+      ArrayList<String> failedMetricNames = new ArrayList<>();
+
+      for (Throwable failure : failures) {
+        if (failure instanceof PartialWriteException) {
+          failedMetricNames.addAll(((PartialWriteException) failure).failedMetricNames());
+        }
+      }
+
+      handler.handle(DefaultAsyncResult.fail(new PartialWriteException(failedMetricNames, metrics.size(), failures.get(0))));
+    });
+  }
+
+  // Starts the task on every shard at once and hands back the failures once they have all finished
+  private void runOnShards(Collection<RedisMetricStore> targetShards, ShardTask task, Handler<List<Throwable>> handler) {
+    ArrayList<Throwable> failures = new ArrayList<>();
+
+    if (targetShards.isEmpty()) {
+      handler.handle(failures);
+      return;
+    }
+
+    int[] pendingShardCount = new int[] { targetShards.size() };
+
+    for (RedisMetricStore shard : targetShards) {
+      task.run(shard, result -> {
+        if (result.failed()) {
+          failures.add(result.cause());
+        }
+
+        pendingShardCount[0]--;
+
+        if (pendingShardCount[0] == 0) {
+          handler.handle(failures);
+        }
+      });
+    }
+  }
+
+  private void handleFirstFailure(List<Throwable> failures, AsyncResultHandler<Void> handler) {
+    if (!failures.isEmpty()) {
+      handler.handle(DefaultAsyncResult.fail(failures.get(0)));
+      return;
+    }
+
+    handler.handle(DefaultAsyncResult.succeed());
+  }
+
+  private interface ShardTask {
+    void run(RedisMetricStore shard, AsyncResultHandler<Void> handler);
+  }
+
+  private interface ShardWriter {
+    void write(RedisMetricStore shard, JsonArray metrics, AsyncResultHandler<Void> handler);
+  }
+}
@@ -0,0 +1,32 @@
+package io.tiler.internal.storage.codecs;
+
+public class BitReader {
+  private final byte[] bytes;
+  private int bitIndex;
+
+  public BitReader(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  public boolean readBit() {
+    boolean bit = (bytes[bitIndex >>> 3] & (0x80 >>> (bitIndex & 7))) != 0;
+    bitIndex++;
+    return bit;
+  }
+
+  public long readBits(int bitCount) {
+    long value = 0;
+
+    for (int i = 0; i < bitCount; i++) {
+      value = (value << 1) | (readBit() ? 1L : 0L);
+    }
+
+    return value;
+  }
+
+  // Reads a value written as the lowest bitCount bits of a two's complement number
+  public long readSignedBits(int bitCount) {
+    long value = readBits(bitCount);
+    return (value << (64 - bitCount)) >> (64 - bitCount);
+  }
+}
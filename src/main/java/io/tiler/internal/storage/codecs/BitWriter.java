@@ -0,0 +1,47 @@
+package io.tiler.internal.storage.codecs;
+
+import java.util.Arrays;
+
+public class BitWriter {
+  private byte[] bytes = new byte[256];
+  private int bitCount;
+
+  public void writeBit(boolean bit) {
+    ensureCapacity(1);
+
+    if (bit) {
+      bytes[bitCount >>> 3] |= 0x80 >>> (bitCount & 7);
+    }
+
+    bitCount++;
+  }
+
+  // Writes the lowest bitCount bits of value, most significant bit first
+  public void writeBits(long value, int bitCount) {
+    ensureCapacity(bitCount);
+
+    for (int bitIndex = bitCount - 1; bitIndex >= 0; bitIndex--) {
+      if (((value >>> bitIndex) & 1L) != 0) {
+        bytes[this.bitCount >>> 3] |= 0x80 >>> (this.bitCount & 7);
+      }
+
+      this.bitCount++;
+    }
+  }
+
+  public int bitCount() {
+    return bitCount;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, (bitCount + 7) >>> 3);
+  }
+
+  private void ensureCapacity(int extraBitCount) {
+    int requiredByteCount = (bitCount + extraBitCount + 7) >>> 3;
+
+    if (requiredByteCount > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(requiredByteCount, bytes.length * 2));
+    }
+  }
+}
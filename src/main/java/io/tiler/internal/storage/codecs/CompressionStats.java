@@ -0,0 +1,44 @@
+package io.tiler.internal.storage.codecs;
+
+import org.vertx.java.core.json.JsonObject;
+
+// Counters for tuning the compression threshold, shared by every codec that stores documents
+public class CompressionStats {
+  private long compressedCount;
+  private long uncompressedCount;
+  private long decompressedCount;
+  private long originalBytes;
+  private long compressedBytes;
+  private long compressNanos;
+  private long decompressNanos;
+
+  public void recordCompressed(int originalSize, int compressedSize, long nanos) {
+    compressedCount++;
+    originalBytes += originalSize;
+    compressedBytes += compressedSize;
+    compressNanos += nanos;
+  }
+
+  // Documents that were under the threshold, or that compression did not make smaller
+  public void recordUncompressed(long nanos) {
+    uncompressedCount++;
+    compressNanos += nanos;
+  }
+
+  public void recordDecompressed(long nanos) {
+    decompressedCount++;
+    decompressNanos += nanos;
+  }
+
+  public JsonObject toJson() {
+    return new JsonObject()
+      .putNumber("compressed", compressedCount)
+      .putNumber("uncompressed", uncompressedCount)
+      .putNumber("decompressed", decompressedCount)
+      .putNumber("originalBytes", originalBytes)
+      .putNumber("compressedBytes", compressedBytes)
+      .putNumber("ratio", originalBytes == 0 ? 1.0 : (double) compressedBytes / originalBytes)
+      .putNumber("compressMillis", compressNanos / 1000000.0)
+      .putNumber("decompressMillis", decompressNanos / 1000000.0);
+  }
+}
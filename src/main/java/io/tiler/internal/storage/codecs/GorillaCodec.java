@@ -0,0 +1,294 @@
+package io.tiler.internal.storage.codecs;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Encodes a metric's points in the style of Facebook's Gorilla paper: timestamps as delta-of-deltas and
+// values as the XOR of consecutive values. Point fields other than time and value go into a dictionary
+// so repeated labels are only stored once. Leading zeros get 6 bits rather than the paper's 5 because integer
+// values are XORed as longs and usually have more than 31 of them.
+public class GorillaCodec {
+  private static final int VERSION = 1;
+  private static final int LONG_VALUES = 0;
+  private static final int DOUBLE_VALUES = 1;
+
+  // Returns null when the points are not a numeric time series, in which case the caller should fall back to JSON
+  public byte[] encode(JsonObject metric) {
+    JsonArray points = metric.getArray("points");
+
+    if (points == null) {
+      return null;
+    }
+
+    int valueType = getValueType(points);
+
+    if (valueType < 0) {
+      return null;
+    }
+
+    JsonObject header = metric.copy();
+    header.removeField("points");
+
+    ArrayList<String> dictionary = new ArrayList<>();
+    HashMap<String, Integer> dictionaryIndexes = new HashMap<>();
+    int[] extraIndexes = new int[points.size()];
+
+    for (int pointIndex = 0; pointIndex < points.size(); pointIndex++) {
+      JsonObject point = points.get(pointIndex);
+
+      if (point.size() > 2) {
+        JsonObject extra = point.copy();
+        extra.removeField("time");
+        extra.removeField("value");
+        String extraJson = extra.encode();
+        Integer index = dictionaryIndexes.get(extraJson);
+
+        if (index == null) {
+          dictionary.add(extraJson);
+          index = dictionary.size();
+          dictionaryIndexes.put(extraJson, index);
+        }
+
+        extraIndexes[pointIndex] = index;
+      }
+    }
+
+    int extraIndexBitCount = 64 - Long.numberOfLeadingZeros(dictionary.size());
+    BitWriter bits = new BitWriter();
+    long previousTime = 0;
+    long previousDelta = 0;
+    long previousValueBits = 0;
+    int previousLeadingZeros = Integer.MAX_VALUE;
+    int previousTrailingZeros = 0;
+
+    for (int pointIndex = 0; pointIndex < points.size(); pointIndex++) {
+      JsonObject point = points.get(pointIndex);
+      long time = ((Number) point.getValue("time")).longValue();
+      Number value = point.getValue("value");
+      long valueBits = valueType == LONG_VALUES ? value.longValue() : Double.doubleToRawLongBits(value.doubleValue());
+
+      if (pointIndex == 0) {
+        bits.writeBits(time, 64);
+        bits.writeBits(valueBits, 64);
+      } else {
+        long delta = time - previousTime;
+        writeDeltaOfDelta(bits, delta - previousDelta);
+        previousDelta = delta;
+
+        long xor = valueBits ^ previousValueBits;
+
+        if (xor == 0) {
+          bits.writeBit(false);
+        } else {
+          bits.writeBit(true);
+          int leadingZeros = Long.numberOfLeadingZeros(xor);
+          int trailingZeros = Long.numberOfTrailingZeros(xor);
+
+          if (leadingZeros >= previousLeadingZeros && trailingZeros >= previousTrailingZeros) {
+            bits.writeBit(false);
+            bits.writeBits(xor >>> previousTrailingZeros, 64 - previousLeadingZeros - previousTrailingZeros);
+          } else {
+            int significantBitCount = 64 - leadingZeros - trailingZeros;
+            bits.writeBit(true);
+            bits.writeBits(leadingZeros, 6);
+            bits.writeBits(significantBitCount - 1, 6);
+            bits.writeBits(xor >>> trailingZeros, significantBitCount);
+            previousLeadingZeros = leadingZeros;
+            previousTrailingZeros = trailingZeros;
+          }
+        }
+      }
+
+      if (extraIndexBitCount > 0) {
+        bits.writeBits(extraIndexes[pointIndex], extraIndexBitCount);
+      }
+
+      previousTime = time;
+      previousValueBits = valueBits;
+    }
+
+    try {
+      ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(byteStream);
+      output.writeByte(VERSION);
+      writeString(output, header.encode());
+      output.writeByte(valueType);
+      output.writeInt(points.size());
+      output.writeInt(dictionary.size());
+
+      for (String extraJson : dictionary) {
+        writeString(output, extraJson);
+      }
+
+      output.write(bits.toByteArray());
+      output.flush();
+      return byteStream.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public JsonObject decode(byte[] bytes) {
+    try {
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+      int version = input.readUnsignedByte();
+
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported encoding version " + version);
+      }
+
+      JsonObject metric = new JsonObject(readString(input));
+      int valueType = input.readUnsignedByte();
+      int pointCount = input.readInt();
+      int dictionarySize = input.readInt();
+      List<String> dictionary = new ArrayList<>(dictionarySize);
+
+      for (int i = 0; i < dictionarySize; i++) {
+        dictionary.add(readString(input));
+      }
+
+      byte[] bitBytes = new byte[input.available()];
+      input.readFully(bitBytes);
+
+      int extraIndexBitCount = 64 - Long.numberOfLeadingZeros(dictionarySize);
+      BitReader bits = new BitReader(bitBytes);
+      JsonArray points = new JsonArray();
+      long time = 0;
+      long delta = 0;
+      long valueBits = 0;
+      int leadingZeros = 0;
+      int trailingZeros = 0;
+
+      for (int pointIndex = 0; pointIndex < pointCount; pointIndex++) {
+        if (pointIndex == 0) {
+          time = bits.readBits(64);
+          valueBits = bits.readBits(64);
+        } else {
+          delta += readDeltaOfDelta(bits);
+          time += delta;
+
+          if (bits.readBit()) {
+            if (bits.readBit()) {
+              leadingZeros = (int) bits.readBits(6);
+              int significantBitCount = (int) bits.readBits(6) + 1;
+              trailingZeros = 64 - leadingZeros - significantBitCount;
+            }
+
+            valueBits ^= bits.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+          }
+        }
+
+        JsonObject point = new JsonObject();
+        point.putNumber("time", time);
+
+        if (valueType == LONG_VALUES) {
+          point.putNumber("value", valueBits);
+        } else {
+          point.putNumber("value", Double.longBitsToDouble(valueBits));
+        }
+
+        if (extraIndexBitCount > 0) {
+          int extraIndex = (int) bits.readBits(extraIndexBitCount);
+
+          if (extraIndex > 0) {
+            point.mergeIn(new JsonObject(dictionary.get(extraIndex - 1)));
+          }
+        }
+
+        points.addObject(point);
+      }
+
+      metric.putArray("points", points);
+      return metric;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid encoded metric", e);
+    }
+  }
+
+  private int getValueType(JsonArray points) {
+    boolean allLongs = true;
+
+    for (Object pointObject : points) {
+      if (!(pointObject instanceof JsonObject)) {
+        return -1;
+      }
+
+      JsonObject point = (JsonObject) pointObject;
+      Object time = point.getValue("time");
+      Object value = point.getValue("value");
+
+      if (!isIntegral(time) || !(value instanceof Number)) {
+        return -1;
+      }
+
+      if (!isIntegral(value)) {
+        allLongs = false;
+      }
+    }
+
+    return allLongs ? LONG_VALUES : DOUBLE_VALUES;
+  }
+
+  private boolean isIntegral(Object value) {
+    return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+  }
+
+  private void writeDeltaOfDelta(BitWriter bits, long deltaOfDelta) {
+    if (deltaOfDelta == 0) {
+      bits.writeBit(false);
+    } else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+      bits.writeBits(0b10, 2);
+      bits.writeBits(deltaOfDelta, 7);
+    } else if (deltaOfDelta >= -256 && deltaOfDelta < 256) {
+      bits.writeBits(0b110, 3);
+      bits.writeBits(deltaOfDelta, 9);
+    } else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+      bits.writeBits(0b1110, 4);
+      bits.writeBits(deltaOfDelta, 12);
+    } else if (deltaOfDelta >= Integer.MIN_VALUE && deltaOfDelta <= Integer.MAX_VALUE) {
+      bits.writeBits(0b11110, 5);
+      bits.writeBits(deltaOfDelta, 32);
+    } else {
+      bits.writeBits(0b11111, 5);
+      bits.writeBits(deltaOfDelta, 64);
+    }
+  }
+
+  private long readDeltaOfDelta(BitReader bits) {
+    if (!bits.readBit()) {
+      return 0;
+    } else if (!bits.readBit()) {
+      return bits.readSignedBits(7);
+    } else if (!bits.readBit()) {
+      return bits.readSignedBits(9);
+    } else if (!bits.readBit()) {
+      return bits.readSignedBits(12);
+    } else if (!bits.readBit()) {
+      return bits.readSignedBits(32);
+    } else {
+      return bits.readBits(64);
+    }
+  }
+
+  private void writeString(DataOutputStream output, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private String readString(DataInputStream input) throws IOException {
+    byte[] bytes = new byte[input.readInt()];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
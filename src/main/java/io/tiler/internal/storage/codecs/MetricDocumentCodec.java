@@ -0,0 +1,129 @@
+package io.tiler.internal.storage.codecs;
+
+import io.tiler.internal.config.CompressionCodec;
+import io.tiler.internal.config.CompressionConfig;
+import io.tiler.internal.config.StorageEncoding;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// The Redis client works with UTF-8 strings so binary documents are stored as Base64 behind a marker character.
+// JSON documents always start with '{' so every format can be read back regardless of the configured encoding and
+// compression.
+public class MetricDocumentCodec {
+  private static final char GORILLA_MARKER = 'G';
+  // Wraps any of the other formats
+  private static final char DEFLATE_MARKER = 'Z';
+  private final StorageEncoding encoding;
+  private final CompressionConfig compressionConfig;
+  private final CompressionStats compressionStats;
+  private final GorillaCodec gorillaCodec = new GorillaCodec();
+  private final byte[] buffer = new byte[8192];
+  private final Deflater deflater;
+  private final Inflater inflater = new Inflater();
+
+  public MetricDocumentCodec(StorageEncoding encoding, CompressionConfig compressionConfig, CompressionStats compressionStats) {
+    this.encoding = encoding;
+    this.compressionConfig = compressionConfig;
+    this.compressionStats = compressionStats;
+    deflater = new Deflater(compressionConfig.level());
+  }
+
+  public MetricDocumentCodec(StorageEncoding encoding) {
+    this(encoding, new CompressionConfig(), new CompressionStats());
+  }
+
+  public String encode(JsonObject metric) {
+    String value = encodeUncompressed(metric);
+
+    if (compressionConfig.codec() == CompressionCodec.Deflate) {
+      return compress(value);
+    }
+
+    return value;
+  }
+
+  public JsonObject decode(String value) {
+    if (!value.isEmpty() && value.charAt(0) == DEFLATE_MARKER) {
+      return decode(decompress(value));
+    }
+
+    if (!value.isEmpty() && value.charAt(0) == GORILLA_MARKER) {
+      return gorillaCodec.decode(Base64.getDecoder().decode(value.substring(1)));
+    }
+
+    return new JsonObject(value);
+  }
+
+  private String encodeUncompressed(JsonObject metric) {
+    if (encoding == StorageEncoding.Gorilla) {
+      byte[] bytes = gorillaCodec.encode(metric);
+
+      if (bytes != null) {
+        return GORILLA_MARKER + Base64.getEncoder().encodeToString(bytes);
+      }
+    }
+
+    return metric.encode();
+  }
+
+  private String compress(String value) {
+    long startTime = System.nanoTime();
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    if (bytes.length < compressionConfig.threshold()) {
+      compressionStats.recordUncompressed(System.nanoTime() - startTime);
+      return value;
+    }
+
+    ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(bytes.length / 4);
+    deflater.reset();
+    deflater.setInput(bytes);
+    deflater.finish();
+
+    while (!deflater.finished()) {
+      compressedBytes.write(buffer, 0, deflater.deflate(buffer));
+    }
+
+    String compressedValue = DEFLATE_MARKER + Base64.getEncoder().encodeToString(compressedBytes.toByteArray());
+
+    // Base64 adds a third to the size, so documents that barely compress are better left alone
+    if (compressedValue.length() >= bytes.length) {
+      compressionStats.recordUncompressed(System.nanoTime() - startTime);
+      return value;
+    }
+
+    compressionStats.recordCompressed(bytes.length, compressedValue.length(), System.nanoTime() - startTime);
+    return compressedValue;
+  }
+
+  private String decompress(String value) {
+    long startTime = System.nanoTime();
+    byte[] compressedBytes = Base64.getDecoder().decode(value.substring(1));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressedBytes.length * 4);
+    inflater.reset();
+    inflater.setInput(compressedBytes);
+
+    try {
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+
+        if (length == 0 && inflater.needsInput()) {
+          throw new IllegalArgumentException("Compressed metric document is truncated");
+        }
+
+        bytes.write(buffer, 0, length);
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Compressed metric document is corrupt", e);
+    }
+
+    compressionStats.recordDecompressed(System.nanoTime() - startTime);
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,292 @@
+package io.tiler.internal.storage.segments;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.queries.TimeRange;
+import io.tiler.internal.storage.MetricPoints;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// The append-only log of one metric, split across segment files that are numbered in the order they were written.
+// Only the last segment is written to.  Writes are not on disk until the store forces them, and a replace only takes
+// the place of the old segments once it is committed after that.
+public class MetricLog {
+  private static final String SEGMENT_FILE_SUFFIX = ".segment";
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+  private final Path directory;
+  private final int segmentSize;
+  private final SegmentChannels channels;
+  private final ArrayList<SegmentFile> segments = new ArrayList<>();
+  private JsonObject header;
+  // Written by a replace that has not been committed yet
+  private SegmentFile replacementSegment;
+  private JsonObject replacementHeader;
+
+  private MetricLog(Path directory, int segmentSize, SegmentChannels channels) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.channels = channels;
+  }
+
+  // The new log has no header until one is appended
+  public static MetricLog create(Path directory, int segmentSize, SegmentChannels channels) throws IOException {
+    Files.createDirectories(directory);
+    return new MetricLog(directory, segmentSize, channels);
+  }
+
+  // Returns null if the directory does not hold a complete metric
+  public static MetricLog open(Path directory, int segmentSize, SegmentChannels channels) throws IOException {
+    MetricLog log = new MetricLog(directory, segmentSize, channels);
+    ArrayList<Path> segmentPaths = new ArrayList<>();
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + SEGMENT_FILE_SUFFIX)) {
+      for (Path path : paths) {
+        segmentPaths.add(path);
+      }
+    }
+
+    // Left behind by a replace that did not finish, so the old contents still apply
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + SEGMENT_FILE_SUFFIX + TEMPORARY_FILE_SUFFIX)) {
+      for (Path path : paths) {
+        Files.delete(path);
+      }
+    }
+
+    segmentPaths.sort(Comparator.comparingLong(MetricLog::getSegmentNumber));
+
+    for (Path segmentPath : segmentPaths) {
+      SegmentFile segment = SegmentFile.open(segmentPath, getSegmentNumber(segmentPath), segmentSize, channels);
+      boolean[] reset = new boolean[1];
+      log.segments.add(segment);
+      segment.forEachRecord(null, (type, time, payload) -> {
+        if (type == SegmentFile.HEADER_RECORD) {
+          log.header = new JsonObject(payload);
+        } else if (type == SegmentFile.RESET_RECORD) {
+          log.header = null;
+          reset[0] = true;
+        }
+      });
+
+      if (reset[0]) {
+        // Left behind if the process stopped before a replace could delete them
+        log.deleteSegmentsBefore(segment);
+      }
+    }
+
+    if (log.header == null) {
+      return null;
+    }
+
+    return log;
+  }
+
+  public String name() {
+    return header.getString("name");
+  }
+
+  public JsonObject header() {
+    return header;
+  }
+
+  public int pointCount() {
+    int pointCount = 0;
+
+    for (SegmentFile segment : segments) {
+      pointCount += segment.pointCount();
+    }
+
+    return pointCount;
+  }
+
+  public double minTime() {
+    double minTime = Double.POSITIVE_INFINITY;
+
+    for (SegmentFile segment : segments) {
+      minTime = Math.min(minTime, segment.minTime());
+    }
+
+    return minTime;
+  }
+
+  public void appendHeader(JsonObject header) throws IOException {
+    append(SegmentFile.HEADER_RECORD, Double.NaN, header.encode());
+    this.header = header;
+  }
+
+  public void appendPoints(JsonArray points) throws IOException {
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+      append(SegmentFile.POINT_RECORD, MetricPoints.getPointScore(point), point.encode());
+    }
+  }
+
+  // Writes the metric's new contents to a segment of their own under a temporary name.  The segment is only renamed
+  // into place by commitReplace, once the store has forced it to disk, so a replace that does not finish leaves the
+  // old contents as they were.
+  public void replace(JsonObject header, JsonArray points) throws IOException {
+    abortReplace();
+
+    if (segments.isEmpty()) {
+      appendHeader(header);
+      appendPoints(points);
+      return;
+    }
+
+    String headerPayload = header.encode();
+    ArrayList<String> pointPayloads = new ArrayList<>();
+    int size = SegmentFile.recordSize("") + SegmentFile.recordSize(headerPayload);
+
+    for (JsonObject point : new JsonArrayIterable<JsonObject>(points)) {
+      String pointPayload = point.encode();
+      pointPayloads.add(pointPayload);
+      size += SegmentFile.recordSize(pointPayload);
+    }
+
+    long number = segments.get(segments.size() - 1).number() + 1;
+    Path path = getSegmentPath(number);
+    SegmentFile segment = SegmentFile.create(path.resolveSibling(path.getFileName() + TEMPORARY_FILE_SUFFIX), number, Math.max(segmentSize, size), channels);
+    replacementSegment = segment;
+    replacementHeader = header;
+    segment.append(SegmentFile.RESET_RECORD, Double.NaN, "");
+    segment.append(SegmentFile.HEADER_RECORD, Double.NaN, headerPayload);
+
+    for (int pointIndex = 0; pointIndex < pointPayloads.size(); pointIndex++) {
+      segment.append(SegmentFile.POINT_RECORD, MetricPoints.getPointScore(points.get(pointIndex)), pointPayloads.get(pointIndex));
+    }
+
+  }
+
+  public boolean hasUncommittedReplace() {
+    return replacementSegment != null;
+  }
+
+  // Moves the replacement segment into place and deletes the old segments, which is only safe once the store has
+  // forced the replacement to disk
+  public void commitReplace() throws IOException {
+    if (replacementSegment == null) {
+      return;
+    }
+
+    SegmentFile segment = replacementSegment;
+    replacementSegment = null;
+    segment.moveTo(getSegmentPath(segment.number()));
+    segments.add(segment);
+    header = replacementHeader;
+    replacementHeader = null;
+    deleteSegmentsBefore(segment);
+  }
+
+  public void abortReplace() throws IOException {
+    if (replacementSegment == null) {
+      return;
+    }
+
+    SegmentFile segment = replacementSegment;
+    replacementSegment = null;
+    replacementHeader = null;
+    segment.delete();
+  }
+
+  // Points are returned in time order, and points with the same time in the order they were appended
+  public JsonArray readPoints(TimeRange timeRange) throws IOException {
+    ArrayList<SegmentPoint> segmentPoints = new ArrayList<>();
+
+    for (SegmentFile segment : segments) {
+      if (segment.overlaps(timeRange)) {
+        readSegmentPoints(segment, timeRange, segmentPoints);
+      }
+    }
+
+    if (!isSorted(segmentPoints)) {
+      // List.sort is stable, so points with the same time keep the order they were appended in
+      segmentPoints.sort(Comparator.comparingDouble(segmentPoint -> segmentPoint.time));
+    }
+
+    JsonArray points = new JsonArray();
+
+    for (SegmentPoint segmentPoint : segmentPoints) {
+      points.addObject(segmentPoint.point);
+    }
+
+    return points;
+  }
+
+  public void delete() throws IOException {
+    abortReplace();
+
+    for (SegmentFile segment : segments) {
+      segment.delete();
+    }
+
+    segments.clear();
+    Files.deleteIfExists(directory);
+  }
+
+  private void readSegmentPoints(SegmentFile segment, TimeRange timeRange, List<SegmentPoint> segmentPoints) throws IOException {
+    segment.forEachRecord(timeRange, (type, time, payload) -> {
+      if (type == SegmentFile.POINT_RECORD) {
+        segmentPoints.add(new SegmentPoint(time, new JsonObject(payload)));
+      }
+    });
+  }
+
+  private boolean isSorted(List<SegmentPoint> segmentPoints) {
+    for (int pointIndex = 1; pointIndex < segmentPoints.size(); pointIndex++) {
+      if (segmentPoints.get(pointIndex).time < segmentPoints.get(pointIndex - 1).time) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void append(byte type, double time, String payload) throws IOException {
+    int recordSize = SegmentFile.recordSize(payload);
+    SegmentFile segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+    if (segment == null || !segment.hasRoomFor(recordSize)) {
+      segment = createSegment(recordSize);
+    }
+
+    segment.append(type, time, payload);
+  }
+
+  private SegmentFile createSegment(int minSize) throws IOException {
+    long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number() + 1;
+    Path path = getSegmentPath(number);
+    SegmentFile segment = SegmentFile.create(path, number, Math.max(segmentSize, minSize), channels);
+    segments.add(segment);
+    return segment;
+  }
+
+  private Path getSegmentPath(long number) {
+    return directory.resolve(String.format("%016d", number) + SEGMENT_FILE_SUFFIX);
+  }
+
+  private void deleteSegmentsBefore(SegmentFile segment) throws IOException {
+    while (segments.get(0) != segment) {
+      segments.remove(0).delete();
+    }
+  }
+
+  private static long getSegmentNumber(Path path) {
+    String fileName = path.getFileName().toString();
+    return Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+  }
+
+  private static class SegmentPoint {
+    private final double time;
+    private final JsonObject point;
+
+    private SegmentPoint(double time, JsonObject point) {
+      this.time = time;
+      this.point = point;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package io.tiler.internal.storage.segments;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The open segment files of every metric.  Only the most recently used ones are kept open, so a store with many
+// metrics does not run out of file handles, and writes are only forced to disk by forceWrites, once for each file
+// written to since the last call rather than once for each record.
+public class SegmentChannels {
+  private final int maxOpenFiles;
+  private final int maxRetainedBufferSize;
+  // In access order, so the least recently used file is first
+  private final LinkedHashMap<Path, FileChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+  private final HashSet<Path> unforcedPaths = new HashSet<>();
+  private ByteBuffer readBuffer = ByteBuffer.allocate(0);
+
+  public SegmentChannels(int maxOpenFiles, int maxRetainedBufferSize) {
+    this.maxOpenFiles = maxOpenFiles;
+    this.maxRetainedBufferSize = maxRetainedBufferSize;
+  }
+
+  public void write(Path path, long position, ByteBuffer buffer) throws IOException {
+    FileChannel channel = get(path);
+
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+
+    unforcedPaths.add(path);
+  }
+
+  // Reads the start of the file.  The buffer is reused by the next read, so it is only valid until then.
+  public ByteBuffer read(Path path, int size) throws IOException {
+    ByteBuffer buffer = readBuffer;
+
+    if (buffer.capacity() < size) {
+      buffer = ByteBuffer.allocate(size);
+
+      if (size <= maxRetainedBufferSize) {
+        readBuffer = buffer;
+      }
+    }
+
+    buffer.clear();
+    buffer.limit(size);
+    FileChannel channel = get(path);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, buffer.position()) == -1) {
+        throw new EOFException("Reached the end of " + path + " before " + size + " bytes");
+      }
+    }
+
+    buffer.flip();
+    return buffer;
+  }
+
+  public long size(Path path) throws IOException {
+    return get(path).size();
+  }
+
+  public void truncate(Path path, long size) throws IOException {
+    get(path).truncate(size);
+    unforcedPaths.add(path);
+  }
+
+  public void forceWrites() throws IOException {
+    Iterator<Path> paths = unforcedPaths.iterator();
+
+    while (paths.hasNext()) {
+      FileChannel channel = channels.get(paths.next());
+
+      if (channel != null) {
+        channel.force(false);
+      }
+
+      paths.remove();
+    }
+  }
+
+  // Has to be called before the file is renamed or deleted
+  public void close(Path path) throws IOException {
+    FileChannel channel = channels.remove(path);
+
+    if (channel != null) {
+      close(path, channel);
+    }
+  }
+
+  public void closeAll() throws IOException {
+    Iterator<Map.Entry<Path, FileChannel>> entries = channels.entrySet().iterator();
+
+    while (entries.hasNext()) {
+      Map.Entry<Path, FileChannel> entry = entries.next();
+      entries.remove();
+      close(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private FileChannel get(Path path) throws IOException {
+    FileChannel channel = channels.get(path);
+
+    if (channel != null) {
+      return channel;
+    }
+
+    if (channels.size() >= maxOpenFiles) {
+      Iterator<Map.Entry<Path, FileChannel>> entries = channels.entrySet().iterator();
+      Map.Entry<Path, FileChannel> leastRecentlyUsed = entries.next();
+      entries.remove();
+      close(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+    }
+
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    channels.put(path, channel);
+    return channel;
+  }
+
+  // Writes that have not been forced yet are forced first, as the file might be closed part way through a batch
+  private void close(Path path, FileChannel channel) throws IOException {
+    try {
+      if (unforcedPaths.remove(path)) {
+        channel.force(false);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package io.tiler.internal.storage.segments;
+
+import io.tiler.internal.queries.TimeRange;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// A file of records, read and written through the store's open segment files rather than a mapping of its own.  Each
+// record is a length, a type, a time and a UTF-8 payload.  Files written by earlier versions were zero filled up to
+// their full size, so a zero length also marks the end of the records.
+public class SegmentFile {
+  public static final byte HEADER_RECORD = 1;
+  public static final byte POINT_RECORD = 2;
+  // Everything written before this record, including earlier segments, no longer applies
+  public static final byte RESET_RECORD = 3;
+  private static final int LENGTH_SIZE = 4;
+  private static final int TYPE_AND_TIME_SIZE = 1 + 8;
+  private Path path;
+  private final long number;
+  private final int maxSize;
+  private final SegmentChannels channels;
+  private int writePosition;
+  private int pointCount;
+  private double minTime = Double.POSITIVE_INFINITY;
+  private double maxTime = Double.NEGATIVE_INFINITY;
+
+  private SegmentFile(Path path, long number, int maxSize, SegmentChannels channels) {
+    this.path = path;
+    this.number = number;
+    this.maxSize = maxSize;
+    this.channels = channels;
+  }
+
+  public static SegmentFile create(Path path, long number, int maxSize, SegmentChannels channels) throws IOException {
+    // Anything left over from an earlier, failed write would otherwise be read back as records
+    channels.close(path);
+    Files.deleteIfExists(path);
+    return new SegmentFile(path, number, maxSize, channels);
+  }
+
+  public static SegmentFile open(Path path, long number, int maxSize, SegmentChannels channels) throws IOException {
+    long size = channels.size(path);
+    SegmentFile segment = new SegmentFile(path, number, (int) Math.max(maxSize, size), channels);
+    segment.writePosition = (int) size;
+    segment.writePosition = segment.forEachRecord(null, (type, time, payload) -> {
+      if (type == POINT_RECORD) {
+        segment.addPointTime(time);
+      }
+    });
+
+    if (segment.writePosition < size) {
+      // Cuts off a record that was only partly written, or the zero filled end of an older file, so the next record
+      // is appended straight after the last complete one
+      channels.truncate(path, segment.writePosition);
+    }
+
+    return segment;
+  }
+
+  public static int recordSize(String payload) {
+    return LENGTH_SIZE + TYPE_AND_TIME_SIZE + payload.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  public long number() {
+    return number;
+  }
+
+  public int pointCount() {
+    return pointCount;
+  }
+
+  public double minTime() {
+    return minTime;
+  }
+
+  public double maxTime() {
+    return maxTime;
+  }
+
+  public boolean isEmpty() {
+    return writePosition == 0;
+  }
+
+  public boolean hasRoomFor(int recordSize) {
+    return writePosition + recordSize <= maxSize;
+  }
+
+  // The record is only on disk once the store has forced its writes
+  public void append(byte type, double time, String payload) throws IOException {
+    byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE + TYPE_AND_TIME_SIZE + payloadBytes.length);
+    buffer.putInt(TYPE_AND_TIME_SIZE + payloadBytes.length);
+    buffer.put(type);
+    buffer.putDouble(time);
+    buffer.put(payloadBytes);
+    buffer.flip();
+
+    channels.write(path, writePosition, buffer);
+    writePosition += buffer.limit();
+
+    if (type == POINT_RECORD) {
+      addPointTime(time);
+    }
+  }
+
+  // Point records outside the time range are skipped without decoding their payload.  Returns the position after the
+  // last complete record.
+  public int forEachRecord(TimeRange timeRange, RecordHandler handler) throws IOException {
+    ByteBuffer buffer = channels.read(path, writePosition);
+    int position = 0;
+
+    while (position + LENGTH_SIZE <= buffer.limit()) {
+      int length = buffer.getInt(position);
+
+      if (length < TYPE_AND_TIME_SIZE || position + LENGTH_SIZE + length > buffer.limit()) {
+        break;
+      }
+
+      byte type = buffer.get(position + LENGTH_SIZE);
+      double time = buffer.getDouble(position + LENGTH_SIZE + 1);
+
+      if (type != POINT_RECORD || timeRange == null || timeRange.contains(time)) {
+        byte[] payloadBytes = new byte[length - TYPE_AND_TIME_SIZE];
+        ByteBuffer payloadBuffer = buffer.duplicate();
+        payloadBuffer.position(position + LENGTH_SIZE + TYPE_AND_TIME_SIZE);
+        payloadBuffer.get(payloadBytes);
+
+        handler.handle(type, time, new String(payloadBytes, StandardCharsets.UTF_8));
+      }
+
+      position += LENGTH_SIZE + length;
+    }
+
+    return position;
+  }
+
+  public boolean overlaps(TimeRange timeRange) {
+    return pointCount > 0 && maxTime >= timeRange.from() && minTime <= timeRange.to();
+  }
+
+  // The store forces its writes before anything is moved into place
+  public void moveTo(Path target) throws IOException {
+    channels.close(path);
+    Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+    path = target;
+  }
+
+  public void delete() throws IOException {
+    channels.close(path);
+    Files.deleteIfExists(path);
+  }
+
+  private void addPointTime(double time) {
+    pointCount++;
+    minTime = Math.min(minTime, time);
+    maxTime = Math.max(maxTime, time);
+  }
+
+  public interface RecordHandler {
+    void handle(byte type, double time, String payload);
+  }
+}
@@ -0,0 +1,360 @@
+package io.tiler.internal.storage.segments;
+
+import com.google.common.hash.Hashing;
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.PartialWriteException;
+import io.tiler.internal.config.Config;
+import io.tiler.internal.config.FileStorageConfig;
+import io.tiler.internal.config.RetentionConfig;
+import io.tiler.internal.queries.TimeRange;
+import io.tiler.internal.storage.MetricPoints;
+import io.tiler.internal.storage.MetricRead;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.*;
+
+// Keeps each metric in its own append-only log of segment files.  The index of metric names, and of the time range
+// covered by each segment, is held in memory and rebuilt from the files on start.  Every call blocks on the files, so
+// the store is only used by the file storage worker.  Each write forces the files it wrote to disk once, at the end.
+public class SegmentStore {
+  private static final String EXPIRY_TIME_FILE_NAME = "expiry";
+  private final Path directory;
+  private final int segmentSize;
+  private final RetentionConfig retentionConfig;
+  private final String mergeKey;
+  private final Logger logger;
+  private final SegmentChannels channels;
+  private final HashMap<String, MetricLog> metricLogs = new HashMap<>();
+  private final HashMap<String, Long> expiryTimes = new HashMap<>();
+
+  public SegmentStore(Config config, Logger logger) {
+    FileStorageConfig fileStorageConfig = config.storage().file();
+    this.directory = Paths.get(fileStorageConfig.directory(), "metrics");
+    this.segmentSize = fileStorageConfig.segmentSize();
+    this.retentionConfig = config.storage().retention();
+    this.mergeKey = config.storage().mergeKey();
+    this.logger = logger;
+    channels = new SegmentChannels(fileStorageConfig.maxOpenFiles(), segmentSize);
+  }
+
+  // Returns the number of metrics loaded
+  public int start() throws IOException {
+    Files.createDirectories(directory);
+
+    try (DirectoryStream<Path> metricDirectories = Files.newDirectoryStream(directory)) {
+      for (Path metricDirectory : metricDirectories) {
+        MetricLog log = MetricLog.open(metricDirectory, segmentSize, channels);
+
+        if (log != null) {
+          metricLogs.put(log.name(), log);
+          Path expiryTimePath = metricDirectory.resolve(EXPIRY_TIME_FILE_NAME);
+
+          if (Files.exists(expiryTimePath)) {
+            expiryTimes.put(log.name(), Long.parseLong(new String(Files.readAllBytes(expiryTimePath), StandardCharsets.UTF_8).trim()));
+          }
+        }
+      }
+    }
+
+    // Opening the logs can cut off partly written records
+    channels.forceWrites();
+
+    if (!retentionConfig.rollups().isEmpty()) {
+      logger.warn("Rollups are not supported by the file storage backend and will be ignored");
+    }
+
+    return metricLogs.size();
+  }
+
+  public void stop() throws IOException {
+    channels.closeAll();
+  }
+
+  public void saveMetrics(JsonArray metrics) throws PartialWriteException {
+    writeMetrics(metrics, (log, metric) -> {
+      JsonArray points = metric.getArray("points");
+      log.replace(MetricPoints.createMetricHeader(metric), points == null ? new JsonArray() : points);
+    });
+  }
+
+  public void appendPoints(JsonArray metrics) throws PartialWriteException {
+    writeMetrics(metrics, (log, metric) -> {
+      JsonObject header = MetricPoints.createMetricHeader(metric);
+
+      // When only the name was given, any existing metric fields are left alone
+      if (log.header() == null || (header.size() > 1 && !header.equals(log.header()))) {
+        log.appendHeader(header);
+      }
+
+      JsonArray points = metric.getArray("points");
+
+      if (points != null) {
+        log.appendPoints(points);
+      }
+    });
+  }
+
+  public void mergePoints(JsonArray metrics) throws PartialWriteException {
+    writeMetrics(metrics, (log, metric) -> {
+      JsonObject storedMetric = log.header() == null ? new JsonObject() : log.header().copy();
+      storedMetric.putArray("points", log.header() == null ? new JsonArray() : log.readPoints(TimeRange.unbounded()));
+      JsonObject mergedMetric = MetricPoints.mergeMetric(storedMetric, metric, mergeKey);
+
+      // Replaced points can be anywhere in the log, so the merged points are rewritten into a new segment
+      log.replace(MetricPoints.createMetricHeader(mergedMetric), mergedMetric.getArray("points"));
+    });
+  }
+
+  public List<String> getMetricNames() {
+    return new ArrayList<>(metricLogs.keySet());
+  }
+
+  // Metrics that do not exist are left out, and the rest are in the order they were asked for
+  public JsonArray getMetrics(Map<String, MetricRead> metricReads) throws IOException {
+    JsonArray metrics = new JsonArray();
+
+    for (Map.Entry<String, MetricRead> metricRead : metricReads.entrySet()) {
+      MetricLog log = metricLogs.get(metricRead.getKey());
+
+      if (log != null) {
+        JsonObject metric = log.header().copy();
+        MetricRead read = metricRead.getValue();
+        // The header is held apart from the points, so leaving them out skips reading the log file altogether
+        metric.putArray("points", read.includesPoints() ? log.readPoints(read.timeRange()) : new JsonArray());
+        metrics.addObject(metric);
+      }
+    }
+
+    return metrics;
+  }
+
+  public void applyRetention(Clock clock) {
+    // Point times are in microseconds, matching the now() query function
+    long minTime = retentionConfig.hasMaxAge() ? clock.millis() * 1000L - retentionConfig.maxAge() : Long.MIN_VALUE;
+    ArrayList<MetricLog> replacedLogs = new ArrayList<>();
+
+    for (MetricLog log : metricLogs.values()) {
+      boolean tooOld = log.minTime() < minTime;
+      boolean tooMany = retentionConfig.hasMaxCount() && log.pointCount() > retentionConfig.maxCount();
+
+      if (!tooOld && !tooMany) {
+        continue;
+      }
+
+      try {
+        JsonArray points = log.readPoints(TimeRange.from(minTime));
+
+        if (retentionConfig.hasMaxCount() && points.size() > retentionConfig.maxCount()) {
+          JsonArray retainedPoints = new JsonArray();
+
+          for (int pointIndex = points.size() - retentionConfig.maxCount(); pointIndex < points.size(); pointIndex++) {
+            retainedPoints.addObject(points.get(pointIndex));
+          }
+
+          points = retainedPoints;
+        }
+
+        // Rewriting the remaining points into a new segment is what frees the space used by the old ones
+        log.replace(log.header(), points);
+        replacedLogs.add(log);
+      } catch (IOException e) {
+        logger.error("Failed to trim points for metric '" + log.name() + "'", e);
+      }
+    }
+
+    try {
+      channels.forceWrites();
+    } catch (IOException e) {
+      logger.error("Failed to trim points", e);
+
+      for (MetricLog log : replacedLogs) {
+        abortReplace(log);
+      }
+
+      return;
+    }
+
+    LinkedHashMap<String, IOException> failures = new LinkedHashMap<>();
+    commitReplaces(replacedLogs, failures);
+
+    for (Map.Entry<String, IOException> failure : failures.entrySet()) {
+      logger.error("Failed to trim points for metric '" + failure.getKey() + "'", failure.getValue());
+    }
+  }
+
+  public void setExpiryTimes(Map<String, Long> expiryTimes) throws PartialWriteException {
+    ArrayList<String> failedMetricNames = new ArrayList<>();
+    IOException firstFailure = null;
+
+    for (Map.Entry<String, Long> expiryTime : expiryTimes.entrySet()) {
+      String metricName = expiryTime.getKey();
+
+      if (!metricLogs.containsKey(metricName)) {
+        continue;
+      }
+
+      try {
+        // Kept beside the metric's log so it survives a restart
+        Files.write(getMetricDirectory(metricName).resolve(EXPIRY_TIME_FILE_NAME), expiryTime.getValue().toString().getBytes(StandardCharsets.UTF_8));
+        this.expiryTimes.put(metricName, expiryTime.getValue());
+      } catch (IOException e) {
+        failedMetricNames.add(metricName);
+
+        if (firstFailure == null) {
+          firstFailure = e;
+        }
+      }
+    }
+
+    if (firstFailure != null) {
+      throw new PartialWriteException(failedMetricNames, expiryTimes.size(), firstFailure);
+    }
+  }
+
+  public Map<String, Long> getExpiryTimes(List<String> metricNames) {
+    HashMap<String, Long> metricExpiryTimes = new HashMap<>();
+
+    for (String metricName : metricNames) {
+      Long expiryTime = expiryTimes.get(metricName);
+
+      if (expiryTime != null) {
+        metricExpiryTimes.put(metricName, expiryTime);
+      }
+    }
+
+    return metricExpiryTimes;
+  }
+
+  public List<String> removeExpiredMetrics(Clock clock, int maxCount) {
+    long now = clock.millis() * 1000L;
+    ArrayList<String> expiredMetricNames = new ArrayList<>();
+
+    for (Map.Entry<String, Long> expiryTime : expiryTimes.entrySet()) {
+      if (expiryTime.getValue() <= now && expiredMetricNames.size() < maxCount) {
+        expiredMetricNames.add(expiryTime.getKey());
+      }
+    }
+
+    ArrayList<String> removedMetricNames = new ArrayList<>();
+
+    for (String metricName : expiredMetricNames) {
+      try {
+        Files.deleteIfExists(getMetricDirectory(metricName).resolve(EXPIRY_TIME_FILE_NAME));
+        MetricLog log = metricLogs.remove(metricName);
+
+        if (log != null) {
+          log.delete();
+        }
+
+        expiryTimes.remove(metricName);
+        removedMetricNames.add(metricName);
+      } catch (IOException e) {
+        logger.error("Failed to remove expired metric '" + metricName + "'", e);
+      }
+    }
+
+    return removedMetricNames;
+  }
+
+  private void writeMetrics(JsonArray metrics, MetricWriter writer) throws PartialWriteException {
+    LinkedHashMap<String, IOException> failures = new LinkedHashMap<>();
+    ArrayList<MetricLog> replacedLogs = new ArrayList<>();
+
+    for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+      String metricName = metric.getString("name");
+      MetricLog log = metricLogs.get(metricName);
+
+      try {
+        if (log == null) {
+          log = MetricLog.create(getMetricDirectory(metricName), segmentSize, channels);
+          writer.write(log, metric);
+          metricLogs.put(metricName, log);
+        } else {
+          if (log.hasUncommittedReplace()) {
+            // A metric written twice in one batch has to see its first write, so that one is committed first
+            channels.forceWrites();
+            log.commitReplace();
+            replacedLogs.remove(log);
+          }
+
+          writer.write(log, metric);
+        }
+
+        if (log.hasUncommittedReplace()) {
+          replacedLogs.add(log);
+        }
+      } catch (IOException e) {
+        if (log != null) {
+          // A replacement that was only partly written must never be committed
+          abortReplace(log);
+          replacedLogs.remove(log);
+        }
+
+        failures.put(metricName, e);
+      }
+    }
+
+    try {
+      channels.forceWrites();
+    } catch (IOException e) {
+      // Writes that were not forced to disk might not be there after a crash, so none of them count as stored
+      for (MetricLog log : replacedLogs) {
+        abortReplace(log);
+      }
+
+      for (JsonObject metric : new JsonArrayIterable<JsonObject>(metrics)) {
+        failures.putIfAbsent(metric.getString("name"), e);
+      }
+
+      replacedLogs.clear();
+    }
+
+    commitReplaces(replacedLogs, failures);
+
+    if (!failures.isEmpty()) {
+      PartialWriteException e = new PartialWriteException(new ArrayList<>(failures.keySet()), metrics.size(), failures.values().iterator().next());
+      logger.error("Failed to save metrics " + e.failedMetricNames(), e);
+      throw e;
+    }
+  }
+
+  // Moves the replacements, which have to have been forced to disk already, into place
+  private void commitReplaces(List<MetricLog> replacedLogs, Map<String, IOException> failures) {
+    for (MetricLog log : replacedLogs) {
+      try {
+        log.commitReplace();
+      } catch (IOException e) {
+        abortReplace(log);
+        failures.put(log.name(), e);
+      }
+    }
+  }
+
+  private void abortReplace(MetricLog log) {
+    try {
+      log.abortReplace();
+    } catch (IOException e) {
+      // The temporary segment is deleted when the log is next opened
+      logger.error("Failed to delete the replacement segment of metric '" + log.name() + "'", e);
+    }
+  }
+
+  private Path getMetricDirectory(String metricName) {
+    // Metric names can contain characters that are not allowed in file names, so directories are named by hash and
+    // the name itself is kept in the log
+    return directory.resolve(Hashing.sha1().hashString(metricName, StandardCharsets.UTF_8).toString());
+  }
+
+  private interface MetricWriter {
+    void write(MetricLog log, JsonObject metric) throws IOException;
+  }
+}
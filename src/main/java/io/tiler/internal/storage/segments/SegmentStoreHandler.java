@@ -0,0 +1,129 @@
+package io.tiler.internal.storage.segments;
+
+import io.tiler.core.json.JsonArrayIterable;
+import io.tiler.internal.PartialWriteException;
+import io.tiler.internal.storage.MetricRead;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Carries out the requests FileMetricStore sends to the file storage worker.  Replies have a status of ok and the
+// value asked for, or a status of error, a message and, for writes, the names of the metrics that were not written.
+public class SegmentStoreHandler implements Handler<Message<JsonObject>> {
+  private final SegmentStore store;
+
+  public SegmentStoreHandler(SegmentStore store) {
+    this.store = store;
+  }
+
+  @Override
+  public void handle(Message<JsonObject> message) {
+    JsonObject reply;
+
+    try {
+      reply = new JsonObject().putString("status", "ok");
+      Object value = handleRequest(message.body());
+
+      if (value != null) {
+        reply.putValue("value", value);
+      }
+    } catch (PartialWriteException e) {
+      reply = createErrorReply(e.getCause())
+        .putArray("failedMetricNames", new JsonArray(new ArrayList<Object>(e.failedMetricNames())));
+    } catch (IOException | RuntimeException e) {
+      reply = createErrorReply(e);
+    }
+
+    message.reply(reply);
+  }
+
+  private Object handleRequest(JsonObject request) throws IOException, PartialWriteException {
+    String action = request.getString("action");
+
+    switch (action) {
+      case "saveMetrics":
+        store.saveMetrics(request.getArray("metrics"));
+        return null;
+      case "appendPoints":
+        store.appendPoints(request.getArray("metrics"));
+        return null;
+      case "mergePoints":
+        store.mergePoints(request.getArray("metrics"));
+        return null;
+      case "getMetricNames":
+        return new JsonArray(new ArrayList<Object>(store.getMetricNames()));
+      case "getMetrics":
+        LinkedHashMap<String, MetricRead> metricReads = new LinkedHashMap<>();
+
+        for (JsonObject metricRead : new JsonArrayIterable<JsonObject>(request.getArray("metricReads"))) {
+          metricReads.put(metricRead.getString("name"), MetricRead.fromJson(metricRead));
+        }
+
+        return store.getMetrics(metricReads);
+      case "applyRetention":
+        store.applyRetention(getClock(request));
+        return null;
+      case "setExpiryTimes":
+        store.setExpiryTimes(toExpiryTimes(request.getObject("expiryTimes")));
+        return null;
+      case "getExpiryTimes":
+        return toJson(store.getExpiryTimes(toMetricNames(request.getArray("metricNames"))));
+      case "removeExpiredMetrics":
+        return new JsonArray(new ArrayList<Object>(store.removeExpiredMetrics(getClock(request), request.getInteger("maxCount"))));
+      default:
+        throw new IllegalArgumentException("Unrecognised file storage action '" + action + "'");
+    }
+  }
+
+  private static JsonObject createErrorReply(Throwable cause) {
+    return new JsonObject()
+      .putString("status", "error")
+      .putString("message", cause.getMessage() == null ? cause.getClass().getName() : cause.getMessage());
+  }
+
+  // The time is taken when the request is sent, so a request that waits behind a long write still sees it
+  private static Clock getClock(JsonObject request) {
+    return Clock.fixed(Instant.ofEpochMilli(request.getLong("now")), ZoneOffset.UTC);
+  }
+
+  private static Map<String, Long> toExpiryTimes(JsonObject json) {
+    HashMap<String, Long> expiryTimes = new HashMap<>();
+
+    for (String metricName : json.getFieldNames()) {
+      expiryTimes.put(metricName, json.getLong(metricName));
+    }
+
+    return expiryTimes;
+  }
+
+  private static List<String> toMetricNames(JsonArray json) {
+    ArrayList<String> metricNames = new ArrayList<>();
+
+    for (String metricName : new JsonArrayIterable<String>(json)) {
+      metricNames.add(metricName);
+    }
+
+    return metricNames;
+  }
+
+  private static JsonObject toJson(Map<String, Long> expiryTimes) {
+    JsonObject json = new JsonObject();
+
+    for (Map.Entry<String, Long> expiryTime : expiryTimes.entrySet()) {
+      json.putNumber(expiryTime.getKey(), expiryTime.getValue());
+    }
+
+    return json;
+  }
+}
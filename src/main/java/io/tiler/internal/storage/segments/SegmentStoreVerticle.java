@@ -0,0 +1,45 @@
+package io.tiler.internal.storage.segments;
+
+import io.tiler.internal.config.ConfigFactory;
+import io.tiler.internal.storage.FileMetricStore;
+import org.vertx.java.core.Future;
+import org.vertx.java.platform.Verticle;
+
+import java.io.IOException;
+
+// Deployed as a worker by FileMetricStore, so that reading, writing and forcing the segment files never blocks the
+// server's event loop.  A single instance handles one request at a time, which is what keeps the store's files
+// consistent.
+public class SegmentStoreVerticle extends Verticle {
+  private SegmentStore store;
+
+  @Override
+  public void start(Future<Void> startFuture) {
+    store = new SegmentStore(new ConfigFactory().load(container.config()), container.logger());
+
+    try {
+      container.logger().info("Loaded " + store.start() + " metrics from the file storage backend");
+    } catch (IOException e) {
+      startFuture.setFailure(e);
+      return;
+    }
+
+    vertx.eventBus().registerHandler(FileMetricStore.ADDRESS, new SegmentStoreHandler(store), result -> {
+      if (result.failed()) {
+        startFuture.setFailure(result.cause());
+        return;
+      }
+
+      startFuture.setResult(null);
+    });
+  }
+
+  @Override
+  public void stop() {
+    try {
+      store.stop();
+    } catch (IOException e) {
+      container.logger().error("Failed to close the segment files", e);
+    }
+  }
+}
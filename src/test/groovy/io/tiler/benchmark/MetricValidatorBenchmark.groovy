@@ -0,0 +1,88 @@
+package io.tiler.benchmark
+
+import groovy.transform.CompileStatic
+import io.tiler.internal.ingest.MetricValidator
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+
+// Measures the time the validator takes per point on a typical request.  Not part of the unit tests, as timings vary
+// from machine to machine.  Run the main method with the test classpath.
+@CompileStatic
+class MetricValidatorBenchmark {
+  static final int METRIC_COUNT = 100
+  static final int POINTS_PER_METRIC = 100
+  static final int WARM_UP_ITERATIONS = 500
+  static final int MEASURED_ITERATIONS = 1000
+
+  static void main(String[] args) {
+    def validator = new MetricValidator()
+    def json = createJson()
+
+    for (int iteration = 0; iteration < WARM_UP_ITERATIONS; iteration++) {
+      assert validator.validate(new JsonArray(json)) == null
+    }
+
+    long validateNanos = 0
+    long walkNanos = 0
+
+    // Each batch is freshly decoded, as validating a batch normalises it, but only the validation is timed.  Walking
+    // every field of a batch without checking it shows how much of the time is spent just reading the decoded JSON.
+    for (int iteration = 0; iteration < MEASURED_ITERATIONS; iteration++) {
+      def metrics = new JsonArray(json)
+      long startNanos = System.nanoTime()
+      validator.validate(metrics)
+      validateNanos += System.nanoTime() - startNanos
+
+      metrics = new JsonArray(json)
+      startNanos = System.nanoTime()
+      walk(metrics)
+      walkNanos += System.nanoTime() - startNanos
+    }
+
+    long pointCount = (long) MEASURED_ITERATIONS * METRIC_COUNT * POINTS_PER_METRIC
+    println String.format("Validating: %.1f ns per point over %d points", validateNanos / (double) pointCount, pointCount)
+    println String.format("Walking:    %.1f ns per point over %d points", walkNanos / (double) pointCount, pointCount)
+  }
+
+  static int walk(JsonArray metrics) {
+    int fieldCount = 0
+
+    for (int metricIndex = 0; metricIndex < metrics.size(); metricIndex++) {
+      JsonObject metric = (JsonObject) metrics.get(metricIndex)
+      JsonArray points = metric.getArray("points")
+
+      for (int pointIndex = 0; pointIndex < points.size(); pointIndex++) {
+        JsonObject point = (JsonObject) points.get(pointIndex)
+
+        for (String fieldName : point.getFieldNames()) {
+          if (point.getValue(fieldName) != null) {
+            fieldCount++
+          }
+        }
+      }
+    }
+
+    fieldCount
+  }
+
+  // Decoded like a request body, so the numbers start out as the types Jackson produces
+  static String createJson() {
+    def json = new StringBuilder("[")
+
+    for (int metricIndex = 0; metricIndex < METRIC_COUNT; metricIndex++) {
+      json.append(metricIndex == 0 ? "" : ",")
+        .append('{"name":"builds.').append(metricIndex).append('","host":"agent-1","points":[')
+
+      for (int pointIndex = 0; pointIndex < POINTS_PER_METRIC; pointIndex++) {
+        json.append(pointIndex == 0 ? "" : ",")
+          .append('{"time":').append(1434055562000000L + pointIndex * 1000000L)
+          .append(',"value":').append(pointIndex % 2 == 0 ? pointIndex.toString() : (pointIndex + 0.5).toString())
+          .append(',"status":"ok"}')
+      }
+
+      json.append("]}")
+    }
+
+    json.append("]").toString()
+  }
+}
@@ -317,6 +317,41 @@ metric name, another.field
     ]
   }
 ]
+'''
+  ],
+  [
+    content: '''
+Adding `only` to the `metric` clause returns the metrics without their points.  Points are not read from storage for these queries, so listing or sorting metrics by their fields stays quick however many points the metrics have.  A field called `only` can still be selected, as `only` is only read this way when another field follows it.
+''',
+    query: '''
+from some.metric
+metric only name, another.field
+''',
+    metrics: '''
+[
+  {
+    "name": "some.metric",
+    "another.field": "Red",
+    "third.field": "Green",
+    "points": [
+      {
+        "value": "A"
+      },
+      {
+        "value": "B"
+      }
+    ]
+  }
+]
+''',
+    expectedOutput: '''
+[
+  {
+    "name": "some.metric",
+    "another.field": "Red",
+    "points": []
+  }
+]
 '''
   ],
   [
@@ -1194,6 +1229,56 @@ point ocean, sum(value) as value
     ]
   }
 ]
+'''
+  ],
+  [
+    content: '''
+#### count function
+
+The `count` function can be used with the aggregate clause to count the field values being merged.  Null values are not counted.
+''',
+    query: '''
+from some.metric
+aggregate ocean
+point ocean, count(value) as value
+''',
+    metrics: '''
+[
+  {
+    "name": "some.metric",
+    "points": [
+      {
+        "ocean": "Pacific",
+        "value": 1
+      },
+      {
+        "ocean": "Pacific",
+        "value": 2
+      },
+      {
+        "ocean": "Atlantic",
+        "value": 4
+      }
+    ]
+  }
+]
+''',
+    expectedOutput: '''
+[
+  {
+    "name": "some.metric",
+    "points": [
+      {
+        "ocean": "Pacific",
+        "value": 2
+      },
+      {
+        "ocean": "Atlantic",
+        "value": 1
+      }
+    ]
+  }
+]
 '''
   ],
   [
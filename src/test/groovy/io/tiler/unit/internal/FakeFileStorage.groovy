@@ -0,0 +1,53 @@
+package io.tiler.unit.internal
+
+import io.tiler.internal.config.Config
+import io.tiler.internal.storage.FileMetricStore
+import io.tiler.internal.storage.segments.SegmentStore
+import io.tiler.internal.storage.segments.SegmentStoreHandler
+import org.simondean.vertx.async.DefaultAsyncResult
+import org.vertx.java.core.AsyncResult
+import org.vertx.java.core.Handler
+import org.vertx.java.core.eventbus.EventBus
+import org.vertx.java.core.eventbus.Message
+import org.vertx.java.core.json.JsonObject
+import org.vertx.java.core.logging.Logger
+import org.vertx.java.platform.Container
+
+// Stands in for the file storage worker, handling each request on the caller's thread as soon as it is sent.  Requests
+// and replies are copied, as they would be on the event bus.
+class FakeFileStorage {
+  SegmentStore store
+  SegmentStoreHandler handler
+
+  FakeFileStorage(Config config, Logger logger) {
+    store = new SegmentStore(config, logger)
+    handler = new SegmentStoreHandler(store)
+  }
+
+  Container createContainer() {
+    [
+      config: { new JsonObject() },
+      deployWorkerVerticle: { String main, JsonObject config, int instances, boolean multiThreaded, Handler<AsyncResult<String>> doneHandler ->
+        store.start()
+        doneHandler.handle(DefaultAsyncResult.succeed(main))
+      }
+    ] as Container
+  }
+
+  EventBus createEventBus() {
+    EventBus eventBus
+    eventBus = [send: { String address, JsonObject json, Handler<Message<JsonObject>> replyHandler ->
+      assert address == FileMetricStore.ADDRESS
+      def body = json.copy()
+      handler.handle([
+        body: { body },
+        reply: { JsonObject reply -> replyHandler.handle([body: { reply.copy() }] as Message) }
+      ] as Message)
+      eventBus
+    }] as EventBus
+  }
+
+  FileMetricStore createStore(Logger logger) {
+    new FileMetricStore(createContainer(), createEventBus(), logger)
+  }
+}
@@ -0,0 +1,245 @@
+package io.tiler.unit.internal
+
+import org.vertx.java.core.Handler
+import org.vertx.java.core.eventbus.EventBus
+import org.vertx.java.core.eventbus.Message
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+
+// Stands in for the Redis module on the event bus, holding strings, sets and sorted sets in memory.  Replies are only
+// delivered by run(), as the module never replies before the command has been sent, and the scripts the stores use
+// are carried out in Groovy.
+class FakeRedis {
+  def strings = [:]
+  def sets = [:]
+  def sortedSets = [:]
+  def commands = []
+  def failures = []
+  def pendingReplies = []
+
+  EventBus createEventBus() {
+    createEventBus([:].withDefault { this })
+  }
+
+  // Sends each command to the instance for the address it was sent to, as for several Redis shards
+  static EventBus createEventBus(Map<String, FakeRedis> instances) {
+    EventBus eventBus
+    eventBus = [send: { String address, JsonObject json, Handler<Message<JsonObject>> handler ->
+      def instance = instances[address]
+      instance.commands << [json.getString("command"), json.getArray("args").toList()]
+      instance.pendingReplies << [json, handler]
+      eventBus
+    }] as EventBus
+  }
+
+  // Replies from one instance can send commands to another, so this carries on until none of them have replies waiting
+  static void run(Collection<FakeRedis> instances) {
+    while (instances.any { !it.pendingReplies.isEmpty() }) {
+      instances.each { it.run() }
+    }
+  }
+
+  // Commands the closure returns true for are answered with an error, as a failed write would be
+  void failWhen(Closure condition) {
+    failures << condition
+  }
+
+  // Delivers replies, including the replies to commands sent by reply handlers, until no more are waiting
+  void run() {
+    while (!pendingReplies.isEmpty()) {
+      def (json, handler) = pendingReplies.remove(0)
+      def command = json.getString("command").toLowerCase()
+      def args = json.getArray("args").toList()
+      def body
+
+      if (failures.any { it(command, args) }) {
+        body = new JsonObject().putString("status", "error").putString("message", "Failed to " + command)
+      } else {
+        def value = toReplyValue(execute(command, args))
+        body = new JsonObject().putString("status", "ok")
+
+        if (value != null) {
+          body.putValue("value", value)
+        }
+      }
+
+      handler.handle([body: { body }] as Message)
+    }
+  }
+
+  def commandNames() {
+    commands.collect { it[0] }
+  }
+
+  def members(String key) {
+    (sortedSets[key] ?: []).collect { it[1] }
+  }
+
+  def pointTimes(String key) {
+    members(key).collect { new JsonObject(it).getLong("time") }
+  }
+
+  private def execute(String command, List args) {
+    switch (command) {
+      case "sadd":
+        def set = sets.get(args[0], new TreeSet())
+        return args.drop(1).count { set.add(it.toString()) }
+      case "srem":
+        return args.drop(1).count { (sets[args[0]] ?: []).remove(it.toString()) }
+      case "sscan":
+        def members = (sets[args[0]] ?: []) as List
+        def cursor = args[1].toString() as int
+        def count = args[3] as int
+        def nextCursor = cursor + count >= members.size() ? 0 : cursor + count
+        return [nextCursor.toString(), members.subList(cursor, Math.min(cursor + count, members.size()))]
+      case "set":
+        strings[args[0]] = args[1].toString()
+        return "OK"
+      case "setnx":
+        if (strings.containsKey(args[0])) {
+          return 0
+        }
+
+        strings[args[0]] = args[1].toString()
+        return 1
+      case "get":
+        return strings[args[0]]
+      case "mget":
+        return args.collect { strings[it] }
+      case "mset":
+        args.collate(2).each { strings[it[0]] = it[1].toString() }
+        return "OK"
+      case "del":
+        return args.count { strings.remove(it) != null | sets.remove(it) != null | sortedSets.remove(it) != null }
+      case "multi":
+      case "exec":
+        return "OK"
+      case "zadd":
+        args.drop(1).collate(2).each { zadd(args[0], toScore(it[0]), it[1].toString()) }
+        return args.size() >> 1
+      case "zrem":
+        return args.drop(1).count { member -> zremove(args[0]) { it[1] == member.toString() } }
+      case "zscore":
+        def entry = (sortedSets[args[0]] ?: []).find { it[1] == args[1].toString() }
+        return entry == null ? null : formatScore(entry[0])
+      case "zrange":
+        return rangeByRank(args[0], args[1] as int, args[2] as int).collect { it[1] }
+      case "zrangebyscore":
+        return rangeByScore(args[0], args[1], args[2]).collect { it[1] }
+      case "zremrangebyscore":
+        def removed = rangeByScore(args[0], args[1], args[2])
+        return zremove(args[0]) { removed.contains(it) }
+      case "zremrangebyrank":
+        def removed = rangeByRank(args[0], args[1] as int, args[2] as int)
+        return zremove(args[0]) { removed.contains(it) }
+      case "eval":
+        return evaluate(args[0], args.subList(2, 2 + (args[1] as int)), args.drop(2 + (args[1] as int)))
+      default:
+        throw new IllegalArgumentException("Unsupported command " + command)
+    }
+  }
+
+  private def evaluate(String script, List keys, List argv) {
+    if (script.contains("keyField")) {
+      // Upserts points by merge key
+      def keyField = argv[0]
+      argv.drop(2).collate(2).each { score, member ->
+        def key = new JsonObject(member).getValue(keyField)
+
+        if (key != null) {
+          zremove(keys[0]) { new JsonObject(it[1]).getValue(keyField) == key }
+        }
+
+        zadd(keys[0], toScore(score), member)
+      }
+
+      return 1
+    }
+
+    if (script.contains("current == ARGV[1]")) {
+      // Compares and sets a document and its header
+      def current = strings[keys[0]]
+
+      if ((current == null && argv[0] == "") || current == argv[0]) {
+        strings[keys[0]] = argv[1]
+        strings[keys[1]] = argv[2]
+        return 1
+      }
+
+      return 0
+    }
+
+    if (script.contains("LIMIT")) {
+      // Removes expired metrics
+      def names = rangeByScore(keys[0], "-inf", argv[0]).take(argv[1] as int).collect { it[1] }
+
+      names.each { name ->
+        zremove(keys[0]) { it[1] == name }
+        sets[keys[1]]?.remove(name)
+        argv.drop(2).each { prefix -> execute("del", [prefix + name]) }
+      }
+
+      return names
+    }
+
+    throw new IllegalArgumentException("Unsupported script")
+  }
+
+  void zadd(String key, double score, String member) {
+    def entries = sortedSets.get(key, [])
+    entries.removeAll { it[1] == member }
+    entries << [score, member]
+    entries.sort { a, b -> a[0] <=> b[0] ?: a[1] <=> b[1] }
+  }
+
+  private int zremove(String key, Closure condition) {
+    def entries = sortedSets[key] ?: []
+    def sizeBefore = entries.size()
+    entries.removeAll(condition)
+
+    if (entries.isEmpty()) {
+      sortedSets.remove(key)
+    }
+
+    sizeBefore - entries.size()
+  }
+
+  private def rangeByRank(String key, int start, int stop) {
+    def entries = sortedSets[key] ?: []
+    start = start < 0 ? Math.max(0, entries.size() + start) : start
+    stop = stop < 0 ? entries.size() + stop : Math.min(stop, entries.size() - 1)
+    start <= stop ? entries.subList(start, stop + 1).collect() : []
+  }
+
+  private def rangeByScore(String key, Object min, Object max) {
+    (sortedSets[key] ?: []).findAll { isAboveMin(it[0], min.toString()) && isBelowMax(it[0], max.toString()) }
+  }
+
+  private static boolean isAboveMin(double score, String min) {
+    min.startsWith("(") ? score > toScore(min.substring(1)) : score >= toScore(min)
+  }
+
+  private static boolean isBelowMax(double score, String max) {
+    max.startsWith("(") ? score < toScore(max.substring(1)) : score <= toScore(max)
+  }
+
+  private static double toScore(Object value) {
+    switch (value.toString()) {
+      case "-inf":
+        return Double.NEGATIVE_INFINITY
+      case "+inf":
+      case "inf":
+        return Double.POSITIVE_INFINITY
+      default:
+        return value.toString() as double
+    }
+  }
+
+  private static String formatScore(double score) {
+    score == Math.rint(score) ? Long.toString((long) score) : Double.toString(score)
+  }
+
+  private static def toReplyValue(Object value) {
+    value instanceof List ? new JsonArray(value) : value
+  }
+}
@@ -0,0 +1,62 @@
+package io.tiler.unit.internal
+
+import io.tiler.internal.InstanceRegistry
+import spock.lang.*
+
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+
+class InstanceRegistrySpec extends Specification {
+  def registry = new InstanceRegistry(new ConcurrentHashMap<String, String>())
+
+  def "it gives each instance the lowest free index"() {
+    when:
+    def first = registry.register("a")
+    def second = registry.register("b")
+    def third = registry.register("c")
+
+    then:
+    [first, second, third] == [0, 1, 2]
+    registry.size() == 3
+
+    when:
+    registry.unregister(1, "b")
+
+    then:
+    registry.size() == 2
+    registry.register("d") == 1
+  }
+
+  def "it only frees an index for the instance that has it"() {
+    registry.register("a")
+
+    when:
+    registry.unregister(0, "b")
+
+    then:
+    registry.size() == 1
+    registry.register("b") == 1
+  }
+
+  def "it lets only one instance at a time have a write-ahead log open"() {
+    registry.register("a")
+
+    expect:
+    registry.claimLog(Paths.get("wal-instance1"), "a")
+    !registry.claimLog(Paths.get("wal-instance1").toAbsolutePath(), "b")
+    registry.claimLog(Paths.get("wal"), "b")
+    registry.size() == 1
+
+    when:
+    registry.releaseLog(Paths.get("wal-instance1"), "b")
+
+    then:
+    !registry.claimLog(Paths.get("wal-instance1"), "b")
+
+    when:
+    registry.releaseLog(Paths.get("wal-instance1"), "a")
+
+    then:
+    registry.claimLog(Paths.get("wal-instance1"), "b")
+  }
+}
@@ -0,0 +1,81 @@
+package io.tiler.unit.internal
+
+import io.tiler.internal.RedisBatch
+import org.vertx.java.core.eventbus.Message
+import org.vertx.java.core.json.JsonObject
+import spock.lang.*
+
+class RedisBatchSpec extends Specification {
+  def completedBatches = []
+  def batch = new RedisBatch({ completedBatches << it })
+
+  def reply(Map body) {
+    [body: { new JsonObject(body) }] as Message
+  }
+
+  def "it completes once every reply has arrived"() {
+    def values = []
+    def first = batch.replyHandler(["a"], { values << it.getString("value") })
+    def second = batch.replyHandler(["b"], { values << it.getString("value") })
+
+    when:
+    second.handle(reply(status: "ok", value: "2"))
+
+    then:
+    completedBatches.isEmpty()
+
+    when:
+    first.handle(reply(status: "ok", value: "1"))
+
+    then:
+    completedBatches == [batch]
+    values == ["2", "1"]
+    !batch.failed()
+  }
+
+  def "it stays open while a body handler adds more commands to it"() {
+    def followUp = null
+    def first = batch.replyHandler(["a"], { followUp = batch.replyHandler(["a"]) })
+
+    when:
+    first.handle(reply(status: "ok"))
+
+    then:
+    completedBatches.isEmpty()
+
+    when:
+    followUp.handle(reply(status: "ok"))
+
+    then:
+    completedBatches == [batch]
+  }
+
+  def "it keeps the first failure and the names of every metric whose command failed"() {
+    def bodies = []
+    def first = batch.replyHandler(["a", "b"], { bodies << it })
+    def second = batch.replyHandler(["c"])
+    def third = batch.replyHandler(["b", "d"])
+
+    when:
+    first.handle(reply(status: "error", message: "first"))
+    second.handle(reply(status: "ok"))
+    third.handle(reply(status: "error", message: "third"))
+
+    then:
+    completedBatches == [batch]
+    batch.failed()
+    batch.firstFailure().message == "error: first"
+    batch.failedMetricNames() == ["a", "b", "d"]
+    bodies.isEmpty()
+  }
+
+  def "it works out replies that are not messages"() {
+    def handler = batch.replyBodyHandler(["a"], null)
+
+    when:
+    handler.handle(new JsonObject().putString("status", "ok"))
+
+    then:
+    completedBatches == [batch]
+  }
+}
@@ -0,0 +1,27 @@
+package io.tiler.unit.internal
+
+import io.tiler.internal.RedisException
+import org.vertx.java.core.json.JsonObject
+import spock.lang.*
+
+class RedisExceptionSpec extends Specification {
+  def "it tells errors about the command apart from errors about Redis being unavailable"() {
+    def reply = new JsonObject().putString("status", "error")
+
+    if (message != null) {
+      reply.putString("message", message)
+    }
+
+    expect:
+    new RedisException(reply).isCommandError() == commandError
+
+    where:
+    message                                                              | commandError
+    "WRONGTYPE Operation against a key holding the wrong kind of value"  | true
+    "ERR wrong number of arguments for 'zadd' command"                   | true
+    "LOADING Redis is loading the dataset in memory"                     | false
+    "READONLY You can't write against a read only replica."              | false
+    "Connection refused"                                                 | false
+    null                                                                 | false
+  }
+}
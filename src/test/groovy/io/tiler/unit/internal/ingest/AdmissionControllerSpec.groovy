@@ -0,0 +1,104 @@
+package io.tiler.unit.internal.ingest
+
+import io.tiler.internal.config.AdmissionConfig
+import io.tiler.internal.ingest.AdmissionController
+import io.tiler.internal.ingest.IngestBuffer
+import org.simondean.vertx.async.DefaultAsyncResult
+import spock.lang.*
+
+class AdmissionControllerSpec extends Specification {
+  def results = []
+
+  def admit(AdmissionController controller, long bytes) {
+    controller.admit(bytes, { results << it })
+  }
+
+  def "it rejects batches once too many are in flight"() {
+    def controller = new AdmissionController(new AdmissionConfig(2, null, null))
+
+    when:
+    def first = admit(controller, 10)
+    def second = admit(controller, 10)
+    def third = admit(controller, 10)
+
+    then:
+    first != null
+    second != null
+    third == null
+    controller.stats().toMap() == [inFlightBatches: 2, inFlightBytes: 20, peakInFlightBatches: 2, peakInFlightBytes: 20, admitted: 2, rejected: 1]
+
+    when:
+    first.handle(DefaultAsyncResult.succeed())
+
+    then:
+    results.size() == 1
+    admit(controller, 10) != null
+  }
+
+  def "it rejects batches that would take too many bytes in flight"() {
+    def controller = new AdmissionController(new AdmissionConfig(null, 100L, null))
+
+    expect:
+    admit(controller, 60) != null
+    admit(controller, 50) == null
+    admit(controller, 40) != null
+  }
+
+  def "it always admits a batch when nothing is in flight"() {
+    def controller = new AdmissionController(new AdmissionConfig(null, 100L, null))
+
+    expect:
+    admit(controller, 1000) != null
+    admit(controller, 1) == null
+  }
+
+  def "it admits everything when no limits are set"() {
+    def controller = new AdmissionController(new AdmissionConfig())
+
+    expect:
+    (1..100).every { admit(controller, 1000000) != null }
+  }
+
+  def "it rejects batches while the write-ahead log's backlog is full, even when nothing is in flight"() {
+    def backlogFull = true
+    def ingestBuffer = Stub(IngestBuffer) {
+      isFull() >> { backlogFull }
+    }
+    def controller = new AdmissionController(new AdmissionConfig(), ingestBuffer)
+
+    expect:
+    admit(controller, 1) == null
+
+    when:
+    backlogFull = false
+
+    then:
+    admit(controller, 1) != null
+    controller.stats().getLong("rejected") == 1
+  }
+
+  def "it counts the entries the write-ahead log has yet to store as in flight"() {
+    def ingestBuffer = Stub(IngestBuffer) {
+      pendingEntryCount() >> 1
+      pendingBytes() >> 60L
+    }
+    def controller = new AdmissionController(new AdmissionConfig(2, 100L, null), ingestBuffer)
+
+    expect:
+    admit(controller, 50) == null
+    admit(controller, 40) != null
+    admit(controller, 1) == null
+  }
+
+  def "it rounds the retry time up to whole seconds"() {
+    expect:
+    new AdmissionController(new AdmissionConfig(null, null, retryAfter)).retryAfterSeconds() == seconds
+
+    where:
+    retryAfter | seconds
+    "1s"       | 1
+    "2m"       | 120
+    "1500000u" | 2
+    "1u"       | 1
+  }
+}
@@ -0,0 +1,35 @@
+package io.tiler.unit.internal.ingest
+
+import io.tiler.internal.ingest.Histogram
+import spock.lang.*
+
+class HistogramSpec extends Specification {
+  def "it counts values in buckets that double in size"() {
+    def histogram = new Histogram(4)
+
+    when:
+    [0, 1, 2, 3, 4, 5, 100].each { histogram.record(it) }
+
+    then:
+    histogram.toJson().getArray("buckets").toList() == [
+      [le: 1, count: 2],
+      [le: 2, count: 1],
+      [le: 4, count: 2],
+      [le: 8, count: 1],
+      [count: 1]
+    ]
+    histogram.toJson().getNumber("max") == 100
+  }
+
+  def "it estimates percentiles from the bucket bounds"() {
+    def histogram = new Histogram(10)
+
+    when:
+    (1..100).each { histogram.record(it) }
+
+    then:
+    histogram.percentile(50) == 64
+    histogram.percentile(99) == 100
+    new Histogram(10).percentile(99) == 0
+  }
+}
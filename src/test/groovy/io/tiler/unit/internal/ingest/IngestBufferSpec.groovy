@@ -0,0 +1,321 @@
+package io.tiler.unit.internal.ingest
+
+import io.tiler.internal.PartialWriteException
+import io.tiler.internal.RedisException
+import io.tiler.internal.config.FsyncPolicy
+import io.tiler.internal.ingest.IngestBuffer
+import io.tiler.internal.ingest.WriteAheadLog
+import org.simondean.vertx.async.DefaultAsyncResult
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+import spock.lang.*
+
+import java.nio.file.Files
+import java.time.Clock
+import java.time.Instant
+
+class IngestBufferSpec extends Specification {
+  def directory = Files.createTempDirectory("tiler")
+  def writes = []
+  def failWrites = false
+  def failingNames = []
+  def attemptCount = 0
+  def now = 0L
+  def clock = [instant: { Instant.ofEpochMilli(now) }] as Clock
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  def createBuffer(int maxFlushSize = 100, int segmentSize = 1024, int maxFlushAttempts = 0, long maxPendingBytes = 0, long retryDelay = 0, long maxRetryDelay = 0) {
+    def buffer = new IngestBuffer(new WriteAheadLog(directory, segmentSize, FsyncPolicy.Always), maxFlushSize, maxFlushAttempts, maxPendingBytes, retryDelay, maxRetryDelay, clock, { entryType, metrics, handler ->
+      attemptCount++
+      def names = metrics.toList()*.name
+
+      if (failWrites) {
+        handler.handle(DefaultAsyncResult.fail(new RuntimeException("Storage is unavailable")))
+        return
+      }
+
+      if (names.any { failingNames.contains(it) }) {
+        def cause = new RedisException(new JsonObject().putString("status", "error").putString("message", "WRONGTYPE Operation against a key holding the wrong kind of value"))
+        handler.handle(DefaultAsyncResult.fail(new PartialWriteException(names.intersect(failingNames), names.size(), cause)))
+        return
+      }
+
+      writes << [entryType, metrics.toList()*.name]
+      handler.handle(DefaultAsyncResult.succeed())
+    } as IngestBuffer.MetricWriter)
+    buffer.start()
+    buffer
+  }
+
+  def metrics(String... names) {
+    new JsonArray(names.collect { [name: it, points: [[time: 1, value: 1]]] })
+  }
+
+  def flush(IngestBuffer buffer) {
+    def result = null
+    buffer.flush({ result = it })
+    result
+  }
+
+  def segmentCount() {
+    directory.toFile().listFiles().findAll { it.name.endsWith(".wal") }.size()
+  }
+
+  def deadLetters() {
+    def file = directory.resolve(WriteAheadLog.DEAD_LETTER_FILE_NAME).toFile()
+    file.exists() ? file.readLines().collect { new JsonObject(it).toMap() } : []
+  }
+
+  def "it combines neighbouring entries of the same type and writes them in order"() {
+    def buffer = createBuffer(3)
+
+    when:
+    buffer.saveMetrics(metrics("a"))
+    buffer.saveMetrics(metrics("b", "c"))
+    buffer.saveMetrics(metrics("d"))
+    buffer.appendPoints(metrics("e"))
+    buffer.saveMetrics(metrics("f"))
+    flush(buffer)
+
+    then:
+    writes == [
+      [WriteAheadLog.SAVE_ENTRY, ["a", "b", "c"]],
+      [WriteAheadLog.SAVE_ENTRY, ["d"]],
+      [WriteAheadLog.APPEND_ENTRY, ["e"]],
+      [WriteAheadLog.SAVE_ENTRY, ["f"]]
+    ]
+    buffer.stats().toMap() == [pendingEntries: 0, pendingMetrics: 0, pendingBytes: 0, flushes: 4, flushFailures: 0, deadLetters: 0]
+    segmentCount() == 0
+  }
+
+  def "it replays entries that were not stored before a restart"() {
+    def buffer = createBuffer()
+    buffer.saveMetrics(metrics("a"))
+    buffer.appendPoints(metrics("b"))
+    buffer.close()
+
+    when:
+    def replayedBuffer = createBuffer()
+    flush(replayedBuffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a"]], [WriteAheadLog.APPEND_ENTRY, ["b"]]]
+  }
+
+  def "it reads replayed entries back from segments it streams through"() {
+    def buffer = createBuffer(100, 120)
+    buffer.saveMetrics(metrics("a", "b"))
+    buffer.saveMetrics(metrics("c"))
+    buffer.mergePoints(metrics("d"))
+    buffer.close()
+
+    when:
+    def replayedBuffer = createBuffer(100, 120)
+
+    then:
+    segmentCount() == 2
+    replayedBuffer.stats().toMap() == [pendingEntries: 3, pendingMetrics: 4, pendingBytes: [metrics("a", "b"), metrics("c"), metrics("d")].sum { it.encode().length() }, flushes: 0, flushFailures: 0, deadLetters: 0]
+
+    when:
+    flush(replayedBuffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a", "b", "c"]], [WriteAheadLog.MERGE_ENTRY, ["d"]]]
+    segmentCount() == 0
+  }
+
+  def "it takes over the entries of another log and deletes them from it"() {
+    def otherDirectory = Files.createTempDirectory("tiler")
+    def otherLog = new WriteAheadLog(otherDirectory, 1024, FsyncPolicy.Always)
+    otherLog.open()
+    otherLog.append(WriteAheadLog.APPEND_ENTRY, metrics("b"))
+    otherLog.append(WriteAheadLog.SAVE_ENTRY, metrics("c"))
+    otherLog.close()
+    def buffer = createBuffer()
+    buffer.saveMetrics(metrics("a"))
+
+    when:
+    def entryCount = buffer.takeOver(new WriteAheadLog(otherDirectory, 1024, FsyncPolicy.Always))
+
+    then:
+    entryCount == 2
+    otherDirectory.toFile().listFiles().findAll { it.name.endsWith(".wal") }.isEmpty()
+
+    when:
+    buffer.close()
+    flush(createBuffer())
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a"]], [WriteAheadLog.APPEND_ENTRY, ["b"]], [WriteAheadLog.SAVE_ENTRY, ["c"]]]
+
+    cleanup:
+    otherDirectory.toFile().deleteDir()
+  }
+
+  def "it keeps entries that could not be stored and stores them on a later flush"() {
+    def buffer = createBuffer()
+    buffer.saveMetrics(metrics("a", "b"))
+    failWrites = true
+
+    when:
+    def failedFlush = flush(buffer)
+
+    then:
+    failedFlush.failed()
+    writes == []
+    buffer.stats().toMap() == [pendingEntries: 1, pendingMetrics: 2, pendingBytes: metrics("a", "b").encode().length(), flushes: 0, flushFailures: 1, deadLetters: 0]
+    segmentCount() == 1
+
+    when:
+    failWrites = false
+    flush(buffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a", "b"]]]
+    segmentCount() == 0
+  }
+
+  def "it ignores an entry that was only partly written"() {
+    def buffer = createBuffer()
+    buffer.saveMetrics(metrics("a"))
+    buffer.saveMetrics(metrics("b"))
+    buffer.close()
+    def segment = directory.toFile().listFiles()[0]
+    def bytes = segment.bytes
+    segment.bytes = bytes[0..<(bytes.length - 3)] as byte[]
+
+    when:
+    def replayedBuffer = createBuffer()
+    flush(replayedBuffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a"]]]
+  }
+
+  def "it only deletes a segment once every entry in it has been stored"() {
+    def buffer = createBuffer(1, 120)
+
+    when:
+    buffer.saveMetrics(metrics("a"))
+    buffer.saveMetrics(metrics("b"))
+    buffer.saveMetrics(metrics("c"))
+    failWrites = true
+    flush(buffer)
+
+    then:
+    segmentCount() == 2
+
+    when:
+    failWrites = false
+    flush(buffer)
+
+    then:
+    writes*.get(1) == [["a"], ["b"], ["c"]]
+    segmentCount() == 0
+  }
+
+  def "it moves an entry that keeps failing to the dead letter file and stores the entries after it"() {
+    def buffer = createBuffer(100, 1024, 2)
+    buffer.saveMetrics(metrics("a"))
+    buffer.saveMetrics(metrics("bad"))
+    buffer.saveMetrics(metrics("c"))
+    failingNames = ["bad"]
+
+    when:
+    flush(buffer)
+    flush(buffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a"]]]
+    deadLetters() == []
+    buffer.stats().getInteger("pendingEntries") == 2
+
+    when:
+    flush(buffer)
+    flush(buffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a"]], [WriteAheadLog.SAVE_ENTRY, ["c"]]]
+    deadLetters() == [[type: "save", metrics: [[name: "bad", points: [[time: 1, value: 1]]]]]]
+    buffer.stats().toMap() == [pendingEntries: 0, pendingMetrics: 0, pendingBytes: 0, flushes: 2, flushFailures: 3, deadLetters: 1]
+    segmentCount() == 0
+  }
+
+  def "it never gives up on entries while storage is unavailable and tries them less and less often"() {
+    def buffer = createBuffer(100, 1024, 2, 0, 1000, 4000)
+    buffer.saveMetrics(metrics("a"))
+    failWrites = true
+    def attemptTimes = []
+
+    when:
+    (0..<12).each {
+      now = it * 1000
+      def attemptsBefore = attemptCount
+      flush(buffer)
+
+      if (attemptCount > attemptsBefore) {
+        attemptTimes << now
+      }
+    }
+
+    then:
+    attemptTimes == [0, 1000, 3000, 7000, 11000]
+    deadLetters() == []
+    buffer.stats().getInteger("pendingEntries") == 1
+
+    when:
+    failWrites = false
+    now = 15000
+    flush(buffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a"]]]
+  }
+
+  def "it only counts a failure against the oldest entry when the failure names its metrics"() {
+    def buffer = createBuffer(100, 1024, 1)
+    buffer.saveMetrics(metrics("a"))
+    buffer.saveMetrics(metrics("bad"))
+    failingNames = ["bad"]
+
+    when:
+    flush(buffer)
+
+    then:
+    deadLetters() == []
+
+    when:
+    flush(buffer)
+
+    then:
+    writes == [[WriteAheadLog.SAVE_ENTRY, ["a"]]]
+    deadLetters()*.metrics*.name == [["bad"]]
+  }
+
+  def "it is full once the entries waiting to be stored reach the limit"() {
+    def buffer = createBuffer(100, 1024, 0, metrics("a").encode().length() * 2)
+    failWrites = true
+
+    when:
+    buffer.saveMetrics(metrics("a"))
+
+    then:
+    !buffer.isFull()
+
+    when:
+    buffer.saveMetrics(metrics("b"))
+
+    then:
+    buffer.isFull()
+
+    when:
+    failWrites = false
+    flush(buffer)
+
+    then:
+    !buffer.isFull()
+  }
+}
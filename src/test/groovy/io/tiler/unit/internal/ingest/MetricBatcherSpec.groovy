@@ -0,0 +1,170 @@
+package io.tiler.unit.internal.ingest
+
+import io.tiler.internal.ingest.MetricBatcher
+import org.simondean.vertx.async.DefaultAsyncResult
+import org.vertx.java.core.Vertx
+import org.vertx.java.core.json.JsonArray
+import spock.lang.*
+
+class MetricBatcherSpec extends Specification {
+  def timers = [:]
+  def nextTimerId = 1L
+  def vertx = Stub(Vertx) {
+    setTimer(_, _) >> { args ->
+      def timerId = nextTimerId++
+      timers[timerId] = args[1]
+      timerId
+    }
+    cancelTimer(_) >> { args -> timers.remove(args[0]) != null }
+  }
+  def writes = []
+  def pendingWrites = []
+  def completeWrites = true
+
+  def createBatcher(int maxBatchSize = 100) {
+    new MetricBatcher(vertx, 50, maxBatchSize, { metrics, handler ->
+      writes << metrics.toList().collect { [it.name, it.value] }
+
+      if (completeWrites) {
+        handler.handle(DefaultAsyncResult.succeed())
+      } else {
+        pendingWrites << handler
+      }
+    } as MetricBatcher.MetricWriter)
+  }
+
+  def metrics(Map<String, Integer> values) {
+    new JsonArray(values.collect { name, value -> [name: name, value: value] })
+  }
+
+  def fireTimers() {
+    def firedTimers = timers
+    timers = [:]
+    firedTimers.each { timerId, handler -> handler.handle(timerId) }
+  }
+
+  def "it writes the latest save of each metric once the window ends"() {
+    def batcher = createBatcher()
+    def results = []
+
+    when:
+    batcher.saveMetrics(metrics([a: 1, b: 1]), { results << it })
+    batcher.saveMetrics(metrics([a: 2, c: 1]), { results << it })
+
+    then:
+    writes == []
+    timers.size() == 1
+
+    when:
+    fireTimers()
+
+    then:
+    writes == [[["a", 2], ["b", 1], ["c", 1]]]
+    results.size() == 2
+    results.every { it.succeeded() }
+    batcher.stats().getNumber("replacedMetrics") == 1
+    batcher.stats().getObject("batchSize").getNumber("max") == 3
+    batcher.stats().getObject("requestsPerBatch").getNumber("count") == 1
+    batcher.stats().getObject("latencyMillis").getNumber("count") == 2
+  }
+
+  def "it writes straight away once the batch is full"() {
+    def batcher = createBatcher(2)
+
+    when:
+    batcher.saveMetrics(metrics([a: 1]), {})
+    batcher.saveMetrics(metrics([b: 1]), {})
+
+    then:
+    writes == [[["a", 1], ["b", 1]]]
+    timers.isEmpty()
+  }
+
+  def "it waits for the batch being written before writing the next one"() {
+    def batcher = createBatcher()
+    completeWrites = false
+    batcher.saveMetrics(metrics([a: 1]), {})
+    fireTimers()
+
+    when:
+    batcher.saveMetrics(metrics([a: 2]), {})
+    fireTimers()
+
+    then:
+    writes == [[["a", 1]]]
+
+    when:
+    pendingWrites.remove(0).handle(DefaultAsyncResult.succeed())
+    fireTimers()
+
+    then:
+    writes == [[["a", 1]], [["a", 2]]]
+  }
+
+  def "it passes a failed write to every request in the batch"() {
+    def batcher = new MetricBatcher(vertx, 50, 100, { metrics, handler ->
+      handler.handle(DefaultAsyncResult.fail(new RuntimeException("Storage is unavailable")))
+    } as MetricBatcher.MetricWriter)
+    def results = []
+    batcher.saveMetrics(metrics([a: 1]), { results << it })
+    batcher.saveMetrics(metrics([b: 1]), { results << it })
+
+    when:
+    fireTimers()
+
+    then:
+    results*.failed() == [true, true]
+    batcher.stats().getNumber("batchFailures") == 1
+  }
+
+  def "it writes held saves of the metrics being flushed straight away"() {
+    def batcher = createBatcher()
+    def flushed = false
+    batcher.saveMetrics(metrics([a: 1]), {})
+
+    when:
+    batcher.flush(["b"], { flushed = true })
+
+    then:
+    flushed
+    writes == []
+
+    when:
+    flushed = false
+    batcher.flush(["a"], { flushed = true })
+
+    then:
+    flushed
+    writes == [[["a", 1]]]
+    timers.isEmpty()
+  }
+
+  def "it waits for the batch being written when it holds a metric being flushed"() {
+    def batcher = createBatcher()
+    completeWrites = false
+    batcher.saveMetrics(metrics([a: 1]), {})
+    fireTimers()
+    batcher.saveMetrics(metrics([a: 2]), {})
+    def flushed = false
+
+    when:
+    batcher.flush(["a"], { flushed = true })
+
+    then:
+    !flushed
+    writes == [[["a", 1]]]
+
+    when:
+    pendingWrites.remove(0).handle(DefaultAsyncResult.succeed())
+
+    then:
+    !flushed
+    writes == [[["a", 1]], [["a", 2]]]
+
+    when:
+    pendingWrites.remove(0).handle(DefaultAsyncResult.succeed())
+
+    then:
+    flushed
+  }
+}
@@ -0,0 +1,89 @@
+package io.tiler.unit.internal.ingest
+
+import io.tiler.internal.ingest.MetricChangeDetector
+import org.vertx.java.core.json.JsonArray
+import spock.lang.*
+
+import java.nio.file.Files
+
+class MetricChangeDetectorSpec extends Specification {
+  def directory = Files.createTempDirectory("tiler")
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  def metrics(String json) {
+    new JsonArray(json)
+  }
+
+  def "it leaves out metrics that are the same as their last save"() {
+    def detector = new MetricChangeDetector()
+
+    when:
+    def first = detector.filterChanged(metrics('[{"name": "m1", "points": [{"time": 1, "value": 1}]}, {"name": "m2", "points": []}]'))
+    def second = detector.filterChanged(metrics('[{"name": "m1", "points": [{"time": 1, "value": 1}]}, {"name": "m2", "points": [{"time": 2, "value": 1}]}]'))
+
+    then:
+    first.toList()*.name == ["m1", "m2"]
+    second.toList()*.name == ["m2"]
+    detector.stats().toMap() == [trackedMetrics: 2, checkedMetrics: 4, suppressedWrites: 1]
+  }
+
+  def "it tells apart values of different types"() {
+    def detector = new MetricChangeDetector()
+    detector.filterChanged(metrics('[{"name": "m1", "value": 1, "points": []}]'))
+
+    expect:
+    detector.filterChanged(metrics('[{"name": "m1", "value": 1.0, "points": []}]')).size() == 1
+    detector.filterChanged(metrics('[{"name": "m1", "value": "1.0", "points": []}]')).size() == 1
+    detector.filterChanged(metrics('[{"name": "m1", "value": "1.0", "points": []}]')).size() == 0
+  }
+
+  def "it writes forgotten metrics again"() {
+    def detector = new MetricChangeDetector()
+    detector.filterChanged(metrics('[{"name": "m1", "points": []}, {"name": "m2", "points": []}]'))
+
+    when:
+    detector.forget(["m1"])
+
+    then:
+    detector.filterChanged(metrics('[{"name": "m1", "points": []}, {"name": "m2", "points": []}]')).toList()*.name == ["m1"]
+
+    when:
+    detector.forgetAll()
+
+    then:
+    detector.size() == 0
+  }
+
+  def "it leaves out metrics that were saved some other way"() {
+    def detector = new MetricChangeDetector()
+
+    when:
+    detector.remember(metrics('[{"name": "m1", "points": [{"time": 1, "value": 1}]}]'))
+
+    then:
+    detector.filterChanged(metrics('[{"name": "m1", "points": [{"time": 1, "value": 1}]}]')).size() == 0
+  }
+
+  def "it loads saved hashes of metrics that are still stored"() {
+    def detector = new MetricChangeDetector()
+    def path = directory.resolve("hashes")
+    detector.filterChanged(metrics('[{"name": "m1", "points": []}, {"name": "m 2", "points": []}, {"name": "m3", "points": []}]'))
+
+    when:
+    detector.save(path)
+    def loadedDetector = new MetricChangeDetector()
+    def loadedCount = loadedDetector.load(path, { it != "m3" })
+
+    then:
+    loadedCount == 2
+    loadedDetector.filterChanged(metrics('[{"name": "m1", "points": []}, {"name": "m 2", "points": []}, {"name": "m3", "points": []}]')).toList()*.name == ["m3"]
+  }
+
+  def "it loads nothing when there is no file"() {
+    expect:
+    new MetricChangeDetector().load(directory.resolve("missing"), { true }) == 0
+  }
+}
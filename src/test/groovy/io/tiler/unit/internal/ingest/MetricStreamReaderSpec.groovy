@@ -0,0 +1,189 @@
+package io.tiler.unit.internal.ingest
+
+import io.tiler.internal.ingest.MetricStreamException
+import io.tiler.internal.ingest.MetricStreamReader
+import org.simondean.vertx.async.DefaultAsyncResult
+import org.vertx.java.core.Handler
+import org.vertx.java.core.buffer.Buffer
+import org.vertx.java.core.streams.ReadStream
+import spock.lang.*
+
+class MetricStreamReaderSpec extends Specification {
+  def stream = new TestStream()
+  def writes = []
+  def writtenBytes = []
+  def pendingWrites = []
+  def completeWrites = true
+  def result = null
+
+  def createReader(int batchSize = 2, int maxLineSize = 100) {
+    def reader = new MetricStreamReader(stream, batchSize, maxLineSize, { metrics, bytes, handler ->
+      writes << metrics.toList()*.name
+      writtenBytes << bytes
+
+      if (completeWrites) {
+        handler.handle(DefaultAsyncResult.succeed())
+      } else {
+        pendingWrites << handler
+      }
+    } as MetricStreamReader.BatchWriter, { result = it })
+    reader.start()
+    reader
+  }
+
+  def completePendingWrites() {
+    def handlers = pendingWrites
+    pendingWrites = []
+    handlers.each { it.handle(DefaultAsyncResult.succeed()) }
+  }
+
+  def "it writes metrics in batches as lines arrive"() {
+    createReader()
+
+    when:
+    stream.send('{"name":"a"}\n{"name":"b"}\n{"na')
+    stream.send('me":"c"}\n\n{"name":"d"}')
+    stream.end()
+
+    then:
+    writes == [["a", "b"], ["c", "d"]]
+    writtenBytes == [24, 24]
+    result.succeeded()
+    result.result() == 4
+  }
+
+  def "it reads lines split inside a multi-byte character"() {
+    createReader()
+    def bytes = '{"name":"café"}\n'.getBytes("UTF-8")
+
+    when:
+    stream.send(new Buffer(bytes[0..<12] as byte[]))
+    stream.send(new Buffer(bytes[12..<bytes.length] as byte[]))
+    stream.end()
+
+    then:
+    writes == [["café"]]
+  }
+
+  def "it pauses the stream until a batch has been written"() {
+    createReader()
+    completeWrites = false
+
+    when:
+    stream.send('{"name":"a"}\n{"name":"b"}\n{"name":"c"}\n{"name":"d"}\n')
+
+    then:
+    stream.paused
+    writes == [["a", "b"]]
+
+    when:
+    completePendingWrites()
+
+    then:
+    stream.paused
+    writes == [["a", "b"], ["c", "d"]]
+
+    when:
+    completePendingWrites()
+
+    then:
+    !stream.paused
+    result == null
+
+    when:
+    stream.end()
+
+    then:
+    result.result() == 4
+  }
+
+  def "it stops at a line that is not a JSON object and reports how many metrics were written"() {
+    createReader()
+
+    when:
+    stream.send('{"name":"a"}\n{"name":"b"}\n')
+    stream.send('{"name":"c"}\n[1]\n{"name":"d"}\n')
+    stream.end()
+
+    then:
+    writes == [["a", "b"]]
+    result.failed()
+    result.cause() instanceof MetricStreamException
+    result.cause().isClientError()
+    result.cause().writtenMetricCount() == 2
+    result.cause().message.startsWith("Line 4 is not a JSON object")
+  }
+
+  def "it stops at a line that is too long without holding the rest of it"() {
+    createReader(2, 20)
+
+    when:
+    stream.send('{"name":"a"}\n{"name":"')
+    stream.send('bbbbbbbbbbbbbbbbbbbbbbbbbbbb"}\n')
+
+    then:
+    result.failed()
+    result.cause().message.startsWith("Line 2 is longer than 20 bytes")
+    !stream.paused
+  }
+
+  def "it reports a failed write as a server error"() {
+    new MetricStreamReader(stream, 1, 100, { metrics, bytes, handler ->
+      handler.handle(DefaultAsyncResult.fail(new RuntimeException("Storage is unavailable")))
+    } as MetricStreamReader.BatchWriter, { result = it }).start()
+
+    when:
+    stream.send('{"name":"a"}\n')
+
+    then:
+    result.failed()
+    !result.cause().isClientError()
+    result.cause().writtenMetricCount() == 0
+  }
+
+  static class TestStream implements ReadStream<TestStream> {
+    Handler<Buffer> dataHandler
+    Handler<Void> endHandler
+    Handler<Throwable> exceptionHandler
+    boolean paused
+
+    void send(String data) {
+      send(new Buffer(data))
+    }
+
+    void send(Buffer data) {
+      assert !paused
+      dataHandler.handle(data)
+    }
+
+    void end() {
+      assert !paused
+      endHandler.handle(null)
+    }
+
+    TestStream dataHandler(Handler<Buffer> handler) {
+      dataHandler = handler
+      this
+    }
+
+    TestStream endHandler(Handler<Void> handler) {
+      endHandler = handler
+      this
+    }
+
+    TestStream exceptionHandler(Handler<Throwable> handler) {
+      exceptionHandler = handler
+      this
+    }
+
+    TestStream pause() {
+      paused = true
+      this
+    }
+
+    TestStream resume() {
+      paused = false
+      this
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package io.tiler.unit.internal.ingest
+
+import io.tiler.internal.ingest.MetricValidator
+import org.vertx.java.core.json.JsonArray
+import spock.lang.*
+
+class MetricValidatorSpec extends Specification {
+  def validator = new MetricValidator()
+
+  def "it accepts valid metrics and normalises their numbers"() {
+    def metrics = new JsonArray('[{"name":"a","host":"x","count":3,"points":[{"time":1,"value":2},{"time":2.0,"value":2.5,"build":null,"ok":true}]}]')
+
+    when:
+    def error = validator.validate(metrics)
+
+    then:
+    error == null
+    metrics.get(0).getValue("count").getClass() == Long
+    metrics.get(0).getArray("points").get(0).getValue("time").getClass() == Long
+    metrics.get(0).getArray("points").get(0).getValue("value").getClass() == Long
+    metrics.get(0).getArray("points").get(1).getValue("time") == 2L
+    metrics.get(0).getArray("points").get(1).getValue("value") == 2.5d
+  }
+
+  def "it describes the first problem it finds"() {
+    expect:
+    validator.validate(new JsonArray(json)) == error
+
+    where:
+    json                                                           | error
+    '[1]'                                                          | "metrics[0] must be an object"
+    '[{"points":[]}]'                                              | "metrics[0].name must be a non-empty string without control characters"
+    '[{"name":"","points":[]}]'                                    | "metrics[0].name must be a non-empty string without control characters"
+    '[{"name":"a\\nb","points":[]}]'                               | "metrics[0].name must be a non-empty string without control characters"
+    '[{"name":1,"points":[]}]'                                     | "metrics[0].name must be a non-empty string without control characters"
+    '[{"name":"a"}]'                                               | "metrics[0].points must be an array"
+    '[{"name":"a","points":{}}]'                                   | "metrics[0].points must be an array"
+    '[{"name":"a","points":[],"host":{"a":1}}]'                    | "metrics[0].host must be a string, number, boolean or null"
+    '[{"name":"a","points":[1]}]'                                  | "metrics[0].points[0] must be an object"
+    '[{"name":"a","points":[{"value":1}]}]'                        | "metrics[0].points[0].time is missing"
+    '[{"name":"a","points":[{"time":"1"}]}]'                       | "metrics[0].points[0].time must be a whole number of microseconds"
+    '[{"name":"a","points":[{"time":1.5}]}]'                       | "metrics[0].points[0].time must be a whole number of microseconds"
+    '[{"name":"a","points":[{"time":1,"value":[1]}]}]'             | "metrics[0].points[0].value must be a string, number, boolean or null"
+    '[{"name":"a","points":[]},{"name":"b","points":[{"time":1},{"time":null}]}]' | "metrics[1].points[1].time must be a whole number of microseconds"
+  }
+
+  def "it rejects metrics that are not an array"() {
+    expect:
+    validator.validate(null) == "'metrics' must be an array"
+  }
+}
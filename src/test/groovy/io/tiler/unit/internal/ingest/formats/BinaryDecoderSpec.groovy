@@ -0,0 +1,160 @@
+package io.tiler.unit.internal.ingest.formats
+
+import io.tiler.internal.ingest.formats.BinaryDecoder
+import io.tiler.internal.ingest.formats.BinaryFormat
+import org.vertx.java.core.buffer.Buffer
+import spock.lang.*
+
+import java.nio.charset.StandardCharsets
+
+class BinaryDecoderSpec extends Specification {
+  // Integers are bytes, strings are their UTF-8 bytes and lists are flattened
+  def bytes(Object... parts) {
+    def buffer = new Buffer()
+
+    parts.flatten().each { part ->
+      if (part instanceof String) {
+        buffer.appendBytes(part.getBytes(StandardCharsets.UTF_8))
+      } else {
+        buffer.appendByte((byte) part)
+      }
+    }
+
+    buffer
+  }
+
+  def decode(BinaryFormat format, Object... parts) {
+    BinaryDecoder.create(format, bytes(parts)).decodeObject().toMap()
+  }
+
+  def "it decodes MessagePack metrics"() {
+    when:
+    def document = decode(BinaryFormat.MessagePack,
+      0x81, 0xa7, "metrics", 0x91,
+      0x82, 0xa4, "name", 0xa1, "m", 0xa6, "points", 0x91,
+      0x82, 0xa4, "time", 0x01, 0xa5, "value", 0xcb, 0x40, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00)
+
+    then:
+    document == [metrics: [[name: "m", points: [[time: 1L, value: 2.5d]]]]]
+    document.metrics[0].points[0].time instanceof Long
+  }
+
+  def "it decodes every kind of MessagePack value"() {
+    expect:
+    decode(BinaryFormat.MessagePack, 0x81, 0xa1, "v", value).v == expected
+
+    where:
+    value                                          | expected
+    [0xcc, 0xff]                                   | 255L
+    [0xcd, 0x01, 0x00]                             | 256L
+    [0xce, 0x00, 0x01, 0x00, 0x00]                 | 65536L
+    [0xd0, 0xff]                                   | -1L
+    [0xd1, 0xff, 0x00]                             | -256L
+    [0xd2, 0xff, 0xff, 0xff, 0xff]                 | -1L
+    [0xd3] + [0xff] * 8                            | -1L
+    [0xe0]                                         | -32L
+    [0xcf] + [0xff] * 8                            | new BigInteger("18446744073709551615")
+    [0xca, 0x3f, 0xc0, 0x00, 0x00]                 | 1.5d
+    [0xc0]                                         | null
+    [0xc2]                                         | false
+    [0xc3]                                         | true
+    [0xd9, 0x02, "ab"]                             | "ab"
+    [0xda, 0x00, 0x02, "\u00e9"]                   | "\u00e9"
+    [0x92, 0x01, 0x02]                             | [1L, 2L]
+    [0xdc, 0x00, 0x01, 0x80]                       | [[:]]
+    [0xde, 0x00, 0x01, 0xa1, "k", 0x01]            | [k: 1L]
+  }
+
+  def "it decodes CBOR metrics"() {
+    when:
+    def document = decode(BinaryFormat.Cbor,
+      0xa1, 0x67, "metrics", 0x81,
+      0xa2, 0x64, "name", 0x61, "m", 0x66, "points", 0x81,
+      0xa2, 0x64, "time", 0x01, 0x65, "value", 0xfb, 0x40, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00)
+
+    then:
+    document == [metrics: [[name: "m", points: [[time: 1L, value: 2.5d]]]]]
+    document.metrics[0].points[0].time instanceof Long
+  }
+
+  def "it decodes every kind of CBOR value"() {
+    expect:
+    decode(BinaryFormat.Cbor, 0xa1, 0x61, "v", value).v == expected
+
+    where:
+    value                                          | expected
+    [0x17]                                         | 23L
+    [0x18, 0xff]                                   | 255L
+    [0x19, 0x01, 0x00]                             | 256L
+    [0x1a, 0x00, 0x01, 0x00, 0x00]                 | 65536L
+    [0x1b, 0x00, 0x00, 0x00, 0x01] + [0x00] * 4    | 4294967296L
+    [0x1b] + [0xff] * 8                            | new BigInteger("18446744073709551615")
+    [0x20]                                         | -1L
+    [0x38, 0x63]                                   | -100L
+    [0x3b] + [0xff] * 8                            | new BigInteger("-18446744073709551616")
+    [0xc2, 0x41, 0x01]                             | BigInteger.ONE
+    [0xc3, 0x41, 0x01]                             | new BigInteger("-2")
+    [0xc1, 0x1a, 0x55, 0x7a, 0xd5, 0x8a]           | 1434113418L
+    [0xf9, 0x3e, 0x00]                             | 1.5d
+    [0xf9, 0x00, 0x01]                             | Math.pow(2, -24)
+    [0xfa, 0x3f, 0xc0, 0x00, 0x00]                 | 1.5d
+    [0xf4]                                         | false
+    [0xf5]                                         | true
+    [0xf6]                                         | null
+    [0xf7]                                         | null
+    [0x62, "ab"]                                   | "ab"
+    [0x7f, 0x61, "a", 0x61, "b", 0xff]             | "ab"
+    [0x82, 0x01, 0x02]                             | [1L, 2L]
+    [0x9f, 0x01, 0x02, 0xff]                       | [1L, 2L]
+    [0xbf, 0x61, "k", 0x01, 0xff]                  | [k: 1L]
+  }
+
+  def "it rejects documents that have no JSON equivalent or are cut short"() {
+    when:
+    BinaryDecoder.create(format, bytes(parts)).decodeObject()
+
+    then:
+    def e = thrown(IllegalArgumentException)
+    e.message.contains(message)
+
+    where:
+    format                   | parts                                    | message
+    BinaryFormat.MessagePack | [0x91, 0x01]                             | "must be a map"
+    BinaryFormat.MessagePack | [0x81, 0xa1, "v", 0xc4, 0x01, 0x00]      | "has no JSON equivalent"
+    BinaryFormat.MessagePack | [0x81, 0x01, 0x01]                       | "map keys must be strings"
+    BinaryFormat.MessagePack | [0x81, 0xa1, "v", 0xcd, 0x01]            | "ends too soon"
+    BinaryFormat.MessagePack | [0x80, 0x01]                             | "1 bytes after its end"
+    BinaryFormat.MessagePack | [0xdf, 0x7f, 0xff, 0xff, 0xff]           | "runs past the end"
+    BinaryFormat.MessagePack | [0x81, 0xa1, "v"] + [0x91] * 70 + [0x01] | "nested more than 64 levels deep"
+    BinaryFormat.Cbor        | [0xa1, 0x61, "v", 0x41, 0x01]            | "byte strings have no JSON equivalent"
+    BinaryFormat.Cbor        | [0xa1, 0x61, "v", 0xff]                  | "break outside"
+    BinaryFormat.Cbor        | [0xa1, 0x61, "v", 0x1c]                  | "additional information 28"
+    BinaryFormat.Cbor        | [0xbb] + [0x7f] + [0xff] * 7             | "runs past the end"
+  }
+
+  def "it picks a format from the content type"() {
+    expect:
+    BinaryFormat.fromContentType(contentType) == format
+
+    where:
+    contentType                    | format
+    "application/msgpack"          | BinaryFormat.MessagePack
+    "application/x-msgpack"        | BinaryFormat.MessagePack
+    "Application/CBOR; charset=x"  | BinaryFormat.Cbor
+    "application/json"             | null
+    null                           | null
+  }
+
+  def "it detects the format of a message from its first byte"() {
+    expect:
+    BinaryFormat.detect(bytes(firstByte)) == format
+
+    where:
+    firstByte | format
+    0x82      | BinaryFormat.MessagePack
+    0xde      | BinaryFormat.MessagePack
+    0xa2      | BinaryFormat.Cbor
+    0xbf      | BinaryFormat.Cbor
+    0xd9      | BinaryFormat.Cbor
+  }
+}
@@ -0,0 +1,53 @@
+package io.tiler.unit.internal.ingest.lines
+
+import io.tiler.internal.config.LineProtocol
+import io.tiler.internal.ingest.lines.LineParser
+import org.vertx.java.core.buffer.Buffer
+import spock.lang.*
+
+class LineParserSpec extends Specification {
+  def parse(LineProtocol protocol, String line) {
+    def points = []
+    def buffer = new Buffer("xx" + line + "\n")
+    def parsed = LineParser.create(protocol).parseLine(buffer, 2, buffer.length() - 1, 99, { name, point -> points << [name, point.toMap()] } as LineParser.PointConsumer)
+    parsed ? points : null
+  }
+
+  def "it parses graphite lines"() {
+    expect:
+    parse(LineProtocol.Graphite, line) == points
+
+    where:
+    line                                    | points
+    "a.b.c 1.5 1434055562"                  | [["a.b.c", [time: 1434055562000000L, value: 1.5d]]]
+    "a.b.c  42  1434055562"                 | [["a.b.c", [time: 1434055562000000L, value: 42L]]]
+    "a.b.c 42 1434055562.5"                 | [["a.b.c", [time: 1434055562500000L, value: 42L]]]
+    "a.b.c 42 -1"                           | [["a.b.c", [time: 99L, value: 42L]]]
+    "a.b.c 42"                              | [["a.b.c", [time: 99L, value: 42L]]]
+    "a.b.c;host=x;dc=eu 42 1"               | [["a.b.c", [host: "x", dc: "eu", time: 1000000L, value: 42L]]]
+    "café 1 1"                              | [["café", [time: 1000000L, value: 1L]]]
+    "a.b.c"                                 | null
+    "a.b.c nan 1"                           | null
+    "a.b.c 1 x"                             | null
+    "a.b.c 1 1 1"                           | null
+    "a.b.c;host 1 1"                        | null
+  }
+
+  def "it parses influx lines"() {
+    expect:
+    parse(LineProtocol.Influx, line) == points
+
+    where:
+    line                                                  | points
+    "cpu value=0.5 1434055562000000000"                   | [["cpu", [time: 1434055562000000L, value: 0.5d]]]
+    "cpu,host=x,dc=eu usage=1i,idle=false 2000"           | [["cpu.usage", [host: "x", dc: "eu", time: 2L, value: 1L]], ["cpu.idle", [host: "x", dc: "eu", time: 2L, value: false]]]
+    'builds status="ok, \\"done\\"",count=3'              | [["builds.status", [time: 99L, value: 'ok, "done"']], ["builds.count", [time: 99L, value: 3L]]]
+    "my\\ cpu,host=a\\,b value=T"                         | [["my cpu", [host: "a,b", time: 99L, value: true]]]
+    "cpu"                                                 | null
+    "cpu value"                                           | null
+    "cpu value=abc"                                       | null
+    'cpu value="open'                                     | null
+    "cpu value=1 12x"                                     | null
+    "cpu,host value=1"                                    | null
+  }
+}
@@ -0,0 +1,104 @@
+package io.tiler.unit.internal.ingest.lines
+
+import io.tiler.internal.config.ListenerConfig
+import io.tiler.internal.ingest.lines.LineProtocolListener
+import org.simondean.vertx.async.DefaultAsyncResult
+import org.vertx.java.core.Vertx
+import org.vertx.java.core.buffer.Buffer
+import org.vertx.java.core.logging.Logger
+import spock.lang.*
+
+class LineProtocolListenerSpec extends Specification {
+  def writes = []
+  def pendingWrites = []
+  def completeWrites = true
+
+  def createListener(int maxBatchSize = 100, int maxLineSize = 100, boolean udp = false, int maxPendingPoints = 1000) {
+    new LineProtocolListener(Stub(Vertx), new ListenerConfig("graphite", udp, null, null, null, maxPendingPoints), maxBatchSize, maxLineSize, { metrics, handler ->
+      writes << metrics.toList().collect { [it.name, it.points*.value] }
+
+      if (completeWrites) {
+        handler.handle(DefaultAsyncResult.succeed())
+      } else {
+        pendingWrites << handler
+      }
+    } as LineProtocolListener.PointWriter, Mock(Logger))
+  }
+
+  def "it gathers points for each metric across data until it is flushed"() {
+    def listener = createListener()
+
+    when:
+    def partialLine = listener.receive(null, new Buffer("a 1 1\r\nb 2 1\n# comment\na 3"), false)
+    partialLine = listener.receive(partialLine, new Buffer(" 2\n\nbad\n"), false)
+    listener.flush()
+
+    then:
+    partialLine == null
+    writes == [[["a", [1L, 3L]], ["b", [2L]]]]
+    listener.stats().toMap().subMap(["lines", "points", "invalidLines", "pendingPoints", "flushes"]) == [lines: 4, points: 3, invalidLines: 1, pendingPoints: 0, flushes: 1]
+  }
+
+  def "it parses the last line of a datagram without a newline"() {
+    def listener = createListener()
+
+    when:
+    listener.receive(null, new Buffer("a 1 1\na 2 2"), true)
+    listener.flush()
+
+    then:
+    writes == [[["a", [1L, 2L]]]]
+  }
+
+  def "it flushes as soon as a batch is full and holds the next batch until the last one is stored"() {
+    def listener = createListener(2)
+    completeWrites = false
+
+    when:
+    listener.receive(null, new Buffer("a 1 1\na 2 2\n"), false)
+    listener.receive(null, new Buffer("a 3 3\na 4 4\n"), false)
+
+    then:
+    writes == [[["a", [1L, 2L]]]]
+
+    when:
+    pendingWrites.remove(0).handle(DefaultAsyncResult.succeed())
+
+    then:
+    writes == [[["a", [1L, 2L]]], [["a", [3L, 4L]]]]
+  }
+
+  def "it drops the points in datagrams once too many are waiting to be stored"() {
+    def listener = createListener(2, 100, true, 3)
+    completeWrites = false
+
+    when:
+    listener.receive(null, new Buffer("a 1 1\na 2 2"), true)
+    listener.receive(null, new Buffer("a 3 3\na 4 4\na 5 5"), true)
+    listener.receive(null, new Buffer("a 6 6"), true)
+
+    then:
+    writes == [[["a", [1L, 2L]]]]
+    listener.stats().getNumber("pendingPoints") == 3
+    listener.stats().getNumber("droppedPoints") == 1
+
+    when:
+    pendingWrites.remove(0).handle(DefaultAsyncResult.succeed())
+
+    then:
+    writes == [[["a", [1L, 2L]]], [["a", [3L, 4L, 5L]]]]
+  }
+
+  def "it drops lines that are too long"() {
+    def listener = createListener(100, 8)
+
+    when:
+    def partialLine = listener.receive(null, new Buffer("a 1 1\nabcdefghij"), false)
+    listener.flush()
+
+    then:
+    partialLine == null
+    writes == [[["a", [1L]]]]
+    listener.stats().getNumber("invalidLines") == 1
+  }
+}
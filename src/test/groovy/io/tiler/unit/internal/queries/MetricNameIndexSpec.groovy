@@ -0,0 +1,87 @@
+package io.tiler.unit.internal.queries
+
+import io.tiler.internal.queries.MetricNameIndex
+import io.tiler.internal.queries.QueryFactory
+import spock.lang.*
+
+import java.util.regex.Pattern
+
+class MetricNameIndexSpec extends Specification {
+  def factory = new QueryFactory()
+  def names = [
+    "jenkins.build.a", "jenkins.build.b", "jenkins.builds", "jenkins.deploy.a",
+    "jenkinsx.build.a", "sonar.coverage", "sonar.issues", "a|b", "a(b", "ab", "abbb", "b", "Jenkins.build.a"
+  ]
+  def index = new MetricNameIndex(names)
+
+  def "it finds the same metrics as matching every name against every query"() {
+    def queries = queryTexts.collect { factory.parseQuery(it) }
+    def expected = names.findAll { name -> queries.any { it.fromClause().matchesMetricName(name) } }
+
+    expect:
+    index.findMatches(queries) as Set == expected as Set
+
+    where:
+    queryTexts << [
+      ["from jenkins.build.a"],
+      ["from jenkins.build.a, missing"],
+      ["from /^jenkins\\.build\\./"],
+      ["from /^jenkins.build/"],
+      ["from /^jenkins\\.build/, sonar.issues"],
+      ["from /^jenkins\\.build/", "from /coverage/"],
+      ["from /^jenkins\\.(build|deploy)\\.a\$/"],
+      ["from /^jenkins\\.build|sonar/"],
+      ["from /^jenkins\\.builds?/"],
+      ["from /^ab*/"],
+      ["from /^ab+/"],
+      ["from /^ab{2}/"],
+      ["from /^a\\|b/"],
+      ["from /^a[|]b/"],
+      ["from /^a\\(b/"],
+      ["from /^jenkins/i"],
+      ["from /^\\Qjenkins.build\\E/"],
+      ["from /build/"],
+      ["from /^.*\$/"]
+    ]
+  }
+
+  def "it only uses literal text anchored to the start of the pattern as a prefix"() {
+    expect:
+    MetricNameIndex.getLiteralPrefix(Pattern.compile(regex, flags)) == prefix
+
+    where:
+    regex                     | flags                    | prefix
+    "^jenkins\\.build\\."     | 0                        | "jenkins.build."
+    "^jenkins\\.build\\d"     | 0                        | "jenkins.build"
+    "^jenkins.build"          | 0                        | "jenkins"
+    "^jenkins(x)?"            | 0                        | "jenkins"
+    "^jenkinsx?"              | 0                        | "jenkins"
+    "^jenkinsx*"              | 0                        | "jenkins"
+    "^jenkinsx+"              | 0                        | "jenkinsx"
+    "^jenkins(a|b)"           | 0                        | "jenkins"
+    "^jenkins|sonar"          | 0                        | ""
+    "^jenkins[|]x"            | 0                        | "jenkins"
+    "^jenkins[[a]|]x"         | 0                        | "jenkins"
+    "jenkins"                 | 0                        | ""
+    "^jenkins"                | Pattern.CASE_INSENSITIVE | ""
+    "^jenkins"                | Pattern.MULTILINE        | ""
+  }
+
+  def "it finds metrics that are added after it is created"() {
+    when:
+    index.add("jenkins.build.c")
+
+    then:
+    index.findMatches([factory.parseQuery("from /^jenkins\\.build\\.c/")]) == ["jenkins.build.c"]
+    index.size() == names.size() + 1
+  }
+
+  def "it stops finding metrics that are removed"() {
+    when:
+    index.removeAll(["jenkins.build.a", "missing"])
+
+    then:
+    index.findMatches([factory.parseQuery("from /^jenkins\\.build\\./")]) == ["jenkins.build.b"]
+    index.size() == names.size() - 1
+  }
+}
@@ -0,0 +1,44 @@
+package io.tiler.unit.internal.queries
+
+import io.tiler.internal.queries.PointReferenceDetector
+import io.tiler.internal.queries.QueryFactory
+import org.vertx.java.core.json.JsonArray
+import spock.lang.*
+
+import java.time.Clock
+
+class PointReferenceDetectorSpec extends Specification {
+  def factory = new QueryFactory()
+  def detector = new PointReferenceDetector()
+
+  def "it detects queries that only use metric fields"() {
+    def query = factory.parseQuery(queryText)
+
+    expect:
+    detector.referencesPoints(query) == referencesPoints
+    query.referencesPoints() == referencesPoints
+
+    where:
+    queryText                                                               | referencesPoints
+    "from m metric only name"                                               | false
+    "from /.*/ metric only name, build sort build desc"                     | false
+    "from m metric only concat(name, '-', host) as label"                   | false
+    "from m metric only name point value as value"                          | false
+    "from m"                                                                | true
+    "from m metric name, build"                                             | true
+    "from m metric only name, points"                                       | true
+    "from m metric only name sort last(points) asc"                         | true
+    "from m where time > now() - 1h metric only name"                       | true
+    "from m group host metric only host"                                    | true
+    "from m aggregate interval(time, 0, 1h) as time metric only name"       | true
+  }
+
+  def "it returns metrics without their points"() {
+    def query = factory.parseQuery("from m metric only name, host")
+
+    expect:
+    query.applyToMetrics(Clock.systemUTC(), new JsonArray([[name: "m", host: "a", build: 1, points: [[time: 1, value: 1]]]])).toList() == [
+      [name: "m", host: "a", points: []]
+    ]
+  }
+}
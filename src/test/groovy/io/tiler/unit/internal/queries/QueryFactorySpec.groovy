@@ -425,6 +425,46 @@ class QueryFactorySpec extends Specification {
     clauseName << ["aggregate", "metric", "point"]
   }
 
+  def "metric clause without points"() {
+    def queryText = """
+      from metric.name
+      metric only fieldName, only
+    """
+
+    when:
+    def query = factory.parseQuery(queryText)
+
+    then:
+    def selectClause = query.metricClauses().selectClause()
+    selectClause.withoutPoints()
+    selectClause.namedExpressions().keySet() == ["fieldName", "only"] as Set
+  }
+
+  def "only as a field name"() {
+    def queryText = """
+      from metric.name
+      where only == 1
+      $clauseName $selection
+    """
+
+    when:
+    def query = factory.parseQuery(queryText)
+
+    then:
+    def selectClause = getClauseFromQuery(query, clauseName)
+    selectClause.namedExpressions().keySet() == expectedNames as Set
+    selectClause.namedExpressions()[expectedNames[0]].fieldName() == "only"
+    clauseName != "metric" || !selectClause.withoutPoints()
+
+    where:
+    clauseName  | selection              | expectedNames
+    "aggregate" | "only"                 | ["only"]
+    "metric"    | "only"                 | ["only"]
+    "metric"    | "only, other"          | ["only", "other"]
+    "metric"    | "only as renamed"      | ["renamed"]
+    "point"     | "only"                 | ["only"]
+  }
+
   def "multiple expressions"() {
     def queryText = """
       from metric.name
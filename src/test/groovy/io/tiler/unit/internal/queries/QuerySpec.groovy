@@ -33,4 +33,68 @@ class QuerySpec extends Specification {
                  "where doesNotExist == true\n" +
                  "      ^ operand1 cannot be null"
   }
+
+  def "it leaves the given metrics as they were"() {
+    def queryText = "from a, b\n" +
+                    "where value > 1\n" +
+                    "group host\n" +
+                    "aggregate interval(time, 0, 10) as time\n" +
+                    "metric host\n" +
+                    "sort host\n" +
+                    "point time, sum(value) as total\n" +
+                    "sort time"
+    def query = factory.parseQuery(queryText)
+    def metrics = new JsonArray([
+      [name: "a", points: [[time: 1, value: 2, host: "x"], [time: 12, value: 1, host: "x"]]],
+      [name: "b", points: [[time: 3, value: 3, host: "x"], [time: 14, value: 4, host: "y"]]]])
+    def originalMetrics = metrics.copy()
+
+    when:
+    def transformedMetrics = query.applyToMetrics(clock, metrics)
+
+    then:
+    transformedMetrics.toList() == [
+      [host: "x", points: [[time: 0, total: 5]]],
+      [host: "y", points: [[time: 10, total: 4]]]]
+    metrics == originalMetrics
+  }
+
+  def "it returns the metric fields and points unchanged when the query has no point clauses"() {
+    def query = factory.parseQuery("from a")
+    def metrics = new JsonArray([
+      [name: "a", host: "x", points: [[time: 1, value: 2], [time: 2, value: 3]]],
+      [name: "b", host: "y", points: [[time: 1, value: 4]]]])
+    def originalMetrics = metrics.copy()
+
+    when:
+    def transformedMetrics = query.applyToMetrics(clock, metrics)
+
+    then:
+    transformedMetrics.toList() == [[name: "a", host: "x", points: [[time: 1, value: 2], [time: 2, value: 3]]]]
+    metrics == originalMetrics
+  }
+
+  def "it works out functions of the values from the fields of rollup points"() {
+    def query = factory.parseQuery(
+      "from m\n" +
+      "aggregate interval(time, 0, 10) as time\n" +
+      "point time, mean(value) as mean, min(value) as min, max(value) as max, count(value) as count")
+    def rollupMetric = new JsonArray([
+      [name: "m", rollupResolution: 5, points: [
+        [time: 0, value: 1.0d, min: 0, max: 2, count: 3],
+        [time: 5, value: 5.0d, min: 5, max: 5, count: 1],
+        [time: 10, value: 7, min: 7, max: 7, count: 1]]]])
+    def rawMetric = new JsonArray([
+      [name: "m", points: [[time: 0, value: 0], [time: 1, value: 1], [time: 2, value: 2], [time: 5, value: 5], [time: 10, value: 7]]]])
+
+    when:
+    def rollupResult = query.applyToMetrics(clock, rollupMetric)
+    def rawResult = query.applyToMetrics(clock, rawMetric)
+
+    then:
+    rollupResult.get(0).getArray("points").toList() == [
+      [time: 0, mean: 2.0d, min: 0.0d, max: 5.0d, count: 4L],
+      [time: 10, mean: 7.0d, min: 7.0d, max: 7.0d, count: 1L]]
+    rawResult.get(0).getArray("points").toList() == rollupResult.get(0).getArray("points").toList()
+  }
 }
@@ -0,0 +1,52 @@
+package io.tiler.unit.internal.queries
+
+import io.tiler.internal.queries.QueryFactory
+import io.tiler.internal.queries.RollupSelector
+import spock.lang.*
+
+class RollupSelectorSpec extends Specification {
+  static final long ONE_MINUTE = 60000000L
+  static final long ONE_HOUR = 60 * ONE_MINUTE
+  def factory = new QueryFactory()
+  def selector = new RollupSelector()
+
+  def "it selects the rollups that fit inside the query's time buckets"() {
+    def query = factory.parseQuery(queryText)
+
+    expect:
+    selector.eligibleResolutions(query, [ONE_MINUTE, ONE_HOUR]) == resolutions
+
+    where:
+    queryText                                                                          | resolutions
+    "from m aggregate interval(time, 0, 1h) as time point mean(value) as value"        | [ONE_MINUTE, ONE_HOUR]
+    "from m aggregate interval(time, 0, 5m) as time point mean(value) as value"        | [ONE_MINUTE]
+    "from m aggregate interval(time, 0, 30s) as time point mean(value) as value"       | []
+    "from m aggregate interval(time, 1m, 1h) as time point mean(value) as value"       | [ONE_MINUTE]
+    "from m where time > now() - 1d aggregate interval(time, 0, 1h) as time point time" | [ONE_MINUTE, ONE_HOUR]
+    "from m aggregate interval(time, 0, 1h) as time point time, max(value) as value"   | [ONE_MINUTE, ONE_HOUR]
+    "from m aggregate interval(time, 0, 1h) as time point min(value) as value"         | [ONE_MINUTE, ONE_HOUR]
+    "from m aggregate interval(time, 0, 1h) as time point time, count(value) as n"     | [ONE_MINUTE, ONE_HOUR]
+  }
+
+  def "it does not select rollups for queries that need the raw points"() {
+    def query = factory.parseQuery(queryText)
+
+    expect:
+    selector.eligibleResolutions(query, [ONE_MINUTE, ONE_HOUR]).isEmpty()
+
+    where:
+    queryText << [
+      "from m",
+      "from m point value as value",
+      "from m where host == 'a' aggregate interval(time, 0, 1h) as time",
+      "from m group host aggregate interval(time, 0, 1h) as time",
+      "from m aggregate interval(time, 0, 1h) as time, host as host",
+      "from m aggregate interval(value, 0, 1h) as time",
+      "from m aggregate interval(time, 0, 1h) as time",
+      "from m aggregate interval(time, 0, 1h) as time point time, sum(value) as value",
+      "from m aggregate interval(time, 0, 1h) as time point time, first(value) as value",
+      "from m aggregate interval(time, 0, 1h) as time point time, mean(host) as value",
+      "from m aggregate interval(time, 0, 1h) as time point time, host"
+    ]
+  }
+}
@@ -0,0 +1,60 @@
+package io.tiler.unit.internal.queries
+
+import io.tiler.internal.queries.QueryFactory
+import io.tiler.internal.queries.TimeRange
+import spock.lang.*
+
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+
+class TimeRangeExtractorSpec extends Specification {
+  def Clock clock = Clock.fixed(Instant.ofEpochMilli(10000), ZoneId.of("UTC"))
+  def factory = new QueryFactory()
+
+  def "it extracts the time range from a where clause"() {
+    def query = factory.parseQuery("from metric.name where " + whereClause)
+
+    expect:
+    query.timeRange(clock) == timeRange
+
+    where:
+    whereClause                              | timeRange
+    "time > 5"                               | TimeRange.from(5)
+    "time >= 5"                              | TimeRange.from(5)
+    "time < 5"                               | TimeRange.to(5)
+    "time <= 5"                              | TimeRange.to(5)
+    "time == 5"                              | new TimeRange(5, 5)
+    "5 < time"                               | TimeRange.from(5)
+    "5 > time"                               | TimeRange.to(5)
+    "time > 5 && time < 10"                  | new TimeRange(5, 10)
+    "time > 5 && value < 10"                 | TimeRange.from(5)
+    "time > now() - 1s"                      | TimeRange.from(9000000)
+    "time > now() - 1s && time <= now()"     | new TimeRange(9000000, 10000000)
+    "(time > 1 && time < 2) || time == 5"    | new TimeRange(1, 5)
+  }
+
+  def "it does not bound the time range when points could have any time"() {
+    def query = factory.parseQuery("from metric.name where " + whereClause)
+
+    expect:
+    query.timeRange(clock).isUnbounded()
+
+    where:
+    whereClause << [
+      "value > 5",
+      "time != 5",
+      "!(time > 5)",
+      "time > 5 || value > 5",
+      "time > value",
+      "time > 'text'"
+    ]
+  }
+
+  def "it does not bound the time range without a where clause"() {
+    def query = factory.parseQuery("from metric.name")
+
+    expect:
+    query.timeRange(clock).isUnbounded()
+  }
+}
@@ -0,0 +1,235 @@
+package io.tiler.unit.internal.snapshots
+
+import io.tiler.internal.config.*
+import io.tiler.internal.queries.TimeRange
+import io.tiler.internal.snapshots.SnapshotChunk
+import io.tiler.internal.snapshots.SnapshotManager
+import io.tiler.internal.snapshots.SnapshotReader
+import io.tiler.internal.snapshots.SnapshotWriter
+import io.tiler.internal.storage.MetricRead
+import io.tiler.internal.storage.RedisMetricStore
+import io.tiler.internal.storage.codecs.CompressionStats
+import io.tiler.unit.internal.FakeFileStorage
+import io.tiler.unit.internal.FakeRedis
+import org.vertx.java.core.Vertx
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+import org.vertx.java.core.logging.Logger
+import spock.lang.*
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+
+class SnapshotSpec extends Specification {
+  def directory = Files.createTempDirectory("tiler")
+  def snapshotPath = directory.resolve("test.snapshot")
+  def vertx = Stub(Vertx) {
+    runOnContext(_) >> { args -> args[0].handle(null) }
+  }
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  def createStore(String name) {
+    def config = new Config(null, new ApiConfig(), new RedisConfig(), new StorageConfig("file", null, null, null, new FileStorageConfig(directory.resolve(name).toString(), 256, null), null, null, null), new IngestConfig(), new SnapshotConfig(), null)
+    def logger = Mock(Logger)
+    def store = new FakeFileStorage(config, logger).createStore(logger)
+    call { store.start(it) }
+    store
+  }
+
+  def call(Closure closure) {
+    def result = null
+    closure({ result = it })
+    assert result.succeeded()
+    result.result()
+  }
+
+  def readChunks() {
+    def chunks = []
+    def reader = SnapshotReader.open(snapshotPath)
+
+    try {
+      def chunk
+
+      while ((chunk = reader.readChunk()) != null) {
+        chunks << chunk.metrics().toList()
+      }
+    } finally {
+      reader.close()
+    }
+
+    chunks
+  }
+
+  def "it reads back the chunks that were written"() {
+    when:
+    def writer = SnapshotWriter.create(snapshotPath)
+    writer.writeChunk(new SnapshotChunk(new JsonArray([[name: "a", points: [[time: 1, value: 1]]], [name: "b", points: []]])))
+    writer.writeChunk(new SnapshotChunk(new JsonArray([[name: "c", points: [[time: 2, value: 2]]]])))
+    writer.commit()
+    writer.close()
+
+    then:
+    writer.metricCount() == 3
+    readChunks() == [
+      [[name: "a", points: [[time: 1, value: 1]]], [name: "b", points: []]],
+      [[name: "c", points: [[time: 2, value: 2]]]]
+    ]
+    directory.toFile().list() as List == ["test.snapshot"]
+  }
+
+  def "it leaves no snapshot behind when it is not committed"() {
+    when:
+    def writer = SnapshotWriter.create(snapshotPath)
+    writer.writeChunk(new SnapshotChunk(new JsonArray([[name: "a", points: []]])))
+    writer.close()
+
+    then:
+    directory.toFile().list().length == 0
+  }
+
+  def "it rejects a chunk that has been corrupted"() {
+    def writer = SnapshotWriter.create(snapshotPath)
+    writer.writeChunk(new SnapshotChunk(new JsonArray([[name: "a", points: [[time: 1, value: 1]]]])))
+    writer.commit()
+    def bytes = snapshotPath.toFile().bytes
+    bytes[bytes.length - 2] ^= 0xff
+    snapshotPath.toFile().bytes = bytes
+
+    when:
+    readChunks()
+
+    then:
+    thrown(IOException)
+  }
+
+  def "it rejects a file that is not a snapshot"() {
+    snapshotPath.toFile().text = "[]"
+
+    when:
+    SnapshotReader.open(snapshotPath)
+
+    then:
+    thrown(IOException)
+  }
+
+  def "it copies every metric from one store to another"() {
+    def fromStore = createStore("from")
+    def toStore = createStore("to")
+    call { fromStore.saveMetrics(new JsonArray((1..5).collect { [name: "m" + it, host: "x", points: [[time: it, value: it]]] }), it) }
+    call { toStore.saveMetrics(new JsonArray([[name: "m1", points: [[time: 9, value: 9]]], [name: "z", points: []]]), it) }
+
+    when:
+    def exportedCount = call { new SnapshotManager(vertx, fromStore, 2).exportSnapshot(snapshotPath, it) }
+    def importedCount = call { new SnapshotManager(vertx, toStore, 2).importSnapshot(snapshotPath, it) }
+
+    then:
+    exportedCount == 5
+    importedCount == 5
+    readChunks()*.size() == [2, 2, 1]
+
+    def metricReads = new LinkedHashMap<String, MetricRead>()
+    (1..5).each { metricReads.put("m" + it, new MetricRead(TimeRange.unbounded(), null)) }
+    call { toStore.getMetrics(metricReads, it) }.toList() == (1..5).collect { [name: "m" + it, host: "x", points: [[time: it, value: it]]] }
+    call { toStore.getMetricNames(it) }.sort() == ["m1", "m2", "m3", "m4", "m5", "z"]
+  }
+
+  def "it reads back the rollup points and expiry times of a chunk"() {
+    def rollupPoints = new JsonObject([a: ["60000000": [[time: 0, value: 1.5, min: 1, max: 2, count: 2]]]])
+
+    when:
+    def writer = SnapshotWriter.create(snapshotPath)
+    writer.writeChunk(new SnapshotChunk(new JsonArray([[name: "a", points: []], [name: "b", points: []]]), rollupPoints, [b: 5000000L]))
+    writer.commit()
+    def reader = SnapshotReader.open(snapshotPath)
+    def chunk = reader.readChunk()
+    reader.close()
+
+    then:
+    chunk.metrics().toList()*.name == ["a", "b"]
+    chunk.rollupPoints().toMap() == rollupPoints.toMap()
+    chunk.expiryTimes() == [b: 5000000L]
+  }
+
+  def "it reads snapshots written before rollups and expiry times were included"() {
+    def bytes = new JsonArray([[name: "a", points: [[time: 1, value: 1]]]]).encode().getBytes(StandardCharsets.UTF_8)
+    def deflater = new Deflater()
+    deflater.input = bytes
+    deflater.finish()
+    def compressedBytes = new byte[1024]
+    def compressedLength = deflater.deflate(compressedBytes)
+    def crc = new CRC32()
+    crc.update(bytes)
+    def fileBytes = new ByteArrayOutputStream()
+    def stream = new DataOutputStream(fileBytes)
+    stream.write("TILERSNP".getBytes(StandardCharsets.US_ASCII))
+    stream.writeInt(1)
+    stream.writeInt(compressedLength)
+    stream.writeInt(1)
+    stream.writeInt((int) crc.value)
+    stream.write(compressedBytes, 0, compressedLength)
+    snapshotPath.toFile().bytes = fileBytes.toByteArray()
+
+    when:
+    def reader = SnapshotReader.open(snapshotPath)
+    def chunk = reader.readChunk()
+    reader.close()
+
+    then:
+    chunk.metrics().toList() == [[name: "a", points: [[time: 1, value: 1]]]]
+    chunk.rollupPoints().size() == 0
+    chunk.expiryTimes().isEmpty()
+  }
+
+  def "it copies the expiry times of metrics"() {
+    def fromStore = createStore("from")
+    def toStore = createStore("to")
+    call { fromStore.saveMetrics(new JsonArray([[name: "a", points: []], [name: "b", points: []]]), it) }
+    call { fromStore.setExpiryTimes([b: 5000000L], it) }
+
+    when:
+    call { new SnapshotManager(vertx, fromStore, 2).exportSnapshot(snapshotPath, it) }
+    call { new SnapshotManager(vertx, toStore, 2).importSnapshot(snapshotPath, it) }
+
+    then:
+    call { toStore.getExpiryTimes(["a", "b"], it) } == [b: 5000000L]
+  }
+
+  def "it copies the rollup points of metrics"() {
+    def fromRedis = new FakeRedis()
+    def toRedis = new FakeRedis()
+    def fromStore = createRedisStore(fromRedis)
+    def toStore = createRedisStore(toRedis)
+    def rollupPoints = new JsonObject([a: ["60000000": [[time: 0, value: 1.5, min: 1, max: 2, count: 2], [time: 60000000, value: 3, min: 3, max: 3, count: 1]]]])
+    callRedis(fromRedis) { fromStore.saveMetrics(new JsonArray([[name: "a", points: [[time: 120000000, value: 4]]], [name: "b", points: []]]), it) }
+    callRedis(fromRedis) { fromStore.saveRollupPoints(rollupPoints, it) }
+    callRedis(toRedis) { toStore.saveRollupPoints(new JsonObject([b: ["60000000": [[time: 0, value: 9, min: 9, max: 9, count: 1]]]]), it) }
+
+    when:
+    callRedis(fromRedis) { new SnapshotManager(vertx, fromStore, 1).exportSnapshot(snapshotPath, it) }
+    callRedis(toRedis) { new SnapshotManager(vertx, toStore, 1).importSnapshot(snapshotPath, it) }
+
+    then:
+    callRedis(toRedis) { toStore.getRollupPoints(["a", "b"], it) }.toMap() == rollupPoints.toMap()
+    callRedis(toRedis) { toStore.getMetrics([a: MetricRead.unbounded()], it) }.toList() == [[name: "a", points: [[time: 120000000, value: 4]]]]
+  }
+
+  def createRedisStore(FakeRedis redis) {
+    def redisConfig = new RedisConfig(null, null, null, null, null, null, null, "", null, null, null, null)
+    def retentionConfig = new RetentionConfig(null, null, null, [new RollupConfig("1m", null)], null)
+    def config = new Config(null, new ApiConfig(), redisConfig, new StorageConfig(null, "points", null, retentionConfig, null, null, null, null), new IngestConfig(), new SnapshotConfig(), null)
+    new RedisMetricStore(null, redis.createEventBus(), config, redisConfig, new CompressionStats(), Mock(Logger))
+  }
+
+  def callRedis(FakeRedis redis, Closure closure) {
+    def result = null
+    closure({ result = it })
+    redis.run()
+    assert result.succeeded()
+    result.result()
+  }
+}
@@ -0,0 +1,129 @@
+package io.tiler.unit.internal.storage
+
+import io.tiler.internal.queries.TimeRange
+import io.tiler.internal.storage.CachingMetricStore
+import io.tiler.internal.storage.MetricRead
+import io.tiler.internal.storage.MetricStore
+import org.simondean.vertx.async.DefaultAsyncResult
+import org.vertx.java.core.AsyncResultHandler
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+import spock.lang.*
+
+class CachingMetricStoreSpec extends Specification {
+  def store = Mock(MetricStore)
+  def cache = new CachingMetricStore(store, 10)
+  def storedMetrics = [
+    a: [name: "a", points: [[time: 1, value: 1], [time: 2, value: 2]]],
+    b: [name: "b", points: [[time: 1, value: 3]]],
+    big: [name: "big", points: (1..20).collect { [time: it, value: it] }]
+  ]
+
+  def setup() {
+    store.getMetrics(_, _) >> { Map<String, MetricRead> metricReads, AsyncResultHandler<JsonArray> handler ->
+      handler.handle(DefaultAsyncResult.succeed(new JsonArray(metricReads.findResults { name, read ->
+        storedMetrics[name] && !read.includesPoints() ? [name: name, points: []] : storedMetrics[name]
+      })))
+    }
+    store.saveMetrics(_, _) >> { JsonArray metrics, AsyncResultHandler<Void> handler ->
+      handler.handle(DefaultAsyncResult.succeed())
+    }
+  }
+
+  def getMetrics(Map<String, TimeRange> timeRanges) {
+    def metricReads = new LinkedHashMap<String, MetricRead>()
+    timeRanges.each { name, timeRange -> metricReads.put(name, new MetricRead(timeRange, null)) }
+    def result = null
+    cache.getMetrics(metricReads, { result = it })
+    result.result().toList()
+  }
+
+  def "it reads each metric from the store once and then serves it from memory"() {
+    when:
+    def first = getMetrics([a: TimeRange.unbounded(), b: TimeRange.unbounded(), c: TimeRange.unbounded()])
+    def second = getMetrics([b: TimeRange.unbounded(), a: new TimeRange(2, 2)])
+
+    then:
+    first == [storedMetrics.a, storedMetrics.b]
+    second == [storedMetrics.b, [name: "a", points: [[time: 2, value: 2]]]]
+    cache.stats().toMap() == [metrics: 2, points: 5, maxPoints: 10, hits: 2, misses: 3, evictions: 0, tooLargeMetrics: 0]
+  }
+
+  def "it serves metrics without their points from memory but does not cache them"() {
+    getMetrics([a: TimeRange.unbounded()])
+    def metricReads = new LinkedHashMap<String, MetricRead>([a: MetricRead.withoutPoints(), b: MetricRead.withoutPoints()])
+    def result = null
+
+    when:
+    cache.getMetrics(metricReads, { result = it })
+
+    then:
+    result.result().toList() == [[name: "a", points: []], [name: "b", points: []]]
+    cache.stats().toMap() == [metrics: 1, points: 3, maxPoints: 10, hits: 1, misses: 2, evictions: 0, tooLargeMetrics: 0]
+  }
+
+  def "it reads a metric from the store again after the metric is written"() {
+    getMetrics([a: TimeRange.unbounded()])
+
+    when:
+    cache.saveMetrics(new JsonArray([[name: "a", points: []]]), {})
+    getMetrics([a: TimeRange.unbounded()])
+
+    then:
+    cache.stats().getLong("misses") == 2
+    cache.stats().getLong("hits") == 0
+  }
+
+  def "it reads a metric from the store again after it is invalidated"() {
+    getMetrics([a: TimeRange.unbounded(), b: TimeRange.unbounded()])
+
+    when:
+    cache.invalidate(["a"])
+    getMetrics([a: TimeRange.unbounded(), b: TimeRange.unbounded()])
+
+    then:
+    cache.stats().getLong("misses") == 3
+    cache.stats().getLong("hits") == 1
+  }
+
+  def "it evicts the least recently used metrics and does not cache metrics that are too big"() {
+    when:
+    getMetrics([a: TimeRange.unbounded()])
+    getMetrics([b: TimeRange.unbounded()])
+    getMetrics([a: TimeRange.unbounded()])
+    getMetrics([big: TimeRange.unbounded()])
+    storedMetrics.c = [name: "c", points: (1..6).collect { [time: it, value: it] }]
+    getMetrics([c: TimeRange.unbounded()])
+
+    then:
+    cache.stats().toMap() == [metrics: 2, points: 10, maxPoints: 10, hits: 1, misses: 4, evictions: 1, tooLargeMetrics: 1]
+  }
+
+  def "it reads metrics that are too big to cache over the time range asked for"() {
+    def bigMetric = { handler -> handler.handle(DefaultAsyncResult.succeed(new JsonArray([storedMetrics.big]))) }
+
+    when:
+    def first = getMetrics([big: new TimeRange(1, 2)])
+
+    then:
+    1 * store.getMetrics({ it.big.timeRange().isUnbounded() }, _) >> { metricReads, handler -> bigMetric(handler) }
+    first == [[name: "big", points: [[time: 1, value: 1], [time: 2, value: 2]]]]
+
+    when:
+    def second = getMetrics([big: new TimeRange(3, 4)])
+
+    then:
+    1 * store.getMetrics({ it.big.timeRange().from() == 3 }, _) >> { metricReads, handler -> bigMetric(handler) }
+    second == [[name: "big", points: [[time: 3, value: 3], [time: 4, value: 4]]]]
+    cache.stats().getLong("tooLargeMetrics") == 1
+  }
+
+  def "it does not let callers change the cached metrics"() {
+    def result = null
+    cache.getMetrics([a: MetricRead.unbounded()], { result = it })
+    result.result().get(0).getArray("points").addObject(new JsonObject([time: 3, value: 3]))
+
+    expect:
+    getMetrics([a: TimeRange.unbounded()]) == [storedMetrics.a]
+  }
+}
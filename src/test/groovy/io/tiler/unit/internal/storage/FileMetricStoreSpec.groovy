@@ -0,0 +1,190 @@
+package io.tiler.unit.internal.storage
+
+import io.tiler.internal.config.*
+import io.tiler.internal.queries.TimeRange
+import io.tiler.internal.storage.FileMetricStore
+import io.tiler.internal.storage.MetricRead
+import io.tiler.unit.internal.FakeFileStorage
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+import org.vertx.java.core.logging.Logger
+import spock.lang.*
+
+import java.nio.file.Files
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+
+class FileMetricStoreSpec extends Specification {
+  def directory = Files.createTempDirectory("tiler")
+  def logger = Mock(Logger)
+  def maxOpenFiles = 256
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  def createStore(RetentionConfig retentionConfig = null) {
+    def config = new Config(null, new ApiConfig(), new RedisConfig(), new StorageConfig("file", null, null, retentionConfig, new FileStorageConfig(directory.toString(), 256, maxOpenFiles), null, null, null), new IngestConfig(), new SnapshotConfig(), null)
+    def store = new FakeFileStorage(config, logger).createStore(logger)
+    call { store.start(it) }
+    store
+  }
+
+  def call(Closure closure) {
+    def result = null
+    closure({ result = it })
+    assert result.succeeded()
+    result.result()
+  }
+
+  def metrics(List<Map> metrics) {
+    new JsonArray(metrics)
+  }
+
+  def getMetrics(FileMetricStore store, Map<String, TimeRange> timeRanges) {
+    def metricReads = new LinkedHashMap<String, MetricRead>()
+    timeRanges.each { name, timeRange -> metricReads.put(name, new MetricRead(timeRange, null)) }
+    call { store.getMetrics(metricReads, it) }.toList()
+  }
+
+  def "it saves, appends and reads metrics"() {
+    def store = createStore()
+
+    when:
+    call { store.saveMetrics(metrics([[name: "a", host: "x", points: [[time: 1, value: 1], [time: 2, value: 2]]]]), it) }
+    call { store.appendPoints(metrics([[name: "a", points: [[time: 3, value: 3]]], [name: "b", points: [[time: 1, value: 10]]]]), it) }
+
+    then:
+    call { store.getMetricNames(it) }.sort() == ["a", "b"]
+    getMetrics(store, [a: TimeRange.unbounded(), b: TimeRange.unbounded(), c: TimeRange.unbounded()]) == [
+      [name: "a", host: "x", points: [[time: 1, value: 1], [time: 2, value: 2], [time: 3, value: 3]]],
+      [name: "b", points: [[time: 1, value: 10]]]
+    ]
+  }
+
+  def "it reads metrics without their points"() {
+    def store = createStore()
+    call { store.saveMetrics(metrics([[name: "a", host: "x", points: [[time: 1, value: 1]]]]), it) }
+
+    expect:
+    call { store.getMetrics(new LinkedHashMap<String, MetricRead>([a: MetricRead.withoutPoints()]), it) }.toList() == [
+      [name: "a", host: "x", points: []]
+    ]
+  }
+
+  def "it merges points into a metric by time"() {
+    def store = createStore()
+    call { store.saveMetrics(metrics([[name: "a", host: "x", points: [[time: 1, value: 1], [time: 2, value: 2]]]]), it) }
+
+    when:
+    call { store.mergePoints(metrics([[name: "a", points: [[time: 2, value: 20], [time: 3, value: 30]]], [name: "b", points: [[time: 1, value: 1]]]]), it) }
+
+    then:
+    getMetrics(store, [a: TimeRange.unbounded(), b: TimeRange.unbounded()]) == [
+      [name: "a", host: "x", points: [[time: 1, value: 1], [time: 2, value: 20], [time: 3, value: 30]]],
+      [name: "b", points: [[time: 1, value: 1]]]
+    ]
+  }
+
+  def "it replaces all of a metric's points when it is saved"() {
+    def store = createStore()
+
+    when:
+    call { store.saveMetrics(metrics([[name: "a", host: "x", points: [[time: 1, value: 1]]]]), it) }
+    call { store.saveMetrics(metrics([[name: "a", host: "y", points: [[time: 5, value: 5]]]]), it) }
+
+    then:
+    getMetrics(store, [a: TimeRange.unbounded()]) == [[name: "a", host: "y", points: [[time: 5, value: 5]]]]
+  }
+
+  def "it keeps a metric's old points if a replace does not finish"() {
+    def store = createStore()
+    call { store.saveMetrics(metrics([[name: "a", host: "x", points: [[time: 1, value: 1]]]]), it) }
+    call { store.saveMetrics(metrics([[name: "a", host: "y", points: (1..20).collect { [time: it, value: it] }]]), it) }
+    def segmentPath = Files.walk(directory).find { it.toString().endsWith(".segment") }
+    // A replace that stopped before its segment was renamed into place
+    def temporaryPath = segmentPath.resolveSibling("9999999999999999.segment.tmp")
+    Files.write(temporaryPath, new byte[64])
+
+    when:
+    def reloadedStore = createStore()
+
+    then:
+    getMetrics(reloadedStore, [a: TimeRange.unbounded()]) == [[name: "a", host: "y", points: (1..20).collect { [time: it, value: it] }]]
+    !Files.exists(temporaryPath)
+  }
+
+  def "it reads and writes more metrics than it keeps files open for"() {
+    maxOpenFiles = 2
+    def store = createStore()
+    def names = (0..<10).collect { "m" + it }
+
+    when:
+    call { store.saveMetrics(metrics(names.collect { [name: it, points: [[time: 1, value: 1]]] }), it) }
+    call { store.appendPoints(metrics(names.collect { [name: it, points: [[time: 2, value: 2]]] }), it) }
+    call { store.saveMetrics(metrics(names.take(5).collect { [name: it, points: [[time: 3, value: 3]]] }), it) }
+
+    then:
+    getMetrics(createStore(), names.collectEntries { [it, TimeRange.unbounded()] })*.points*.time == names.collect { name ->
+      names.indexOf(name) < 5 ? [3] : [1, 2]
+    }
+  }
+
+  def "it only reads points in the time range and returns them in time order"() {
+    def store = createStore()
+    def points = (0..<50).collect { [time: (it * 7) % 50, value: it] }
+    call { store.appendPoints(metrics([[name: "a", points: points]]), it) }
+
+    when:
+    def result = getMetrics(store, [a: new TimeRange(10, 19)])
+
+    then:
+    result[0].points*.time == (10..19).toList()
+  }
+
+  def "it reloads metrics from the segment files when it is restarted"() {
+    def store = createStore()
+    call { store.saveMetrics(metrics([[name: "a/b:c", points: [[time: 1, value: 1]]]]), it) }
+    call { store.saveMetrics(metrics([[name: "a/b:c", points: [[time: 2, value: 2]]]]), it) }
+    call { store.appendPoints(metrics([[name: "a/b:c", host: "x", points: (3..40).collect { [time: it, value: it] }]]), it) }
+
+    when:
+    def reloadedStore = createStore()
+
+    then:
+    call { reloadedStore.getMetricNames(it) } == ["a/b:c"]
+    getMetrics(reloadedStore, ["a/b:c": TimeRange.unbounded()]) == getMetrics(store, ["a/b:c": TimeRange.unbounded()])
+    getMetrics(reloadedStore, ["a/b:c": TimeRange.unbounded()])[0].host == "x"
+    getMetrics(reloadedStore, ["a/b:c": TimeRange.unbounded()])[0].points*.time == (2..40).toList()
+  }
+
+  def "it trims old points when retention is applied"() {
+    def store = createStore(new RetentionConfig("2s", 3, null, null, null))
+    def clock = Clock.fixed(Instant.ofEpochSecond(10), ZoneOffset.UTC)
+    call { store.appendPoints(metrics([[name: "a", points: (0..<20).collect { [time: it * 500000L, value: it] }]]), it) }
+
+    when:
+    call { store.applyRetention(clock, it) }
+
+    then:
+    getMetrics(store, [a: TimeRange.unbounded()])[0].points*.time == [8500000L, 9000000L, 9500000L]
+    getMetrics(createStore(), [a: TimeRange.unbounded()])[0].points*.time == [8500000L, 9000000L, 9500000L]
+  }
+
+  def "it removes metrics once they have expired"() {
+    def store = createStore()
+    def clock = Clock.fixed(Instant.ofEpochSecond(10), ZoneOffset.UTC)
+    call { store.saveMetrics(metrics([[name: "a", points: []], [name: "b", points: []], [name: "c", points: []]]), it) }
+    call { store.setExpiryTimes([a: 9000000L, b: 10000000L, c: 11000000L], it) }
+
+    when:
+    def removedMetricNames = call { store.removeExpiredMetrics(clock, 1000, it) }
+
+    then:
+    removedMetricNames.sort() == ["a", "b"]
+    call { store.getMetricNames(it) } == ["c"]
+    call { createStore().getMetricNames(it) } == ["c"]
+    call { createStore().removeExpiredMetrics(clock, 1000, it) } == []
+  }
+}
@@ -0,0 +1,45 @@
+package io.tiler.unit.internal.storage
+
+import io.tiler.internal.storage.HashRing
+import spock.lang.*
+
+class HashRingSpec extends Specification {
+  def keys = (0..<10000).collect { "metric.$it".toString() }
+
+  def createRing(List<String> nodeNames) {
+    def ring = new HashRing<String>(160)
+    nodeNames.each { ring.add(it, it) }
+    ring
+  }
+
+  def "it spreads keys across the nodes"() {
+    def ring = createRing(["a", "b", "c", "d"])
+
+    when:
+    def counts = keys.countBy { ring.get(it) }
+
+    then:
+    counts.keySet() == ["a", "b", "c", "d"] as Set
+    counts.values().every { it > 1500 && it < 3500 }
+  }
+
+  def "it places nodes the same way whatever order they are added in"() {
+    def ring = createRing(["a", "b", "c"])
+    def reorderedRing = createRing(["c", "a", "b"])
+
+    expect:
+    keys.every { ring.get(it) == reorderedRing.get(it) }
+  }
+
+  def "it only moves keys to a node that is added"() {
+    def ring = createRing(["a", "b", "c"])
+    def grownRing = createRing(["a", "b", "c", "d"])
+
+    when:
+    def movedKeys = keys.findAll { ring.get(it) != grownRing.get(it) }
+
+    then:
+    movedKeys.every { grownRing.get(it) == "d" }
+    movedKeys.size() > 1500 && movedKeys.size() < 3500
+  }
+}
@@ -0,0 +1,38 @@
+package io.tiler.unit.internal.storage
+
+import io.tiler.internal.storage.MetricPoints
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+import spock.lang.*
+
+class MetricPointsSpec extends Specification {
+  def "merging replaces points with the same key in place and adds the rest"() {
+    def points = new JsonArray([[time: 1, value: 1], [time: 2, value: 2], [time: 3, value: 3]])
+    def incomingPoints = new JsonArray([[time: 4, value: 40], [time: 2.0, value: 20], [value: 50], [time: 4, value: 41]])
+
+    expect:
+    MetricPoints.mergePoints(points, incomingPoints, "time").toList() == [
+      [time: 1, value: 1], [time: 2.0, value: 20], [time: 3, value: 3], [time: 4, value: 41], [value: 50]
+    ]
+  }
+
+  def "merging can match points on a field other than time"() {
+    def points = new JsonArray([[time: 1, build: "a", result: "failed"], [time: 2, build: "b", result: "passed"]])
+    def incomingPoints = new JsonArray([[time: 3, build: "a", result: "passed"]])
+
+    expect:
+    MetricPoints.mergePoints(points, incomingPoints, "build").toList() == [
+      [time: 3, build: "a", result: "passed"], [time: 2, build: "b", result: "passed"]
+    ]
+  }
+
+  def "merging a metric keeps stored fields that were not sent"() {
+    def metric = new JsonObject([name: "m", host: "x", owner: "y", points: [[time: 1, value: 1]]])
+    def incomingMetric = new JsonObject([name: "m", host: "z", points: [[time: 2, value: 2]]])
+
+    expect:
+    MetricPoints.mergeMetric(metric, incomingMetric, "time").toMap() == [
+      name: "m", host: "z", owner: "y", points: [[time: 1, value: 1], [time: 2, value: 2]]
+    ]
+  }
+}
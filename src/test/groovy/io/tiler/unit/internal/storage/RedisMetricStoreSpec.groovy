@@ -0,0 +1,226 @@
+package io.tiler.unit.internal.storage
+
+import io.tiler.internal.PartialWriteException
+import io.tiler.internal.config.*
+import io.tiler.internal.queries.TimeRange
+import io.tiler.internal.storage.MetricRead
+import io.tiler.internal.storage.RedisMetricStore
+import io.tiler.internal.storage.codecs.CompressionStats
+import io.tiler.unit.internal.FakeRedis
+import org.simondean.vertx.async.DefaultAsyncResult
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.logging.Logger
+import spock.lang.*
+
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+
+class RedisMetricStoreSpec extends Specification {
+  def redis = new FakeRedis()
+
+  def createStore(String mode = "document", int writeBatchSize = 500, int scanCount = 1000) {
+    def redisConfig = new RedisConfig(null, null, null, null, null, null, null, "", writeBatchSize, null, scanCount, null)
+    def config = new Config(null, new ApiConfig(), redisConfig, new StorageConfig(null, mode, null, null, null, null, null, null), new IngestConfig(), new SnapshotConfig(), null)
+    new RedisMetricStore(null, redis.createEventBus(), config, redisConfig, new CompressionStats(), Mock(Logger))
+  }
+
+  def call(Closure closure) {
+    def result = null
+    closure({ result = it })
+    redis.run()
+    assert result != null
+    result
+  }
+
+  def metrics(List<Map> metrics) {
+    new JsonArray(metrics)
+  }
+
+  def getMetrics(RedisMetricStore store, Map<String, MetricRead> metricReads) {
+    def result = call { store.getMetrics(metricReads, it) }
+    assert result.succeeded()
+    result.result().toList()
+  }
+
+  def clockAt(long millis) {
+    Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC)
+  }
+
+  def "it saves documents in chunks of the write batch size and reads them back"() {
+    def store = createStore("document", 2)
+
+    when:
+    def result = call { store.saveMetrics(metrics([
+      [name: "a", points: [[time: 1, value: 1]]],
+      [name: "b", points: [[time: 1, value: 2]]],
+      [name: "c", points: [[time: 1, value: 3]]]]), it) }
+
+    then:
+    result.succeeded()
+    redis.commandNames() == ["sadd", "mset", "mset"]
+    redis.sets.metricNames == ["a", "b", "c"] as Set
+    getMetrics(store, [c: MetricRead.unbounded(), a: MetricRead.unbounded(), missing: MetricRead.unbounded()]) == [
+      [name: "c", points: [[time: 1, value: 3]]],
+      [name: "a", points: [[time: 1, value: 1]]]
+    ]
+  }
+
+  def "it names the metrics whose chunk could not be saved"() {
+    def store = createStore("document", 2)
+    redis.failWhen { command, args -> command == "mset" && args.contains("metrics:c") }
+
+    when:
+    def result = call { store.saveMetrics(metrics([[name: "a", points: []], [name: "b", points: []], [name: "c", points: []]]), it) }
+
+    then:
+    result.failed()
+    result.cause() instanceof PartialWriteException
+    result.cause().failedMetricNames() == ["c"]
+    redis.strings.keySet().findAll { it.startsWith("metrics:") } == ["metrics:a", "metrics:b"] as Set
+  }
+
+  def "it reads only the header of documents read without their points"() {
+    def store = createStore()
+    call { store.saveMetrics(metrics([[name: "a", unit: "ms", points: [[time: 1, value: 1]]]]), it) }
+    redis.commands.clear()
+
+    when:
+    def readMetrics = getMetrics(store, [a: MetricRead.withoutPoints()])
+
+    then:
+    readMetrics == [[name: "a", unit: "ms", points: []]]
+    redis.commands == [["mget", ["metricHeaders:a"]]]
+  }
+
+  def "it merges points into stored documents"() {
+    def store = createStore()
+    call { store.saveMetrics(metrics([[name: "a", points: [[time: 1, value: 1], [time: 2, value: 2]]]]), it) }
+
+    when:
+    def result = call { store.mergePoints(metrics([[name: "a", points: [[time: 2, value: 20], [time: 3, value: 3]]]]), it) }
+
+    then:
+    result.succeeded()
+    getMetrics(store, [a: MetricRead.unbounded()]) == [[name: "a", points: [[time: 1, value: 1], [time: 2, value: 20], [time: 3, value: 3]]]]
+  }
+
+  def "it only appends points in the points storage mode"() {
+    def store = createStore()
+
+    when:
+    def result = call { store.appendPoints(metrics([[name: "a", points: [[time: 1, value: 1]]]]), it) }
+
+    then:
+    result.failed()
+    result.cause() instanceof UnsupportedOperationException
+    redis.commands.isEmpty()
+  }
+
+  def "it replaces a metric's points in a transaction when it is saved in the points storage mode"() {
+    def store = createStore("points")
+    call { store.saveMetrics(metrics([[name: "a", points: [[time: 1, value: 1], [time: 2, value: 2]]]]), it) }
+    redis.commands.clear()
+
+    when:
+    def result = call { store.saveMetrics(metrics([[name: "a", unit: "ms", points: [[time: 3, value: 3]]]]), it) }
+
+    then:
+    result.succeeded()
+    redis.commandNames() == ["sadd", "multi", "del", "set", "zadd", "exec"]
+    redis.pointTimes("metricPoints:a") == [3]
+    getMetrics(store, [a: MetricRead.unbounded()]) == [[name: "a", unit: "ms", points: [[time: 3, value: 3]]]]
+  }
+
+  def "it appends points with ZADD in chunks of the write batch size"() {
+    def store = createStore("points", 2)
+    call { store.saveMetrics(metrics([[name: "a", unit: "ms", points: [[time: 1, value: 1]]]]), it) }
+    redis.commands.clear()
+
+    when:
+    def result = call { store.appendPoints(metrics([[name: "a", points: [[time: 3, value: 3], [time: 2, value: 2], [time: 4, value: 4]]]]), it) }
+
+    then:
+    result.succeeded()
+    redis.commandNames() == ["sadd", "setnx", "zadd", "zadd"]
+    getMetrics(store, [a: MetricRead.unbounded()]) == [[name: "a", unit: "ms", points: [[time: 1, value: 1], [time: 2, value: 2], [time: 3, value: 3], [time: 4, value: 4]]]]
+  }
+
+  def "it upserts merged points by their merge key in the points storage mode"() {
+    def store = createStore("points")
+    call { store.saveMetrics(metrics([[name: "a", points: [[time: 1, value: 1], [time: 2, value: 2]]]]), it) }
+
+    when:
+    def result = call { store.mergePoints(metrics([[name: "a", points: [[time: 2, value: 20], [time: 2, value: 21], [time: 3, value: 3]]]]), it) }
+
+    then:
+    result.succeeded()
+    getMetrics(store, [a: MetricRead.unbounded()]) == [[name: "a", points: [[time: 1, value: 1], [time: 2, value: 21], [time: 3, value: 3]]]]
+  }
+
+  def "it reads points in the points storage mode over the time range asked for"() {
+    def store = createStore("points")
+    call { store.saveMetrics(metrics([[name: "a", points: (1..5).collect { [time: it, value: it] }]]), it) }
+
+    expect:
+    getMetrics(store, [a: new MetricRead(new TimeRange(2, 4), null)])*.points*.time == [[2, 3, 4]]
+  }
+
+  def "it hands metric names over a scan batch at a time"() {
+    def store = createStore("document", 500, 2)
+    call { store.saveMetrics(metrics(["e", "d", "c", "b", "a"].collect { [name: it, points: []] }), it) }
+    def batches = []
+
+    when:
+    def result = call { store.scanMetricNames({ metricNames, handler ->
+      batches << metricNames
+      handler.handle(DefaultAsyncResult.succeed())
+    }, it) }
+
+    then:
+    result.succeeded()
+    batches == [["a", "b"], ["c", "d"], ["e"]]
+    redis.commands.findAll { it[0] == "sscan" }*.get(1)*.get(1) == ["0", "2", "4"]
+  }
+
+  def "it removes metrics once their expiry time has passed"() {
+    def store = createStore("points")
+    call { store.saveMetrics(metrics(["a", "b", "c"].collect { [name: it, points: [[time: 1, value: 1]]] }), it) }
+    call { store.setExpiryTimes([a: 1000000L, b: 2000000L, c: 5000000L], it) }
+
+    when:
+    def result = call { store.removeExpiredMetrics(clockAt(3000), 10, it) }
+
+    then:
+    result.succeeded()
+    result.result() == ["a", "b"]
+    redis.sets.metricNames == ["c"] as Set
+    redis.members("metricExpiryTimes") == ["c"]
+    !redis.sortedSets.containsKey("metricPoints:a")
+    !redis.strings.containsKey("metricHeaders:b")
+    getMetrics(store, [a: MetricRead.unbounded(), c: MetricRead.unbounded()])*.name == ["c"]
+  }
+
+  def "it removes no more expired metrics than it is asked to"() {
+    def store = createStore()
+    call { store.setExpiryTimes([a: 1000000L, b: 2000000L], it) }
+
+    when:
+    def result = call { store.removeExpiredMetrics(clockAt(3000), 1, it) }
+
+    then:
+    result.result() == ["a"]
+    redis.members("metricExpiryTimes") == ["b"]
+  }
+
+  def "it reads back the expiry times of the metrics that have one"() {
+    def store = createStore()
+    call { store.setExpiryTimes([a: 1500000L], it) }
+
+    when:
+    def result = call { store.getExpiryTimes(["a", "b"], it) }
+
+    then:
+    result.result() == [a: 1500000L]
+  }
+}
@@ -0,0 +1,184 @@
+package io.tiler.unit.internal.storage
+
+import io.tiler.internal.config.*
+import io.tiler.internal.storage.RetentionManager
+import io.tiler.unit.internal.FakeRedis
+import io.vertx.java.redis.RedisClient
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+import org.vertx.java.core.logging.Logger
+import spock.lang.*
+
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+
+class RetentionManagerSpec extends Specification {
+  static final long SECOND = 1000000L
+  static final long MINUTE = 60 * SECOND
+
+  def redis = new FakeRedis()
+
+  def createManager(RetentionConfig retentionConfig) {
+    def redisConfig = new RedisConfig(null, null, null, null, null, null, null, "", null, null, null, null)
+    def config = new Config(null, new ApiConfig(), redisConfig, new StorageConfig(null, "points", null, retentionConfig, null, null, null, null), new IngestConfig(), new SnapshotConfig(), null)
+    new RetentionManager(new RedisClient(redis.createEventBus(), RedisConfig.DEFAULT_ADDRESS), config, Mock(Logger))
+  }
+
+  def rollups(String... resolutions) {
+    new RetentionConfig(null, null, null, resolutions.collect { new RollupConfig(it, null) }, null)
+  }
+
+  def addPoints(String metricName, List<Map> points) {
+    points.each { redis.zadd("metricPoints:" + metricName, it.time, new JsonObject(it).encode()) }
+  }
+
+  def points(String key) {
+    redis.members(key).collect { new JsonObject(it).toMap() }
+  }
+
+  def run(RetentionManager manager, long nowMicroseconds) {
+    def result = null
+    manager.run(["a"], clockAt(nowMicroseconds), { result = it })
+    redis.run()
+    assert result.succeeded()
+  }
+
+  def rollUpAgain(RetentionManager manager, List<Map> points, long nowMicroseconds) {
+    def result = null
+    manager.rollUpAgain(new JsonArray([[name: "a", points: points]]), clockAt(nowMicroseconds), { result = it })
+    redis.run()
+    assert result.succeeded()
+  }
+
+  def clockAt(long microseconds) {
+    Clock.fixed(Instant.ofEpochMilli(microseconds.intdiv(1000)), ZoneOffset.UTC)
+  }
+
+  def "it only rolls up whole buckets, with the mean, min, max and count of their points"() {
+    def manager = createManager(rollups("1m"))
+    addPoints("a", [
+      [time: 0, value: 1],
+      [time: 10 * SECOND, value: 2],
+      [time: 50 * SECOND, value: 6],
+      [time: 70 * SECOND, value: 5]])
+
+    when:
+    run(manager, 90 * SECOND)
+
+    then:
+    points("metricRollups:60000000:a") == [[time: 0, value: 3, min: 1, max: 6, count: 3]]
+    redis.pointTimes("metricPoints:a") == [0, 10 * SECOND, 50 * SECOND, 70 * SECOND]
+  }
+
+  def "it picks up after the last bucket it rolled up"() {
+    def manager = createManager(rollups("1m"))
+    addPoints("a", [[time: 0, value: 1], [time: 70 * SECOND, value: 5]])
+    run(manager, 90 * SECOND)
+    addPoints("a", [[time: 80 * SECOND, value: 7], [time: 130 * SECOND, value: 9]])
+    redis.commands.clear()
+
+    when:
+    run(manager, 150 * SECOND)
+
+    then:
+    points("metricRollups:60000000:a") == [
+      [time: 0, value: 1, min: 1, max: 1, count: 1],
+      [time: MINUTE, value: 6, min: 5, max: 7, count: 2]]
+    redis.commands.find { it[0] == "zrangebyscore" }[1].drop(1) == [MINUTE.toString(), "(" + 2 * MINUTE]
+  }
+
+  def "it rolls up every resolution from the raw points"() {
+    def manager = createManager(rollups("5m", "1m"))
+    addPoints("a", (0..<10).collect { [time: it * 30 * SECOND, value: it] })
+
+    when:
+    run(manager, 6 * MINUTE)
+
+    then:
+    points("metricRollups:60000000:a")*.count == [2, 2, 2, 2, 2]
+    points("metricRollups:60000000:a")*.max == [1, 3, 5, 7, 9]
+    points("metricRollups:300000000:a") == [[time: 0, value: 4.5, min: 0, max: 9, count: 10]]
+  }
+
+  def "it drops rollup points older than the rollup's max age"() {
+    def manager = createManager(new RetentionConfig(null, null, null, [new RollupConfig("1m", "2m")], null))
+    addPoints("a", (0..<5).collect { [time: it * MINUTE, value: it] })
+
+    when:
+    run(manager, 5 * MINUTE)
+
+    then:
+    points("metricRollups:60000000:a")*.time == [3 * MINUTE, 4 * MINUTE]
+  }
+
+  def "it rolls up again the buckets that points were added to after they were rolled up"() {
+    def manager = createManager(rollups("1m", "5m"))
+    addPoints("a", (0..<10).collect { [time: it * MINUTE, value: 1] })
+    run(manager, 10 * MINUTE)
+    def addedPoints = [[time: 90 * SECOND, value: 10], [time: 10 * MINUTE + SECOND, value: 10]]
+    addPoints("a", addedPoints)
+
+    when:
+    rollUpAgain(manager, addedPoints, 11 * MINUTE)
+
+    then:
+    points("metricRollups:60000000:a")[1] == [time: MINUTE, value: 5.5, min: 1, max: 10, count: 2]
+    points("metricRollups:60000000:a").size() == 10
+    points("metricRollups:300000000:a")[0] == [time: 0, value: 15 / 6, min: 1, max: 10, count: 6]
+    points("metricRollups:300000000:a").size() == 2
+  }
+
+  def "it does not roll up again buckets older than the raw points that are left"() {
+    def manager = createManager(rollups("1m"))
+    addPoints("a", (0..<3).collect { [time: it * MINUTE, value: 1] })
+    run(manager, 3 * MINUTE)
+    redis.sortedSets["metricPoints:a"].remove(0)
+
+    when:
+    rollUpAgain(manager, [[time: 30 * SECOND, value: 10]], 3 * MINUTE)
+
+    then:
+    points("metricRollups:60000000:a")[0] == [time: 0, value: 1, min: 1, max: 1, count: 1]
+  }
+
+  def "it trims raw points by max age and max count"() {
+    def manager = createManager(new RetentionConfig(maxAge, maxCount, null, null, null))
+    addPoints("a", (0..<5).collect { [time: it * MINUTE, value: it] })
+
+    when:
+    run(manager, 5 * MINUTE)
+
+    then:
+    redis.pointTimes("metricPoints:a") == expectedMinutes.collect { it * MINUTE }
+
+    where:
+    maxAge | maxCount | expectedMinutes
+    "3m"   | null     | [2, 3, 4]
+    null   | 2        | [3, 4]
+    "3m"   | 1        | [4]
+  }
+
+  def "it trims the points of documents by max age and then max count, keeping the last points"() {
+    def manager = createManager(new RetentionConfig(maxAge, maxCount, null, null, null))
+    def metric = new JsonObject([name: "a", points: [
+      [time: 0, value: 0],
+      [time: 3 * MINUTE, value: 3],
+      [time: "later", value: 9],
+      [time: MINUTE, value: 1],
+      [time: 4 * MINUTE, value: 4]]])
+
+    when:
+    manager.trimPoints(metric, clockAt(5 * MINUTE))
+
+    then:
+    metric.getArray("points").toList()*.value == expectedValues
+
+    where:
+    maxAge | maxCount | expectedValues
+    "3m"   | null     | [3, 9, 4]
+    null   | 2        | [1, 4]
+    "3m"   | 2        | [9, 4]
+    null   | null     | [0, 3, 9, 1, 4]
+  }
+}
@@ -0,0 +1,176 @@
+package io.tiler.unit.internal.storage
+
+import io.tiler.internal.PartialWriteException
+import io.tiler.internal.config.*
+import io.tiler.internal.storage.MetricRead
+import io.tiler.internal.storage.ShardedMetricStore
+import io.tiler.internal.storage.codecs.CompressionStats
+import io.tiler.unit.internal.FakeRedis
+import org.vertx.java.core.json.JsonArray
+import org.vertx.java.core.json.JsonObject
+import org.vertx.java.core.logging.Logger
+import spock.lang.*
+
+class ShardedMetricStoreSpec extends Specification {
+  static final String MINUTE = "60000000"
+
+  def redis = [new FakeRedis(), new FakeRedis()]
+
+  def createStore(List<FakeRedis> redis, int shardCount, String mode = "points") {
+    def shardConfigs = (0..<shardCount).collect {
+      new RedisConfig("redis." + it, "shard" + it, null, null, null, null, null, "", null, null, null, null)
+    }
+    def redisConfig = new RedisConfig(null, null, null, null, null, null, null, "", null, null, null, shardConfigs)
+    def retentionConfig = new RetentionConfig(null, null, null, [new RollupConfig("1m", null)], null)
+    def storageConfig = new StorageConfig(null, mode, null, retentionConfig, null, null, null, null)
+    def config = new Config(null, new ApiConfig(), redisConfig, storageConfig, new IngestConfig(), new SnapshotConfig(), null)
+    def instances = (0..<shardCount).collectEntries { ["redis." + it, redis[it]] }
+    new ShardedMetricStore(null, FakeRedis.createEventBus(instances), config, new CompressionStats(), Mock(Logger))
+  }
+
+  def call(Closure closure) {
+    def result = null
+    closure({ result = it })
+    FakeRedis.run(redis)
+    assert result != null
+    result
+  }
+
+  def succeeded(Closure closure) {
+    def result = call(closure)
+    assert result.succeeded()
+    result.result()
+  }
+
+  def metrics(List<Map> metrics) {
+    new JsonArray(metrics)
+  }
+
+  def unbounded(List<String> metricNames) {
+    metricNames.collectEntries(new LinkedHashMap()) { [it, MetricRead.unbounded()] }
+  }
+
+  // The shard a name hashes to only depends on the shards' names, so a separate store can be used to find out
+  def namesOnShard(int shardIndex) {
+    def probeRedis = [new FakeRedis(), new FakeRedis()]
+    def store = createStore(probeRedis, 2)
+    store.saveMetrics(metrics((0..<20).collect { [name: "m" + it, points: []] }), {})
+    FakeRedis.run(probeRedis)
+    probeRedis[shardIndex].sets.metricNames as List
+  }
+
+  def "it saves each metric to the shard its name hashes to"() {
+    def store = createStore(redis, 2)
+    def metricNames = (0..<20).collect { "m" + it }
+
+    when:
+    succeeded { store.saveMetrics(metrics(metricNames.collect { [name: it, points: [[time: 1, value: 1]]] }), it) }
+
+    then:
+    redis[0].sets.metricNames.size() > 0
+    redis[1].sets.metricNames.size() > 0
+    redis[0].sets.metricNames.intersect(redis[1].sets.metricNames).isEmpty()
+    (redis[0].sets.metricNames + redis[1].sets.metricNames) as Set == metricNames as Set
+    redis[0].sets.metricNames.every { redis[0].sortedSets.containsKey("metricPoints:" + it) }
+    redis[1].sets.metricNames.every { redis[1].sortedSets.containsKey("metricPoints:" + it) }
+  }
+
+  def "it reads metrics from every shard in the order they were asked for"() {
+    def store = createStore(redis, 2)
+    def firstShardNames = namesOnShard(0)
+    def secondShardNames = namesOnShard(1)
+    def metricNames = [secondShardNames[0], firstShardNames[0], "missing", secondShardNames[1], firstShardNames[1]]
+    succeeded { store.saveMetrics(metrics(metricNames.findAll { it != "missing" }.collect { [name: it, points: []] }), it) }
+
+    when:
+    def readMetrics = succeeded { store.getMetrics(unbounded(metricNames), it) }
+
+    then:
+    readMetrics.toList()*.name == metricNames - "missing"
+  }
+
+  def "it names the metrics of every shard that failed to save them"() {
+    def store = createStore(redis, 2)
+    def firstShardNames = namesOnShard(0)
+    def secondShardNames = namesOnShard(1)
+    redis[1].failWhen { command, args -> command == "multi" }
+
+    when:
+    def result = call { store.saveMetrics(metrics([firstShardNames[0], secondShardNames[0], secondShardNames[1]].collect { [name: it, points: []] }), it) }
+
+    then:
+    result.failed()
+    result.cause() instanceof PartialWriteException
+    result.cause().failedMetricNames() as Set == [secondShardNames[0], secondShardNames[1]] as Set
+  }
+
+  def "it scans the metric names of every shard"() {
+    def store = createStore(redis, 2)
+    def metricNames = (0..<20).collect { "m" + it }
+    succeeded { store.saveMetrics(metrics(metricNames.collect { [name: it, points: []] }), it) }
+
+    expect:
+    succeeded { store.getMetricNames(it) } as Set == metricNames as Set
+  }
+
+  def "it moves metrics with their rollups and expiry times to the shard they now hash to"() {
+    def oldStore = createStore(redis, 1)
+    def movedName = namesOnShard(1)[0]
+    def keptName = namesOnShard(0)[0]
+    succeeded { oldStore.saveMetrics(metrics([movedName, keptName].collect { [name: it, unit: "ms", points: [[time: 90000000, value: 2]]] }), it) }
+    succeeded { oldStore.saveRollupPoints(new JsonObject([(movedName): [(MINUTE): [[time: 0, value: 1, min: 1, max: 1, count: 1]]]]), it) }
+    succeeded { oldStore.setExpiryTimes([(movedName): 5000000L], it) }
+    def store = createStore(redis, 2)
+
+    when:
+    def movedCount = succeeded { store.rebalance(it) }
+
+    then:
+    movedCount == 1
+    redis[0].sets.metricNames == [keptName] as Set
+    redis[1].sets.metricNames == [movedName] as Set
+    !redis[0].sortedSets.containsKey("metricRollups:" + MINUTE + ":" + movedName)
+    redis[0].members("metricExpiryTimes").isEmpty()
+    succeeded { store.getMetrics(unbounded([movedName, keptName]), it) }.toList() == [movedName, keptName].collect { [name: it, unit: "ms", points: [[time: 90000000, value: 2]]] }
+    succeeded { store.getRollupPoints([movedName], it) }.toMap() == [(movedName): [(MINUTE): [[time: 0, value: 1, min: 1, max: 1, count: 1]]]]
+    succeeded { store.getExpiryTimes([movedName], it) } == [(movedName): 5000000L]
+  }
+
+  def "it keeps the newer fields and points of a metric that was written to both shards"() {
+    def oldStore = createStore(redis, 1, mode)
+    def metricName = namesOnShard(1)[0]
+    succeeded { oldStore.saveMetrics(metrics([[name: metricName, unit: "old", points: [[time: 10000000, value: 1], [time: 70000000, value: 1]]]]), it) }
+    def store = createStore(redis, 2, mode)
+    succeeded { store.saveMetrics(metrics([[name: metricName, unit: "new", points: [[time: 70000000, value: 2], [time: 80000000, value: 2]]]]), it) }
+
+    when:
+    succeeded { store.rebalance(it) }
+
+    then:
+    redis[0].sets.metricNames.isEmpty()
+    succeeded { store.getMetrics(unbounded([metricName]), it) }.toList() == [[name: metricName, unit: "new", points: expectedPoints]]
+
+    where:
+    mode       | expectedPoints
+    "points"   | [[time: 10000000, value: 1], [time: 70000000, value: 2], [time: 80000000, value: 2]]
+    "document" | [[time: 70000000, value: 2], [time: 80000000, value: 2], [time: 10000000, value: 1]]
+  }
+
+  def "it combines the rollups of a metric that was rolled up on both shards"() {
+    def oldStore = createStore(redis, 1)
+    def metricName = namesOnShard(1)[0]
+    succeeded { oldStore.saveMetrics(metrics([[name: metricName, points: [[time: 10000000, value: 1]]]]), it) }
+    succeeded { oldStore.saveRollupPoints(new JsonObject([(metricName): [(MINUTE): [[time: 0, value: 1, min: 1, max: 1, count: 1], [time: 60000000, value: 1, min: 1, max: 1, count: 1]]]]), it) }
+    def store = createStore(redis, 2)
+    succeeded { store.saveMetrics(metrics([[name: metricName, points: [[time: 70000000, value: 2]]]]), it) }
+    succeeded { store.saveRollupPoints(new JsonObject([(metricName): [(MINUTE): [[time: 60000000, value: 2, min: 2, max: 2, count: 1]]]]), it) }
+
+    when:
+    succeeded { store.rebalance(it) }
+
+    then:
+    succeeded { store.getRollupPoints([metricName], it) }.toMap() == [(metricName): [(MINUTE): [
+      [time: 0, value: 1, min: 1, max: 1, count: 1],
+      [time: 60000000, value: 2, min: 2, max: 2, count: 1]]]]
+  }
+}
@@ -0,0 +1,83 @@
+package io.tiler.unit.internal.storage.codecs
+
+import io.tiler.internal.storage.codecs.GorillaCodec
+import org.vertx.java.core.json.JsonObject
+import spock.lang.*
+
+class GorillaCodecSpec extends Specification {
+  def codec = new GorillaCodec()
+
+  def "it round trips numeric points"() {
+    def metric = new JsonObject([
+      name: "m",
+      host: "a",
+      points: points.collect { [time: it[0], value: it[1]] }
+    ])
+
+    when:
+    def decoded = codec.decode(codec.encode(metric))
+
+    then:
+    decoded.encode() == metric.encode()
+
+    where:
+    points << [
+      [],
+      [[1000000L, 1L]],
+      [[1000000L, 1L], [2000000L, 2L], [3000000L, 2L], [4000000L, 10L], [5000001L, -5L]],
+      [[1000000L, 1.5d], [2000000L, 1.25d], [3000000L, 1.25d], [4000000L, -1000.125d], [5000000L, Double.MAX_VALUE]],
+      [[5000000L, 1L], [1000000L, 2L], [Long.MAX_VALUE, Long.MIN_VALUE], [0L, 3L], [-1L, 4L]],
+      [[1000000L, 0.1d], [1000000L, 0.2d], [1000000L, 0.30000000000000004d], [1000000L, Double.NaN], [1000000L, 1e-300d]]
+    ]
+  }
+
+  def "it keeps integer values as integers and stores other point fields once"() {
+    def metric = new JsonObject([
+      name: "m",
+      points: [
+        [time: 1, value: 1, build: "x"],
+        [time: 2, value: 2],
+        [time: 3, value: 3, build: "x"],
+        [time: 4, value: 4, build: "y", tags: [a: 1]]
+      ]
+    ])
+
+    when:
+    def bytes = codec.encode(metric)
+    def decoded = codec.decode(bytes)
+
+    then:
+    decoded.getArray("points").collect { it.toMap() } == [
+      [time: 1L, value: 1L, build: "x"],
+      [time: 2L, value: 2L],
+      [time: 3L, value: 3L, build: "x"],
+      [time: 4L, value: 4L, build: "y", tags: [a: 1]]
+    ]
+    new String(bytes, "UTF-8").count('"build":"x"') == 1
+  }
+
+  def "it is smaller than JSON for regular series"() {
+    def metric = new JsonObject([
+      name: "m",
+      points: (0..<1000).collect { [time: 1000000000L + it * 10000000L, value: 50 + (it % 3)] }
+    ])
+
+    expect:
+    codec.encode(metric).length * 10 < metric.encode().length()
+  }
+
+  def "it does not encode points that are not a numeric series"() {
+    def metric = new JsonObject([name: "m", points: points])
+
+    expect:
+    codec.encode(metric) == null
+
+    where:
+    points << [
+      [[time: 1, value: "a"]],
+      [[time: 1]],
+      [[time: 1.5, value: 1]],
+      [[value: 1]]
+    ]
+  }
+}
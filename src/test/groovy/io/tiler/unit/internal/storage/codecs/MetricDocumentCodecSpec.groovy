@@ -0,0 +1,69 @@
+package io.tiler.unit.internal.storage.codecs
+
+import io.tiler.internal.config.CompressionConfig
+import io.tiler.internal.config.StorageEncoding
+import io.tiler.internal.storage.codecs.CompressionStats
+import io.tiler.internal.storage.codecs.MetricDocumentCodec
+import org.vertx.java.core.json.JsonObject
+import spock.lang.*
+
+class MetricDocumentCodecSpec extends Specification {
+  def numericMetric = new JsonObject([name: "m", points: [[time: 1, value: 1], [time: 2, value: 2]]])
+  def textMetric = new JsonObject([name: "m", points: [[time: 1, value: "a"]]])
+  def largeMetric = new JsonObject([name: "m", points: (1..200).collect { [time: it, value: "build \$it passed"] }])
+
+  def "it stores metrics as JSON by default"() {
+    def codec = new MetricDocumentCodec(StorageEncoding.Json)
+
+    expect:
+    codec.encode(numericMetric) == numericMetric.encode()
+  }
+
+  def "it falls back to JSON for metrics that cannot be binary encoded"() {
+    def codec = new MetricDocumentCodec(StorageEncoding.Gorilla)
+
+    expect:
+    codec.encode(numericMetric).startsWith("G")
+    codec.encode(textMetric) == textMetric.encode()
+  }
+
+  def "it reads both formats whatever the configured encoding"() {
+    def jsonCodec = new MetricDocumentCodec(StorageEncoding.Json)
+    def gorillaCodec = new MetricDocumentCodec(StorageEncoding.Gorilla)
+
+    expect:
+    jsonCodec.decode(gorillaCodec.encode(numericMetric)).encode() == numericMetric.encode()
+    gorillaCodec.decode(jsonCodec.encode(numericMetric)).encode() == numericMetric.encode()
+    gorillaCodec.decode(gorillaCodec.encode(textMetric)).encode() == textMetric.encode()
+  }
+
+  def "it compresses documents over the threshold"() {
+    def stats = new CompressionStats()
+    def codec = new MetricDocumentCodec(StorageEncoding.Json, new CompressionConfig("deflate", 1024, null), stats)
+
+    when:
+    def largeValue = codec.encode(largeMetric)
+    def smallValue = codec.encode(numericMetric)
+
+    then:
+    largeValue.startsWith("Z")
+    largeValue.length() < largeMetric.encode().length() / 4
+    smallValue == numericMetric.encode()
+    stats.toJson().getLong("compressed") == 1
+    stats.toJson().getLong("uncompressed") == 1
+    stats.toJson().getLong("originalBytes") == largeMetric.encode().length()
+    stats.toJson().getLong("compressedBytes") == largeValue.length()
+  }
+
+  def "it reads compressed documents whatever the configured compression"() {
+    def stats = new CompressionStats()
+    def compressingCodec = new MetricDocumentCodec(StorageEncoding.Gorilla, new CompressionConfig("deflate", 0, 9), stats)
+    def jsonCodec = new MetricDocumentCodec(StorageEncoding.Json)
+
+    expect:
+    jsonCodec.decode(compressingCodec.encode(largeMetric)).encode() == largeMetric.encode()
+    compressingCodec.decode(compressingCodec.encode(largeMetric)).encode() == largeMetric.encode()
+    compressingCodec.decode(jsonCodec.encode(numericMetric)).encode() == numericMetric.encode()
+    stats.toJson().getLong("decompressed") == 1
+  }
+}